@@ -40,6 +40,10 @@ public class FrontendCommand implements CommandInterface {
     private boolean isQuery;
     //private boolean readonly;
     private final int created;
+    // 从会话的命令缓存中借出后还没有执行完，这期间不能再借给别人，否则参数会被覆盖
+    private boolean checkedOut;
+    // 不在缓存中的命令或者借出期间被移出缓存的命令，执行完就关闭
+    private boolean closeAfterExecute;
 
     public FrontendCommand(FrontendSession session, Transfer transfer, String sql, int fetchSize) {
         this.transfer = transfer;
@@ -87,6 +91,38 @@ public class FrontendCommand implements CommandInterface {
         return isQuery;
     }
 
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * 命令缓存借出这个命令时调用，执行完(不管成功与否)后自动归还。
+     * 调用者要持有会话的锁。
+     */
+    public void checkOut() {
+        checkedOut = true;
+    }
+
+    public boolean isCheckedOut() {
+        return checkedOut;
+    }
+
+    /**
+     * 没有借出时立刻关闭，否则在执行完后关闭。调用者要持有会话的锁。
+     */
+    public void closeAfterExecute() {
+        if (checkedOut)
+            closeAfterExecute = true;
+        else
+            close();
+    }
+
+    private void executed() {
+        checkedOut = false;
+        if (closeAfterExecute)
+            close();
+    }
+
     @Override
     public ArrayList<ParameterInterface> getParameters() {
         return parameters;
@@ -129,89 +165,105 @@ public class FrontendCommand implements CommandInterface {
 
     @Override
     public ResultInterface executeQuery(int maxRows, boolean scrollable) {
-        checkParameters();
         synchronized (session) {
-            int objectId = session.getNextId();
-            ResultRemote result = null;
-            prepareIfRequired();
             try {
-                boolean isDistributedQuery = session.getTransaction() != null
-                        && !session.getTransaction().isAutoCommit();
-                if (isDistributedQuery) {
-                    session.traceOperation("COMMAND_EXECUTE_DISTRIBUTED_QUERY", id);
-                    transfer.writeInt(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_QUERY).writeInt(id)
-                            .writeInt(objectId).writeInt(maxRows);
-                } else {
-                    session.traceOperation("COMMAND_EXECUTE_QUERY", id);
-                    transfer.writeInt(FrontendSession.COMMAND_EXECUTE_QUERY) //
-                            .writeInt(id).writeInt(objectId).writeInt(maxRows);
-                }
-                int fetch;
-                if (scrollable) {
-                    fetch = Integer.MAX_VALUE;
-                } else {
-                    fetch = fetchSize;
-                }
-                transfer.writeInt(fetch);
-                sendParameters(transfer);
-                session.done(transfer);
+                checkParameters();
+                return executeQuery0(maxRows, scrollable);
+            } finally {
+                executed();
+            }
+        }
+    }
 
-                if (isDistributedQuery)
-                    session.getTransaction().addLocalTransactionNames(transfer.readString());
+    private ResultInterface executeQuery0(int maxRows, boolean scrollable) {
+        int objectId = session.getNextId();
+        ResultRemote result = null;
+        prepareIfRequired();
+        try {
+            boolean isDistributedQuery = session.getTransaction() != null
+                    && !session.getTransaction().isAutoCommit();
+            if (isDistributedQuery) {
+                session.traceOperation("COMMAND_EXECUTE_DISTRIBUTED_QUERY", id);
+                transfer.writeInt(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_QUERY).writeInt(id)
+                        .writeInt(objectId).writeInt(maxRows);
+            } else {
+                session.traceOperation("COMMAND_EXECUTE_QUERY", id);
+                transfer.writeInt(FrontendSession.COMMAND_EXECUTE_QUERY) //
+                        .writeInt(id).writeInt(objectId).writeInt(maxRows);
+            }
+            int fetch;
+            if (scrollable) {
+                fetch = Integer.MAX_VALUE;
+            } else {
+                fetch = fetchSize;
+            }
+            transfer.writeInt(fetch);
+            sendParameters(transfer);
+            session.done(transfer);
 
-                int columnCount = transfer.readInt();
-                int rowCount = transfer.readInt();
+            if (isDistributedQuery)
+                session.getTransaction().addLocalTransactionNames(transfer.readString());
 
-                if (rowCount < 0)
-                    result = new ResultRemoteCursor(session, transfer, objectId, columnCount, fetch);
-                else
-                    result = new ResultRemoteInMemory(session, transfer, objectId, columnCount, rowCount, fetch);
+            int columnCount = transfer.readInt();
+            int rowCount = transfer.readInt();
 
-            } catch (IOException e) {
-                session.handleException(e);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            session.readSessionState();
-            return result;
+            if (rowCount < 0)
+                result = new ResultRemoteCursor(session, transfer, objectId, columnCount, fetch);
+            else
+                result = new ResultRemoteInMemory(session, transfer, objectId, columnCount, rowCount, fetch);
+
+        } catch (IOException e) {
+            session.handleException(e);
+        } catch (Exception e) {
+            e.printStackTrace();
         }
+        session.readSessionState();
+        return result;
     }
 
     @Override
     public int executeUpdate() {
-        checkParameters();
         synchronized (session) {
-            int updateCount = 0;
-            //boolean autoCommit = false;
-            prepareIfRequired();
             try {
-                boolean isDistributedUpdate = session.getTransaction() != null
-                        && !session.getTransaction().isAutoCommit();
-                if (isDistributedUpdate) {
-                    session.traceOperation("COMMAND_EXECUTE_DISTRIBUTED_UPDATE", id);
-                    transfer.writeInt(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_UPDATE).writeInt(id);
-                } else {
-                    session.traceOperation("COMMAND_EXECUTE_UPDATE", id);
-                    transfer.writeInt(FrontendSession.COMMAND_EXECUTE_UPDATE).writeInt(id);
-                }
-                sendParameters(transfer);
-                session.done(transfer);
-
-                if (isDistributedUpdate)
-                    session.getTransaction().addLocalTransactionNames(transfer.readString());
+                checkParameters();
+                return executeUpdate0();
+            } finally {
+                executed();
+            }
+        }
+    }
 
-                updateCount = transfer.readInt();
-                transfer.readBoolean();
-                //autoCommit = transfer.readBoolean();
-            } catch (IOException e) {
-                session.handleException(e);
-            } catch (Exception e) {
-                //e.printStackTrace();
-                throw e;
+    private int executeUpdate0() {
+        int updateCount = 0;
+        //boolean autoCommit = false;
+        prepareIfRequired();
+        try {
+            boolean isDistributedUpdate = session.getTransaction() != null
+                    && !session.getTransaction().isAutoCommit();
+            if (isDistributedUpdate) {
+                session.traceOperation("COMMAND_EXECUTE_DISTRIBUTED_UPDATE", id);
+                transfer.writeInt(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_UPDATE).writeInt(id);
+            } else {
+                session.traceOperation("COMMAND_EXECUTE_UPDATE", id);
+                transfer.writeInt(FrontendSession.COMMAND_EXECUTE_UPDATE).writeInt(id);
             }
-            session.readSessionState();
-            return updateCount;
+            sendParameters(transfer);
+            session.done(transfer);
+
+            if (isDistributedUpdate)
+                session.getTransaction().addLocalTransactionNames(transfer.readString());
+
+            updateCount = transfer.readInt();
+            transfer.readBoolean();
+            //autoCommit = transfer.readBoolean();
+        } catch (IOException e) {
+            session.handleException(e);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            throw e;
         }
+        session.readSessionState();
+        return updateCount;
     }
 
     private void checkParameters() {
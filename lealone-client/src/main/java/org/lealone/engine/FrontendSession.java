@@ -10,7 +10,11 @@ import java.io.IOException;
 import java.net.Socket;
 import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.command.CommandInterface;
@@ -30,6 +34,7 @@ import org.lealone.util.NetUtils;
 import org.lealone.util.SmallLRUCache;
 import org.lealone.util.StringUtils;
 import org.lealone.util.TempFileDeleter;
+import org.lealone.value.MultiplexedConnection;
 import org.lealone.value.Transfer;
 import org.lealone.value.Value;
 
@@ -66,6 +71,7 @@ public class FrontendSession extends SessionWithState implements DataHandler, Tr
     public static final int COMMAND_EXECUTE_DISTRIBUTED_SAVEPOINT_ROLLBACK = 105;
 
     public static final int COMMAND_EXECUTE_TRANSACTION_VALIDATE = 106;
+    public static final int COMMAND_EXECUTE_BATCH_TRANSACTION_VALIDATE = 107;
 
     public static final int COMMAND_EXECUTE_BATCH_UPDATE_STATEMENT = 120;
     public static final int COMMAND_EXECUTE_BATCH_UPDATE_PREPAREDSTATEMENT = 121;
@@ -77,6 +83,9 @@ public class FrontendSession extends SessionWithState implements DataHandler, Tr
 
     private static final Random random = new Random(System.currentTimeMillis());
 
+    // key是server:port或ssl:server:port，同一个server的所有复用会话共用一个物理连接
+    private static final ConcurrentHashMap<String, MultiplexedConnection> multiplexedConnections = new ConcurrentHashMap<>();
+
     private SessionFactory sessionFactory;
 
     private TraceSystem traceSystem;
@@ -94,13 +103,55 @@ public class FrontendSession extends SessionWithState implements DataHandler, Tr
     private SessionInterface embedded;
     private LobStorage lobStorage;
     private Transaction transaction;
+    private LinkedHashMap<String, FrontendCommand> commandCache;
 
     public FrontendSession(ConnectionInfo ci) {
         this.connectionInfo = ci;
     }
 
+    private static MultiplexedConnection getMultiplexedConnection(String server, boolean ssl) throws IOException {
+        final String key = ssl ? "ssl:" + server : server;
+        MultiplexedConnection mux = multiplexedConnections.get(key);
+        if (mux != null && !mux.isClosed())
+            return mux;
+        synchronized (multiplexedConnections) {
+            mux = multiplexedConnections.get(key);
+            if (mux != null && !mux.isClosed())
+                return mux;
+            Socket socket = NetUtils.createSocket(server, Constants.DEFAULT_TCP_PORT, ssl);
+            Transfer trans = new Transfer(null, socket);
+            trans.setSSL(ssl);
+            trans.init();
+            trans.writeInt(MultiplexedConnection.MAGIC);
+            trans.flush();
+            final MultiplexedConnection newMux = new MultiplexedConnection(trans, null);
+            multiplexedConnections.put(key, newMux);
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true)
+                            newMux.readFrame();
+                    } catch (IOException e) {
+                        // 物理连接断开了，所有的stream都会读到EOF
+                    } finally {
+                        newMux.close();
+                        multiplexedConnections.remove(key, newMux);
+                    }
+                }
+            }, "MultiplexedConnection " + key);
+            t.setDaemon(true);
+            t.start();
+            return newMux;
+        }
+    }
+
     private Transfer initTransfer(ConnectionInfo ci, String server) throws IOException {
-        Socket socket = NetUtils.createSocket(server, Constants.DEFAULT_TCP_PORT, ci.isSSL());
+        Socket socket;
+        if (ci.getProperty("MULTIPLEXED", SysProperties.CLIENT_MULTIPLEXED))
+            socket = getMultiplexedConnection(server, ci.isSSL()).openStream();
+        else
+            socket = NetUtils.createSocket(server, Constants.DEFAULT_TCP_PORT, ci.isSSL());
         Transfer trans = new Transfer(this, socket);
         trans.setSSL(ci.isSSL());
         trans.init();
@@ -308,6 +359,65 @@ public class FrontendSession extends SessionWithState implements DataHandler, Tr
         return new FrontendCommand(this, transfer, sql, fetchSize);
     }
 
+    /**
+     * 返回一个已经在服务器端准备好的命令，同一个SQL在这个会话中只准备一次，
+     * 之后执行时只需要传输命令id和参数值，服务器端不用再解析和优化。
+     * 返回的命令由会话管理，调用者不能关闭它。
+     * <p>
+     * 命令在执行完之前一直处于借出状态，这期间再借相同的SQL会得到一个临时的命令(执行完就关闭)，
+     * 这样先借出的命令的参数不会被覆盖。
+     *
+     * @param sql the SQL statement
+     * @param fetchSize the number of rows to fetch in one step
+     * @return the prepared command
+     */
+    public synchronized FrontendCommand getCachedCommand(String sql, int fetchSize) {
+        checkClosed();
+        if (SysProperties.CLIENT_COMMAND_CACHE_SIZE <= 0)
+            return getTemporaryCommand(sql, fetchSize);
+        if (commandCache == null) {
+            commandCache = new LinkedHashMap<String, FrontendCommand>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FrontendCommand> eldest) {
+                    if (size() > SysProperties.CLIENT_COMMAND_CACHE_SIZE) {
+                        eldest.getValue().closeAfterExecute();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+        FrontendCommand command = commandCache.get(sql);
+        if (command != null && command.isCheckedOut())
+            return getTemporaryCommand(sql, fetchSize);
+        if (command == null || command.getFetchSize() != fetchSize) {
+            if (command != null)
+                command.close();
+            command = new FrontendCommand(this, transfer, sql, fetchSize);
+            commandCache.put(sql, command);
+        }
+        command.checkOut();
+        return command;
+    }
+
+    /**
+     * 返回一个不放进命令缓存的命令，执行完就关闭，
+     * 用于只执行一次的SQL，避免把命令缓存中常用的命令挤出去。
+     *
+     * @param sql the SQL statement
+     * @param fetchSize the number of rows to fetch in one step
+     * @return the prepared command
+     */
+    public synchronized FrontendCommand getTemporaryCommand(String sql, int fetchSize) {
+        checkClosed();
+        FrontendCommand command = new FrontendCommand(this, transfer, sql, fetchSize);
+        command.checkOut();
+        command.closeAfterExecute();
+        return command;
+    }
+
     /**
      * Check if this session is closed and throws an exception if so.
      *
@@ -588,6 +698,27 @@ public class FrontendSession extends SessionWithState implements DataHandler, Tr
         }
     }
 
+    /**
+     * 一次网络往返验证多个本地事务
+     *
+     * @param localTransactionNames 本地事务名列表
+     * @return 所有本地事务都有效时返回true
+     */
+    public synchronized boolean validateTransactions(List<String> localTransactionNames) {
+        checkClosed();
+        try {
+            transfer.writeInt(FrontendSession.COMMAND_EXECUTE_BATCH_TRANSACTION_VALIDATE);
+            transfer.writeInt(localTransactionNames.size());
+            for (String localTransactionName : localTransactionNames)
+                transfer.writeString(localTransactionName);
+            done(transfer);
+            return transfer.readBoolean();
+        } catch (Exception e) {
+            handleException(e);
+            return false;
+        }
+    }
+
     // 要加synchronized，避免FrontendCommand在执行更新和查询时其他线程把transaction置null
     public synchronized void setTransaction(Transaction transaction) {
         this.transaction = transaction;
@@ -20,7 +20,9 @@ package org.lealone.cluster.concurrent;
 public enum Stage {
     GOSSIP,
     REQUEST_RESPONSE,
-    INTERNAL_RESPONSE;
+    INTERNAL_RESPONSE,
+    COMMAND_PARALLEL,
+    SQL;
 
     public String getJmxType() {
         switch (this) {
@@ -28,6 +30,8 @@ public enum Stage {
         case INTERNAL_RESPONSE:
             return "internal";
         case REQUEST_RESPONSE:
+        case COMMAND_PARALLEL:
+        case SQL:
             return "request";
         default:
             throw new AssertionError("Unknown stage " + this);
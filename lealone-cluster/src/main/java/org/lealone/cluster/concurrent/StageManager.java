@@ -21,7 +21,9 @@ import java.util.EnumMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import org.lealone.cluster.config.DatabaseDescriptor;
 import org.lealone.cluster.utils.Utils;
+import org.lealone.engine.SysProperties;
 
 /**
  * This class manages executor services for Messages recieved: each Message requests
@@ -38,6 +40,11 @@ public class StageManager {
         stages.put(Stage.REQUEST_RESPONSE,
                 multiThreadedLowSignalStage(Stage.REQUEST_RESPONSE, Utils.getAvailableProcessors()));
         stages.put(Stage.INTERNAL_RESPONSE, multiThreadedStage(Stage.INTERNAL_RESPONSE, Utils.getAvailableProcessors()));
+        // 排队的任务数由CommandParallel控制
+        stages.put(Stage.COMMAND_PARALLEL,
+                multiThreadedLowSignalStage(Stage.COMMAND_PARALLEL, SysProperties.COMMAND_PARALLEL_MAX_THREADS));
+        // 执行其他节点发来的SQL请求，会阻塞在磁盘IO上，所以线程数不按CPU个数算
+        stages.put(Stage.SQL, multiThreadedLowSignalStage(Stage.SQL, DatabaseDescriptor.getConcurrentSqlRequests()));
         // the rest are all single-threaded
         stages.put(Stage.GOSSIP, new MetricsEnabledThreadPoolExecutor(Stage.GOSSIP));
     }
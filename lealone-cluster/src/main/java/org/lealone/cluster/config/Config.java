@@ -62,6 +62,9 @@ public class Config {
     public Integer dynamic_snitch_reset_interval_in_ms = 600000;
     public Double dynamic_snitch_badness_threshold = 0.1;
 
+    // 单分区读超过这个百分位的延迟时向第二个副本发推测读，0表示不启用，例如0.99
+    public Double speculative_retry_percentile = 0.0;
+
     public ServerEncryptionOptions server_encryption_options = new ServerEncryptionOptions();
     public ClientEncryptionOptions client_encryption_options = new ClientEncryptionOptions();
 
@@ -69,6 +72,29 @@ public class Config {
 
     public boolean inter_dc_tcp_nodelay = true;
 
+    // 发送消息前最多等多少微秒，把后续的消息合并到同一次flush中，0表示不等待
+    public Integer otc_coalescing_window_us = 0;
+    // 一次合并的最大消息数
+    public Integer otc_coalescing_max_messages = 128;
+    // 发送缓冲区的大小，缓冲区满了也会写到socket
+    public Integer otc_buffer_size_in_bytes = 64 * 1024;
+
+    // 节点间的分布式查询和更新改用MessagingService发送，不再为每个节点建立FrontendSession连接
+    public boolean sql_over_messaging = false;
+    // 执行其他节点发来的SQL请求的最大线程数
+    public Integer concurrent_sql_requests = 32;
+
+    // 副本节点不可用时把写操作记成hint，节点恢复后再重放
+    public boolean hinted_handoff_enabled = true;
+    // 节点下线超过这个时间就不再为它记hint，只能靠修复
+    public Integer max_hint_window_in_ms = 3 * 3600 * 1000;
+    // 每批重放的hint数
+    public Integer hinted_handoff_batch_size = 100;
+    // 两批hint之间的暂停时间
+    public Integer hinted_handoff_throttle_in_ms = 100;
+    // 同时给多少个节点重放hint
+    public Integer max_hints_delivery_threads = 2;
+
     private static boolean outboundBindAny = false;
 
     public String base_dir;
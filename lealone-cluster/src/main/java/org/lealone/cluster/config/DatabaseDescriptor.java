@@ -295,6 +295,10 @@ public class DatabaseDescriptor {
         return snitch;
     }
 
+    public static void setEndpointSnitch(IEndpointSnitch eps) {
+        snitch = eps;
+    }
+
     public static Collection<String> tokensFromString(String tokenString) {
         List<String> tokens = new ArrayList<String>();
         if (tokenString != null)
@@ -440,6 +444,14 @@ public class DatabaseDescriptor {
         conf.dynamic_snitch_badness_threshold = dynamicBadnessThreshold;
     }
 
+    public static double getSpeculativeRetryPercentile() {
+        return conf.speculative_retry_percentile;
+    }
+
+    public static void setSpeculativeRetryPercentile(Double speculativeRetryPercentile) {
+        conf.speculative_retry_percentile = speculativeRetryPercentile;
+    }
+
     public static ServerEncryptionOptions getServerEncryptionOptions() {
         return conf.server_encryption_options;
     }
@@ -464,6 +476,50 @@ public class DatabaseDescriptor {
         return conf.inter_dc_tcp_nodelay;
     }
 
+    public static int getOtcCoalescingWindow() {
+        return conf.otc_coalescing_window_us;
+    }
+
+    public static int getOtcCoalescingMaxMessages() {
+        return conf.otc_coalescing_max_messages;
+    }
+
+    public static int getOtcBufferSize() {
+        return conf.otc_buffer_size_in_bytes;
+    }
+
+    public static boolean isSqlOverMessaging() {
+        return conf.sql_over_messaging;
+    }
+
+    public static int getConcurrentSqlRequests() {
+        return conf.concurrent_sql_requests;
+    }
+
+    public static boolean isHintedHandoffEnabled() {
+        return conf.hinted_handoff_enabled;
+    }
+
+    public static int getMaxHintWindow() {
+        return conf.max_hint_window_in_ms;
+    }
+
+    public static int getHintedHandoffBatchSize() {
+        return conf.hinted_handoff_batch_size;
+    }
+
+    public static int getHintedHandoffThrottleInMs() {
+        return conf.hinted_handoff_throttle_in_ms;
+    }
+
+    public static int getMaxHintsDeliveryThreads() {
+        return conf.max_hints_delivery_threads;
+    }
+
+    public static String getBaseDir() {
+        return conf.base_dir;
+    }
+
     public static boolean hasLargeAddressSpace() {
         // currently we just check if it's a 64bit arch, but any we only really care if the address space is large
         String datamodel = System.getProperty("sun.arch.data.model");
@@ -67,6 +67,8 @@ public abstract class TransportServerOptions {
         public boolean ssl = false;
         public String password;
         public String key;
+        public boolean nio = false; //用一个selector线程和固定大小的工作线程池处理所有连接
+        public Integer nio_workers;
 
         @Override
         public List<String> getOptions(Config config) {
@@ -85,6 +87,13 @@ public abstract class TransportServerOptions {
                 list.add(keyAndDatabase[0]);
                 list.add(keyAndDatabase[1]);
             }
+            if (nio) {
+                list.add("-tcpNio");
+                if (nio_workers != null) {
+                    list.add("-tcpNioWorkers");
+                    list.add(nio_workers.toString());
+                }
+            }
             return list;
         }
     }
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 先把数据写到ByteBuffer中，缓冲区满了或flush时才一次性写出
+ * <p>
+ * 有WritableByteChannel时缓冲区用直接内存，通过channel写出，省掉从堆内存到直接内存的那次复制；
+ * 否则缓冲区用堆内存，直接把它的数组交给下层的OutputStream(比如SSL或LZ4BlockOutputStream)。
+ * writeInt/writeLong等方法直接put到缓冲区中，不像DataOutputStreamPlus那样一个字节一个字节地写。
+ */
+public class BufferedDataOutputStreamPlus extends DataOutputStreamPlus {
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    public BufferedDataOutputStreamPlus(WritableByteChannel channel, int bufferSize) {
+        super(null);
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public BufferedDataOutputStreamPlus(OutputStream out, int bufferSize) {
+        super(out);
+        this.channel = null;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining())
+            flushBuffer();
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buffer.capacity()) {
+            flushBuffer();
+            writeDirectly(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        if (len > buffer.remaining())
+            flushBuffer();
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        // 不能改变src的position
+        ByteBuffer dup = src.duplicate();
+        if (dup.remaining() > buffer.capacity()) {
+            flushBuffer();
+            writeDirectly(dup);
+            return;
+        }
+        if (dup.remaining() > buffer.remaining())
+            flushBuffer();
+        buffer.put(dup);
+    }
+
+    @Override
+    public void writeShort(int val) throws IOException {
+        ensureRemaining(2);
+        buffer.putShort((short) val);
+    }
+
+    @Override
+    public void writeInt(int val) throws IOException {
+        ensureRemaining(4);
+        buffer.putInt(val);
+    }
+
+    @Override
+    public void writeLong(long val) throws IOException {
+        ensureRemaining(8);
+        buffer.putLong(val);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        if (out != null)
+            out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (channel != null)
+                channel.close();
+            else
+                out.close();
+        }
+    }
+
+    private void ensureRemaining(int len) throws IOException {
+        if (buffer.remaining() < len)
+            flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0)
+            return;
+        buffer.flip();
+        try {
+            writeDirectly(buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void writeDirectly(ByteBuffer src) throws IOException {
+        if (channel != null) {
+            while (src.hasRemaining())
+                channel.write(src);
+        } else if (src.hasArray()) {
+            out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+        } else {
+            super.write(src);
+            src.position(src.limit());
+        }
+    }
+}
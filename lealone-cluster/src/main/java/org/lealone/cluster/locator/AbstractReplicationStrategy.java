@@ -25,8 +25,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.cliffc.high_scale_lib.NonBlockingHashMap;
 import org.lealone.cluster.dht.Range;
 import org.lealone.cluster.dht.RingPosition;
 import org.lealone.cluster.dht.Token;
@@ -46,11 +46,11 @@ public abstract class AbstractReplicationStrategy {
 
     protected final Map<String, String> configOptions;
     private final TokenMetaData tokenMetaData;
-    private final Map<Token, ArrayList<InetAddress>> cachedEndpoints = new NonBlockingHashMap<>();
     private final String keyspaceName;
 
-    // track when the token range changes, signaling we need to invalidate our endpoint cache
-    private volatile long lastInvalidatedVersion = 0;
+    // token环或pending ranges变化时整体替换，读的时候不需要加锁
+    private volatile ReplicaRing replicaRing = ReplicaRing.EMPTY;
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
 
     AbstractReplicationStrategy(String keyspaceName, TokenMetaData tokenMetaData, IEndpointSnitch snitch,
             Map<String, String> configOptions) {
@@ -83,21 +83,68 @@ public abstract class AbstractReplicationStrategy {
 
     public abstract void validateOptions() throws ConfigurationException;
 
-    public ArrayList<InetAddress> getCachedEndpoints(Token t) {
-        long lastVersion = tokenMetaData.getRingVersion();
-
-        if (lastVersion > lastInvalidatedVersion) {
-            synchronized (this) {
-                if (lastVersion > lastInvalidatedVersion) {
-                    if (logger.isDebugEnabled())
-                        logger.debug("clearing cached endpoints");
-                    cachedEndpoints.clear();
-                    lastInvalidatedVersion = lastVersion;
-                }
+    /**
+     * 返回当前版本的ReplicaRing，token环或pending ranges变了之后由第一个发现的线程重建，
+     * 重建期间其他线程不等待，直接按新的token环计算，不会用到过期的副本。
+     */
+    private ReplicaRing getReplicaRing() {
+        ReplicaRing ring = replicaRing;
+        long ringVersion = tokenMetaData.getRingVersion();
+        long pendingRangesVersion = tokenMetaData.getPendingRangesVersion();
+        if (ring.ringVersion == ringVersion && ring.pendingRangesVersion == pendingRangesVersion)
+            return ring;
+
+        if (!rebuilding.compareAndSet(false, true))
+            return null;
+        try {
+            ring = replicaRing;
+            if (ring.ringVersion != ringVersion || ring.pendingRangesVersion != pendingRangesVersion) {
+                if (logger.isDebugEnabled())
+                    logger.debug("rebuilding replica ring for {}, ring version: {}", keyspaceName, ringVersion);
+                // 先取版本号再取数据，期间如果又有变化，新的ReplicaRing的版本号是旧的，下次还会再重建。
+                // 不用cachedOnlyTokenMap：invalidateCachedRings先加版本号再清缓存，中间可能取到旧的token环，
+                // 这样新版本号的ReplicaRing里就一直是旧的副本；cloneOnlyTokenMap要等正在进行的修改完成
+                ring = ring.rebuild(this, tokenMetaData.cloneOnlyTokenMap(), ringVersion, pendingRangesVersion,
+                        tokenMetaData.getPendingRanges(keyspaceName));
+                replicaRing = ring;
             }
+            return ring;
+        } finally {
+            rebuilding.set(false);
         }
+    }
 
-        return cachedEndpoints.get(t);
+    /**
+     * get the endpoints that should store the given Token, without copying.
+     * 
+     * @return an unmodifiable list of the natural endpoints for the given token
+     */
+    public List<InetAddress> getCachedNaturalEndpoints(Token searchToken) {
+        ReplicaRing ring = getReplicaRing();
+        if (ring != null)
+            return ring.getNaturalEndpoints(searchToken);
+        return calculateNaturalEndpoints(searchToken, tokenMetaData.cachedOnlyTokenMap());
+    }
+
+    /**
+     * 写操作要发往的节点，包括自然副本和正在接管这个token的pending节点
+     * 
+     * @return an unmodifiable list of the write endpoints for the given token
+     */
+    public List<InetAddress> getWriteEndpoints(Token searchToken) {
+        ReplicaRing ring = getReplicaRing();
+        if (ring != null)
+            return ring.getWriteEndpoints(searchToken);
+        List<InetAddress> natural = calculateNaturalEndpoints(searchToken, tokenMetaData.cachedOnlyTokenMap());
+        Collection<InetAddress> pending = tokenMetaData.pendingEndpointsFor(searchToken, keyspaceName);
+        if (pending.isEmpty())
+            return natural;
+        List<InetAddress> endpoints = new ArrayList<>(natural);
+        for (InetAddress endpoint : pending) {
+            if (!endpoints.contains(endpoint))
+                endpoints.add(endpoint);
+        }
+        return endpoints;
     }
 
     /**
@@ -108,18 +155,7 @@ public abstract class AbstractReplicationStrategy {
      * @return a copy of the natural endpoints for the given token
      */
     public ArrayList<InetAddress> getNaturalEndpoints(RingPosition<?> searchPosition) {
-        Token searchToken = searchPosition.getToken();
-        Token keyToken = TokenMetaData.firstToken(tokenMetaData.sortedTokens(), searchToken);
-        ArrayList<InetAddress> endpoints = getCachedEndpoints(keyToken);
-        if (endpoints == null) {
-            TokenMetaData tm = tokenMetaData.cachedOnlyTokenMap();
-            // if our cache got invalidated, it's possible there is a new token to account for too
-            keyToken = TokenMetaData.firstToken(tm.sortedTokens(), searchToken);
-            endpoints = new ArrayList<InetAddress>(calculateNaturalEndpoints(searchToken, tm));
-            cachedEndpoints.put(keyToken, endpoints);
-        }
-
-        return new ArrayList<InetAddress>(endpoints);
+        return new ArrayList<InetAddress>(getCachedNaturalEndpoints(searchPosition.getToken()));
     }
 
     /*
@@ -20,5 +20,8 @@ package org.lealone.cluster.locator;
 import java.net.InetAddress;
 
 public interface ILatencySubscriber {
+    /**
+     * @param latency in microseconds, so that sub-millisecond reads are not all recorded as 0
+     */
     public void receiveTiming(InetAddress address, long latency);
 }
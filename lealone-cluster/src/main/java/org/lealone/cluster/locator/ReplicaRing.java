@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.locator;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.lealone.cluster.dht.Range;
+import org.lealone.cluster.dht.Token;
+
+/**
+ * 某个版本的token环上每个token区间对应的副本节点，创建后不再修改，所有写线程可以无锁共享。
+ * 
+ * 查找时对排好序的token做二分查找，找到key所在区间的右端token，直接返回预先算好的不可变副本列表，
+ * pending ranges只在有节点加入、离开或移动时才不为空，这时才需要再合并pending节点。
+ */
+@SuppressWarnings({ "unchecked", "rawtypes" })
+final class ReplicaRing {
+    static final ReplicaRing EMPTY = new ReplicaRing(-1, -1, new Token[0], newListArray(0), new Range[0],
+            newListArray(0));
+
+    final long ringVersion;
+    final long pendingRangesVersion;
+
+    private final Token[] tokens;
+    private final List<InetAddress>[] endpoints;
+    private final Range<Token>[] pendingRanges;
+    private final List<InetAddress>[] pendingEndpoints;
+
+    private ReplicaRing(long ringVersion, long pendingRangesVersion, Token[] tokens, List<InetAddress>[] endpoints,
+            Range<Token>[] pendingRanges, List<InetAddress>[] pendingEndpoints) {
+        this.ringVersion = ringVersion;
+        this.pendingRangesVersion = pendingRangesVersion;
+        this.tokens = tokens;
+        this.endpoints = endpoints;
+        this.pendingRanges = pendingRanges;
+        this.pendingEndpoints = pendingEndpoints;
+    }
+
+    /**
+     * 基于上一个版本重建。只有pending ranges变了时(节点正在加入或离开)，token环部分直接复用；
+     * token环变了时，对于副本没有变化的token继续用原来的列表对象。
+     */
+    ReplicaRing rebuild(AbstractReplicationStrategy strategy, TokenMetaData metadata, long newRingVersion,
+            long newPendingRangesVersion, Map<Range<Token>, Collection<InetAddress>> pending) {
+        Token[] newTokens = tokens;
+        List<InetAddress>[] newEndpoints = endpoints;
+        if (newRingVersion != ringVersion) {
+            ArrayList<Token> sortedTokens = metadata.sortedTokens();
+            newTokens = sortedTokens.toArray(new Token[sortedTokens.size()]);
+            newEndpoints = newListArray(newTokens.length);
+            for (int i = 0; i < newTokens.length; i++) {
+                List<InetAddress> list = strategy.calculateNaturalEndpoints(newTokens[i], metadata);
+                List<InetAddress> old = getOldEndpoints(newTokens[i]);
+                if (old != null && old.equals(list))
+                    newEndpoints[i] = old;
+                else
+                    newEndpoints[i] = Collections.unmodifiableList(new ArrayList<>(list));
+            }
+        }
+
+        Range<Token>[] newPendingRanges = pendingRanges;
+        List<InetAddress>[] newPendingEndpoints = pendingEndpoints;
+        if (newPendingRangesVersion != pendingRangesVersion) {
+            int size = pending.size();
+            newPendingRanges = new Range[size];
+            newPendingEndpoints = newListArray(size);
+            int i = 0;
+            for (Map.Entry<Range<Token>, Collection<InetAddress>> e : pending.entrySet()) {
+                newPendingRanges[i] = e.getKey();
+                newPendingEndpoints[i] = Collections.unmodifiableList(new ArrayList<>(e.getValue()));
+                i++;
+            }
+        }
+        return new ReplicaRing(newRingVersion, newPendingRangesVersion, newTokens, newEndpoints, newPendingRanges,
+                newPendingEndpoints);
+    }
+
+    private List<InetAddress> getOldEndpoints(Token token) {
+        int i = Arrays.binarySearch(tokens, token);
+        return i < 0 ? null : endpoints[i];
+    }
+
+    /**
+     * @return 不可修改的列表
+     */
+    List<InetAddress> getNaturalEndpoints(Token token) {
+        if (tokens.length == 0)
+            return Collections.emptyList();
+        // 和TokenMetaData.firstTokenIndex一样，比最大的token还大时回到环的起点
+        int i = Arrays.binarySearch(tokens, token);
+        if (i < 0) {
+            i = -i - 1;
+            if (i >= tokens.length)
+                i = 0;
+        }
+        return endpoints[i];
+    }
+
+    /**
+     * 自然副本加上pending节点，没有重复的节点
+     * 
+     * @return 不可修改的列表
+     */
+    List<InetAddress> getWriteEndpoints(Token token) {
+        List<InetAddress> natural = getNaturalEndpoints(token);
+        if (pendingRanges.length == 0)
+            return natural;
+
+        ArrayList<InetAddress> list = null;
+        for (int i = 0; i < pendingRanges.length; i++) {
+            if (pendingRanges[i].contains(token)) {
+                for (InetAddress endpoint : pendingEndpoints[i]) {
+                    if (natural.contains(endpoint) || list != null && list.contains(endpoint))
+                        continue;
+                    if (list == null)
+                        list = new ArrayList<>(natural);
+                    list.add(endpoint);
+                }
+            }
+        }
+        return list == null ? natural : Collections.unmodifiableList(list);
+    }
+
+    private static List<InetAddress>[] newListArray(int size) {
+        return new List[size];
+    }
+}
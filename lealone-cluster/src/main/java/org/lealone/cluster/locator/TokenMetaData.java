@@ -33,6 +33,7 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -123,6 +124,9 @@ public class TokenMetaData {
 
     // signals replication strategies that nodes have joined or left the ring and they need to recompute ownership
     private volatile long ringVersion = 0;
+    // pendingRanges重新计算后加1，复制策略据此重建缓存的pending节点。
+    // calculatePendingRanges只持有读锁，多个keyspace可能同时计算，所以用AtomicLong
+    private final AtomicLong pendingRangesVersion = new AtomicLong();
 
     public TokenMetaData() {
         this(SortedBiMultiValMap.<Token, InetAddress> create(null, inetaddressCmp), HashBiMap
@@ -608,6 +612,7 @@ public class TokenMetaData {
                             keyspaceName);
 
                 pendingRanges.put(keyspaceName, newPendingRanges);
+                pendingRangesVersion.incrementAndGet();
                 return;
             }
 
@@ -666,6 +671,7 @@ public class TokenMetaData {
             }
 
             pendingRanges.put(keyspaceName, newPendingRanges);
+            pendingRangesVersion.incrementAndGet();
 
             if (logger.isDebugEnabled())
                 logger.debug("Pending ranges:\n{}", (pendingRanges.isEmpty() ? "<empty>" : printPendingRanges()));
@@ -792,6 +798,7 @@ public class TokenMetaData {
             bootstrapTokens.clear();
             leavingEndpoints.clear();
             pendingRanges.clear();
+            pendingRangesVersion.incrementAndGet();
             movingEndpoints.clear();
             sortedTokens.clear();
             topology.clear();
@@ -930,6 +937,10 @@ public class TokenMetaData {
         return ringVersion;
     }
 
+    public long getPendingRangesVersion() {
+        return pendingRangesVersion.get();
+    }
+
     public void invalidateCachedRings() {
         ringVersion++;
         cachedTokenMap.set(null);
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.metrics;
+
+import java.net.InetAddress;
+
+import org.lealone.command.router.FrontendSessionPool;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * Metrics for {@link FrontendSessionPool}.
+ */
+public class FrontendSessionPoolMetrics {
+    private static final String TYPE = "FrontendSessionPool";
+    private static final String[] NAMES = { "ActiveSessions", "IdleSessions", "WaitingRequests", "CreatedSessions",
+            "ClosedSessions", "WaitTimeouts" };
+
+    /** Number of sessions currently borrowed */
+    public final Gauge<Long> activeSessions;
+    /** Number of open sessions waiting in the pool */
+    public final Gauge<Long> idleSessions;
+    /** Number of requests currently waiting for a free session */
+    public final Gauge<Long> waitingRequests;
+    /** Number of sessions opened so far */
+    public final Gauge<Long> createdSessions;
+    /** Number of sessions closed by the pool so far */
+    public final Gauge<Long> closedSessions;
+    /** Number of requests that gave up waiting for a free session */
+    public final Gauge<Long> waitTimeouts;
+
+    private final MetricNameFactory factory;
+
+    /**
+     * Create metrics for the session pools of given endpoint.
+     *
+     * @param ip IP address of the endpoint, or null for all endpoints
+     */
+    public FrontendSessionPoolMetrics(InetAddress ip) {
+        final String hostAddress = ip == null ? null : ip.getHostAddress();
+        // ipv6 addresses will contain colons, which are invalid in a JMX ObjectName
+        factory = new DefaultNameFactory(TYPE, hostAddress == null ? null : hostAddress.replaceAll(":", "."));
+
+        activeSessions = Metrics.newGauge(factory.createMetricName(NAMES[0]), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return FrontendSessionPool.getActiveSessionCount(hostAddress);
+            }
+        });
+        idleSessions = Metrics.newGauge(factory.createMetricName(NAMES[1]), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return FrontendSessionPool.getIdleSessionCount(hostAddress);
+            }
+        });
+        waitingRequests = Metrics.newGauge(factory.createMetricName(NAMES[2]), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return FrontendSessionPool.getWaitingCount(hostAddress);
+            }
+        });
+        createdSessions = Metrics.newGauge(factory.createMetricName(NAMES[3]), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return FrontendSessionPool.getCreatedSessionCount(hostAddress);
+            }
+        });
+        closedSessions = Metrics.newGauge(factory.createMetricName(NAMES[4]), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return FrontendSessionPool.getClosedSessionCount(hostAddress);
+            }
+        });
+        waitTimeouts = Metrics.newGauge(factory.createMetricName(NAMES[5]), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return FrontendSessionPool.getWaitTimeoutCount(hostAddress);
+            }
+        });
+    }
+
+    public void release() {
+        for (String name : NAMES)
+            Metrics.defaultRegistry().removeMetric(factory.createMetricName(name));
+    }
+}
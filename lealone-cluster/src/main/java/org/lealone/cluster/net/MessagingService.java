@@ -60,6 +60,8 @@ import org.lealone.cluster.io.IVersionedSerializer;
 import org.lealone.cluster.locator.ILatencySubscriber;
 import org.lealone.cluster.metrics.ConnectionMetrics;
 import org.lealone.cluster.metrics.DroppedMessageMetrics;
+import org.lealone.cluster.router.SQLRequest;
+import org.lealone.cluster.router.SQLResponse;
 import org.lealone.cluster.security.SSLFactory;
 import org.lealone.cluster.utils.ExpiringMap;
 import org.lealone.cluster.utils.FileUtils;
@@ -85,8 +87,9 @@ public final class MessagingService implements MessagingServiceMBean {
         INTERNAL_RESPONSE, // responses to internal calls
         ECHO,
         // remember to add new verbs at the end, since we serialize by ordinal
-        UNUSED_1,
-        UNUSED_2,
+        SQL_QUERY,
+        SQL_UPDATE,
+        SQL_HINT, // replayed hints, see HintedHandOffManager
         UNUSED_3;
     }
 
@@ -114,7 +117,8 @@ public final class MessagingService implements MessagingServiceMBean {
      * These all correspond to client requests or something triggered by them; 
      * we don't want to drop internal messages like bootstrap.
      */
-    public static final EnumSet<Verb> DROPPABLE_VERBS = EnumSet.of(Verb.REQUEST_RESPONSE);
+    public static final EnumSet<Verb> DROPPABLE_VERBS = EnumSet.of(Verb.REQUEST_RESPONSE, Verb.SQL_QUERY,
+            Verb.SQL_UPDATE);
 
     private static final int LOG_DROPPED_INTERVAL_IN_MS = 5000;
 
@@ -130,8 +134,10 @@ public final class MessagingService implements MessagingServiceMBean {
             put(Verb.GOSSIP_SHUTDOWN, Stage.GOSSIP);
             put(Verb.ECHO, Stage.GOSSIP);
 
-            put(Verb.UNUSED_1, Stage.INTERNAL_RESPONSE);
-            put(Verb.UNUSED_2, Stage.INTERNAL_RESPONSE);
+            put(Verb.SQL_QUERY, Stage.SQL);
+            put(Verb.SQL_UPDATE, Stage.SQL);
+            put(Verb.SQL_HINT, Stage.SQL);
+
             put(Verb.UNUSED_3, Stage.INTERNAL_RESPONSE);
         }
     };
@@ -154,13 +160,23 @@ public final class MessagingService implements MessagingServiceMBean {
             put(Verb.GOSSIP_DIGEST_ACK2, GossipDigestAck2.serializer);
             put(Verb.GOSSIP_DIGEST_SYN, GossipDigestSyn.serializer);
             put(Verb.ECHO, EchoMessage.serializer);
+            put(Verb.SQL_QUERY, SQLRequest.serializer);
+            put(Verb.SQL_UPDATE, SQLRequest.serializer);
+            put(Verb.SQL_HINT, SQLRequest.serializer);
         }
     };
 
     /**
      * A Map of what kind of serializer to wire up to a REQUEST_RESPONSE callback, based on outbound Verb.
      */
-    public static final EnumMap<Verb, IVersionedSerializer<?>> callbackDeserializers = new EnumMap<>(Verb.class);
+    public static final EnumMap<Verb, IVersionedSerializer<?>> callbackDeserializers = new EnumMap<Verb, IVersionedSerializer<?>>(
+            Verb.class) {
+        {
+            put(Verb.SQL_QUERY, SQLResponse.serializer);
+            put(Verb.SQL_UPDATE, SQLResponse.serializer);
+            put(Verb.SQL_HINT, SQLResponse.serializer);
+        }
+    };
 
     private static final AtomicInteger idGen = new AtomicInteger(0);
 
@@ -240,7 +256,8 @@ public final class MessagingService implements MessagingServiceMBean {
             @Override
             public Object apply(Pair<Integer, ExpiringMap.CacheableObject<CallbackInfo>> pair) {
                 final CallbackInfo expiredCallbackInfo = pair.right.value;
-                maybeAddLatency(expiredCallbackInfo.callback, expiredCallbackInfo.target, pair.right.timeout);
+                maybeAddLatency(expiredCallbackInfo.callback, expiredCallbackInfo.target,
+                        TimeUnit.MILLISECONDS.toMicros(pair.right.timeout));
                 ConnectionMetrics.totalTimeouts.mark();
                 getConnection(expiredCallbackInfo.target).incrementTimeout();
                 if (expiredCallbackInfo.isFailureCallback()) {
@@ -289,7 +306,7 @@ public final class MessagingService implements MessagingServiceMBean {
      *
      * @param cb      the callback associated with this message -- this lets us know if it's a message type we're interested in
      * @param address the host that replied to the message
-     * @param latency
+     * @param latency in microseconds
      */
     public void maybeAddLatency(IAsyncCallback cb, InetAddress address, long latency) {
         if (cb.isLatencyForSnitch())
@@ -17,7 +17,6 @@
  */
 package org.lealone.cluster.net;
 
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -42,6 +41,7 @@ import net.jpountz.xxhash.XXHashFactory;
 import org.lealone.cluster.config.Config;
 import org.lealone.cluster.config.DatabaseDescriptor;
 import org.lealone.cluster.db.ClusterMetaData;
+import org.lealone.cluster.io.BufferedDataOutputStreamPlus;
 import org.lealone.cluster.io.DataOutputStreamPlus;
 import org.lealone.cluster.locator.IEndpointSnitch;
 import org.lealone.cluster.metrics.ConnectionMetrics;
@@ -53,7 +53,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.util.concurrent.Uninterruptibles;
 
-class OutboundTcpConnection extends Thread {
+public class OutboundTcpConnection extends Thread {
     private static final Logger logger = LoggerFactory.getLogger(OutboundTcpConnection.class);
 
     private static final MessageOut<Void> CLOSE_SENTINEL = new MessageOut<>(MessagingService.Verb.INTERNAL_RESPONSE);
@@ -95,10 +95,12 @@ class OutboundTcpConnection extends Thread {
 
     @Override
     public void run() {
+        final int maxMessages = DatabaseDescriptor.getOtcCoalescingMaxMessages();
+        final long coalescingWindow = TimeUnit.MICROSECONDS.toNanos(DatabaseDescriptor.getOtcCoalescingWindow());
         // keeping list (batch) size small for now; that way we don't have an unbounded array (that we never resize)
-        final List<QueuedMessage> drainedMessages = new ArrayList<>(128);
+        final List<QueuedMessage> drainedMessages = new ArrayList<>(maxMessages);
         outer: while (true) {
-            if (backlog.drainTo(drainedMessages, drainedMessages.size()) == 0) {
+            if (backlog.drainTo(drainedMessages, maxMessages) == 0) {
                 try {
                     drainedMessages.add(backlog.take());
                 } catch (InterruptedException e) {
@@ -106,6 +108,8 @@ class OutboundTcpConnection extends Thread {
                 }
 
             }
+            if (coalescingWindow > 0)
+                coalesce(backlog, drainedMessages, maxMessages, coalescingWindow);
             currentMsgBufferCount = drainedMessages.size();
 
             int count = drainedMessages.size();
@@ -137,6 +141,25 @@ class OutboundTcpConnection extends Thread {
         }
     }
 
+    // 在时间窗口内等待更多的消息，这一批消息写完后只flush一次
+    public static <T> void coalesce(BlockingQueue<T> backlog, List<T> drainedMessages, int maxMessages, long window) {
+        long deadline = System.nanoTime() + window;
+        try {
+            while (drainedMessages.size() < maxMessages) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0)
+                    break;
+                T qm = backlog.poll(wait, TimeUnit.NANOSECONDS);
+                if (qm == null)
+                    break;
+                drainedMessages.add(qm);
+                backlog.drainTo(drainedMessages, maxMessages - drainedMessages.size());
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
     void enqueue(MessageOut<?> message, int id) {
         if (backlog.size() > 1024)
             expireMessages();
@@ -283,7 +306,12 @@ class OutboundTcpConnection extends Thread {
                         logger.warn("Failed to set send buffer size on internode socket.", se);
                     }
                 }
-                out = new DataOutputStreamPlus(new BufferedOutputStream(socket.getOutputStream(), 4096));
+                // 没有加密时直接通过SocketChannel写直接内存的ByteBuffer
+                int bufferSize = DatabaseDescriptor.getOtcBufferSize();
+                if (socket.getChannel() != null)
+                    out = new BufferedDataOutputStreamPlus(socket.getChannel(), bufferSize);
+                else
+                    out = new BufferedDataOutputStreamPlus(socket.getOutputStream(), bufferSize);
 
                 //write header
                 out.writeInt(MessagingService.PROTOCOL_MAGIC);
@@ -314,13 +342,13 @@ class OutboundTcpConnection extends Thread {
                 if (shouldCompressConnection()) {
                     if (logger.isTraceEnabled())
                         logger.trace("Upgrading OutputStream to be compressed");
-                    // TODO: custom LZ4 OS that supports BB write methods
                     LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
                     Checksum checksum = XXHashFactory.fastestInstance().newStreamingHash32(LZ4_HASH_SEED).asChecksum();
 
                     // 16k block size
-                    out = new DataOutputStreamPlus(new LZ4BlockOutputStream(socket.getOutputStream(), 1 << 14,
-                            compressor, checksum, true)); // no async flushing
+                    // lz4-java 1.2.0还不能直接压缩ByteBuffer，用堆内存的缓冲区，把它的数组整块交给LZ4BlockOutputStream
+                    out = new BufferedDataOutputStreamPlus(new LZ4BlockOutputStream(socket.getOutputStream(), 1 << 14,
+                            compressor, checksum, true), bufferSize); // no async flushing
                 }
 
                 return true;
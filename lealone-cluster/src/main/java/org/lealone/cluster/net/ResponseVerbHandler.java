@@ -28,7 +28,7 @@ public class ResponseVerbHandler implements IVerbHandler {
 
     @Override
     public void doVerb(MessageIn message, int id) {
-        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+        long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime()
                 - MessagingService.instance().getRegisteredCallbackAge(id));
         CallbackInfo callbackInfo = MessagingService.instance().removeRegisteredCallback(id);
         if (callbackInfo == null) {
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.router;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.lealone.cluster.concurrent.ScheduledExecutors;
+import org.lealone.cluster.gms.ApplicationState;
+import org.lealone.cluster.gms.EndpointState;
+import org.lealone.cluster.gms.Gossiper;
+import org.lealone.cluster.gms.IEndpointStateChangeSubscriber;
+import org.lealone.cluster.gms.VersionedValue;
+import org.lealone.cluster.metrics.FrontendSessionPoolMetrics;
+import org.lealone.cluster.utils.Utils;
+import org.lealone.command.router.FrontendSessionPool;
+
+/**
+ * 根据节点状态维护FrontendSessionPool：
+ * 节点加入或恢复时预先建立会话，节点下线或移除时关闭空闲会话，并定期淘汰空闲太久的会话。
+ */
+public class FrontendSessionPoolManager implements IEndpointStateChangeSubscriber {
+    static final int EVICTION_INTERVAL = 10 * 1000;
+
+    public static final FrontendSessionPoolManager instance = new FrontendSessionPoolManager();
+
+    // 所有节点的汇总
+    private final FrontendSessionPoolMetrics totalMetrics = new FrontendSessionPoolMetrics(null);
+    private final ConcurrentHashMap<InetAddress, FrontendSessionPoolMetrics> metrics = new ConcurrentHashMap<>();
+
+    private FrontendSessionPoolManager() {
+    }
+
+    public void start() {
+        Gossiper.instance.register(this);
+
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                FrontendSessionPool.evictIdleSessions();
+            }
+        };
+        ScheduledExecutors.scheduledTasks.scheduleWithFixedDelay(runnable, EVICTION_INTERVAL, EVICTION_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void warmUp(final InetAddress endpoint) {
+        if (endpoint.equals(Utils.getBroadcastAddress()))
+            return;
+
+        if (!metrics.containsKey(endpoint)) {
+            FrontendSessionPoolMetrics m = new FrontendSessionPoolMetrics(endpoint);
+            if (metrics.putIfAbsent(endpoint, m) != null)
+                m.release();
+        }
+
+        // 建立连接比较慢，不占用gossip线程
+        ScheduledExecutors.scheduledTasks.execute(new Runnable() {
+            @Override
+            public void run() {
+                FrontendSessionPool.warmUp(endpoint.getHostAddress());
+            }
+        });
+    }
+
+    @Override
+    public void onJoin(InetAddress endpoint, EndpointState epState) {
+        warmUp(endpoint);
+    }
+
+    @Override
+    public void onAlive(InetAddress endpoint, EndpointState state) {
+        warmUp(endpoint);
+    }
+
+    @Override
+    public void onRestart(InetAddress endpoint, EndpointState state) {
+        // 重启前的会话都已失效
+        FrontendSessionPool.closeIdleSessions(endpoint.getHostAddress());
+    }
+
+    @Override
+    public void onDead(InetAddress endpoint, EndpointState state) {
+        FrontendSessionPool.closeIdleSessions(endpoint.getHostAddress());
+    }
+
+    @Override
+    public void onRemove(InetAddress endpoint) {
+        FrontendSessionPool.closeIdleSessions(endpoint.getHostAddress());
+        FrontendSessionPoolMetrics m = metrics.remove(endpoint);
+        if (m != null)
+            m.release();
+    }
+
+    @Override
+    public void beforeChange(InetAddress endpoint, EndpointState currentState, ApplicationState newStateKey,
+            VersionedValue newValue) {
+    }
+
+    @Override
+    public void onChange(InetAddress endpoint, ApplicationState state, VersionedValue value) {
+    }
+}
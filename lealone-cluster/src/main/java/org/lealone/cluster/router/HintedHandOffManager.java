@@ -0,0 +1,442 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.router;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.api.ErrorCode;
+import org.lealone.cluster.concurrent.DebuggableThreadPoolExecutor;
+import org.lealone.cluster.concurrent.ScheduledExecutors;
+import org.lealone.cluster.config.DatabaseDescriptor;
+import org.lealone.cluster.gms.ApplicationState;
+import org.lealone.cluster.gms.EndpointState;
+import org.lealone.cluster.gms.FailureDetector;
+import org.lealone.cluster.gms.Gossiper;
+import org.lealone.cluster.gms.IEndpointStateChangeSubscriber;
+import org.lealone.cluster.gms.VersionedValue;
+import org.lealone.cluster.net.MessagingService;
+import org.lealone.cluster.utils.Utils;
+import org.lealone.engine.Session;
+import org.lealone.engine.SystemDatabase;
+import org.lealone.message.DbException;
+import org.lealone.transaction.Transaction;
+import org.lealone.util.JdbcUtils;
+import org.lealone.util.New;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 副本节点不可用时，P2PRouter把本该发给它的写操作记成hint保存在system数据库的hints表中，
+ * 等gossip发现节点恢复后再分批重放，这样节点短暂下线后不需要全量修复就能追上其他副本。<p>
+ * 
+ * hint就是一个序列化后的SQLRequest，但不带用户的密码hash和文件加密密钥，只留下数据库名和用户名，
+ * 重放时通过SQL_HINT发给目标节点，目标节点确认本节点在token环中后用节点内部的身份以原来的用户执行。
+ * 在分布式事务中产生的hint要等事务提交时才保存，事务回滚时直接丢弃。<p>
+ * 
+ * hint中的SQL不带时间戳，重放的MERGE可能覆盖掉更新的写操作，所以一个节点只要还有没重放完的hint，
+ * 发给它的写操作就继续记成hint排在后面(见hasHints)，全部重放完后才恢复直接发送，这样写操作按原来的顺序执行。
+ */
+public class HintedHandOffManager implements IEndpointStateChangeSubscriber {
+    // 定期检查是否有没重放完的hint，比如节点恢复时重放中途超时，或者本节点重启前留下的hint
+    static final int DELIVERY_INTERVAL = 10 * 60 * 1000;
+    // 节点存活但重放超时后，隔一段时间再重放，这期间发给它的写操作都在排队
+    static final int RETRY_DELAY = 10 * 1000;
+
+    private static final Logger logger = LoggerFactory.getLogger(HintedHandOffManager.class);
+    private static final String HINTS_TABLE = "hints";
+
+    public static final HintedHandOffManager instance = new HintedHandOffManager();
+
+    private final DebuggableThreadPoolExecutor executor = DebuggableThreadPoolExecutor.createWithMaximumPoolSize(
+            "HintedHandoff", DatabaseDescriptor.getMaxHintsDeliveryThreads(), 60, TimeUnit.SECONDS);
+
+    // 正在重放hint的节点，同一个节点同时只有一个重放任务
+    private final Set<InetAddress> delivering = Collections
+            .newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+    // 还有hint没重放完的节点，和hints表一起在synchronized方法中修改
+    private final Set<InetAddress> hintedEndpoints = Collections
+            .newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+    private final AtomicLong lastHintId = new AtomicLong();
+
+    private PreparedStatement insertHint;
+    private PreparedStatement selectHints;
+    private PreparedStatement deleteHint;
+    private PreparedStatement deleteHints;
+    private PreparedStatement selectTargets;
+
+    protected HintedHandOffManager() {
+    }
+
+    public synchronized void start() {
+        init(SystemDatabase.getConnection());
+
+        Gossiper.instance.register(this);
+
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                scheduleAllDeliveries();
+            }
+        };
+        ScheduledExecutors.scheduledTasks.scheduleWithFixedDelay(runnable, DELIVERY_INTERVAL, DELIVERY_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 建hints表，准备好读写hint的语句
+     */
+    public synchronized void init(Connection conn) {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.createStatement();
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + HINTS_TABLE + "(" //
+                    + "id bigint,"//
+                    + "target varchar,"//
+                    + "create_time bigint,"//
+                    + "request varbinary,"//
+                    + "PRIMARY KEY (id))");
+            stmt.execute("CREATE INDEX IF NOT EXISTS " + HINTS_TABLE + "_target ON " + HINTS_TABLE + "(target)");
+            rs = stmt.executeQuery("SELECT max(id) FROM " + HINTS_TABLE);
+            if (rs.next())
+                lastHintId.set(rs.getLong(1));
+
+            insertHint = conn.prepareStatement("INSERT INTO " + HINTS_TABLE + " VALUES(?, ?, ?, ?)");
+            selectHints = conn.prepareStatement("SELECT id, request FROM " + HINTS_TABLE
+                    + " WHERE target=? ORDER BY id LIMIT " + DatabaseDescriptor.getHintedHandoffBatchSize());
+            deleteHint = conn.prepareStatement("DELETE FROM " + HINTS_TABLE + " WHERE id=?");
+            deleteHints = conn.prepareStatement("DELETE FROM " + HINTS_TABLE + " WHERE target=?");
+            selectTargets = conn.prepareStatement("SELECT DISTINCT target FROM " + HINTS_TABLE);
+            hintedEndpoints.addAll(loadTargets());
+        } catch (SQLException e) {
+            throw DbException.convert(e);
+        } finally {
+            JdbcUtils.closeSilently(rs);
+            JdbcUtils.closeSilently(stmt);
+        }
+    }
+
+    /**
+     * 节点下线太久时不再记hint，积压太多的hint重放起来比修复还慢
+     */
+    public boolean shouldHint(InetAddress target) {
+        return shouldHint(Gossiper.instance.getEndpointDowntime(target));
+    }
+
+    public static boolean shouldHint(long downtime) {
+        return DatabaseDescriptor.isHintedHandoffEnabled() && downtime <= DatabaseDescriptor.getMaxHintWindow();
+    }
+
+    /**
+     * 保存写操作中跳过的节点的hint，自动提交时直接保存，否则等session的当前事务提交时再保存
+     * 
+     * @param hints 每个目标节点对应的请求
+     */
+    public void hint(Session session, Map<InetAddress, SQLRequest> hints) {
+        hint(session.getTransaction(), hints);
+    }
+
+    public void hint(Transaction transaction, Map<InetAddress, SQLRequest> hints) {
+        if (transaction.isAutoCommit())
+            saveHints(hints);
+        else
+            transaction.addParticipant(new PendingHints(hints));
+    }
+
+    /**
+     * 节点还有hint没重放完时，发给它的写操作不能直接发送，否则会被后重放的旧hint覆盖
+     */
+    public boolean hasHints(InetAddress target) {
+        return hintedEndpoints.contains(target);
+    }
+
+    private void saveHints(Map<InetAddress, SQLRequest> hints) {
+        insertHints(hints);
+        // 节点存活时是排在没重放完的hint后面的写操作，要接着重放
+        for (InetAddress target : hints.keySet())
+            scheduleDelivery(target);
+    }
+
+    private synchronized void insertHints(Map<InetAddress, SQLRequest> hints) {
+        try {
+            for (Map.Entry<InetAddress, SQLRequest> e : hints.entrySet()) {
+                insertHint.setLong(1, lastHintId.incrementAndGet());
+                insertHint.setString(2, e.getKey().getHostAddress());
+                insertHint.setLong(3, System.currentTimeMillis());
+                insertHint.setBytes(4, e.getValue().withoutCredentials().getBytes());
+                insertHint.executeUpdate();
+                hintedEndpoints.add(e.getKey());
+            }
+        } catch (SQLException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    private synchronized Map<Long, byte[]> loadHints(InetAddress target) throws SQLException {
+        Map<Long, byte[]> hints = new LinkedHashMap<>();
+        selectHints.setString(1, target.getHostAddress());
+        ResultSet rs = selectHints.executeQuery();
+        try {
+            while (rs.next())
+                hints.put(rs.getLong(1), rs.getBytes(2));
+        } finally {
+            JdbcUtils.closeSilently(rs);
+        }
+        // 和insertHints互斥，所以之后再保存的hint一定会重新标记这个节点
+        if (hints.isEmpty())
+            hintedEndpoints.remove(target);
+        return hints;
+    }
+
+    private synchronized void deleteHint(long id) throws SQLException {
+        deleteHint.setLong(1, id);
+        deleteHint.executeUpdate();
+    }
+
+    private synchronized void deleteHints(InetAddress target) {
+        hintedEndpoints.remove(target);
+        if (deleteHints == null)
+            return;
+        try {
+            deleteHints.setString(1, target.getHostAddress());
+            deleteHints.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Failed to delete hints for " + target, e);
+        }
+    }
+
+    private synchronized List<InetAddress> loadTargets() throws SQLException {
+        List<InetAddress> targets = New.arrayList();
+        ResultSet rs = selectTargets.executeQuery();
+        try {
+            while (rs.next()) {
+                try {
+                    targets.add(InetAddress.getByName(rs.getString(1)));
+                } catch (UnknownHostException e) {
+                    logger.warn("Invalid hint target: {}", rs.getString(1));
+                }
+            }
+        } finally {
+            JdbcUtils.closeSilently(rs);
+        }
+        return targets;
+    }
+
+    private void scheduleAllDeliveries() {
+        try {
+            for (InetAddress target : loadTargets())
+                scheduleDelivery(target);
+        } catch (SQLException e) {
+            logger.error("Failed to load hint targets", e);
+        }
+    }
+
+    private void scheduleDelivery(final InetAddress target) {
+        // onJoin时节点可能还没被FailureDetector标记为存活，等随后的onAlive
+        if (target.equals(Utils.getBroadcastAddress()) || !isAlive(target)
+                || !delivering.add(target))
+            return;
+
+        // 重放可能持续很久，不占用gossip线程
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean finished = false;
+                try {
+                    finished = deliverHints(target);
+                } finally {
+                    delivering.remove(target);
+                }
+                if (hasHints(target)) {
+                    // 重放完后又保存了新的hint，这时scheduleDelivery还不能再启动一个重放任务
+                    if (finished)
+                        scheduleDelivery(target);
+                    else if (isAlive(target))
+                        scheduleRetry(target);
+                }
+            }
+        });
+    }
+
+    private void scheduleRetry(final InetAddress target) {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                scheduleDelivery(target);
+            }
+        };
+        ScheduledExecutors.scheduledTasks.schedule(runnable, RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 按保存的顺序重放目标节点的hint，直到hints表中没有这个节点的hint
+     * 
+     * @return 全部重放完时返回true，节点下线或没有响应时返回false
+     */
+    public boolean deliverHints(InetAddress target) {
+        int batchSize = DatabaseDescriptor.getHintedHandoffBatchSize();
+        int delivered = 0;
+        try {
+            while (true) {
+                Map<Long, byte[]> hints = loadHints(target);
+                if (hints.isEmpty())
+                    break;
+                if (delivered == 0)
+                    logger.info("Started hinted handoff for {}", target);
+
+                for (Map.Entry<Long, byte[]> e : hints.entrySet()) {
+                    if (!isAlive(target)) {
+                        logger.info("Endpoint {} died during hinted handoff, {} hints delivered", target, delivered);
+                        return false;
+                    }
+                    if (!deliverHint(target, e.getKey(), e.getValue()))
+                        return false;
+                    deleteHint(e.getKey());
+                    delivered++;
+                }
+
+                if (hints.size() >= batchSize)
+                    Thread.sleep(DatabaseDescriptor.getHintedHandoffThrottleInMs());
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to load hints for " + target, e);
+            return false;
+        } catch (InterruptedException e) {
+            return false;
+        }
+
+        if (delivered > 0)
+            logger.info("Finished hinted handoff of {} hints to {}", delivered, target);
+        return true;
+    }
+
+    /**
+     * 
+     * @return 目标节点没有响应时返回false，hint留到下次再重放
+     */
+    private boolean deliverHint(InetAddress target, long id, byte[] bytes) {
+        try {
+            send(target, SQLRequest.fromBytes(bytes));
+        } catch (IOException e) {
+            logger.warn("Discarding unreadable hint " + id + " for " + target, e);
+        } catch (DbException e) {
+            if (e.getErrorCode() == ErrorCode.CONNECTION_BROKEN_1) {
+                logger.info("Timed out replaying hints to {}, will retry later", target);
+                return false;
+            }
+            // 语句本身在目标节点上出错(比如hint已经执行过导致主键冲突)，重放多少次结果都一样。
+            // 因为hint和之后的写操作按顺序执行，不会出现旧的hint覆盖新数据的情况
+            logger.warn("Discarding hint " + id + " for " + target, e);
+        }
+        return true;
+    }
+
+    protected boolean isAlive(InetAddress target) {
+        return FailureDetector.instance.isAlive(target);
+    }
+
+    protected void send(InetAddress target, SQLRequest request) {
+        MessagingCommand.send(MessagingService.Verb.SQL_HINT, target, request).getUpdateCount();
+    }
+
+    @Override
+    public void onJoin(InetAddress endpoint, EndpointState epState) {
+        scheduleDelivery(endpoint);
+    }
+
+    @Override
+    public void onAlive(InetAddress endpoint, EndpointState state) {
+        scheduleDelivery(endpoint);
+    }
+
+    @Override
+    public void onRestart(InetAddress endpoint, EndpointState state) {
+    }
+
+    @Override
+    public void onDead(InetAddress endpoint, EndpointState state) {
+    }
+
+    @Override
+    public void onRemove(InetAddress endpoint) {
+        // 节点已经移出集群，它负责的数据会迁到其他节点，hint没用了
+        deleteHints(endpoint);
+    }
+
+    @Override
+    public void beforeChange(InetAddress endpoint, EndpointState currentState, ApplicationState newStateKey,
+            VersionedValue newValue) {
+    }
+
+    @Override
+    public void onChange(InetAddress endpoint, ApplicationState state, VersionedValue value) {
+    }
+
+    /**
+     * 事务中产生的hint，事务提交时才保存。
+     * 
+     * 回滚到某个保存点时，只有在这个保存点之后产生的hint才要丢弃，
+     * 而在保存点之前就已加入事务的参与者都会收到addSavepoint，据此区分。
+     */
+    private class PendingHints implements Transaction.Participant {
+        private final Set<String> savepoints = New.hashSet();
+        private Map<InetAddress, SQLRequest> hints;
+
+        PendingHints(Map<InetAddress, SQLRequest> hints) {
+            this.hints = hints;
+        }
+
+        @Override
+        public synchronized void addSavepoint(String name) {
+            savepoints.add(name);
+        }
+
+        @Override
+        public synchronized void rollbackToSavepoint(String name) {
+            if (!savepoints.contains(name))
+                hints = null;
+        }
+
+        @Override
+        public synchronized void commitTransaction(String localTransactionName) {
+            if (hints != null)
+                saveHints(hints);
+            hints = null;
+        }
+
+        @Override
+        public synchronized void rollbackTransaction() {
+            hints = null;
+        }
+    }
+}
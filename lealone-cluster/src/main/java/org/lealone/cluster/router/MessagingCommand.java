@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.router;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.lealone.api.ErrorCode;
+import org.lealone.api.ParameterInterface;
+import org.lealone.cluster.net.IAsyncCallbackWithFailure;
+import org.lealone.cluster.net.MessageIn;
+import org.lealone.cluster.net.MessageOut;
+import org.lealone.cluster.net.MessagingService;
+import org.lealone.cluster.utils.concurrent.SimpleCondition;
+import org.lealone.command.CommandInterface;
+import org.lealone.command.Prepared;
+import org.lealone.engine.Session;
+import org.lealone.expression.Parameter;
+import org.lealone.message.DbException;
+import org.lealone.result.ResultInterface;
+import org.lealone.value.Value;
+import org.lealone.value.ValueNull;
+
+/**
+ * 通过MessagingService的SQL_QUERY和SQL_UPDATE在其他节点上执行SQL，
+ * 所有节点间的请求共用MessagingService的连接，不需要再为每个节点建立FrontendSession。
+ * 
+ * 只用于自动提交模式，分布式事务中的语句要和事务绑定在同一个会话上，仍然使用FrontendCommand。
+ */
+public class MessagingCommand implements CommandInterface {
+    private final InetAddress endpoint;
+    private final Prepared p;
+    private final String sql;
+    private final List<Value> values;
+
+    /**
+     * 
+     * @param values 为null时使用p的参数值
+     */
+    public MessagingCommand(InetAddress endpoint, Prepared p, String sql, List<Value> values) {
+        this.endpoint = endpoint;
+        this.p = p;
+        this.sql = sql;
+        this.values = values;
+    }
+
+    @Override
+    public int getCommandType() {
+        return UNKNOWN;
+    }
+
+    @Override
+    public boolean isQuery() {
+        return p.isQuery();
+    }
+
+    @Override
+    public ArrayList<? extends ParameterInterface> getParameters() {
+        return p.getParameters();
+    }
+
+    @Override
+    public ResultInterface executeQuery(int maxRows, boolean scrollable) {
+        return send(MessagingService.Verb.SQL_QUERY, maxRows).getResult();
+    }
+
+    @Override
+    public int executeUpdate() {
+        return send(MessagingService.Verb.SQL_UPDATE, 0).getUpdateCount();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void cancel() {
+    }
+
+    @Override
+    public ResultInterface getMetaData() {
+        return p.queryMeta();
+    }
+
+    private Value[] getParameterValues() {
+        if (values != null)
+            return values.toArray(new Value[values.size()]);
+
+        ArrayList<Parameter> params = p.getParameters();
+        Value[] paramValues = new Value[params.size()];
+        for (int i = 0; i < paramValues.length; i++) {
+            Value v = params.get(i).getParamValue();
+            paramValues[i] = v == null ? ValueNull.INSTANCE : v;
+        }
+        return paramValues;
+    }
+
+    private SQLResponse send(MessagingService.Verb verb, int maxRows) {
+        Session session = p.getSession();
+        SQLRequest request = new SQLRequest(session.getConnectionInfo(), session.getURL(endpoint),
+                session.getOriginalProperties(), sql, getParameterValues(), maxRows);
+        return send(verb, endpoint, request);
+    }
+
+    /**
+     * 发送请求并等待响应，超时或对方节点失败时抛出CONNECTION_BROKEN_1
+     */
+    static SQLResponse send(MessagingService.Verb verb, InetAddress endpoint, SQLRequest request) {
+        MessageOut<SQLRequest> message = new MessageOut<>(verb, request, SQLRequest.serializer);
+        ResponseCallback callback = new ResponseCallback(endpoint, request.sql);
+        MessagingService.instance().sendRRWithFailure(message, endpoint, callback);
+        return callback.get(message.getTimeout());
+    }
+
+    /**
+     * 等待对方节点的响应，超时或对方节点失败时抛出CONNECTION_BROKEN_1
+     */
+    public static class ResponseCallback implements IAsyncCallbackWithFailure<SQLResponse> {
+        private final SimpleCondition condition = new SimpleCondition();
+        private final InetAddress endpoint;
+        private final String sql;
+        private volatile SQLResponse response;
+
+        public ResponseCallback(InetAddress endpoint, String sql) {
+            this.endpoint = endpoint;
+            this.sql = sql;
+        }
+
+        @Override
+        public void response(MessageIn<SQLResponse> msg) {
+            response = msg.payload;
+            condition.signalAll();
+        }
+
+        @Override
+        public void onFailure(InetAddress from) {
+            condition.signalAll();
+        }
+
+        @Override
+        public boolean isLatencyForSnitch() {
+            // ReadCallable自己会统计延迟
+            return false;
+        }
+
+        public SQLResponse get(long timeout) {
+            try {
+                condition.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw DbException.convert(e);
+            }
+            if (response == null)
+                throw DbException.get(ErrorCode.CONNECTION_BROKEN_1, "no response from " + endpoint + " for: " + sql);
+            return response;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.router;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.lealone.result.ResultInterface;
+import org.lealone.util.New;
+import org.lealone.value.Transfer;
+import org.lealone.value.Value;
+
+/**
+ * SQL_QUERY响应中的结果集，所有行都已经在内存中了，不需要再和对方节点交互。
+ */
+class MessagingResult implements ResultInterface {
+    private final String[] aliases;
+    private final String[] schemaNames;
+    private final String[] tableNames;
+    private final String[] columnNames;
+    private final int[] columnTypes;
+    private final long[] precisions;
+    private final int[] scales;
+    private final int[] displaySizes;
+    private final boolean[] autoIncrements;
+    private final int[] nullables;
+    private final ArrayList<Value[]> rows = New.arrayList();
+    private Value[] currentRow;
+    private int rowId = -1;
+    private int fetchSize;
+
+    // 和ResultColumn.writeColumn的写入顺序一致
+    MessagingResult(Transfer transfer) throws IOException {
+        int columnCount = transfer.readInt();
+        aliases = new String[columnCount];
+        schemaNames = new String[columnCount];
+        tableNames = new String[columnCount];
+        columnNames = new String[columnCount];
+        columnTypes = new int[columnCount];
+        precisions = new long[columnCount];
+        scales = new int[columnCount];
+        displaySizes = new int[columnCount];
+        autoIncrements = new boolean[columnCount];
+        nullables = new int[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            aliases[i] = transfer.readString();
+            schemaNames[i] = transfer.readString();
+            tableNames[i] = transfer.readString();
+            columnNames[i] = transfer.readString();
+            columnTypes[i] = transfer.readInt();
+            precisions[i] = transfer.readLong();
+            scales[i] = transfer.readInt();
+            displaySizes[i] = transfer.readInt();
+            autoIncrements[i] = transfer.readBoolean();
+            nullables[i] = transfer.readInt();
+        }
+        while (transfer.readBoolean()) {
+            Value[] row = new Value[columnCount];
+            for (int i = 0; i < columnCount; i++)
+                row[i] = transfer.readValue();
+            rows.add(row);
+        }
+    }
+
+    @Override
+    public void reset() {
+        rowId = -1;
+        currentRow = null;
+    }
+
+    @Override
+    public Value[] currentRow() {
+        return currentRow;
+    }
+
+    @Override
+    public boolean next() {
+        if (rowId < rows.size() - 1) {
+            currentRow = rows.get(++rowId);
+            return true;
+        }
+        rowId = rows.size();
+        currentRow = null;
+        return false;
+    }
+
+    @Override
+    public int getRowId() {
+        return rowId;
+    }
+
+    @Override
+    public int getVisibleColumnCount() {
+        return aliases.length;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public boolean needToClose() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getAlias(int i) {
+        return aliases[i];
+    }
+
+    @Override
+    public String getSchemaName(int i) {
+        return schemaNames[i];
+    }
+
+    @Override
+    public String getTableName(int i) {
+        return tableNames[i];
+    }
+
+    @Override
+    public String getColumnName(int i) {
+        return columnNames[i];
+    }
+
+    @Override
+    public int getColumnType(int i) {
+        return columnTypes[i];
+    }
+
+    @Override
+    public long getColumnPrecision(int i) {
+        return precisions[i];
+    }
+
+    @Override
+    public int getColumnScale(int i) {
+        return scales[i];
+    }
+
+    @Override
+    public int getDisplaySize(int i) {
+        return displaySizes[i];
+    }
+
+    @Override
+    public boolean isAutoIncrement(int i) {
+        return autoIncrements[i];
+    }
+
+    @Override
+    public int getNullable(int i) {
+        return nullables[i];
+    }
+
+    @Override
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    @Override
+    public int getFetchSize() {
+        return fetchSize;
+    }
+}
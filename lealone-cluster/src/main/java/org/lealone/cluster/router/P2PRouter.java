@@ -20,18 +20,22 @@ package org.lealone.cluster.router;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
 
+import org.lealone.cluster.concurrent.Stage;
+import org.lealone.cluster.concurrent.StageManager;
 import org.lealone.cluster.config.DatabaseDescriptor;
 import org.lealone.cluster.dht.Token;
 import org.lealone.cluster.gms.FailureDetector;
 import org.lealone.cluster.gms.Gossiper;
+import org.lealone.cluster.locator.TokenMetaData;
+import org.lealone.cluster.net.MessagingService;
 import org.lealone.cluster.service.StorageService;
 import org.lealone.cluster.utils.Utils;
 import org.lealone.command.CommandInterface;
@@ -49,13 +53,17 @@ import org.lealone.command.router.CommandParallel;
 import org.lealone.command.router.CommandWrapper;
 import org.lealone.command.router.FrontendSessionPool;
 import org.lealone.command.router.MergedResult;
+import org.lealone.command.router.ParallelResult;
 import org.lealone.command.router.Router;
 import org.lealone.command.router.SerializedResult;
 import org.lealone.command.router.SortedResult;
 import org.lealone.dbobject.Schema;
+import org.lealone.dbobject.table.Column;
 import org.lealone.dbobject.table.TableFilter;
+import org.lealone.engine.ConnectionInfo;
 import org.lealone.engine.FrontendSession;
 import org.lealone.engine.Session;
+import org.lealone.engine.SysProperties;
 import org.lealone.expression.Parameter;
 import org.lealone.message.DbException;
 import org.lealone.result.ResultInterface;
@@ -64,10 +72,7 @@ import org.lealone.util.New;
 import org.lealone.value.Value;
 import org.lealone.value.ValueUuid;
 
-import com.google.common.collect.Iterables;
-
 public class P2PRouter implements Router {
-    private static final Random random = new Random(System.currentTimeMillis());
     private static final P2PRouter INSTANCE = new P2PRouter();
 
     public static P2PRouter getInstance() {
@@ -75,6 +80,10 @@ public class P2PRouter implements Router {
     }
 
     protected P2PRouter() {
+        // 用带metrics的SEPExecutor执行并行命令
+        CommandParallel.setExecutor(StageManager.getStage(Stage.COMMAND_PARALLEL));
+        FrontendSessionPoolManager.instance.start();
+        HintedHandOffManager.instance.start();
     }
 
     @Override
@@ -167,15 +176,10 @@ public class P2PRouter implements Router {
                 }
             }
 
-            int size = targetEndpoints.size();
-            InetAddress endpoint;
-            if (size == 1)
-                endpoint = targetEndpoints.get(0);
-            else
-                endpoint = targetEndpoints.get(random.nextInt(size));
+            InetAddress endpoint = sortByProximity(targetEndpoints).get(0);
 
             try {
-                return createFrontendCommand(endpoint, p).executeUpdate();
+                return createCommand(endpoint, p).executeUpdate();
             } catch (Exception e) {
                 throw DbException.convert(e);
             }
@@ -204,6 +208,8 @@ public class P2PRouter implements Router {
         List<Row> localRows = null;
         Map<InetAddress, List<Row>> localDataCenterRows = null;
         Map<InetAddress, List<Row>> remoteDataCenterRows = null;
+        // 不可用的副本节点要写的记录，写成hint等节点恢复后再重放
+        Map<InetAddress, List<Row>> hintedRows = null;
 
         Value partitionKey;
         for (Row row : iom.getRows()) {
@@ -212,13 +218,10 @@ public class P2PRouter implements Router {
             if (partitionKey == null)
                 partitionKey = ValueUuid.getNewRandom();
             Token tk = StorageService.getPartitioner().getToken(ByteBuffer.wrap(partitionKey.getBytesNoCopy()));
-            List<InetAddress> naturalEndpoints = StorageService.instance.getNaturalEndpoints(schema, tk);
-            Collection<InetAddress> pendingEndpoints = StorageService.instance.getTokenMetaData().pendingEndpointsFor(
-                    tk, schema.getFullName());
-
-            Iterable<InetAddress> targets = Iterables.concat(naturalEndpoints, pendingEndpoints);
-            for (InetAddress destination : targets) {
-                if (FailureDetector.instance.isAlive(destination)) {
+            for (InetAddress destination : StorageService.instance.getWriteEndpoints(schema, tk)) {
+                boolean alive = FailureDetector.instance.isAlive(destination);
+                // 还有hint没重放完的节点，写操作也记成hint，排在旧的hint后面按顺序重放
+                if (alive && !HintedHandOffManager.instance.hasHints(destination)) {
                     if (destination.equals(Utils.getBroadcastAddress())) {
                         if (localRows == null)
                             localRows = New.arrayList();
@@ -247,10 +250,21 @@ public class P2PRouter implements Router {
                             rows.add(row);
                         }
                     }
+                } else if (alive || HintedHandOffManager.instance.shouldHint(destination)) {
+                    if (hintedRows == null)
+                        hintedRows = New.hashMap();
+
+                    List<Row> rows = hintedRows.get(destination);
+                    if (rows == null) {
+                        rows = New.arrayList();
+                        hintedRows.put(destination, rows);
+                    }
+                    rows.add(row);
                 }
             }
         }
 
+        Map<InetAddress, SQLRequest> hints = createHints(iom, hintedRows);
         List<Callable<Integer>> commands = New.arrayList();
         int updateCount = 0;
         try {
@@ -267,14 +281,43 @@ public class P2PRouter implements Router {
             throw DbException.convert(e);
         }
 
+        if (hints != null)
+            HintedHandOffManager.instance.hint(((Prepared) iom).getSession(), hints);
         return updateCount;
     }
 
+    private static Map<InetAddress, SQLRequest> createHints(InsertOrMerge iom, Map<InetAddress, List<Row>> rows) {
+        if (rows == null)
+            return null;
+
+        Session session = ((Prepared) iom).getSession();
+        ConnectionInfo ci = session.getConnectionInfo();
+        Properties properties = session.getOriginalProperties();
+        // 没有原始的连接参数就无法在目标节点上重建会话
+        if (ci == null || properties == null)
+            return null;
+
+        Map<InetAddress, SQLRequest> hints = New.hashMap(rows.size());
+        for (Map.Entry<InetAddress, List<Row>> e : rows.entrySet()) {
+            List<Value> values = New.arrayList();
+            String sql = iom.getPlanSQL(e.getValue(), values);
+            hints.put(e.getKey(), new SQLRequest(ci, session.getURL(e.getKey()), properties, sql,
+                    values.toArray(new Value[values.size()]), 0));
+        }
+        return hints;
+    }
+
     private static void createInsertOrMergeCallable(InsertOrMerge iom, //
             List<Callable<Integer>> commands, Map<InetAddress, List<Row>> rows) throws Exception {
         if (rows != null) {
+            Prepared p = (Prepared) iom;
+            // 每个节点的行放在一条语句中发送，在节点上是原子的；命令在当前线程中创建，
+            // 到目标节点的会话要在当前线程中加到原会话和事务中，原会话不是线程安全的
             for (Map.Entry<InetAddress, List<Row>> e : rows.entrySet()) {
-                commands.add(createUpdateCallable(e.getKey(), (Prepared) iom, iom.getPlanSQL(e.getValue())));
+                List<Value> values = New.arrayList();
+                String sql = iom.getPlanSQL(e.getValue(), values);
+                boolean cacheable = e.getValue().size() == 1;
+                commands.add(createUpdateCallable(createCommand(e.getKey(), p, sql, values, cacheable)));
             }
         }
     }
@@ -314,7 +357,12 @@ public class P2PRouter implements Router {
                 throw DbException.convert(e);
             }
         } else {
-            Set<InetAddress> liveMembers = Gossiper.instance.getLiveMembers();
+            // 写操作要发给每个key的所有副本
+            Set<InetAddress> liveMembers = getTargetEndpointsIfIn(tableFilter);
+            if (liveMembers == null)
+                liveMembers = getTargetEndpointsIfRange(tableFilter);
+            if (liveMembers == null)
+                liveMembers = Gossiper.instance.getLiveMembers();
             List<Callable<Integer>> commands = New.arrayList(liveMembers.size());
             try {
                 for (InetAddress endpoint : liveMembers) {
@@ -342,43 +390,55 @@ public class P2PRouter implements Router {
             if (isLocal)
                 return select.call();
 
-            int size = targetEndpoints.size();
-            InetAddress endpoint;
-            if (size == 1)
-                endpoint = targetEndpoints.get(0);
-            else
-                endpoint = targetEndpoints.get(random.nextInt(size));
-
             try {
-                return createFrontendCommand(endpoint, select).executeQuery(maxRows, scrollable);
+                return executeReadQuery(select, sortByProximity(targetEndpoints), maxRows, scrollable);
             } catch (Exception e) {
                 throw DbException.convert(e);
             }
         } else {
-            // TODO 处理有多副本的情况
-            Set<InetAddress> liveMembers = Gossiper.instance.getLiveMembers();
             String sql = getSelectPlanSQL(select);
+            Map<InetAddress, String> endpointToSQL = getSelectTargetEndpointsIfIn(select);
+            if (endpointToSQL == null)
+                endpointToSQL = getSelectTargetEndpointsIfRange(select);
+            if (endpointToSQL == null) {
+                // TODO 全表扫描时还没有处理有多副本的情况
+                Set<InetAddress> targets = Gossiper.instance.getLiveMembers();
+                endpointToSQL = New.hashMap(targets.size());
+                for (InetAddress endpoint : targets)
+                    endpointToSQL.put(endpoint, sql);
+            }
 
             try {
+                // 只涉及一个节点时直接在这个节点上执行原来的SQL，不需要合并
+                if (endpointToSQL.size() == 1) {
+                    InetAddress endpoint = endpointToSQL.keySet().iterator().next();
+                    if (endpoint.equals(Utils.getBroadcastAddress()))
+                        return select.call();
+                    return createCommand(endpoint, select).executeQuery(maxRows, scrollable);
+                }
+
                 if (!select.isGroupQuery() && select.getSortOrder() == null) {
-                    List<CommandInterface> commands = New.arrayList(liveMembers.size());
+                    List<CommandInterface> commands = New.arrayList(endpointToSQL.size());
 
                     // 在本地节点执行
-                    liveMembers.remove(Utils.getBroadcastAddress());
-                    commands.add(new CommandWrapper(createNewLocalSelect(select, sql)));
+                    String localSQL = endpointToSQL.remove(Utils.getBroadcastAddress());
+                    if (localSQL != null)
+                        commands.add(new CommandWrapper(createNewLocalSelect(select, localSQL)));
 
-                    for (InetAddress endpoint : liveMembers) {
-                        commands.add(createFrontendCommand(endpoint, select, sql));
+                    for (Map.Entry<InetAddress, String> e : endpointToSQL.entrySet()) {
+                        commands.add(createCommand(e.getKey(), select, e.getValue()));
                     }
 
+                    if (SysProperties.DISTRIBUTED_SCAN_PARALLEL)
+                        return new ParallelResult(commands, maxRows, scrollable, select.getLimitRows());
                     return new SerializedResult(commands, maxRows, scrollable, select.getLimitRows());
                 } else {
-                    List<Callable<ResultInterface>> commands = New.arrayList(liveMembers.size());
-                    for (InetAddress endpoint : liveMembers) {
-                        if (endpoint.equals(Utils.getBroadcastAddress())) {
-                            commands.add(createNewLocalSelect(select, sql));
+                    List<Callable<ResultInterface>> commands = New.arrayList(endpointToSQL.size());
+                    for (Map.Entry<InetAddress, String> e : endpointToSQL.entrySet()) {
+                        if (e.getKey().equals(Utils.getBroadcastAddress())) {
+                            commands.add(createNewLocalSelect(select, e.getValue()));
                         } else {
-                            commands.add(createSelectCallable(endpoint, select, sql, maxRows, scrollable));
+                            commands.add(createSelectCallable(e.getKey(), select, e.getValue(), maxRows, scrollable));
                         }
                     }
 
@@ -401,7 +461,9 @@ public class P2PRouter implements Router {
     }
 
     private static Select createNewLocalSelect(Select oldSelect, String sql) {
-        if (!oldSelect.isGroupQuery() && oldSelect.getLimit() == null && oldSelect.getOffset() == null) {
+        // 按partitionKey拆分后的SQL和原来的不同，此时不能直接用oldSelect
+        if (!oldSelect.isGroupQuery() && oldSelect.getLimit() == null && oldSelect.getOffset() == null
+                && sql.equals(oldSelect.getSQL())) {
             oldSelect.setLocal(true);
             return oldSelect;
         }
@@ -426,7 +488,7 @@ public class P2PRouter implements Router {
 
     private static Callable<ResultInterface> createSelectCallable(InetAddress endpoint, Select select, String sql,
             final int maxRows, final boolean scrollable) throws Exception {
-        final FrontendCommand c = createFrontendCommand(endpoint, select, sql);
+        final CommandInterface c = createCommand(endpoint, select, sql);
 
         Callable<ResultInterface> call = new Callable<ResultInterface>() {
             @Override
@@ -444,24 +506,196 @@ public class P2PRouter implements Router {
         if (pk != null) {
             Schema schema = tableFilter.getTable().getSchema();
             Token tk = StorageService.getPartitioner().getToken(ByteBuffer.wrap(pk.getBytesNoCopy()));
-            List<InetAddress> naturalEndpoints = StorageService.instance.getNaturalEndpoints(schema, tk);
-            Collection<InetAddress> pendingEndpoints = StorageService.instance.getTokenMetaData().pendingEndpointsFor(
-                    tk, schema.getFullName());
+            return new ArrayList<>(StorageService.instance.getWriteEndpoints(schema, tk));
+        }
+
+        return null;
+    }
+
+    /**
+     * partitionKey IN(...)时，每个key只选一个副本来查询，
+     * 每个节点的SQL中加上它负责的那部分key，这样即使有多个副本也不会返回重复的记录
+     */
+    private static Map<InetAddress, String> getSelectTargetEndpointsIfIn(Select select) {
+        TableFilter tableFilter = select.getTopTableFilter();
+        if (tableFilter.getJoin() != null)
+            return null;
+        Value[] keys = Prepared.getPartitionKeys(tableFilter);
+        Column rowKeyColumn = getRowKeyColumn(tableFilter);
+        if (keys == null || rowKeyColumn == null)
+            return null;
+
+        Map<InetAddress, List<Value>> endpointToKeys = newPartitionPruner(tableFilter).splitKeys(keys);
+        // 某个key的所有副本都不可用，退回到原来的方式
+        if (endpointToKeys == null)
+            return null;
+        Map<InetAddress, String> endpointToSQL = New.hashMap(endpointToKeys.size());
+        for (Map.Entry<InetAddress, List<Value>> e : endpointToKeys.entrySet()) {
+            String condition = PartitionPruner.getInCondition(rowKeyColumn.getSQL(), e.getValue());
+            endpointToSQL.put(e.getKey(), select.getPlanSQL(true, condition));
+        }
+        return endpointToSQL;
+    }
+
+    /**
+     * 使用保序的分区器时，partitionKey BETWEEN a AND b的每个token区间只选一个副本来查询，
+     * 每个节点的SQL中加上它负责的那部分key的范围
+     */
+    private static Map<InetAddress, String> getSelectTargetEndpointsIfRange(Select select) {
+        TableFilter tableFilter = select.getTopTableFilter();
+        Value[] range = getPartitionKeyRange(tableFilter);
+        if (range == null)
+            return null;
+        Column rowKeyColumn = getRowKeyColumn(tableFilter);
+        boolean binaryUnsigned = select.getSession().getDatabase().getCompareMode().isBinaryUnsigned();
+        Map<InetAddress, List<Value[]>> endpointToRanges = newPartitionPruner(tableFilter).splitRange(
+                StorageService.instance.getTokenMetaData().sortedTokens(), range[0], range[1], binaryUnsigned);
+        if (endpointToRanges == null)
+            return null;
+        String sql = getSelectPlanSQL(select);
+        Map<InetAddress, String> endpointToSQL = New.hashMap(endpointToRanges.size());
+        for (Map.Entry<InetAddress, List<Value[]>> e : endpointToRanges.entrySet()) {
+            String condition = PartitionPruner.getRangeCondition(rowKeyColumn.getSQL(), e.getValue());
+            endpointToSQL.put(e.getKey(), condition == null ? sql : select.getPlanSQL(true, condition));
+        }
+        return endpointToSQL;
+    }
+
+    private static PartitionPruner newPartitionPruner(TableFilter tableFilter) {
+        return new PartitionPruner(PartitionPruner.getReplicas(tableFilter.getTable().getSchema()),
+                Utils.getBroadcastAddress());
+    }
+
+    // partitionKey IN(...)时，update和delete要发给所有key的所有副本
+    private static Set<InetAddress> getTargetEndpointsIfIn(TableFilter tableFilter) {
+        if (tableFilter.getJoin() != null)
+            return null;
+        Value[] keys = Prepared.getPartitionKeys(tableFilter);
+        if (keys == null)
+            return null;
+        Schema schema = tableFilter.getTable().getSchema();
+        Set<InetAddress> endpoints = new HashSet<>();
+        for (Value key : keys)
+            addLiveEndpoints(endpoints, schema, getToken(key));
+        return endpoints;
+    }
+
+    /**
+     * 使用保序的分区器(例如ByteOrderedPartitioner)时，partitionKey BETWEEN a AND b
+     * 只需要访问从拥有a的token到拥有b的token之间的那些节点
+     */
+    private static Set<InetAddress> getTargetEndpointsIfRange(TableFilter tableFilter) {
+        Value[] range = getPartitionKeyRange(tableFilter);
+        if (range == null)
+            return null;
+        Token start = getToken(range[0]);
+        Token end = getToken(range[1]);
+        ArrayList<Token> ring = StorageService.instance.getTokenMetaData().sortedTokens();
+        if (start.compareTo(end) > 0 || ring.isEmpty())
+            return null;
+
+        Schema schema = tableFilter.getTable().getSchema();
+        Set<InetAddress> endpoints = new HashSet<>();
+        Iterator<Token> tokens = TokenMetaData.ringIterator(ring, start, false);
+        Token last = null;
+        while (tokens.hasNext()) {
+            Token tk = tokens.next();
+            addLiveEndpoints(endpoints, schema, tk);
+            // 已经到了拥有end的token，或者绕回了环的起点(它拥有比最大的token还大的那些key)
+            if (tk.compareTo(end) >= 0 || last != null && tk.compareTo(last) < 0)
+                break;
+            last = tk;
+        }
+        return endpoints;
+    }
+
+    /**
+     * 返回转换成partitionKey列的类型之后的[start, end]，不能按范围裁剪时返回null
+     */
+    private static Value[] getPartitionKeyRange(TableFilter tableFilter) {
+        if (tableFilter.getJoin() != null || !StorageService.getPartitioner().preservesOrder())
+            return null;
+        Value[] range = Prepared.getPartitionKeyRange(tableFilter);
+        Column rowKeyColumn = getRowKeyColumn(tableFilter);
+        if (range == null || rowKeyColumn == null)
+            return null;
+        Value startKey = rowKeyColumn.convert(range[0]);
+        Value endKey = rowKeyColumn.convert(range[1]);
+        if (!isBytesOrderPreserving(startKey) || !isBytesOrderPreserving(endKey))
+            return null;
+        return new Value[] { startKey, endKey };
+    }
 
-            naturalEndpoints.addAll(pendingEndpoints);
-            return naturalEndpoints;
+    // 分区器按字节比较，只有字节序和值的顺序一致的类型才能按范围裁剪
+    private static boolean isBytesOrderPreserving(Value v) {
+        switch (v.getType()) {
+        case Value.BYTES:
+            return true;
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            return v.getLong() >= 0;
+        default:
+            return false;
         }
+    }
 
+    private static Column getRowKeyColumn(TableFilter tableFilter) {
+        for (Column c : tableFilter.getTable().getColumns()) {
+            if (c.isRowKeyColumn())
+                return c;
+        }
         return null;
     }
 
+    private static Token getToken(Value key) {
+        return StorageService.getPartitioner().getToken(ByteBuffer.wrap(key.getBytesNoCopy()));
+    }
+
+    private static void addLiveEndpoints(Set<InetAddress> endpoints, Schema schema, Token tk) {
+        for (InetAddress endpoint : StorageService.instance.getWriteEndpoints(schema, tk)) {
+            if (FailureDetector.instance.isAlive(endpoint))
+                endpoints.add(endpoint);
+        }
+    }
+
+    /**
+     * 按snitch(开启dynamic_snitch时就是按各节点最近的延迟)排序，不可用的节点排在最后
+     */
+    private static List<InetAddress> sortByProximity(List<InetAddress> endpoints) {
+        return SpeculativeRead.sortByProximity(endpoints, DatabaseDescriptor.getEndpointSnitch(),
+                FailureDetector.instance, Utils.getBroadcastAddress());
+    }
+
+    private static ResultInterface executeReadQuery(final Select select, List<InetAddress> endpoints, int maxRows,
+            boolean scrollable) throws Exception {
+        SpeculativeRead.ReplicaReader reader = new SpeculativeRead.ReplicaReader() {
+            @Override
+            public CommandInterface createCommand(InetAddress endpoint) throws Exception {
+                return P2PRouter.createCommand(endpoint, select);
+            }
+
+            @Override
+            public void addLatency(InetAddress endpoint, long latency) {
+                MessagingService.instance().addLatency(endpoint, latency);
+                SpeculativeRead.addReadLatency(latency);
+            }
+        };
+        return SpeculativeRead.executeReadQuery(reader, endpoints, maxRows, scrollable,
+                SpeculativeRead.getSpeculativeRetryThreshold());
+    }
+
     private static Callable<Integer> createUpdateCallable(InetAddress endpoint, Prepared p) throws Exception {
         return createUpdateCallable(endpoint, p, p.getSQL());
     }
 
     private static Callable<Integer> createUpdateCallable(InetAddress endpoint, Prepared p, String sql)
             throws Exception {
-        final FrontendCommand c = createFrontendCommand(endpoint, p, sql);
+        return createUpdateCallable(createCommand(endpoint, p, sql));
+    }
+
+    private static Callable<Integer> createUpdateCallable(final CommandInterface c) {
         Callable<Integer> call = new Callable<Integer>() {
             @Override
             public Integer call() throws Exception {
@@ -472,11 +706,28 @@ public class P2PRouter implements Router {
         return call;
     }
 
-    private static FrontendCommand createFrontendCommand(InetAddress endpoint, Prepared p) throws Exception {
-        return FrontendSessionPool.getFrontendCommand(p.getSession(), p, p.getSession().getURL(endpoint), p.getSQL());
+    private static CommandInterface createCommand(InetAddress endpoint, Prepared p) throws Exception {
+        return createCommand(endpoint, p, p.getSQL());
     }
 
-    private static FrontendCommand createFrontendCommand(InetAddress endpoint, Prepared p, String sql) throws Exception {
+    private static CommandInterface createCommand(InetAddress endpoint, Prepared p, String sql) throws Exception {
+        if (isSqlOverMessaging(p))
+            return new MessagingCommand(endpoint, p, sql, null);
         return FrontendSessionPool.getFrontendCommand(p.getSession(), p, p.getSession().getURL(endpoint), sql);
     }
+
+    private static CommandInterface createCommand(InetAddress endpoint, Prepared p, String sql, List<Value> values,
+            boolean cacheable) throws Exception {
+        if (isSqlOverMessaging(p))
+            return new MessagingCommand(endpoint, p, sql, values);
+        return FrontendSessionPool.getFrontendCommand(p.getSession(), p, p.getSession().getURL(endpoint), sql,
+                values, cacheable);
+    }
+
+    // 分布式事务中的语句要在参与者节点的同一个会话中执行，只有自动提交的语句才能通过MessagingService发送
+    private static boolean isSqlOverMessaging(Prepared p) {
+        Session session = p.getSession();
+        return DatabaseDescriptor.isSqlOverMessaging() && session.getConnectionInfo() != null
+                && session.getOriginalProperties() != null && session.getTransaction().isAutoCommit();
+    }
 }
@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.router;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.lealone.cluster.dht.ByteOrderedPartitioner;
+import org.lealone.cluster.dht.Token;
+import org.lealone.cluster.gms.FailureDetector;
+import org.lealone.cluster.locator.TokenMetaData;
+import org.lealone.cluster.service.StorageService;
+import org.lealone.dbobject.Schema;
+import org.lealone.util.New;
+import org.lealone.util.StatementBuilder;
+import org.lealone.value.Value;
+import org.lealone.value.ValueBytes;
+import org.lealone.value.ValueLong;
+
+/**
+ * 按partitionKey裁剪查询要访问的节点。
+ * <p>
+ * 有多个副本时，每个key(partitionKey IN(...))或者每个token区间(partitionKey BETWEEN a AND b)只选一个副本，
+ * 优先选本地节点和已经选中的节点，再给每个节点的SQL加上它负责的那部分key，
+ * 这样各节点返回的记录合并后不会有重复。
+ */
+public class PartitionPruner {
+
+    /**
+     * 查找副本的方式，测试时可以不依赖StorageService和FailureDetector
+     */
+    public interface Replicas {
+        Token getToken(Value key);
+
+        List<InetAddress> getNaturalEndpoints(Token token);
+
+        boolean isAlive(InetAddress endpoint);
+    }
+
+    static Replicas getReplicas(final Schema schema) {
+        return new Replicas() {
+            @Override
+            public Token getToken(Value key) {
+                return StorageService.getPartitioner().getToken(ByteBuffer.wrap(key.getBytesNoCopy()));
+            }
+
+            @Override
+            public List<InetAddress> getNaturalEndpoints(Token token) {
+                return StorageService.instance.getNaturalEndpoints(schema, token);
+            }
+
+            @Override
+            public boolean isAlive(InetAddress endpoint) {
+                return FailureDetector.instance.isAlive(endpoint);
+            }
+        };
+    }
+
+    private final Replicas replicas;
+    private final InetAddress localEndpoint;
+
+    public PartitionPruner(Replicas replicas, InetAddress localEndpoint) {
+        this.replicas = replicas;
+        this.localEndpoint = localEndpoint;
+    }
+
+    /**
+     * 每个key只选一个副本
+     *
+     * @return 每个节点要查的key，某个key的所有副本都不可用时返回null
+     */
+    public Map<InetAddress, List<Value>> splitKeys(Value[] keys) {
+        Map<InetAddress, List<Value>> endpointToKeys = New.hashMap();
+        for (Value key : keys) {
+            InetAddress target = selectReplica(replicas.getToken(key), endpointToKeys);
+            if (target == null)
+                return null;
+            List<Value> list = endpointToKeys.get(target);
+            if (list == null) {
+                list = New.arrayList();
+                endpointToKeys.put(target, list);
+            }
+            list.add(key);
+        }
+        return endpointToKeys;
+    }
+
+    /**
+     * 把[startKey, endKey]按token环分成多个区间，每个区间只选一个副本。
+     * 只有保序的分区器(ByteOrderedPartitioner)才能把token的边界换成key的边界。
+     *
+     * @param ring 排好序的token
+     * @param binaryUnsigned BYTES类型的key在数据库中是否按无符号字节比较
+     * @return 每个节点要查的key区间(lo, hi]，lo或hi为null时表示这一边不限，
+     *         不能裁剪或者某个区间的所有副本都不可用时返回null
+     */
+    public Map<InetAddress, List<Value[]>> splitRange(List<Token> ring, Value startKey, Value endKey,
+            boolean binaryUnsigned) {
+        int type = startKey.getType();
+        if (ring.isEmpty() || type == Value.BYTES && !binaryUnsigned)
+            return null;
+        Token start = replicas.getToken(startKey);
+        Token end = replicas.getToken(endKey);
+        if (!(start instanceof ByteOrderedPartitioner.BytesToken) || start.compareTo(end) > 0)
+            return null;
+
+        // 每个token拥有从前一个token(不含)到它自己(含)的key，环的起点还拥有比最大的token还大的那些key，
+        // 这里的每个元素是{前一个token, token, 拥有者}，null表示这一边不限
+        List<Token[]> partitions = New.arrayList();
+        Iterator<Token> tokens = TokenMetaData.ringIterator(New.arrayList(ring), start, false);
+        Token tk = tokens.next();
+        if (tk.compareTo(start) < 0) {
+            // start比最大的token还大，整个范围都属于环的起点
+            partitions.add(new Token[] { null, null, tk });
+        } else {
+            Token low = null;
+            while (tk.compareTo(end) < 0) {
+                partitions.add(new Token[] { low, tk, tk });
+                low = tk;
+                tk = tokens.hasNext() ? tokens.next() : ring.get(0);
+                // 绕回了环的起点
+                if (tk.compareTo(low) <= 0)
+                    break;
+            }
+            partitions.add(new Token[] { low, null, tk });
+        }
+
+        Map<InetAddress, List<Value[]>> endpointToRanges = New.hashMap();
+        InetAddress last = null;
+        for (Token[] partition : partitions) {
+            Value hi = null;
+            if (partition[1] != null) {
+                hi = getMaxKeyNotAfter(partition[1], type);
+                // 这个区间里没有非负的key
+                if (hi == null)
+                    continue;
+            }
+            Value lo = partition[0] == null ? null : getMaxKeyNotAfter(partition[0], type);
+            InetAddress target = selectReplica(partition[2], endpointToRanges);
+            if (target == null)
+                return null;
+            List<Value[]> list = endpointToRanges.get(target);
+            if (list == null) {
+                list = New.arrayList();
+                endpointToRanges.put(target, list);
+            }
+            // 和前一个区间选中同一个节点时合并成一个区间
+            if (target.equals(last))
+                list.get(list.size() - 1)[1] = hi;
+            else
+                list.add(new Value[] { lo, hi });
+            last = target;
+        }
+        return endpointToRanges;
+    }
+
+    private InetAddress selectReplica(Token token, Map<InetAddress, ?> selected) {
+        InetAddress target = null;
+        for (InetAddress endpoint : replicas.getNaturalEndpoints(token)) {
+            if (!replicas.isAlive(endpoint))
+                continue;
+            if (endpoint.equals(localEndpoint))
+                return endpoint;
+            if (target == null || selected.containsKey(endpoint) && !selected.containsKey(target))
+                target = endpoint;
+        }
+        return target;
+    }
+
+    /**
+     * 返回字节序不大于token的最大的非负key，不存在时返回null。
+     * 整数类型的key按大端的补码编码，非负数的字节序和值的顺序一致。
+     */
+    public static Value getMaxKeyNotAfter(Token token, int type) {
+        byte[] bytes = (byte[]) token.getTokenValue();
+        if (type == Value.BYTES)
+            return ValueBytes.get(bytes);
+        int width;
+        switch (type) {
+        case Value.BYTE:
+            width = 1;
+            break;
+        case Value.SHORT:
+            width = 2;
+            break;
+        case Value.INT:
+            width = 4;
+            break;
+        case Value.LONG:
+            width = 8;
+            break;
+        default:
+            throw new IllegalArgumentException("type=" + type);
+        }
+        BigInteger key = new BigInteger(1, Arrays.copyOf(bytes, width));
+        // token是这个key的前缀，key比token大
+        if (bytes.length < width)
+            key = key.subtract(BigInteger.ONE);
+        if (key.signum() < 0)
+            return null;
+        BigInteger max = BigInteger.ONE.shiftLeft(width * 8 - 1).subtract(BigInteger.ONE);
+        if (key.compareTo(max) > 0)
+            key = max;
+        return ValueLong.get(key.longValue()).convertTo(type);
+    }
+
+    public static String getInCondition(String columnSQL, List<Value> keys) {
+        StatementBuilder buff = new StatementBuilder(columnSQL);
+        buff.append(" IN(");
+        for (Value v : keys) {
+            buff.appendExceptFirst(", ");
+            buff.append(v.getSQL());
+        }
+        return buff.append(')').toString();
+    }
+
+    /**
+     * @return 不需要加条件时返回null
+     */
+    public static String getRangeCondition(String columnSQL, List<Value[]> ranges) {
+        StatementBuilder buff = new StatementBuilder("(");
+        for (Value[] range : ranges) {
+            if (range[0] == null && range[1] == null)
+                return null;
+            buff.appendExceptFirst(" OR ");
+            buff.append('(');
+            if (range[0] != null)
+                buff.append(columnSQL).append(" > ").append(range[0].getSQL());
+            if (range[0] != null && range[1] != null)
+                buff.append(" AND ");
+            if (range[1] != null)
+                buff.append(columnSQL).append(" <= ").append(range[1].getSQL());
+            buff.append(')');
+        }
+        return buff.append(')').toString();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.router;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.lealone.cluster.io.DataOutputPlus;
+import org.lealone.cluster.io.IVersionedSerializer;
+import org.lealone.engine.ConnectionInfo;
+import org.lealone.message.DbException;
+import org.lealone.util.StringUtils;
+import org.lealone.value.Transfer;
+import org.lealone.value.Value;
+import org.lealone.value.ValueLobDb;
+
+/**
+ * 通过MessagingService发给其他节点的SQL_QUERY、SQL_UPDATE和SQL_HINT请求，
+ * 除了SQL和参数外还带上建立会话所需的用户名、密码hash和连接参数，接收端据此创建或复用一个本地Session。
+ * 
+ * 参数值用Transfer编码成一个字节数组，这样serializedSize和serialize都只需编码一次。
+ */
+public class SQLRequest {
+    public static final IVersionedSerializer<SQLRequest> serializer = new SQLRequestSerializer();
+
+    public final String url;
+    public final String dbName;
+    public final String userName;
+    public final byte[] userPasswordHash;
+    public final byte[] filePasswordHash;
+    public final byte[] fileEncryptionKey;
+    public final Properties properties;
+    public final String sql;
+    public final Value[] parameters;
+    public final int maxRows;
+
+    private byte[] bytes;
+
+    /**
+     * 
+     * @param ci 发起请求的会话的ConnectionInfo，用户名和密码hash从这里取
+     * @param url 目标节点的URL
+     * @param properties 发起请求的会话的原始连接参数
+     */
+    public SQLRequest(ConnectionInfo ci, String url, Properties properties, String sql, Value[] parameters,
+            int maxRows) {
+        this(new ConnectionInfo(url, properties), ci, properties, sql, parameters, maxRows);
+    }
+
+    private SQLRequest(ConnectionInfo target, ConnectionInfo ci, Properties properties, String sql,
+            Value[] parameters, int maxRows) {
+        this(target.getURL(), target.getDatabaseName(), ci.getUserName(), ci.getUserPasswordHash(), ci
+                .getFilePasswordHash(), ci.getFileEncryptionKey(), properties, sql, parameters, maxRows);
+    }
+
+    private SQLRequest(String url, String dbName, String userName, byte[] userPasswordHash, byte[] filePasswordHash,
+            byte[] fileEncryptionKey, Properties properties, String sql, Value[] parameters, int maxRows) {
+        this.url = url;
+        this.dbName = dbName;
+        this.userName = userName;
+        this.userPasswordHash = userPasswordHash;
+        this.filePasswordHash = filePasswordHash;
+        this.fileEncryptionKey = fileEncryptionKey;
+        this.properties = properties;
+        this.sql = sql;
+        this.parameters = parameters;
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * 去掉密码hash和文件加密密钥后的请求，保存hint时使用，这样hints表中不会留下用户的凭证。
+     * 重放时通过SQL_HINT发送，接收端确认发送端是token环中的节点后用节点内部的身份以这个用户执行(见SQLVerbHandler)
+     */
+    public SQLRequest withoutCredentials() {
+        return new SQLRequest(url, dbName, userName, null, null, null, properties, sql, parameters, maxRows);
+    }
+
+    public boolean hasCredentials() {
+        return userPasswordHash != null;
+    }
+
+    /**
+     * 用户名、密码和连接参数都相同的请求可以共用接收端的Session
+     */
+    public String getSessionKey() {
+        StringBuilder buff = new StringBuilder(url);
+        buff.append('|').append(dbName).append('|').append(userName);
+        buff.append('|').append(toHex(userPasswordHash));
+        buff.append('|').append(toHex(filePasswordHash));
+        buff.append('|').append(toHex(fileEncryptionKey));
+        buff.append('|').append(properties);
+        return buff.toString();
+    }
+
+    private static String toHex(byte[] bytes) {
+        return bytes == null ? "" : StringUtils.convertBytesToHex(bytes);
+    }
+
+    public byte[] getBytes() {
+        if (bytes == null) {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                Transfer transfer = newTransfer(null, out);
+                transfer.writeString(url).writeString(dbName).writeString(userName);
+                transfer.writeBytes(userPasswordHash).writeBytes(filePasswordHash).writeBytes(fileEncryptionKey);
+                transfer.writeInt(properties.size());
+                for (String key : properties.stringPropertyNames())
+                    transfer.writeString(key).writeString(properties.getProperty(key));
+                transfer.writeString(sql).writeInt(maxRows);
+                transfer.writeInt(parameters.length);
+                for (Value v : parameters)
+                    writeValue(transfer, v);
+                transfer.flush();
+                bytes = out.toByteArray();
+            } catch (IOException e) {
+                throw DbException.convertIOException(e, null);
+            }
+        }
+        return bytes;
+    }
+
+    public static SQLRequest fromBytes(byte[] bytes) throws IOException {
+        Transfer transfer = newTransfer(new ByteArrayInputStream(bytes), null);
+        String url = transfer.readString();
+        String dbName = transfer.readString();
+        String userName = transfer.readString();
+        byte[] userPasswordHash = transfer.readBytes();
+        byte[] filePasswordHash = transfer.readBytes();
+        byte[] fileEncryptionKey = transfer.readBytes();
+        Properties properties = new Properties();
+        int len = transfer.readInt();
+        for (int i = 0; i < len; i++)
+            properties.setProperty(transfer.readString(), transfer.readString());
+        String sql = transfer.readString();
+        int maxRows = transfer.readInt();
+        Value[] parameters = new Value[transfer.readInt()];
+        for (int i = 0; i < parameters.length; i++)
+            parameters[i] = transfer.readValue();
+        return new SQLRequest(url, dbName, userName, userPasswordHash, filePasswordHash, fileEncryptionKey,
+                properties, sql, parameters, maxRows);
+    }
+
+    static Transfer newTransfer(ByteArrayInputStream in, ByteArrayOutputStream out) {
+        Transfer transfer = new Transfer(null, null);
+        transfer.init(in, out);
+        return transfer;
+    }
+
+    /**
+     * 已经存储在数据库中的LOB只传了一个lobId，对方节点读不到，所以先转成小LOB再发
+     */
+    static void writeValue(Transfer transfer, Value v) throws IOException {
+        transfer.writeValue(ValueLobDb.copyToSmallLob(v));
+    }
+
+    private static class SQLRequestSerializer implements IVersionedSerializer<SQLRequest> {
+        @Override
+        public void serialize(SQLRequest request, DataOutputPlus out, int version) throws IOException {
+            byte[] bytes = request.getBytes();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public SQLRequest deserialize(DataInput in, int version) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return fromBytes(bytes);
+        }
+
+        @Override
+        public long serializedSize(SQLRequest request, int version) {
+            return 4 + request.getBytes().length;
+        }
+    }
+}
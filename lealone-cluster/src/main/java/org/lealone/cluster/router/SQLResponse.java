@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.router;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.SQLException;
+
+import org.lealone.cluster.io.DataOutputPlus;
+import org.lealone.cluster.io.IVersionedSerializer;
+import org.lealone.message.DbException;
+import org.lealone.message.JdbcSQLException;
+import org.lealone.result.ResultColumn;
+import org.lealone.result.ResultInterface;
+import org.lealone.value.Transfer;
+import org.lealone.value.Value;
+
+/**
+ * SQL_QUERY和SQL_UPDATE的响应，三种类型：更新记录数、查询结果集、异常。
+ * 
+ * 查询结果集在一个响应中全部返回(最多maxRows行)，不像FrontendSession那样分批fetch。
+ */
+public class SQLResponse {
+    public static final IVersionedSerializer<SQLResponse> serializer = new SQLResponseSerializer();
+
+    private static final byte TYPE_UPDATE = 0;
+    private static final byte TYPE_RESULT = 1;
+    private static final byte TYPE_ERROR = 2;
+
+    private final byte type;
+    private final int updateCount;
+    // TYPE_RESULT时是列的元数据加上所有行，TYPE_ERROR时是异常信息，都用Transfer编码
+    private final byte[] bytes;
+
+    private SQLResponse(byte type, int updateCount, byte[] bytes) {
+        this.type = type;
+        this.updateCount = updateCount;
+        this.bytes = bytes;
+    }
+
+    public static SQLResponse updateCount(int updateCount) {
+        return new SQLResponse(TYPE_UPDATE, updateCount, new byte[0]);
+    }
+
+    public static SQLResponse result(ResultInterface result) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Transfer transfer = SQLRequest.newTransfer(null, out);
+        int columnCount = result.getVisibleColumnCount();
+        transfer.writeInt(columnCount);
+        for (int i = 0; i < columnCount; i++)
+            ResultColumn.writeColumn(transfer, result, i);
+        while (result.next()) {
+            transfer.writeBoolean(true);
+            Value[] row = result.currentRow();
+            for (int i = 0; i < columnCount; i++)
+                SQLRequest.writeValue(transfer, row[i]);
+        }
+        transfer.writeBoolean(false);
+        transfer.flush();
+        return new SQLResponse(TYPE_RESULT, -1, out.toByteArray());
+    }
+
+    public static SQLResponse error(Throwable t) {
+        SQLException e = DbException.convert(t).getSQLException();
+        StringWriter writer = new StringWriter();
+        e.printStackTrace(new PrintWriter(writer));
+        String message;
+        String sql;
+        if (e instanceof JdbcSQLException) {
+            JdbcSQLException j = (JdbcSQLException) e;
+            message = j.getOriginalMessage();
+            sql = j.getSQL();
+        } else {
+            message = e.getMessage();
+            sql = null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Transfer transfer = SQLRequest.newTransfer(null, out);
+            transfer.writeString(e.getSQLState()).writeString(message).writeString(sql).writeInt(e.getErrorCode())
+                    .writeString(writer.toString()).flush();
+            return new SQLResponse(TYPE_ERROR, -1, out.toByteArray());
+        } catch (IOException e2) {
+            throw DbException.convertIOException(e2, null);
+        }
+    }
+
+    /**
+     * 如果对方节点执行出错，抛出同样的异常
+     */
+    private void checkError() {
+        if (type != TYPE_ERROR)
+            return;
+        try {
+            Transfer transfer = SQLRequest.newTransfer(new ByteArrayInputStream(bytes), null);
+            String sqlstate = transfer.readString();
+            String message = transfer.readString();
+            String sql = transfer.readString();
+            int errorCode = transfer.readInt();
+            String stackTrace = transfer.readString();
+            throw DbException.convert(new JdbcSQLException(message, sql, sqlstate, errorCode, null, stackTrace));
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, null);
+        }
+    }
+
+    public int getUpdateCount() {
+        checkError();
+        return updateCount;
+    }
+
+    public ResultInterface getResult() {
+        checkError();
+        try {
+            return new MessagingResult(SQLRequest.newTransfer(new ByteArrayInputStream(bytes), null));
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, null);
+        }
+    }
+
+    private static class SQLResponseSerializer implements IVersionedSerializer<SQLResponse> {
+        @Override
+        public void serialize(SQLResponse response, DataOutputPlus out, int version) throws IOException {
+            out.writeByte(response.type);
+            out.writeInt(response.updateCount);
+            out.writeInt(response.bytes.length);
+            out.write(response.bytes);
+        }
+
+        @Override
+        public SQLResponse deserialize(DataInput in, int version) throws IOException {
+            byte type = in.readByte();
+            int updateCount = in.readInt();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new SQLResponse(type, updateCount, bytes);
+        }
+
+        @Override
+        public long serializedSize(SQLResponse response, int version) {
+            return 1 + 4 + 4 + response.bytes.length;
+        }
+    }
+}
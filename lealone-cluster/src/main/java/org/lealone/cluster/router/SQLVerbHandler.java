@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.router;
+
+import java.net.InetAddress;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.lealone.api.ErrorCode;
+import org.lealone.api.ParameterInterface;
+import org.lealone.cluster.config.DatabaseDescriptor;
+import org.lealone.cluster.net.IVerbHandler;
+import org.lealone.cluster.net.MessageIn;
+import org.lealone.cluster.net.MessageOut;
+import org.lealone.cluster.net.MessagingService;
+import org.lealone.cluster.service.StorageService;
+import org.lealone.command.Command;
+import org.lealone.command.Prepared;
+import org.lealone.command.dml.Insert;
+import org.lealone.command.dml.Merge;
+import org.lealone.engine.ConnectionInfo;
+import org.lealone.engine.DatabaseEngine;
+import org.lealone.engine.Session;
+import org.lealone.engine.SysProperties;
+import org.lealone.message.DbException;
+import org.lealone.result.ResultInterface;
+
+/**
+ * 在SQL stage中执行其他节点发来的SQL_QUERY、SQL_UPDATE和SQL_HINT请求，执行结果通过REQUEST_RESPONSE返回。
+ * 
+ * SQL_QUERY和SQL_UPDATE必须带有用户的凭证，会话的创建方式和TcpServerThread一样，密码不对就拒绝。
+ * SQL_HINT是重放的hint，不带凭证，只接受token环中的节点发来的、由P2PRouter生成的INSERT/MERGE ... VALUES语句，
+ * 用节点内部的身份以原来的用户执行。
+ * 
+ * 会话用完后按用户名、密码和连接参数缓存起来给后续请求复用。
+ * 每个线程同一时刻最多占用一个会话，所以缓存的会话数不会超过SQL stage的线程数。
+ */
+public class SQLVerbHandler implements IVerbHandler<SQLRequest> {
+    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Session>> idleSessions = new ConcurrentHashMap<>();
+
+    @Override
+    public void doVerb(MessageIn<SQLRequest> message, int id) {
+        SQLResponse response = execute(message.verb, message.payload, message.from);
+        MessageOut<SQLResponse> reply = new MessageOut<>(MessagingService.Verb.REQUEST_RESPONSE, response,
+                SQLResponse.serializer);
+        MessagingService.instance().sendReply(reply, id, message.from);
+    }
+
+    /**
+     * 执行出错时不抛出异常，而是把异常放到响应中返回给发送端
+     * 
+     * @param verb SQL_QUERY、SQL_UPDATE或SQL_HINT
+     * @param request 请求
+     * @param from 发送请求的节点
+     * @return 执行结果
+     */
+    public SQLResponse execute(MessagingService.Verb verb, SQLRequest request, InetAddress from) {
+        boolean isHint = verb == MessagingService.Verb.SQL_HINT;
+        // 用节点内部的身份创建的会话不能给带凭证的请求复用
+        String key = isHint ? "HINT|" + request.getSessionKey() : request.getSessionKey();
+        SQLResponse response;
+        Session session = null;
+        try {
+            if (isHint) {
+                if (!isRingMember(from))
+                    throw DbException.get(ErrorCode.NOT_ENOUGH_RIGHTS_FOR_1, "hint from " + from);
+            } else if (!request.hasCredentials()) {
+                throw DbException.get(ErrorCode.WRONG_USER_OR_PASSWORD);
+            }
+            session = getSession(key, request, isHint);
+            if (isHint)
+                checkHint(session, request.sql);
+            Command command = session.prepareCommand(request.sql);
+            try {
+                setParameters(command, request);
+                if (verb == MessagingService.Verb.SQL_QUERY) {
+                    ResultInterface result = command.executeQuery(request.maxRows, false);
+                    try {
+                        response = SQLResponse.result(result);
+                    } finally {
+                        result.close();
+                    }
+                } else {
+                    response = SQLResponse.updateCount(command.executeUpdate());
+                }
+            } finally {
+                command.close();
+            }
+        } catch (Throwable t) {
+            response = SQLResponse.error(t);
+        } finally {
+            if (session != null)
+                releaseSession(key, session);
+        }
+        return response;
+    }
+
+    /**
+     * 只有token环中的节点才会重放hint，这个节点可能已经下线，所以不要求它还是存活的
+     */
+    protected boolean isRingMember(InetAddress endpoint) {
+        return StorageService.instance.getTokenMetaData().isMember(endpoint);
+    }
+
+    // hint中只能是一条不带子查询的INSERT/MERGE ... VALUES语句，Parser.prepare不接受多条语句
+    private static void checkHint(Session session, String sql) {
+        Prepared p = session.prepare(sql);
+        boolean valid;
+        if (p instanceof Insert)
+            valid = ((Insert) p).getQuery() == null;
+        else if (p instanceof Merge)
+            valid = ((Merge) p).getQuery() == null;
+        else
+            valid = false;
+        if (!valid)
+            throw DbException.get(ErrorCode.NOT_ENOUGH_RIGHTS_FOR_1, "hint: " + sql);
+    }
+
+    // 如果发送端把参数值直接拼到了SQL中，这里就没有参数了
+    private static void setParameters(Command command, SQLRequest request) {
+        ArrayList<? extends ParameterInterface> params = command.getParameters();
+        if (params.isEmpty())
+            return;
+        if (params.size() != request.parameters.length)
+            throw DbException.throwInternalError("parameters: " + params.size() + " != " + request.parameters.length);
+        for (int i = 0, size = params.size(); i < size; i++)
+            params.get(i).setValue(request.parameters[i], false);
+    }
+
+    private Session getSession(String key, SQLRequest request, boolean isHint) throws SQLException {
+        ConcurrentLinkedQueue<Session> queue = idleSessions.get(key);
+        if (queue != null) {
+            Session session;
+            while ((session = queue.poll()) != null) {
+                if (!session.isClosed())
+                    return session;
+            }
+        }
+        return createSession(request, isHint);
+    }
+
+    private void releaseSession(String key, Session session) {
+        if (session.isClosed())
+            return;
+        ConcurrentLinkedQueue<Session> queue = idleSessions.get(key);
+        if (queue == null) {
+            ConcurrentLinkedQueue<Session> newQueue = new ConcurrentLinkedQueue<>();
+            queue = idleSessions.putIfAbsent(key, newQueue);
+            if (queue == null)
+                queue = newQueue;
+        }
+        queue.offer(session);
+    }
+
+    private static Session createSession(SQLRequest request, boolean isHint) throws SQLException {
+        String baseDir = DatabaseDescriptor.getBaseDir();
+        if (baseDir == null)
+            baseDir = SysProperties.getBaseDir();
+
+        ConnectionInfo ci = new ConnectionInfo(request.url, request.dbName);
+        if (baseDir != null)
+            ci.setBaseDir(baseDir);
+        ci.setUserName(request.userName);
+        ci.setUserPasswordHash(request.userPasswordHash);
+        ci.setFilePasswordHash(request.filePasswordHash);
+        ci.setFileEncryptionKey(request.fileEncryptionKey);
+        ci.readProperties(request.properties);
+
+        Session session;
+        if (isHint)
+            // 重放的hint没有保存用户的凭证，发送端是token环中的节点，用节点内部的身份执行
+            session = DatabaseEngine.getInstance().createInternalSession(ci);
+        else
+            session = (Session) ci.getSessionFactory().createSession(ci);
+        session.setOriginalProperties(request.properties);
+        // 发送端已经按分区算好了目标节点，在这里只执行本地的那一部分
+        session.setLocal(true);
+        return session;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.router;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.lealone.cluster.config.DatabaseDescriptor;
+import org.lealone.cluster.gms.IFailureDetector;
+import org.lealone.cluster.locator.IEndpointSnitch;
+import org.lealone.command.CommandInterface;
+import org.lealone.command.router.CommandParallel;
+import org.lealone.message.DbException;
+import org.lealone.result.ResultInterface;
+import org.lealone.util.New;
+
+import com.yammer.metrics.stats.ExponentiallyDecayingSample;
+
+/**
+ * 单分区读时选副本和推测重试(speculative retry)。
+ * <p>
+ * 延迟都按微秒记录，亚毫秒级的读按毫秒记录的话都是0，snitch就分不出各副本的快慢了。
+ */
+public class SpeculativeRead {
+    // 单分区读的延迟(微秒)，用来计算推测重试的阈值
+    private static final ExponentiallyDecayingSample readLatencies = new ExponentiallyDecayingSample(1028, 0.015);
+    private static final int MIN_SPECULATIVE_RETRY_SAMPLES = 100;
+
+    private SpeculativeRead() {
+    }
+
+    static void addReadLatency(long latency) {
+        readLatencies.update(latency);
+    }
+
+    /**
+     * 按snitch排序，不可用的节点排在最后，不修改传入的列表
+     */
+    public static List<InetAddress> sortByProximity(List<InetAddress> endpoints, IEndpointSnitch snitch,
+            IFailureDetector failureDetector, InetAddress localEndpoint) {
+        List<InetAddress> alive = New.arrayList(endpoints.size());
+        List<InetAddress> dead = null;
+        for (InetAddress endpoint : endpoints) {
+            if (failureDetector.isAlive(endpoint)) {
+                alive.add(endpoint);
+            } else {
+                if (dead == null)
+                    dead = New.arrayList();
+                dead.add(endpoint);
+            }
+        }
+        if (alive.size() > 1)
+            snitch.sortByProximity(localEndpoint, alive);
+        if (dead != null)
+            alive.addAll(dead);
+        return alive;
+    }
+
+    /**
+     * 读某个副本的方式，测试时可以不依赖FrontendSession和MessagingService
+     */
+    public interface ReplicaReader {
+        /**
+         * 在调用者线程中执行，因为Session不是线程安全的
+         */
+        CommandInterface createCommand(InetAddress endpoint) throws Exception;
+
+        /**
+         * @param latency 微秒
+         */
+        void addLatency(InetAddress endpoint, long latency);
+    }
+
+    /**
+     * 在最近的副本上执行单分区读，并把响应时间告诉snitch。
+     * 配置了speculative_retry_percentile时，如果第一个副本在阈值内没有返回，
+     * 才创建第二个副本的命令并把同样的查询发给它，哪个先返回就用哪个的结果，另一个结果集在返回后关闭。
+     *
+     * @param threshold 推测重试的阈值(微秒)，小于等于0时不重试
+     */
+    public static ResultInterface executeReadQuery(ReplicaReader reader, List<InetAddress> endpoints, int maxRows,
+            boolean scrollable, long threshold) throws Exception {
+        if (endpoints.size() == 1 || threshold <= 0) {
+            return new ReadTask(reader, endpoints.get(0), maxRows, scrollable, null).executeQuery();
+        }
+
+        LinkedBlockingQueue<ReadTask> completed = new LinkedBlockingQueue<>();
+        ReadTask first = new ReadTask(reader, endpoints.get(0), maxRows, scrollable, completed);
+        try {
+            CommandParallel.getExecutor().execute(first);
+        } catch (RejectedExecutionException e) {
+            first.run();
+        }
+        ReadTask done = completed.poll(threshold, TimeUnit.MICROSECONDS);
+        // 超时或者第一个副本已经失败了，都向第二个副本发查询
+        if (done == null || done.isFailed()) {
+            ReadTask second = new ReadTask(reader, endpoints.get(1), maxRows, scrollable, completed);
+            try {
+                CommandParallel.getExecutor().execute(second);
+            } catch (RejectedExecutionException e) {
+                second.run();
+            }
+            if (done == null) {
+                done = completed.take();
+                // 先返回的那个失败了，等另一个
+                if (done.isFailed())
+                    done = completed.take();
+                (done == first ? second : first).abandon();
+            } else {
+                done = completed.take();
+            }
+        }
+        return done.getResult();
+    }
+
+    static long getSpeculativeRetryThreshold() {
+        double percentile = DatabaseDescriptor.getSpeculativeRetryPercentile();
+        if (percentile <= 0 || readLatencies.size() < MIN_SPECULATIVE_RETRY_SAMPLES)
+            return 0;
+        return Math.max(1, (long) readLatencies.getSnapshot().getValue(percentile));
+    }
+
+    private static class ReadTask extends FutureTask<ResultInterface> {
+        private final Queue<ReadTask> completed;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean abandoned;
+
+        ReadTask(ReplicaReader reader, InetAddress endpoint, int maxRows, boolean scrollable,
+                Queue<ReadTask> completed) throws Exception {
+            super(new ReadCallable(reader, endpoint, reader.createCommand(endpoint), maxRows, scrollable));
+            this.completed = completed;
+        }
+
+        ResultInterface executeQuery() throws Exception {
+            run();
+            return getResult();
+        }
+
+        ResultInterface getResult() throws Exception {
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                throw DbException.convert(e.getCause());
+            }
+        }
+
+        boolean isFailed() {
+            try {
+                get();
+                return false;
+            } catch (Exception e) {
+                return true;
+            }
+        }
+
+        // 没被选中的结果集要关闭
+        void abandon() {
+            abandoned = true;
+            if (isDone())
+                close();
+        }
+
+        private void close() {
+            if (closed.compareAndSet(false, true) && !isFailed()) {
+                try {
+                    get().close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (completed != null)
+                completed.add(this);
+            if (abandoned)
+                close();
+        }
+    }
+
+    private static class ReadCallable implements Callable<ResultInterface> {
+        private final ReplicaReader reader;
+        private final InetAddress endpoint;
+        private final CommandInterface command;
+        private final int maxRows;
+        private final boolean scrollable;
+
+        ReadCallable(ReplicaReader reader, InetAddress endpoint, CommandInterface command, int maxRows,
+                boolean scrollable) {
+            this.reader = reader;
+            this.endpoint = endpoint;
+            this.command = command;
+            this.maxRows = maxRows;
+            this.scrollable = scrollable;
+        }
+
+        @Override
+        public ResultInterface call() throws Exception {
+            long start = System.nanoTime();
+            ResultInterface result = command.executeQuery(maxRows, scrollable);
+            reader.addLatency(endpoint, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            return result;
+        }
+    }
+}
@@ -64,6 +64,7 @@ import org.lealone.cluster.locator.IEndpointSnitch;
 import org.lealone.cluster.locator.TokenMetaData;
 import org.lealone.cluster.net.MessagingService;
 import org.lealone.cluster.net.ResponseVerbHandler;
+import org.lealone.cluster.router.SQLVerbHandler;
 import org.lealone.cluster.utils.BackgroundActivityMonitor;
 import org.lealone.cluster.utils.FileUtils;
 import org.lealone.cluster.utils.Pair;
@@ -146,6 +147,10 @@ public class StorageService implements IEndpointStateChangeSubscriber {
                 new GossipDigestAck2VerbHandler());
         MessagingService.instance().registerVerbHandlers(MessagingService.Verb.ECHO, //
                 new EchoVerbHandler());
+        SQLVerbHandler sqlVerbHandler = new SQLVerbHandler();
+        MessagingService.instance().registerVerbHandlers(MessagingService.Verb.SQL_QUERY, sqlVerbHandler);
+        MessagingService.instance().registerVerbHandlers(MessagingService.Verb.SQL_UPDATE, sqlVerbHandler);
+        MessagingService.instance().registerVerbHandlers(MessagingService.Verb.SQL_HINT, sqlVerbHandler);
     }
 
     public synchronized void start() throws ConfigurationException {
@@ -1180,6 +1185,18 @@ public class StorageService implements IEndpointStateChangeSubscriber {
         return Keyspace.getReplicationStrategy(schema).getNaturalEndpoints(pos);
     }
 
+    /**
+     * This method returns the natural endpoints plus the pending endpoints for the token,
+     * without duplicates. The returned list is shared and must not be modified.
+     *
+     * @param schema the schema
+     * @param token the token of the key to write
+     * @return the endpoints the write should be sent to
+     */
+    public List<InetAddress> getWriteEndpoints(Schema schema, Token token) {
+        return Keyspace.getReplicationStrategy(schema).getWriteEndpoints(token);
+    }
+
     /**
      * This method attempts to return N endpoints that are responsible for storing the
      * specified key i.e for replication.
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.compress;
+
+import org.lealone.api.ErrorCode;
+import org.lealone.message.DbException;
+
+/**
+ * LZ4 block格式的压缩算法，压缩率和LZF差不多，但是解压更快。
+ *
+ * 压缩后的数据由多个序列组成，每个序列是:
+ * token(高4位是字面量的长度，低4位是匹配长度减4)
+ * 字面量长度超过14时的扩展字节(每个255，直到最后一个小于255)
+ * 字面量
+ * 匹配位置与当前位置的距离(2个字节，little-endian)
+ * 匹配长度超过18时的扩展字节
+ *
+ * 最后一个序列只有字面量，并且输入的最后5个字节总是字面量。
+ *
+ * 同一个实例只能由一个线程用来压缩，解压没有这个限制。
+ */
+public class CompressLZ4 implements Compressor {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xffff;
+
+    // 最后一个匹配至少要在输入结束前12个字节开始，最后5个字节总是字面量
+    private static final int MF_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+
+    private static final int HASH_LOG = 12;
+    private static final int HASH_SIZE = 1 << HASH_LOG;
+
+    // 连续找不到匹配时逐渐加大步长，不可压缩的数据就能很快跳过
+    private static final int SKIP_TRIGGER = 6;
+
+    /**
+     * 每4个字节的hash最后出现的位置，上一次压缩留下的位置不用清除，因为每个匹配都会再比较一次
+     */
+    private int[] hashTab;
+
+    @Override
+    public int getAlgorithm() {
+        return Compressor.LZ4;
+    }
+
+    @Override
+    public void setOptions(String options) {
+        // nothing to do
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        if (hashTab == null) {
+            hashTab = new int[HASH_SIZE];
+        }
+        int[] tab = hashTab;
+        int op = outPos;
+        int anchor = 0;
+        int matchLimit = inLen - LAST_LITERALS;
+        int limit = inLen - MF_LIMIT;
+        int p = 0;
+        int attempts = 1 << SKIP_TRIGGER;
+        while (p < limit) {
+            int seq = readInt(in, p);
+            int h = hash(seq);
+            int ref = tab[h];
+            tab[h] = p;
+            if (ref >= p || p - ref > MAX_OFFSET || readInt(in, ref) != seq) {
+                p += attempts++ >>> SKIP_TRIGGER;
+                continue;
+            }
+            while (p > anchor && ref > 0 && in[p - 1] == in[ref - 1]) {
+                p--;
+                ref--;
+            }
+            int len = MIN_MATCH;
+            while (p + len < matchLimit && in[p + len] == in[ref + len]) {
+                len++;
+            }
+            op = writeLiterals(in, anchor, p - anchor, len - MIN_MATCH, out, op);
+            int offset = p - ref;
+            out[op++] = (byte) offset;
+            out[op++] = (byte) (offset >>> 8);
+            op = writeLength(out, op, len - MIN_MATCH);
+            p += len;
+            anchor = p;
+            attempts = 1 << SKIP_TRIGGER;
+        }
+        if (inLen > anchor) {
+            op = writeLiterals(in, anchor, inLen - anchor, 0, out, op);
+        }
+        return op;
+    }
+
+    private static int readInt(byte[] in, int p) {
+        return (in[p] << 24) | ((in[p + 1] & 255) << 16) | ((in[p + 2] & 255) << 8) | (in[p + 3] & 255);
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    // 写token和字面量，匹配部分由调用者接着写
+    private static int writeLiterals(byte[] in, int start, int len, int matchLen, byte[] out, int op) {
+        out[op++] = (byte) ((Math.min(len, 15) << 4) | Math.min(matchLen, 15));
+        op = writeLength(out, op, len);
+        System.arraycopy(in, start, out, op, len);
+        return op + len;
+    }
+
+    private static int writeLength(byte[] out, int op, int len) {
+        if (len >= 15) {
+            len -= 15;
+            while (len >= 255) {
+                out[op++] = (byte) 255;
+                len -= 255;
+            }
+            out[op++] = (byte) len;
+        }
+        return op;
+    }
+
+    @Override
+    public void expand(byte[] in, int inPos, int inLen, byte[] out, int outPos, int outLen) {
+        int ip = inPos;
+        int end = inPos + inLen;
+        int op = outPos;
+        while (ip < end) {
+            int token = in[ip++] & 255;
+            int len = token >>> 4;
+            if (len == 15) {
+                int b;
+                do {
+                    b = in[ip++] & 255;
+                    len += b;
+                } while (b == 255);
+            }
+            System.arraycopy(in, ip, out, op, len);
+            ip += len;
+            op += len;
+            if (ip >= end) {
+                // 最后一个序列没有匹配部分
+                break;
+            }
+            int offset = (in[ip++] & 255) | ((in[ip++] & 255) << 8);
+            len = token & 15;
+            if (len == 15) {
+                int b;
+                do {
+                    b = in[ip++] & 255;
+                    len += b;
+                } while (b == 255);
+            }
+            len += MIN_MATCH;
+            int ref = op - offset;
+            if (offset >= len) {
+                System.arraycopy(out, ref, out, op, len);
+                op += len;
+            } else {
+                // 匹配部分和它正在生成的字节有重叠，只能一个一个复制
+                for (int i = 0; i < len; i++) {
+                    out[op++] = out[ref++];
+                }
+            }
+        }
+        if (op != outPos + outLen) {
+            throw DbException.get(ErrorCode.COMPRESSION_ERROR);
+        }
+    }
+}
@@ -32,7 +32,7 @@ public class ConnectionInfo implements Cloneable {
 
         String[] connectionSettings = { "CIPHER", "CREATE", "CACHE_TYPE", "IGNORE_UNKNOWN_SETTINGS", "IFEXISTS",
                 "INIT", "PASSWORD", "RECOVER", "RECOVER_TEST", "USER", "OPEN_NEW", "PAGE_SIZE", "PASSWORD_HASH",
-                "IS_LOCAL", "TOKEN" };
+                "IS_LOCAL", "TOKEN", "MULTIPLEXED" };
 
         for (String key : connectionSettings) {
             if (SysProperties.CHECK && KNOWN_SETTINGS.contains(key)) {
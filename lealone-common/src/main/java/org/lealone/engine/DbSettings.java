@@ -310,6 +310,53 @@ public class DbSettings extends SettingsBase {
      */
     public final boolean compressData = get("COMPRESS", false);
 
+    /**
+     * Database setting <code>COMPRESS_ALGORITHM</code>
+     * (default: LZF).<br />
+     * The algorithm used if data is compressed: LZF, DEFLATE or LZ4.
+     */
+    public final String compressAlgorithm = get("COMPRESS_ALGORITHM", "LZF");
+
+    /**
+     * Database setting <code>ADAPTIVE_COMPRESSION</code>
+     * (default: false).<br />
+     * Pause compressing the pages of a table or index while they do not
+     * compress well.
+     */
+    public final boolean adaptiveCompression = get("ADAPTIVE_COMPRESSION", false);
+
+    /**
+     * Database setting <code>COMPRESS_LOB_DATA</code>
+     * (default: false).<br />
+     * Compress the blocks of large objects with LZ4, even if the other data is
+     * not compressed.
+     */
+    public final boolean compressLobData = get("COMPRESS_LOB_DATA", false);
+
+    /**
+     * Database setting <code>CONCURRENT_WRITES</code>
+     * (default: false).<br />
+     * Let writers of the same table install their changes with a
+     * compare-and-swap on the root page instead of locking the whole map.
+     */
+    public final boolean concurrentWrites = get("CONCURRENT_WRITES", false);
+
+    /**
+     * Database setting <code>LAZY_PAGE_DECODING</code>
+     * (default: false).<br />
+     * Store the offset of every row in the pages, so that a page read from
+     * disk only decodes the rows that are accessed.
+     */
+    public final boolean lazyPageDecoding = get("LAZY_PAGE_DECODING", false);
+
+    /**
+     * Database setting <code>COMPACT_PAGE_KEYS</code>
+     * (default: false).<br />
+     * Store only the difference between consecutive row keys, and the prefix
+     * shared by the index keys of a page only once.
+     */
+    public final boolean compactPageKeys = get("COMPACT_PAGE_KEYS", false);
+
     /**
      * Get the setting for the given key.
      *
@@ -122,6 +122,81 @@ public class SysProperties {
      */
     public static final String CLIENT_TRACE_DIRECTORY = getProperty("client.trace.directory", "trace.db/");
 
+    /**
+     * System property <code>client.multiplexed</code> (default: false).<br />
+     * If enabled, remote sessions to the same server share one socket, unless
+     * the MULTIPLEXED connection setting says otherwise.
+     */
+    public static final boolean CLIENT_MULTIPLEXED = getProperty("client.multiplexed", false);
+
+    /**
+     * System property <code>client.command.cache.size</code> (default: 16).<br />
+     * The number of prepared commands a node keeps for each remote session it
+     * uses to run sub-queries. Repeated sub-queries are then executed by id
+     * with only the parameters transferred. Use 0 to disable the cache.
+     */
+    public static final int CLIENT_COMMAND_CACHE_SIZE = getProperty("client.command.cache.size", 16);
+
+    /**
+     * System property <code>distributed.scan.parallel</code>
+     * (default: true).<br />
+     * Run the sub-queries of a distributed query without GROUP BY and ORDER BY
+     * on all nodes at the same time and return the rows in the order they
+     * arrive. If disabled, the nodes are queried one after another.
+     */
+    public static final boolean DISTRIBUTED_SCAN_PARALLEL = getProperty("distributed.scan.parallel", true);
+
+    /**
+     * System property <code>frontend.session.pool.min.size</code>
+     * (default: 1).<br />
+     * The number of sessions a node keeps open to each other node, even when
+     * they are idle. They are also opened in advance when a node joins.
+     */
+    public static final int FRONTEND_SESSION_POOL_MIN_SIZE = getProperty("frontend.session.pool.min.size", 1);
+
+    /**
+     * System property <code>frontend.session.pool.max.size</code>
+     * (default: 64).<br />
+     * The maximum number of sessions a node may use at the same time to access
+     * another node. Further requests wait until a session is returned.
+     */
+    public static final int FRONTEND_SESSION_POOL_MAX_SIZE = getProperty("frontend.session.pool.max.size", 64);
+
+    /**
+     * System property <code>frontend.session.pool.wait.timeout</code>
+     * (default: 10000).<br />
+     * The maximum time in milliseconds to wait for a free session to another
+     * node before the request fails.
+     */
+    public static final int FRONTEND_SESSION_POOL_WAIT_TIMEOUT = getProperty("frontend.session.pool.wait.timeout",
+            10000);
+
+    /**
+     * System property <code>frontend.session.pool.idle.timeout</code>
+     * (default: 60000).<br />
+     * Sessions to other nodes that were not used for this number of
+     * milliseconds are closed, as long as more than the minimum are open.
+     */
+    public static final int FRONTEND_SESSION_POOL_IDLE_TIMEOUT = getProperty("frontend.session.pool.idle.timeout",
+            60000);
+
+    /**
+     * System property <code>command.parallel.max.threads</code>
+     * (default: the number of processors * 4).<br />
+     * The maximum number of threads used to execute distributed commands in
+     * parallel.
+     */
+    public static final int COMMAND_PARALLEL_MAX_THREADS = getProperty("command.parallel.max.threads", Runtime
+            .getRuntime().availableProcessors() * 4);
+
+    /**
+     * System property <code>command.parallel.max.queued</code>
+     * (default: 1024).<br />
+     * The maximum number of parallel commands waiting for a thread. When the
+     * limit is reached, the calling thread executes the commands itself.
+     */
+    public static final int COMMAND_PARALLEL_MAX_QUEUED = getProperty("command.parallel.max.queued", 1024);
+
     /**
      * System property <code>collator.cache.size</code> (default: 32000).<br />
      * The cache size for collation keys (in elements). Used when a collator has
@@ -314,6 +389,30 @@ public class SysProperties {
      */
     public static final boolean TRACE_IO = getProperty("trace.io", false);
 
+    /**
+     * System property <code>transaction.group.commit</code>
+     * (default: false).<br />
+     * If enabled, a commit waits until its changes are persisted, and the
+     * changes of many concurrent commits are persisted by one store and sync.
+     */
+    public static final boolean TRANSACTION_GROUP_COMMIT = getProperty("transaction.group.commit", false);
+
+    /**
+     * System property <code>transaction.group.commit.max.delay</code>
+     * (default: 1).<br />
+     * The maximum time in milliseconds the group commit waits for more
+     * commits before persisting a batch.
+     */
+    public static final int TRANSACTION_GROUP_COMMIT_MAX_DELAY = getProperty("transaction.group.commit.max.delay", 1);
+
+    /**
+     * System property <code>transaction.group.commit.max.batch.size</code>
+     * (default: 1024).<br />
+     * The maximum number of commits persisted by one store and sync.
+     */
+    public static final int TRANSACTION_GROUP_COMMIT_MAX_BATCH_SIZE = getProperty(
+            "transaction.group.commit.max.batch.size", 1024);
+
     /**
      * System property <code>url.map</code> (default: null).<br />
      * A properties file that contains a mapping between database URLs. New
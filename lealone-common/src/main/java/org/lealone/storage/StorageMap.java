@@ -34,9 +34,44 @@ public interface StorageMap<K, V> {
         <K, V> StorageMap<K, V> openMap(String name, DataType keyType, DataType valueType);
 
         String getMapName(int id);
+
+        /**
+         * 把所有map中的修改持久化到存储设备
+         */
+        void sync();
+
+        /**
+         * 注册一个监听器，存储层每次把内存中的修改写到存储设备前后都会调用它
+         */
+        void addStoreListener(StoreListener listener);
+    }
+
+    /**
+     * 存储层把内存中的修改写到存储设备时的回调
+     */
+    public interface StoreListener {
+        /**
+         * 写之前调用，这时写进map的数据会和这次的修改一起持久化
+         */
+        void beforeStore();
+
+        /**
+         * 写完之后调用，写失败时也会调用
+         */
+        void afterStore();
     }
 
     public abstract class BuilderBase implements Builder {
+        @Override
+        public void sync() {
+            // 内存中的map不需要持久化
+        }
+
+        @Override
+        public void addStoreListener(StoreListener listener) {
+            // 内存中的map从不写到存储设备
+        }
+
         @Override
         public <K, V> StorageMap<K, V> openMap(String name) {
             return openMap(name, null);
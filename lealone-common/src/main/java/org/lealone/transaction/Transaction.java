@@ -17,6 +17,8 @@
  */
 package org.lealone.transaction;
 
+import java.util.List;
+
 import org.lealone.type.DataType;
 
 public interface Transaction {
@@ -120,5 +122,13 @@ public interface Transaction {
 
     interface Validator {
         boolean validateTransaction(String localTransactionName);
+
+        /**
+         * 验证多个本地事务，同一个节点上的本地事务只需要一次网络往返
+         *
+         * @param localTransactionNames 本地事务名列表
+         * @return 所有本地事务都有效时返回true
+         */
+        boolean validateTransactions(List<String> localTransactionNames);
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.type;
+
+/**
+ * 键可以用long表示的数据类型。
+ *
+ * MVStore按紧凑格式写page时，如果一页的键都能转成long并且严格递增(比如主键索引的row id)，
+ * 就只写第一个键和相邻两个键的差值。
+ */
+public interface LongKeyType {
+
+    /**
+     * 键能否用long表示
+     *
+     * @param key 键
+     * @return 能用long表示时返回true
+     */
+    boolean isLongKey(Object key);
+
+    /**
+     * 把键转成long，只对isLongKey返回true的键调用
+     *
+     * @param key 键
+     * @return 键的long值
+     */
+    long getLong(Object key);
+
+    /**
+     * 用long值还原键
+     *
+     * @param value 键的long值
+     * @return 键
+     */
+    Object createLongKey(long value);
+}
@@ -25,7 +25,7 @@ import org.lealone.util.New;
  * A data type implementation for the most common data types, including
  * serializable objects.
  */
-public class ObjectDataType implements DataType {
+public class ObjectDataType implements DataType, LongKeyType {
 
     /**
      * The type constants are also used as tag values.
@@ -125,6 +125,21 @@ public class ObjectDataType implements DataType {
         last.write(buff, obj);
     }
 
+    @Override
+    public boolean isLongKey(Object key) {
+        return key instanceof Long;
+    }
+
+    @Override
+    public long getLong(Object key) {
+        return (Long) key;
+    }
+
+    @Override
+    public Object createLongKey(long value) {
+        return value;
+    }
+
     private AutoDetectDataType newType(int typeId) {
         switch (typeId) {
         case TYPE_NULL:
@@ -123,6 +123,23 @@ public class DataUtils {
      */
     public static final int PAGE_COMPRESSED_HIGH = 2 + 4;
 
+    /**
+     * The bit mask for pages compressed with LZ4.
+     */
+    public static final int PAGE_COMPRESSED_LZ4 = 2 + 32;
+
+    /**
+     * The bit mask for pages that store the length of every key and value, so
+     * that a single entry can be decoded without the others.
+     */
+    public static final int PAGE_ENTRY_OFFSETS = 8;
+
+    /**
+     * The bit mask for pages whose keys start with the encoding used for them,
+     * such as a common prefix or the difference to the previous key.
+     */
+    public static final int PAGE_COMPACT_KEYS = 16;
+
     /**
      * The maximum length of a variable size int.
      */
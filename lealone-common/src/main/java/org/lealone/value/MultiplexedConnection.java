@@ -0,0 +1,429 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.value;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在一个物理连接上复用多个逻辑连接(stream)
+ * <p>
+ * 物理连接上传输的是帧: [streamId(int), length(int), data]，length为-1时表示关闭这个stream，
+ * length为-2时后面跟一个int，表示对方又读走了多少字节(窗口更新)。
+ * 每个stream对外表现为一个VirtualSocket，所以Transfer、FrontendSession和TcpServerThread
+ * 不需要知道自己是否运行在复用的连接上，原有的协议不变。
+ * <p>
+ * 不同stream的请求和响应可以交错传输，响应不需要按请求的顺序返回，
+ * 集群中一个节点到另一个节点的多个FrontendSession因此可以共用一个socket并发执行子查询。
+ * 同一个stream上的请求仍然按顺序处理，因为服务器端的一个Session本来就只能按顺序执行命令。
+ * <p>
+ * 每个stream有一个STREAM_WINDOW字节的接收窗口，发送方发出的数据中还没被对方读走的部分不能超过这个窗口，
+ * 窗口用完时写的线程阻塞，直到对方读走一半窗口的数据后发回窗口更新。
+ * 所以每个stream缓冲的数据是有上限的，读帧的线程把数据放进stream时也永远不需要等待，
+ * 一个stream的读者很慢时只会挡住这个stream的写者，不会挡住物理连接上的其他stream。
+ */
+public class MultiplexedConnection {
+
+    /**
+     * 客户端在物理连接上发送的第一个int，用来代替minClientVersion，
+     * 服务器端看到它后就把这个连接当成复用连接
+     */
+    public static final int MAGIC = 0x4c4d5558; // "LMUX"
+
+    /**
+     * 每个stream的接收窗口(字节)
+     */
+    public static final int STREAM_WINDOW = 256 * 1024;
+
+    private static final int CLOSE_STREAM = -1;
+    private static final int WINDOW_UPDATE = -2;
+
+    /**
+     * 服务器端收到一个新的stream的第一帧时调用
+     */
+    public interface StreamListener {
+        void streamOpened(VirtualSocket socket);
+    }
+
+    private final Transfer transfer;
+    private final Socket socket;
+    private final StreamListener listener;
+    private final ConcurrentHashMap<Integer, VirtualSocket> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger();
+    // 服务器端见过的最大的streamId，客户端按streamId递增的顺序发出打开帧，不大于它的未知stream是已经关闭了的
+    private int lastStreamId;
+    private volatile boolean closed;
+
+    /**
+     * @param transfer 已经初始化的物理连接
+     * @param listener 服务器端用来接收新的stream，客户端为null
+     */
+    public MultiplexedConnection(Transfer transfer, StreamListener listener) {
+        this.transfer = transfer;
+        this.socket = transfer.getSocket();
+        this.listener = listener;
+    }
+
+    /**
+     * 客户端打开一个新的stream，并立刻发出一个空的打开帧。
+     * 分配streamId和发打开帧在同一个锁中，这样服务器端收到的新stream的streamId一定是递增的，
+     * 否则多个线程同时打开stream时，先分配的streamId可能后到，会被服务器端当成已经关闭的stream丢掉。
+     */
+    public VirtualSocket openStream() throws IOException {
+        if (closed)
+            throw new EOFException("multiplexed connection closed");
+        synchronized (transfer) {
+            VirtualSocket s = new VirtualSocket(nextStreamId.incrementAndGet());
+            streams.put(s.streamId, s);
+            try {
+                writeFrame(s.streamId, null, 0, 0);
+            } catch (IOException e) {
+                streams.remove(s.streamId);
+                throw e;
+            }
+            return s;
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * 读一帧并把数据交给对应的stream，不会因为某个stream没有被读而阻塞，
+     * 物理连接断开或者对方没有遵守窗口时抛出IOException
+     */
+    public void readFrame() throws IOException {
+        int streamId = transfer.readInt();
+        int length = transfer.readInt();
+        if (length == WINDOW_UPDATE) {
+            int increment = transfer.readInt();
+            VirtualSocket s = streams.get(streamId);
+            if (s != null)
+                s.out.addWindow(increment);
+            return;
+        }
+        if (length == CLOSE_STREAM) {
+            VirtualSocket s = streams.remove(streamId);
+            if (s != null)
+                s.peerClosed();
+            return;
+        }
+        if (length < 0 || length > STREAM_WINDOW)
+            throw new IOException("invalid frame length: " + length);
+        byte[] data = new byte[length];
+        transfer.readBytes(data, 0, length);
+        VirtualSocket s = streams.get(streamId);
+        if (s == null) {
+            // 客户端已经关闭了这个stream，丢掉迟到的响应；服务器端已经关闭了这个stream，丢掉迟到的请求
+            if (listener == null || streamId <= lastStreamId)
+                return;
+            lastStreamId = streamId;
+            s = new VirtualSocket(streamId);
+            streams.put(streamId, s);
+            if (length > 0)
+                s.in.receive(data);
+            listener.streamOpened(s);
+        } else if (length > 0) {
+            s.in.receive(data);
+            s.fireReceived();
+        }
+    }
+
+    /**
+     * 关闭物理连接，所有的stream都会读到EOF，等待窗口的写者会抛出EOFException
+     */
+    public void close() {
+        closed = true;
+        transfer.close();
+        for (VirtualSocket s : streams.values())
+            s.peerClosed();
+        streams.clear();
+    }
+
+    private void writeFrame(int streamId, byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new EOFException("multiplexed connection closed");
+        synchronized (transfer) {
+            transfer.writeInt(streamId).writeInt(len);
+            if (len > 0)
+                transfer.writeBytes(b, off, len);
+            transfer.flush();
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        if (closed)
+            throw new EOFException("multiplexed connection closed");
+        synchronized (transfer) {
+            transfer.writeInt(streamId).writeInt(WINDOW_UPDATE).writeInt(increment);
+            transfer.flush();
+        }
+    }
+
+    /**
+     * 复用连接上的一个逻辑连接
+     */
+    public class VirtualSocket extends Socket {
+
+        private final int streamId;
+        private final StreamInputStream in = new StreamInputStream(this);
+        private final StreamOutputStream out = new StreamOutputStream(this);
+        private volatile boolean socketClosed;
+        private volatile Runnable receiveListener;
+
+        VirtualSocket(int streamId) {
+            this.streamId = streamId;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return socket.getInetAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return socket.getPort();
+        }
+
+        /**
+         * 设置收到数据或者EOF时的回调，在读帧的线程中调用，不能阻塞。
+         * 服务器端的NIO模式用它把stream交给工作线程池，而不是为每个stream启动一个线程。
+         */
+        public void setReceiveListener(Runnable listener) {
+            receiveListener = listener;
+        }
+
+        /**
+         * 对方已经关闭了这个stream(或者物理连接已经断开)，并且收到的数据都已经读完
+         */
+        public boolean isEndOfStream() {
+            return in.isEndOfStream();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (socketClosed)
+                return;
+            socketClosed = true;
+            if (streams.remove(streamId) != null) {
+                try {
+                    writeFrame(streamId, null, 0, CLOSE_STREAM);
+                } catch (IOException e) {
+                    // 物理连接已经断开了，对方也会关闭这个stream
+                }
+            }
+            out.closeWindow();
+            in.receiveEOF();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return socketClosed || closed;
+        }
+
+        @Override
+        public String toString() {
+            return "VirtualSocket[stream=" + streamId + "," + socket + "]";
+        }
+
+        void peerClosed() {
+            // 先关闭窗口，读到EOF的线程再写时一定会失败
+            out.closeWindow();
+            in.receiveEOF();
+            fireReceived();
+        }
+
+        void fireReceived() {
+            Runnable listener = receiveListener;
+            if (listener != null)
+                listener.run();
+        }
+    }
+
+    /**
+     * 数据由readFrame()放进队列，读的线程在队列为空时阻塞。
+     * 队列中的字节数不会超过STREAM_WINDOW，读走一半窗口的数据后给对方发窗口更新。
+     */
+    private class StreamInputStream extends InputStream {
+
+        private final VirtualSocket socket;
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        // 已经收到但还没被读走的字节数
+        private int queued;
+        // 已经读走但还没通知对方的字节数
+        private int consumed;
+        private boolean eof;
+        private byte[] current;
+        private int pos;
+
+        StreamInputStream(VirtualSocket socket) {
+            this.socket = socket;
+        }
+
+        synchronized void receive(byte[] data) throws IOException {
+            if (eof)
+                return;
+            if (queued + data.length > STREAM_WINDOW)
+                throw new IOException("stream window exceeded, stream=" + socket.streamId);
+            queued += data.length;
+            queue.add(data);
+            notifyAll();
+        }
+
+        synchronized void receiveEOF() {
+            eof = true;
+            notifyAll();
+        }
+
+        synchronized boolean isEndOfStream() {
+            return eof && queued == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            int n;
+            int increment = 0;
+            synchronized (this) {
+                while (current == null || pos == current.length) {
+                    current = queue.poll();
+                    pos = 0;
+                    if (current == null) {
+                        if (eof)
+                            return -1;
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                }
+                n = Math.min(len, current.length - pos);
+                System.arraycopy(current, pos, b, off, n);
+                pos += n;
+                queued -= n;
+                consumed += n;
+                if (consumed >= STREAM_WINDOW / 2 && !eof) {
+                    increment = consumed;
+                    consumed = 0;
+                }
+            }
+            if (increment > 0) {
+                try {
+                    writeWindowUpdate(socket.streamId, increment);
+                } catch (IOException e) {
+                    // 物理连接已经断开了，之后会读到EOF
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return queued;
+        }
+    }
+
+    /**
+     * Transfer用BufferedOutputStream包装了这个流，所以每次write一般都是一个完整的缓冲区，
+     * 对方的窗口足够时直接作为一帧发送，否则按窗口分成多帧，窗口用完时阻塞
+     */
+    private class StreamOutputStream extends OutputStream {
+
+        private final VirtualSocket socket;
+        // 对方还能接收的字节数
+        private int window = STREAM_WINDOW;
+        private boolean windowClosed;
+
+        StreamOutputStream(VirtualSocket socket) {
+            this.socket = socket;
+        }
+
+        synchronized void addWindow(int increment) {
+            window += increment;
+            notifyAll();
+        }
+
+        synchronized void closeWindow() {
+            windowClosed = true;
+            notifyAll();
+        }
+
+        private synchronized int acquire(int len) throws IOException {
+            while (window <= 0 && !windowClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (windowClosed)
+                throw new EOFException("stream closed");
+            int n = Math.min(len, window);
+            window -= n;
+            return n;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (socket.socketClosed)
+                throw new EOFException("stream closed");
+            while (len > 0) {
+                int n = acquire(len);
+                writeFrame(socket.streamId, b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+}
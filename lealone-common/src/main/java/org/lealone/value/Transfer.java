@@ -13,6 +13,7 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
 import java.net.InetAddress;
@@ -73,6 +74,21 @@ public class Transfer {
         }
     }
 
+    /**
+     * Initialize the transfer object with the given streams instead of the
+     * socket streams, for example streams backed by a non-blocking channel.
+     * The input stream is not wrapped in another buffer, so it should already
+     * be buffered in memory and its position stays exactly at the end of the
+     * data read so far.
+     *
+     * @param in the input stream
+     * @param out the output stream
+     */
+    public synchronized void init(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(in);
+        this.out = new DataOutputStream(new BufferedOutputStream(out, Transfer.BUFFER_SIZE));
+    }
+
     public int available() throws IOException {
         if (in != null)
             return in.available();
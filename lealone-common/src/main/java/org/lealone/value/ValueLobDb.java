@@ -655,4 +655,23 @@ public class ValueLobDb extends Value implements Value.ValueClob, Value.ValueBlo
         return new ValueLobDb(type, small, precision);
     }
 
+    /**
+     * Copy a LOB that is stored in the LOB storage of this database into a LOB
+     * that fits in memory. Only the LOB id of a stored LOB is transferred, and
+     * another node can not read it using that id.
+     *
+     * @param v the value
+     * @return the value itself if it is not a stored LOB, otherwise the copy
+     */
+    public static Value copyToSmallLob(Value v) {
+        if (!(v instanceof ValueLobDb) || !((ValueLobDb) v).isStored())
+            return v;
+        byte[] small;
+        if (v.getType() == Value.CLOB)
+            small = v.getString().getBytes(Constants.UTF8);
+        else
+            small = v.getBytesNoCopy();
+        return createSmallLob(v.getType(), small, v.getPrecision());
+    }
+
 }
@@ -17,21 +17,29 @@
  */
 package org.lealone.dbobject.index;
 
+import java.util.ArrayList;
+
 import org.lealone.command.Prepared;
 import org.lealone.dbobject.table.Column;
 import org.lealone.dbobject.table.IndexColumn;
 import org.lealone.dbobject.table.MVTable;
 import org.lealone.dbobject.table.TableFilter;
 import org.lealone.engine.Session;
+import org.lealone.expression.Parameter;
 import org.lealone.result.ResultInterface;
 import org.lealone.result.Row;
 import org.lealone.result.SearchRow;
 import org.lealone.result.SortOrder;
+import org.lealone.util.New;
 import org.lealone.util.StatementBuilder;
 import org.lealone.value.Value;
+import org.lealone.value.ValueLong;
+import org.lealone.value.ValueNull;
 
 public class GlobalUniqueIndex extends IndexBase {
 
+    private String insertSQL;
+
     public GlobalUniqueIndex(Session session, MVTable table, int id, String indexName, IndexColumn[] columns,
             IndexType indexType) {
         initIndexBase(table, id, indexName, columns, indexType);
@@ -69,53 +77,48 @@ public class GlobalUniqueIndex extends IndexBase {
 
     @Override
     public void add(Session session, Row row) {
-        StatementBuilder sql = new StatementBuilder("insert into ");
-        sql.append(getName()).append("(_gui_row_id_");
-
-        for (Column c : getColumns()) {
-            sql.append(",");
-            sql.append(c.getName());
-        }
-
-        sql.append(") values (");
-        sql.append(row.getKey());
-
-        for (Column c : getColumns()) {
-            sql.append(",");
-            Value v = row.getValue(c.getColumnId());
-            if (v == null) {
-                sql.append("DEFAULT");
-            } else {
-                sql.append(v.getSQL());
+        if (insertSQL == null) {
+            StatementBuilder sql = new StatementBuilder("insert into ");
+            sql.append(getName()).append("(_gui_row_id_");
+            for (Column c : getColumns()) {
+                sql.append(",");
+                sql.append(c.getName());
+            }
+            sql.append(") values (?");
+            for (int i = 0, size = getColumns().length; i < size; i++) {
+                sql.append(",?");
             }
+            sql.append(")");
+            insertSQL = sql.toString();
         }
-        sql.append(")");
 
-        Prepared prepared = session.prepare(sql.toString(), true);
-        prepared.setLocal(false);
-        prepared.update();
+        Column[] columns = getColumns();
+        Value[] values = new Value[columns.length + 1];
+        values[0] = ValueLong.get(row.getKey());
+        for (int i = 0; i < columns.length; i++) {
+            Value v = row.getValue(columns[i].getColumnId());
+            values[i + 1] = v == null ? ValueNull.INSTANCE : v;
+        }
+        update(session, insertSQL, values);
     }
 
     @Override
     public void remove(Session session, Row row) {
         StatementBuilder sql = new StatementBuilder("delete from ");
         sql.append(getName());
+        ArrayList<Value> values = New.arrayList();
         if (row != null) {
             sql.append(" where ");
 
             for (Column c : getColumns()) {
                 sql.appendExceptFirst(" and ");
-                sql.append(c.getName()).append("=");
+                sql.append(c.getName()).append("=?");
                 Value v = row.getValue(c.getColumnId());
-                if (v != null) {
-                    sql.append(v.getSQL());
-                }
+                values.add(v == null ? ValueNull.INSTANCE : v);
             }
         }
 
-        Prepared prepared = session.prepare(sql.toString(), true);
-        prepared.setLocal(false);
-        prepared.update();
+        update(session, sql.toString(), values.toArray(new Value[values.size()]));
     }
 
     @Override
@@ -131,36 +134,65 @@ public class GlobalUniqueIndex extends IndexBase {
         }
         sql.append(" from ").append(getName());
 
-        if (first != null || last != null) {
-            sql.append(" where ");
-
-            for (Column c : getColumns()) {
-                sql.appendExceptFirst(" and ");
-                if (first != null) {
-                    sql.append(c.getName()).append(">=");
-                    Value v = first.getValue(c.getColumnId());
-                    if (v != null) {
-                        sql.append(v.getSQL());
-                    }
-                }
-                if (last != null) {
-                    sql.append(c.getName()).append("<=");
-                    Value v = last.getValue(c.getColumnId());
-                    if (v != null) {
-                        sql.append(v.getSQL());
-                    }
-                }
+        ArrayList<Value> values = New.arrayList();
+        StatementBuilder where = new StatementBuilder();
+        for (Column c : getColumns()) {
+            Value v = first == null ? null : first.getValue(c.getColumnId());
+            if (v != null) {
+                where.appendExceptFirst(" and ");
+                where.append(c.getName()).append(">=?");
+                values.add(v);
             }
+            v = last == null ? null : last.getValue(c.getColumnId());
+            if (v != null) {
+                where.appendExceptFirst(" and ");
+                where.append(c.getName()).append("<=?");
+                values.add(v);
+            }
+        }
+        if (!values.isEmpty()) {
+            sql.append(" where ").append(where.toString());
         }
 
-        Prepared prepared = session.prepare(sql.toString(), true);
-        prepared.setLocal(false);
-        ResultInterface result = prepared.query(0);
+        ResultInterface result = query(session, sql.toString(), values.toArray(new Value[values.size()]));
         if (bigger)
             result.next();
         return new GlobalUniqueIndexTableCursor(result);
     }
 
+    private static void update(Session session, String sql, Value... values) {
+        Prepared prepared = prepare(session, sql, values);
+        try {
+            prepared.update();
+        } finally {
+            session.releaseCached(prepared);
+        }
+    }
+
+    private static ResultInterface query(Session session, String sql, Value... values) {
+        Prepared prepared = prepare(session, sql, values);
+        try {
+            return prepared.query(0);
+        } finally {
+            session.releaseCached(prepared);
+        }
+    }
+
+    /**
+     * SQL中的值都用参数表示，所以对同一个索引来说SQL是固定的，
+     * 在同一个Session中只需要解析一次，不用每插入一行都重新解析、把值转成SQL字面值。
+     * 执行完后要调用Session.releaseCached归还，执行期间相同的SQL会用另一个语句，参数不会被覆盖。
+     */
+    private static Prepared prepare(Session session, String sql, Value... values) {
+        Prepared prepared = session.prepareCached(sql);
+        ArrayList<Parameter> params = prepared.getParameters();
+        for (int i = 0; i < values.length; i++) {
+            params.get(i).setValue(values[i]);
+        }
+        prepared.setLocal(false);
+        return prepared;
+    }
+
     @Override
     public double getCost(Session session, int[] masks, TableFilter filter, SortOrder sortOrder) {
         return Double.MAX_VALUE;
@@ -236,6 +268,7 @@ public class GlobalUniqueIndex extends IndexBase {
         Prepared prepared = getDatabase().getSystemSession().prepare(sql.toString(), true);
         prepared.setLocal(true);
         prepared.update();
+        insertSQL = null;
     }
 
     private class GlobalUniqueIndexTableCursor implements Cursor {
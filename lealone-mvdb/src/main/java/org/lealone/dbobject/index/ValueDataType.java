@@ -19,6 +19,7 @@ import org.lealone.message.DbException;
 import org.lealone.result.SimpleResultSet;
 import org.lealone.result.SortOrder;
 import org.lealone.type.DataType;
+import org.lealone.type.LongKeyType;
 import org.lealone.type.WriteBuffer;
 import org.lealone.util.DataUtils;
 import org.lealone.value.CompareMode;
@@ -48,7 +49,7 @@ import org.lealone.value.ValueUuid;
 /**
  * A row type.
  */
-public class ValueDataType implements DataType {
+public class ValueDataType implements DataType, LongKeyType {
 
     private static final int INT_0_15 = 32;
     private static final int LONG_0_7 = 48;
@@ -157,6 +158,21 @@ public class ValueDataType implements DataType {
         }
     }
 
+    @Override
+    public boolean isLongKey(Object key) {
+        return key instanceof ValueLong;
+    }
+
+    @Override
+    public long getLong(Object key) {
+        return ((ValueLong) key).getLong();
+    }
+
+    @Override
+    public Object createLongKey(long value) {
+        return ValueLong.get(value);
+    }
+
     @Override
     public Object read(ByteBuffer buff) {
         return readValue(buff);
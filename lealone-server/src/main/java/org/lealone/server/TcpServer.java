@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -28,6 +29,7 @@ import org.lealone.message.DbException;
 import org.lealone.util.JdbcUtils;
 import org.lealone.util.NetUtils;
 import org.lealone.util.New;
+import org.lealone.value.MultiplexedConnection.VirtualSocket;
 
 /**
  * The TCP server implements the native H2 database server protocol.
@@ -56,7 +58,7 @@ public class TcpServer implements Server {
     private boolean portIsSet;
     private boolean trace;
     private boolean ssl;
-    private boolean stop;
+    private volatile boolean stop;
     private ServerSocket serverSocket;
     private final Set<TcpServerThread> running = Collections.synchronizedSet(new HashSet<TcpServerThread>());
     private String baseDir;
@@ -71,6 +73,9 @@ public class TcpServer implements Server {
     private int nextThreadId;
     private String key;
     private String keyDatabase;
+    private boolean nio;
+    private int nioWorkers = Runtime.getRuntime().availableProcessors() * 2;
+    private TcpServerSelector selector;
 
     /**
      * Check if the argument matches the option.
@@ -195,6 +200,10 @@ public class TcpServer implements Server {
                 isDaemon = true;
             } else if (isOption(a, "-ifExists")) {
                 ifExists = true;
+            } else if (isOption(a, "-tcpNioWorkers")) {
+                nioWorkers = Integer.decode(args[++i]);
+            } else if (isOption(a, "-tcpNio")) {
+                nio = true;
             }
         }
     }
@@ -236,13 +245,27 @@ public class TcpServer implements Server {
     @Override
     public synchronized void start() throws SQLException {
         stop = false;
-        try {
-            serverSocket = NetUtils.createServerSocket(listenAddress, port, ssl);
-        } catch (DbException e) {
-            if (!portIsSet) {
-                serverSocket = NetUtils.createServerSocket(0, ssl);
-            } else {
-                throw e;
+        // NIO mode does not support SSL, fall back to one thread per connection
+        if (nio && !ssl) {
+            try {
+                selector = new TcpServerSelector(this, listenAddress, port, nioWorkers, isDaemon);
+            } catch (DbException e) {
+                if (!portIsSet) {
+                    selector = new TcpServerSelector(this, listenAddress, 0, nioWorkers, isDaemon);
+                } else {
+                    throw e;
+                }
+            }
+            serverSocket = selector.getServerSocket();
+        } else {
+            try {
+                serverSocket = NetUtils.createServerSocket(listenAddress, port, ssl);
+            } catch (DbException e) {
+                if (!portIsSet) {
+                    serverSocket = NetUtils.createServerSocket(0, ssl);
+                } else {
+                    throw e;
+                }
             }
         }
         port = serverSocket.getLocalPort();
@@ -256,16 +279,17 @@ public class TcpServer implements Server {
 
     private void listen() {
         listenerThread = Thread.currentThread();
+        if (selector != null) {
+            selector.select();
+            serverSocket = null;
+            stopManagementDb();
+            return;
+        }
         String threadName = listenerThread.getName();
         try {
             while (!stop) {
                 Socket s = serverSocket.accept();
-                TcpServerThread c = createTcpServerThread(s, nextThreadId++);
-                running.add(c);
-                Thread thread = new Thread(c, threadName + " thread");
-                thread.setDaemon(isDaemon);
-                c.setThread(thread);
-                thread.start();
+                startTcpServerThread(s, threadName);
             }
             serverSocket = NetUtils.closeSilently(serverSocket);
         } catch (Exception e) {
@@ -276,10 +300,65 @@ public class TcpServer implements Server {
         stopManagementDb();
     }
 
+    /**
+     * Start a new thread that handles the given connection. The socket may
+     * also be a stream of a multiplexed connection.
+     *
+     * @param s the socket
+     * @param threadName the thread name prefix
+     */
+    void startTcpServerThread(Socket s, String threadName) {
+        TcpServerThread c = createTcpServerThread(s, getNextThreadId());
+        running.add(c);
+        Thread thread = new Thread(c, threadName + " thread");
+        thread.setDaemon(isDaemon);
+        c.setThread(thread);
+        thread.start();
+    }
+
+    /**
+     * Handle a new stream of a multiplexed connection. In NIO mode the stream
+     * is handled by the worker pool of the selector like a connection, so that
+     * idle streams do not use a thread. Otherwise a new thread is started.
+     *
+     * @param s the stream
+     * @param threadName the thread name prefix
+     */
+    void startStream(VirtualSocket s, String threadName) {
+        if (selector == null) {
+            startTcpServerThread(s, threadName);
+            return;
+        }
+        TcpServerThread c = new TcpServerThread(s, new TcpServerSelector.ChannelInputStream(s), s.getOutputStream(),
+                this, getNextThreadId());
+        running.add(c);
+        selector.register(c, s);
+    }
+
+    private synchronized int getNextThreadId() {
+        return nextThreadId++;
+    }
+
     protected TcpServerThread createTcpServerThread(Socket socket, int threadId) {
         return new TcpServerThread(socket, this, threadId);
     }
 
+    /**
+     * Create a connection handler for a channel accepted in NIO mode.
+     *
+     * @param channel the non-blocking socket channel
+     * @return the connection handler
+     */
+    TcpServerThread createTcpServerThread(SocketChannel channel) {
+        TcpServerThread c = new TcpServerThread(channel, this, getNextThreadId());
+        running.add(c);
+        return c;
+    }
+
+    boolean isStopped() {
+        return stop;
+    }
+
     @Override
     public synchronized boolean isRunning(boolean traceError) {
         if (serverSocket == null) {
@@ -316,6 +395,9 @@ public class TcpServer implements Server {
                 }
                 serverSocket = null;
             }
+            if (selector != null) {
+                selector.wakeup();
+            }
             if (listenerThread != null) {
                 try {
                     listenerThread.join(1000);
@@ -328,6 +410,9 @@ public class TcpServer implements Server {
         for (TcpServerThread c : New.arrayList(running)) {
             if (c != null) {
                 c.close();
+                if (c.getThread() == null) {
+                    continue;
+                }
                 try {
                     c.getThread().join(100);
                 } catch (Exception e) {
@@ -364,6 +449,9 @@ public class TcpServer implements Server {
         if (shutdownMode == SHUTDOWN_NORMAL) {
             server.stopManagementDb();
             server.stop = true;
+            if (server.selector != null) {
+                server.selector.wakeup();
+            }
             try {
                 Socket s = NetUtils.createLoopbackSocket(port, false);
                 s.close();
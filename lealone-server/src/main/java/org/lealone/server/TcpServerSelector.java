@@ -0,0 +1,500 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.api.ErrorCode;
+import org.lealone.message.DbException;
+import org.lealone.value.MultiplexedConnection.VirtualSocket;
+
+/**
+ * TcpServer的NIO模式
+ * <p>
+ * 只用一个selector线程监听所有连接，连接上有请求到达时才把它交给一个固定大小的工作线程池，
+ * 工作线程用TcpServerThread原有的process()处理完已经收到的请求后，再把连接还给selector，
+ * 所以空闲的连接不会占用线程，连接数和线程数无关。
+ * <p>
+ * 协议和阻塞模式完全一样。请求的数据都由selector线程读到每个连接的ChannelInputStream中，
+ * 工作线程只解析已经缓冲的数据，一个请求只到达一部分时解析会抛出IncompleteRequestException，
+ * 此时回退到请求的开头，把连接还给selector，等剩下的数据到达后再重新解析，
+ * 所以慢的客户端不会占住工作线程，执行请求时嵌套调用同一个服务器也不会因为工作线程都在等数据而死锁。
+ * 只有客户端来不及接收响应时，工作线程才会在一个临时的selector上等待channel可写。
+ * <p>
+ * 每个连接同一时间最多只有一个任务在工作线程池中(处理期间不再监听它的OP_READ)，
+ * 所以任务队列的长度不会超过连接数。
+ * <p>
+ * 复用连接(MultiplexedConnection)上的stream也按同样的方式处理，只是不注册到selector中，
+ * 而是由读帧的工作线程在stream收到数据时把它交给另一个stream线程池。
+ * stream要用单独的线程池，因为stream的写者在对方的窗口用完时会阻塞，
+ * 而窗口更新要靠工作线程读帧才能收到，共用一个线程池的话可能所有线程都在等窗口更新。
+ */
+class TcpServerSelector {
+
+    /**
+     * 等待channel可写时每次在临时selector上阻塞的最长时间，超时后会检查channel是否已经关闭
+     */
+    private static final long WAIT_MILLIS = 1000;
+
+    private static final ThreadLocal<Selector> TEMPORARY_SELECTORS = new ThreadLocal<>();
+
+    private final TcpServer server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ExecutorService streamWorkers;
+    private final Queue<SelectionKey> resumedKeys = new ConcurrentLinkedQueue<>();
+
+    TcpServerSelector(TcpServer server, String listenAddress, int port, int workerCount, final boolean isDaemon) {
+        this.server = server;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            ServerSocket socket = serverChannel.socket();
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(listenAddress, port));
+            serverChannel.configureBlocking(false);
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (BindException be) {
+            throw DbException.get(ErrorCode.EXCEPTION_OPENING_PORT_2, be, "" + port, be.toString());
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, "port: " + port);
+        }
+
+        workers = newPool(server.getName() + " worker ", workerCount, isDaemon);
+        streamWorkers = newPool(server.getName() + " stream worker ", workerCount, isDaemon);
+    }
+
+    private static ExecutorService newPool(final String threadName, int threadCount, final boolean isDaemon) {
+        return new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger id = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, threadName + id.incrementAndGet());
+                        t.setDaemon(isDaemon);
+                        return t;
+                    }
+                });
+    }
+
+    ServerSocket getServerSocket() {
+        return serverChannel.socket();
+    }
+
+    /**
+     * 在调用TcpServer.listen()的线程中运行，直到服务器停止
+     */
+    void select() {
+        try {
+            while (!server.isStopped()) {
+                selector.select();
+                resumeKeys();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else if (key.isReadable())
+                        read(key);
+                }
+            }
+        } catch (Exception e) {
+            if (!server.isStopped())
+                DbException.traceThrowable(e);
+        } finally {
+            close();
+        }
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        TcpServerThread c = server.createTcpServerThread(channel);
+        channel.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    // 在selector线程中读数据，收到的数据足够解析一个请求或者连接已经关闭时才交给工作线程
+    private void read(SelectionKey key) {
+        TcpServerThread c = (TcpServerThread) key.attachment();
+        if (c.getChannelInputStream().fill())
+            dispatch(key);
+    }
+
+    private void dispatch(final SelectionKey key) {
+        // 处理完之前不再监听，保证同一个连接的请求按顺序在一个工作线程中处理
+        key.interestOps(0);
+        final TcpServerThread c = (TcpServerThread) key.attachment();
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (c.processAvailable()) {
+                    resumedKeys.add(key);
+                    selector.wakeup();
+                } else {
+                    key.cancel();
+                }
+            }
+        });
+    }
+
+    /**
+     * 复用连接上的一个新stream，之后读帧的线程每次收到它的数据或EOF时都会调度它
+     */
+    void register(TcpServerThread c, VirtualSocket socket) {
+        final StreamTask task = new StreamTask(c);
+        socket.setReceiveListener(new Runnable() {
+            @Override
+            public void run() {
+                task.schedule();
+            }
+        });
+        // 第一帧已经在stream中了
+        task.schedule();
+    }
+
+    // 只在selector线程中修改interestOps，避免和select()竞争
+    private void resumeKeys() {
+        SelectionKey key;
+        while ((key = resumedKeys.poll()) != null) {
+            if (key.isValid())
+                key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void close() {
+        workers.shutdown();
+        streamWorkers.shutdown();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            DbException.traceThrowable(e);
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            DbException.traceThrowable(e);
+        }
+    }
+
+    /**
+     * 同一个stream同一时间最多只有一个任务在stream线程池中，处理期间到达的数据由这个任务处理完后再调度一次
+     */
+    private class StreamTask implements Runnable {
+        private final TcpServerThread c;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean closed;
+
+        StreamTask(TcpServerThread c) {
+            this.c = c;
+        }
+
+        // 在读帧的线程中调用，不能阻塞
+        void schedule() {
+            if (closed || !scheduled.compareAndSet(false, true))
+                return;
+            try {
+                streamWorkers.execute(this);
+            } catch (RejectedExecutionException e) {
+                // 服务器已经停止
+                closed = true;
+                c.close();
+            }
+        }
+
+        @Override
+        public void run() {
+            ChannelInputStream in = c.getChannelInputStream();
+            if (in.fill() && !c.processAvailable()) {
+                closed = true;
+                return;
+            }
+            scheduled.set(false);
+            if (in.hasUnread())
+                schedule();
+        }
+    }
+
+    /**
+     * 在当前线程的临时selector上等待channel可读或可写
+     */
+    private static void await(SelectableChannel channel, int ops) throws IOException {
+        Selector s = TEMPORARY_SELECTORS.get();
+        if (s == null) {
+            s = Selector.open();
+            TEMPORARY_SELECTORS.set(s);
+        }
+        if (!channel.isOpen())
+            throw new ClosedChannelException();
+        SelectionKey key = channel.register(s, ops);
+        try {
+            s.select(WAIT_MILLIS);
+        } finally {
+            key.cancel();
+            // 让取消的key真正从临时selector中删除，下次才能再注册同一个channel
+            s.selectNow();
+        }
+    }
+
+    /**
+     * 请求只到达一部分时由ChannelInputStream抛出，工作线程收到后回退到请求的开头
+     */
+    static class IncompleteRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        IncompleteRequestException() {
+            super("incomplete request");
+        }
+
+        // 经常出现，不需要堆栈
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * 缓冲从非阻塞channel中读到的数据，selector线程调用fill()写入，工作线程只读已经缓冲的数据，
+     * 两者不会同时进行(处理期间selector不监听这个连接)。
+     * 复用连接上的stream也用它缓冲，此时由StreamTask在处理之前调用fill()，只读stream中已经收到的数据。
+     * <p>
+     * 工作线程在每个请求的开头调用mark()，读到缓冲区末尾时抛出IncompleteRequestException，
+     * 然后调用reset()回到请求的开头，同时记下这个请求至少还需要多少字节，
+     * 这样大的请求不会在每收到一点数据时都被重新解析一次。
+     */
+    static class ChannelInputStream extends InputStream {
+
+        private static final int BUFFER_SIZE = 16 * 1024;
+        // selector线程一次最多读这么多，避免一个发送很快的客户端占住selector线程
+        private static final int MAX_READ_SIZE = 256 * 1024;
+        private static final IncompleteRequestException INCOMPLETE = new IncompleteRequestException();
+
+        private final SocketChannel channel;
+        private final VirtualSocket stream;
+        private byte[] buff = new byte[BUFFER_SIZE];
+        private int pos;
+        private int limit;
+        private int markPos;
+        // 从markPos开始至少要有这么多字节才值得重新解析
+        private int required = 1;
+        private boolean eof;
+
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+            this.stream = null;
+        }
+
+        ChannelInputStream(VirtualSocket stream) {
+            this.channel = null;
+            this.stream = stream;
+        }
+
+        /**
+         * 在selector线程中调用，读取channel中已经到达的数据
+         *
+         * @return 缓冲的数据足够重新解析当前请求或者连接已经关闭时返回true
+         */
+        boolean fill() {
+            try {
+                int total = 0;
+                while (total < MAX_READ_SIZE) {
+                    ensureCapacity(Math.max(required - (limit - markPos), 1));
+                    int n = read(limit, buff.length - limit);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    if (n == 0)
+                        break;
+                    limit += n;
+                    total += n;
+                }
+            } catch (IOException e) {
+                // 连接被重置，交给工作线程关闭
+                eof = true;
+            }
+            return eof || limit - markPos >= required;
+        }
+
+        // 不阻塞，没有数据时返回0，EOF时返回-1
+        private int read(int off, int len) throws IOException {
+            if (channel != null)
+                return channel.read(ByteBuffer.wrap(buff, off, len));
+            InputStream in = stream.getInputStream();
+            int available = in.available();
+            if (available == 0)
+                return stream.isEndOfStream() ? -1 : 0;
+            return in.read(buff, off, Math.min(len, available));
+        }
+
+        /**
+         * stream中是否还有没读进缓冲区的数据或者EOF
+         */
+        boolean hasUnread() {
+            if (stream == null || eof)
+                return false;
+            try {
+                return stream.getInputStream().available() > 0 || stream.isEndOfStream();
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        private void ensureCapacity(int len) {
+            if (buff.length - limit >= len)
+                return;
+            int used = limit - markPos;
+            byte[] b = buff;
+            if (used + len > buff.length)
+                b = new byte[Math.max(buff.length * 2, used + len)];
+            System.arraycopy(buff, markPos, b, 0, used);
+            buff = b;
+            pos -= markPos;
+            limit = used;
+            markPos = 0;
+        }
+
+        /**
+         * 工作线程处理完已经缓冲的请求后调用，丢掉已经处理的数据
+         */
+        void compact() {
+            markPos = pos;
+            if (pos == limit) {
+                if (buff.length > BUFFER_SIZE)
+                    buff = new byte[BUFFER_SIZE];
+                pos = limit = markPos = 0;
+            } else if (pos > 0) {
+                ensureCapacity(buff.length - (limit - pos));
+            }
+        }
+
+        boolean hasRemaining() {
+            return pos < limit;
+        }
+
+        boolean isEOF() {
+            return eof;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+            markPos = pos;
+            required = 1;
+        }
+
+        @Override
+        public void reset() {
+            pos = markPos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos < limit)
+                return buff[pos++] & 0xff;
+            return incomplete(1);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            int n = Math.min(len, limit - pos);
+            if (n == 0)
+                return incomplete(len);
+            System.arraycopy(buff, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private int incomplete(int len) throws IOException {
+            if (eof)
+                return -1;
+            required = limit + len - markPos;
+            throw INCOMPLETE;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+    }
+
+    /**
+     * 向非阻塞channel写数据，发送缓冲区满了时阻塞当前工作线程
+     */
+    static class ChannelOutputStream extends OutputStream {
+
+        private final SocketChannel channel;
+
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buff = ByteBuffer.wrap(b, off, len);
+            while (buff.hasRemaining()) {
+                if (channel.write(buff) == 0)
+                    await(channel, SelectionKey.OP_WRITE);
+            }
+        }
+    }
+}
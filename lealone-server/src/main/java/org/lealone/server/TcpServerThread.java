@@ -10,9 +10,11 @@ import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Properties;
@@ -32,17 +34,22 @@ import org.lealone.message.JdbcSQLException;
 import org.lealone.result.ResultColumn;
 import org.lealone.result.ResultInterface;
 import org.lealone.storage.LobStorage;
+import org.lealone.transaction.TransactionEngine;
 import org.lealone.util.IOUtils;
 import org.lealone.util.New;
 import org.lealone.util.SmallLRUCache;
 import org.lealone.util.SmallMap;
 import org.lealone.util.StringUtils;
+import org.lealone.value.MultiplexedConnection;
+import org.lealone.value.MultiplexedConnection.VirtualSocket;
 import org.lealone.value.Transfer;
 import org.lealone.value.Value;
 import org.lealone.value.ValueLobDb;
 
 /**
- * One server thread is opened per client connection.
+ * One server thread is opened per client connection. In NIO mode there is no
+ * dedicated thread, the requests of a connection are handled by the worker
+ * pool of the {@link TcpServerSelector} instead.
  */
 public class TcpServerThread implements Runnable {
 
@@ -54,9 +61,12 @@ public class TcpServerThread implements Runnable {
     private final int threadId;
     private final Transfer transfer;
 
+    private TcpServerSelector.ChannelInputStream channelIn;
     private Session session;
-    private boolean stop;
+    private volatile boolean stop;
     private Thread thread;
+    private boolean connected;
+    private MultiplexedConnection mux;
     private int clientVersion;
     private String sessionId;
 
@@ -70,77 +80,177 @@ public class TcpServerThread implements Runnable {
         server.trace(this + " " + s);
     }
 
+    protected TcpServerThread(SocketChannel channel, TcpServer server, int threadId) {
+        this(channel.socket(), new TcpServerSelector.ChannelInputStream(channel),
+                new TcpServerSelector.ChannelOutputStream(channel), server, threadId);
+    }
+
+    /**
+     * Create a connection handler that is driven by the worker pool, used in
+     * NIO mode for channels and for the streams of a multiplexed connection.
+     */
+    TcpServerThread(Socket socket, TcpServerSelector.ChannelInputStream in, OutputStream out, TcpServer server,
+            int threadId) {
+        this.server = server;
+        this.threadId = threadId;
+        transfer = new Transfer(null, socket);
+        channelIn = in;
+        transfer.init(in, out);
+    }
+
+    TcpServerSelector.ChannelInputStream getChannelInputStream() {
+        return channelIn;
+    }
+
     @Override
     public void run() {
         try {
             transfer.init();
+            connect();
+            while (!stop) {
+                processRequest();
+            }
             if (server.isTraceEnabled())
-                trace("Connect");
-            // TODO server: should support a list of allowed databases
-            // and a list of allowed clients
-            try {
-                if (!server.allow(transfer.getSocket())) {
-                    throw DbException.get(ErrorCode.REMOTE_CONNECTION_NOT_ALLOWED);
-                }
-                int minClientVersion = transfer.readInt();
-                if (minClientVersion < Constants.TCP_PROTOCOL_VERSION_MIN) {
-                    throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + minClientVersion, ""
-                            + Constants.TCP_PROTOCOL_VERSION_MIN);
-                } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_MAX) {
-                    throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + minClientVersion, ""
-                            + Constants.TCP_PROTOCOL_VERSION_MAX);
-                }
-                int maxClientVersion = transfer.readInt();
-                if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_MAX) {
-                    clientVersion = Constants.TCP_PROTOCOL_VERSION_CURRENT;
-                } else {
-                    clientVersion = minClientVersion;
-                }
-                transfer.setVersion(clientVersion);
-                String db = transfer.readString();
-                String originalURL = transfer.readString();
-                if (db == null && originalURL == null) {
-                    String targetSessionId = transfer.readString();
-                    int command = transfer.readInt();
-                    stop = true;
-                    if (command == FrontendSession.SESSION_CANCEL_STATEMENT) {
-                        // cancel a running statement
-                        int statementId = transfer.readInt();
-                        server.cancelStatement(targetSessionId, statementId);
+                trace("Disconnect");
+        } catch (Throwable e) {
+            server.traceError(e);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Handle the requests that have completely arrived, used in NIO mode. The
+     * first request is the handshake. A request that has only partially
+     * arrived is left in the buffer until the selector has read the rest.
+     *
+     * @return true if the connection is still open and should be watched for
+     *         more requests
+     */
+    boolean processAvailable() {
+        try {
+            // 客户端可能一次发了多个请求，把已经完整到达的请求都处理完
+            while (!stop && channelIn.hasRemaining()) {
+                channelIn.mark(0);
+                try {
+                    if (!connected) {
+                        connect();
+                        connected = true;
                     } else {
-                        throw DbException.throwInternalError();
+                        processRequest();
                     }
+                } catch (TcpServerSelector.IncompleteRequestException e) {
+                    channelIn.reset();
+                    break;
                 }
+            }
+            channelIn.compact();
+            // 客户端已经关闭了连接，剩下的不完整请求永远不会到达
+            if (channelIn.isEOF())
+                stop = true;
+            if (!stop)
+                return true;
+            if (server.isTraceEnabled())
+                trace("Disconnect");
+        } catch (Throwable e) {
+            server.traceError(e);
+        }
+        close();
+        return false;
+    }
 
-                String userName = transfer.readString();
-                userName = StringUtils.toUpperEnglish(userName);
-                session = createSession(db, originalURL, userName, transfer);
-                transfer.setSession(session);
-                transfer.writeInt(FrontendSession.STATUS_OK);
-                transfer.writeInt(clientVersion);
-                transfer.flush();
-                server.addConnection(threadId, originalURL, userName);
+    private void connect() throws IOException {
+        if (server.isTraceEnabled())
+            trace("Connect");
+        // TODO server: should support a list of allowed databases
+        // and a list of allowed clients
+        try {
+            if (!server.allow(transfer.getSocket())) {
+                throw DbException.get(ErrorCode.REMOTE_CONNECTION_NOT_ALLOWED);
+            }
+            int minClientVersion = transfer.readInt();
+            if (minClientVersion == MultiplexedConnection.MAGIC) {
+                // 复用连接上的每个stream都由一个新的TcpServerThread处理，这里只负责读帧
+                final String threadName = server.getName() + " (" + transfer.getSocket() + ")";
+                mux = new MultiplexedConnection(transfer, new MultiplexedConnection.StreamListener() {
+                    @Override
+                    public void streamOpened(VirtualSocket socket) {
+                        server.startStream(socket, threadName);
+                    }
+                });
                 if (server.isTraceEnabled())
-                    trace("Connected");
-            } catch (Throwable e) {
-                sendError(e);
-                stop = true;
+                    trace("Multiplexed");
+                return;
             }
-            while (!stop) {
-                try {
-                    process();
-                } catch (Throwable e) {
-                    if (server.isTraceEnabled())
-                        server.traceError(e);
-                    sendError(e);
+            if (minClientVersion < Constants.TCP_PROTOCOL_VERSION_MIN) {
+                throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + minClientVersion, ""
+                        + Constants.TCP_PROTOCOL_VERSION_MIN);
+            } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_MAX) {
+                throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + minClientVersion, ""
+                        + Constants.TCP_PROTOCOL_VERSION_MAX);
+            }
+            int maxClientVersion = transfer.readInt();
+            if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_MAX) {
+                clientVersion = Constants.TCP_PROTOCOL_VERSION_CURRENT;
+            } else {
+                clientVersion = minClientVersion;
+            }
+            transfer.setVersion(clientVersion);
+            String db = transfer.readString();
+            String originalURL = transfer.readString();
+            if (db == null && originalURL == null) {
+                String targetSessionId = transfer.readString();
+                int command = transfer.readInt();
+                if (command == FrontendSession.SESSION_CANCEL_STATEMENT) {
+                    // cancel a running statement
+                    int statementId = transfer.readInt();
+                    stop = true;
+                    server.cancelStatement(targetSessionId, statementId);
+                    return;
+                } else {
+                    throw DbException.throwInternalError();
                 }
             }
+
+            String userName = transfer.readString();
+            userName = StringUtils.toUpperEnglish(userName);
+            session = createSession(db, originalURL, userName, transfer);
+            transfer.setSession(session);
+            transfer.writeInt(FrontendSession.STATUS_OK);
+            transfer.writeInt(clientVersion);
+            transfer.flush();
+            server.addConnection(threadId, originalURL, userName);
             if (server.isTraceEnabled())
-                trace("Disconnect");
+                trace("Connected");
+        } catch (TcpServerSelector.IncompleteRequestException e) {
+            throw e;
         } catch (Throwable e) {
-            server.traceError(e);
-        } finally {
-            close();
+            sendError(e);
+            stop = true;
+        }
+    }
+
+    private void processRequest() throws IOException {
+        if (mux != null) {
+            try {
+                mux.readFrame();
+            } catch (TcpServerSelector.IncompleteRequestException e) {
+                throw e;
+            } catch (Throwable e) {
+                if (server.isTraceEnabled())
+                    server.traceError(e);
+                stop = true;
+            }
+            return;
+        }
+        try {
+            process();
+        } catch (TcpServerSelector.IncompleteRequestException e) {
+            throw e;
+        } catch (Throwable e) {
+            if (server.isTraceEnabled())
+                server.traceError(e);
+            sendError(e);
         }
     }
 
@@ -233,7 +343,10 @@ public class TcpServerThread implements Runnable {
         } catch (Exception e) {
             server.traceError(e);
         } finally {
-            transfer.close();
+            if (mux != null)
+                mux.close();
+            else
+                transfer.close();
             if (server.isTraceEnabled())
                 trace("Close");
             server.remove(this);
@@ -468,6 +581,28 @@ public class TcpServerThread implements Runnable {
             transfer.flush();
             break;
         }
+        case FrontendSession.COMMAND_EXECUTE_BATCH_TRANSACTION_VALIDATE: {
+            int old = session.getModificationId();
+            int size = transfer.readInt();
+            // 先读完所有的事务名再验证，NIO模式下请求不完整时会重新解析
+            String[] localTransactionNames = new String[size];
+            for (int i = 0; i < size; i++)
+                localTransactionNames[i] = transfer.readString();
+            boolean isValid = true;
+            TransactionEngine transactionEngine = session.getDatabase().getTransactionEngine();
+            for (int i = 0; i < size && isValid; i++)
+                isValid = transactionEngine.validateTransaction(localTransactionNames[i]);
+            int status;
+            if (session.isClosed()) {
+                status = FrontendSession.STATUS_CLOSED;
+            } else {
+                status = getState(old);
+            }
+            transfer.writeInt(status);
+            transfer.writeBoolean(isValid);
+            transfer.flush();
+            break;
+        }
         case FrontendSession.COMMAND_EXECUTE_BATCH_UPDATE_STATEMENT: {
             int size = transfer.readInt();
             ArrayList<String> batchCommands = New.arrayList(size);
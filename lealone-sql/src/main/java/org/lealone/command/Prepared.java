@@ -10,10 +10,12 @@ import java.util.List;
 
 import org.lealone.api.DatabaseEventListener;
 import org.lealone.api.ErrorCode;
+import org.lealone.dbobject.index.IndexCondition;
 import org.lealone.dbobject.table.TableFilter;
 import org.lealone.engine.Database;
 import org.lealone.engine.Session;
 import org.lealone.engine.SysProperties;
+import org.lealone.expression.Comparison;
 import org.lealone.expression.Expression;
 import org.lealone.expression.Parameter;
 import org.lealone.message.DbException;
@@ -498,6 +500,29 @@ public abstract class Prepared {
         return null;
     }
 
+    /**
+     * 取出partitionKey IN(...)条件中的所有值(已经转换成列的类型)，没有这样的条件时返回null
+     */
+    public static Value[] getPartitionKeys(TableFilter tableFilter) {
+        for (IndexCondition condition : tableFilter.getIndexConditions()) {
+            if (condition.getCompareType() == Comparison.IN_LIST && condition.getColumn().isRowKeyColumn()
+                    && condition.isEvaluatable())
+                return condition.getCurrentValueList(tableFilter.getSession());
+        }
+        return null;
+    }
+
+    /**
+     * 返回partitionKey的范围[start, end]，不存在上下界时返回null
+     */
+    public static Value[] getPartitionKeyRange(TableFilter tableFilter) {
+        Value startPK = getPartitionKey(tableFilter.getStartSearchRow());
+        Value endPK = getPartitionKey(tableFilter.getEndSearchRow());
+        if (startPK != null && endPK != null)
+            return new Value[] { startPK, endPK };
+        return null;
+    }
+
     public static Value getPartitionKey(SearchRow row) {
         if (row == null)
             return null;
@@ -277,7 +277,7 @@ public class Insert extends Prepared implements ResultTarget, InsertOrMerge {
     }
 
     @Override
-    public String getPlanSQL(List<Row> rows) {
+    public String getPlanSQL(List<Row> rows, List<Value> values) {
         StatementBuilder buff = new StatementBuilder("INSERT INTO ");
         buff.append(table.getSQL()).append('(');
         for (Column c : columns) {
@@ -306,7 +306,8 @@ public class Insert extends Prepared implements ResultTarget, InsertOrMerge {
                     if (v == null) {
                         buff.append("DEFAULT");
                     } else {
-                        buff.append(v.getSQL());
+                        buff.append('?');
+                        values.add(v);
                     }
                 }
                 buff.append(')');
@@ -22,6 +22,7 @@ import java.util.concurrent.Callable;
 
 import org.lealone.dbobject.table.Table;
 import org.lealone.result.Row;
+import org.lealone.value.Value;
 
 public interface InsertOrMerge extends Callable<Integer> {
     Table getTable();
@@ -30,7 +31,8 @@ public interface InsertOrMerge extends Callable<Integer> {
 
     void setRows(List<Row> rows);
 
-    String getPlanSQL(List<Row> rows);
+    // 行中的值用占位符代替，按顺序放到values中，发往其他节点时以二进制格式传输，不用再转成SQL字面量
+    String getPlanSQL(List<Row> rows, List<Value> values);
 
     @Override
     Integer call();
@@ -27,7 +27,6 @@ import org.lealone.result.Row;
 import org.lealone.util.New;
 import org.lealone.util.StatementBuilder;
 import org.lealone.value.Value;
-import org.lealone.value.ValueString;
 
 /**
  * This class represents the statement
@@ -306,7 +305,7 @@ public class Merge extends Prepared implements InsertOrMerge {
     }
 
     @Override
-    public String getPlanSQL(List<Row> rows) {
+    public String getPlanSQL(List<Row> rows, List<Value> values) {
         StatementBuilder buff = new StatementBuilder("MERGE INTO ");
         buff.append(table.getSQL()).append('(');
         for (Column c : columns) {
@@ -339,10 +338,8 @@ public class Merge extends Prepared implements InsertOrMerge {
                     if (v == null) {
                         buff.append("DEFAULT");
                     } else {
-                        if (v instanceof ValueString)
-                            buff.append('\'').append(v.getString()).append('\'');
-                        else
-                            buff.append(v.getString());
+                        buff.append('?');
+                        values.add(v);
                     }
                 }
                 buff.append(')');
@@ -10,11 +10,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.api.Trigger;
 import org.lealone.command.CommandInterface;
+import org.lealone.command.router.CommandParallel;
 import org.lealone.dbobject.index.Cursor;
 import org.lealone.dbobject.index.Index;
 import org.lealone.dbobject.index.IndexType;
@@ -27,6 +31,7 @@ import org.lealone.engine.Constants;
 import org.lealone.engine.Database;
 import org.lealone.engine.Session;
 import org.lealone.engine.SysProperties;
+import org.lealone.expression.Aggregate;
 import org.lealone.expression.Calculator;
 import org.lealone.expression.Comparison;
 import org.lealone.expression.ConditionAndOr;
@@ -1063,6 +1068,112 @@ public class Select extends Query implements Callable<ResultInterface> {
         return result;
     }
 
+    /**
+     * 并行合并各个节点返回的部分聚合结果
+     * <p>
+     * 每个节点返回的是每个分组的部分结果(avg这类函数已经拆成了count、sum)，
+     * 所以不需要把多个结果集串行化后再执行queryGroupMerge()，
+     * 每个结果集由CommandParallel的一个线程一边读一边合并到同一个哈希表中，同一个分组的合并状态用synchronized保护。
+     * 只有非分组列都是满足Aggregate.isPartialMergeable()的聚合函数时才能这样合并，否则返回null。
+     *
+     * @param results 各个节点的结果集，合并完后会关闭
+     * @return 合并后的结果集，不能并行合并时返回null
+     */
+    public ResultInterface queryGroupMerge(List<ResultInterface> results) {
+        final int columnCount = expressions.size();
+        final Aggregate[] aggregates = new Aggregate[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            if (groupByExpression != null && groupByExpression[i]) {
+                continue;
+            }
+            Expression expr = expressions.get(i).getNonAliasExpression();
+            if (!(expr instanceof Aggregate) || !((Aggregate) expr).isPartialMergeable()) {
+                return null;
+            }
+            aggregates[i] = (Aggregate) expr;
+        }
+        if (getSampleSizeValue(session) > 0) {
+            return null;
+        }
+
+        final ConcurrentHashMap<Value, Object[]> groups = new ConcurrentHashMap<>();
+        List<Callable<Integer>> commands = New.arrayList(results.size());
+        for (final ResultInterface r : results) {
+            commands.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int rowNumber = 0;
+                    try {
+                        while (r.next()) {
+                            Value[] row = r.currentRow();
+                            Value key = getGroupKey(row);
+                            Object[] values = groups.get(key);
+                            if (values == null) {
+                                values = new Object[columnCount];
+                                for (int i = 0; i < columnCount; i++) {
+                                    if (aggregates[i] != null) {
+                                        values[i] = aggregates[i].createMergeData();
+                                    }
+                                }
+                                Object[] old = groups.putIfAbsent(key, values);
+                                if (old != null) {
+                                    values = old;
+                                }
+                            }
+                            synchronized (values) {
+                                for (int i = 0; i < columnCount; i++) {
+                                    if (aggregates[i] != null) {
+                                        aggregates[i].mergeAggregate(session, values[i], row[i]);
+                                    }
+                                }
+                            }
+                            rowNumber++;
+                        }
+                    } finally {
+                        r.close();
+                    }
+                    return rowNumber;
+                }
+            });
+        }
+        CommandParallel.executeUpdateCallable(commands);
+
+        LocalResult result = new LocalResult(session, expressionArray, columnCount);
+        if (groupIndex == null && groups.isEmpty()) {
+            Object[] values = new Object[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                values[i] = aggregates[i].createMergeData();
+            }
+            groups.put(getGroupKey(null), values);
+        }
+        for (Map.Entry<Value, Object[]> e : groups.entrySet()) {
+            Value[] keyValues = ((ValueArray) e.getKey()).getList();
+            Object[] values = e.getValue();
+            Value[] row = new Value[columnCount];
+            for (int j = 0; groupIndex != null && j < groupIndex.length; j++) {
+                row[groupIndex[j]] = keyValues[j];
+            }
+            for (int j = 0; j < columnCount; j++) {
+                if (aggregates[j] != null) {
+                    row[j] = aggregates[j].getMergedValue(session, values[j]);
+                }
+            }
+            result.addRow(row);
+        }
+        return result;
+    }
+
+    private Value getGroupKey(Value[] row) {
+        if (groupIndex == null) {
+            return ValueArray.get(new Value[0]);
+        }
+        Value[] keyValues = new Value[groupIndex.length];
+        for (int i = 0; i < groupIndex.length; i++) {
+            keyValues[i] = row[groupIndex[i]];
+        }
+        return ValueArray.get(keyValues);
+    }
+
     public ResultInterface calculate(ResultInterface result, Select select) {
         int size = expressions.size();
         if (havingIndex >= 0)
@@ -1132,6 +1243,17 @@ public class Select extends Query implements Callable<ResultInterface> {
     }
 
     public String getPlanSQL(boolean isDistributed, boolean isMerged) {
+        return getPlanSQL(isDistributed, isMerged, null);
+    }
+
+    /**
+     * 分布式查询时只让一个节点查它拥有的那部分数据，extraCondition和原来的WHERE条件用AND连接
+     */
+    public String getPlanSQL(boolean isDistributed, String extraCondition) {
+        return getPlanSQL(isDistributed, false, extraCondition);
+    }
+
+    private String getPlanSQL(boolean isDistributed, boolean isMerged, String extraCondition) {
         // can not use the field sqlStatement because the parameter
         // indexes may be incorrect: ? may be in fact ?2 for a subquery
         // but indexes may be set manually as well
@@ -1175,7 +1297,12 @@ public class Select extends Query implements Callable<ResultInterface> {
         // 合并时可以忽略WHERE子句
         if (!isMerged) {
             if (condition != null) {
-                buff.append("\nWHERE ").append(StringUtils.unEnclose(condition.getSQL()));
+                if (extraCondition != null)
+                    buff.append("\nWHERE ").append(condition.getSQL()).append(" AND ").append(extraCondition);
+                else
+                    buff.append("\nWHERE ").append(StringUtils.unEnclose(condition.getSQL()));
+            } else if (extraCondition != null) {
+                buff.append("\nWHERE ").append(extraCondition);
             }
         }
         if (groupIndex != null) {
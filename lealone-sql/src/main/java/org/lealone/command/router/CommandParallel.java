@@ -17,23 +17,46 @@
  */
 package org.lealone.command.router;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.lealone.command.dml.Select;
+import org.lealone.engine.SysProperties;
 import org.lealone.message.DbException;
 import org.lealone.result.ResultInterface;
 import org.lealone.util.New;
 
+/**
+ * 并行执行分布式命令
+ * <p>
+ * 线程数和排队的任务数都是有上限的，排队的任务数到达上限后不再提交给线程池，由调用线程自己执行；
+ * 调用线程提交完任务后也不是干等，而是接着执行那些还没被线程池取走的任务，
+ * 所以即使线程池满了(或者嵌套的并行命令占满了线程池)也不会死锁，只是退化成串行执行。
+ * <p>
+ * 结果按完成的顺序收集，某个任务失败时立即取消剩下的任务。
+ * 集群模式下P2PRouter会通过setExecutor把线程池换成带metrics的SEPExecutor。
+ */
 public class CommandParallel {
-    private final static ThreadPoolExecutor pool = initPool();
+    private static final int MAX_QUEUED = SysProperties.COMMAND_PARALLEL_MAX_QUEUED;
+
+    private static volatile ExecutorService executor = initPool();
+
+    // 已经提交给线程池但还没开始执行的任务数
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong taskCount = new AtomicLong();
+    private static final AtomicLong callerRunTaskCount = new AtomicLong();
 
     static class NamedThreadFactory implements ThreadFactory {
         protected final String id;
@@ -60,27 +83,43 @@ public class CommandParallel {
         }
     }
 
-    private static ThreadPoolExecutor initPool() {
-        // int corePoolSize = HBaseUtils.getConfiguration().getInt(COMMAND_PARALLEL_CORE_POOL_SIZE,
-        // DEFAULT_COMMAND_PARALLEL_CORE_POOL_SIZE);
-        // int maxPoolSize = HBaseUtils.getConfiguration().getInt(COMMAND_PARALLEL_MAX_POOL_SIZE,
-        // DEFAULT_COMMAND_PARALLEL_MAX_POOL_SIZE);
-        // int keepAliveTime = HBaseUtils.getConfiguration().getInt(COMMAND_PARALLEL_KEEP_ALIVE_TIME,
-        // DEFAULT_COMMAND_PARALLEL_KEEP_ALIVE_TIME);
-
-        int corePoolSize = 3;
-        int maxPoolSize = Integer.MAX_VALUE;
+    private static ExecutorService initPool() {
+        int maxPoolSize = Math.max(1, SysProperties.COMMAND_PARALLEL_MAX_THREADS);
         int keepAliveTime = 3;
 
-        ThreadPoolExecutor pool = new ThreadPoolExecutor(corePoolSize, maxPoolSize, keepAliveTime, TimeUnit.SECONDS,
-                new SynchronousQueue<Runnable>(), new NamedThreadFactory(CommandParallel.class.getSimpleName()));
+        // 队列的长度由MAX_QUEUED控制，这里不需要再限制
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxPoolSize, maxPoolSize, keepAliveTime, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(CommandParallel.class.getSimpleName()));
         pool.allowCoreThreadTimeOut(true);
 
         return pool;
     }
 
-    public static ThreadPoolExecutor getThreadPoolExecutor() {
-        return pool;
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 替换执行并行命令的线程池，不会关闭旧的线程池，旧的线程池由调用者自己管理，
+     * 这样调用者之后还能再把它换回来。默认的线程池空闲时线程会超时退出，不关闭也不占资源。
+     */
+    public static void setExecutor(ExecutorService newExecutor) {
+        executor = newExecutor;
+    }
+
+    public static int getQueuedTaskCount() {
+        return queued.get();
+    }
+
+    public static long getTaskCount() {
+        return taskCount.get();
+    }
+
+    /**
+     * 由调用线程自己执行的任务数，比较大时说明线程池不够用
+     */
+    public static long getCallerRunTaskCount() {
+        return callerRunTaskCount.get();
     }
 
     public static String getPlanSQL(Select select) {
@@ -92,16 +131,18 @@ public class CommandParallel {
 
     public static int executeUpdateCallable(List<Callable<Integer>> commands) {
         int size = commands.size();
-        List<Future<Integer>> futures = New.arrayList(size);
-        for (int i = 0; i < size; i++) {
-            futures.add(pool.submit(commands.get(i)));
-        }
+        if (size == 1)
+            return call(commands.get(0));
+
+        BlockingQueue<Task<Integer>> completed = new LinkedBlockingQueue<>();
+        List<Task<Integer>> tasks = execute(commands, completed);
         int updateCount = 0;
         try {
             for (int i = 0; i < size; i++) {
-                updateCount += futures.get(i).get();
+                updateCount += completed.take().get();
             }
         } catch (Exception e) {
+            cancel(tasks);
             throwException(e);
         }
         return updateCount;
@@ -109,24 +150,144 @@ public class CommandParallel {
 
     public static List<ResultInterface> executeSelectCallable(List<Callable<ResultInterface>> commands) {
         int size = commands.size();
-        List<Future<ResultInterface>> futures = New.arrayList(size);
         List<ResultInterface> results = New.arrayList(size);
-        for (int i = 0; i < size; i++) {
-            futures.add(pool.submit(commands.get(i)));
+        if (size == 1) {
+            results.add(call(commands.get(0)));
+            return results;
         }
+
+        BlockingQueue<Task<ResultInterface>> completed = new LinkedBlockingQueue<>();
+        List<Task<ResultInterface>> tasks = execute(commands, completed);
+        ResultInterface[] array = new ResultInterface[size];
         try {
             for (int i = 0; i < size; i++) {
-                results.add(futures.get(i).get());
+                Task<ResultInterface> task = completed.take();
+                array[task.index] = task.get();
             }
         } catch (Exception e) {
+            cancel(tasks);
+            // 取消之前已经完成的任务，不管结果有没有取走都要关闭，取消之后才完成的任务在Task.set中关闭
+            for (Task<ResultInterface> task : tasks) {
+                if (task.isDone() && !task.isCancelled()) {
+                    try {
+                        ResultInterface result = task.get();
+                        if (result != null)
+                            result.close();
+                    } catch (Exception ex) {
+                        // ignore
+                    }
+                }
+            }
             throwException(e);
         }
+        // 保持和commands一样的顺序
+        for (ResultInterface result : array)
+            results.add(result);
         return results;
     }
 
+    private static <T> List<Task<T>> execute(List<Callable<T>> commands, BlockingQueue<Task<T>> completed) {
+        int size = commands.size();
+        List<Task<T>> tasks = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            tasks.add(new Task<T>(commands.get(i), i, completed));
+        taskCount.addAndGet(size);
+
+        ExecutorService executor = CommandParallel.executor;
+        // 第一个任务留给调用线程
+        for (int i = 1; i < size; i++) {
+            if (queued.incrementAndGet() > MAX_QUEUED) {
+                queued.decrementAndGet();
+                break;
+            }
+            try {
+                executor.execute(new QueuedTask(tasks.get(i)));
+            } catch (RejectedExecutionException e) {
+                queued.decrementAndGet();
+                break;
+            }
+        }
+
+        // 执行还没被线程池取走的任务，已经开始或完成的任务run()什么都不做
+        for (Task<T> task : tasks) {
+            if (task.runByCaller())
+                callerRunTaskCount.incrementAndGet();
+        }
+        return tasks;
+    }
+
+    private static <T> T call(Callable<T> command) {
+        taskCount.incrementAndGet();
+        callerRunTaskCount.incrementAndGet();
+        try {
+            return command.call();
+        } catch (Exception e) {
+            throwException(e);
+            return null;
+        }
+    }
+
+    private static <T> void cancel(List<Task<T>> tasks) {
+        for (Task<T> task : tasks)
+            task.cancel(false);
+    }
+
     private static void throwException(Throwable e) {
         if (e instanceof ExecutionException)
             e = ((ExecutionException) e).getCause();
         throw DbException.convert(e);
     }
+
+    private static class Task<T> extends FutureTask<T> {
+        final int index;
+        private final BlockingQueue<Task<T>> completed;
+        private final AtomicInteger started = new AtomicInteger();
+
+        Task(Callable<T> callable, int index, BlockingQueue<Task<T>> completed) {
+            super(callable);
+            this.index = index;
+            this.completed = completed;
+        }
+
+        @Override
+        public void run() {
+            if (started.compareAndSet(0, 1))
+                super.run();
+        }
+
+        boolean runByCaller() {
+            if (started.compareAndSet(0, 1)) {
+                super.run();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected void set(T v) {
+            super.set(v);
+            // 正在执行时被取消的任务还会执行完，它的结果没人会取走了，要在这里关闭
+            if (isCancelled() && v instanceof ResultInterface)
+                ((ResultInterface) v).close();
+        }
+
+        @Override
+        protected void done() {
+            completed.add(this);
+        }
+    }
+
+    private static class QueuedTask implements Runnable {
+        private final Runnable task;
+
+        QueuedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            task.run();
+        }
+    }
 }
@@ -19,9 +19,15 @@ package org.lealone.command.router;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.lealone.api.ErrorCode;
 import org.lealone.api.ParameterInterface;
 import org.lealone.command.FrontendCommand;
 import org.lealone.command.Prepared;
@@ -31,77 +37,408 @@ import org.lealone.engine.Session;
 import org.lealone.engine.SysProperties;
 import org.lealone.expression.Parameter;
 import org.lealone.message.DbException;
+import org.lealone.value.Value;
+import org.lealone.value.ValueLobDb;
 
+/**
+ * 节点之间访问用的FrontendSession连接池。
+ * 
+ * 每个节点(URL)一个池，最多同时借出maxSize个会话，借不到时在等待队列中最多等waitTimeout毫秒；
+ * 空闲超过idleTimeout毫秒的会话会被关闭，但至少保留minSize个。
+ * 非自动提交的事务借的会话要等事务结束才归还，它们不占用maxSize的许可(但仍然计入借出的会话数)，
+ * 否则几个长事务就能让其他语句都等满waitTimeout后失败。
+ * 节点加入集群时可以通过warmUp预先建立minSize个会话，避免第一次访问时才做TCP连接和认证。
+ */
 public class FrontendSessionPool {
-    private static final int QUEUE_SIZE = 3;
+    private static final int MIN_SIZE = SysProperties.FRONTEND_SESSION_POOL_MIN_SIZE;
+    private static final int MAX_SIZE = SysProperties.FRONTEND_SESSION_POOL_MAX_SIZE;
+    private static final long WAIT_TIMEOUT = SysProperties.FRONTEND_SESSION_POOL_WAIT_TIMEOUT;
+    private static final long IDLE_TIMEOUT = SysProperties.FRONTEND_SESSION_POOL_IDLE_TIMEOUT;
 
     // key是集群中每个节点的URL
-    private static final ConcurrentHashMap<String, ConcurrentLinkedQueue<FrontendSession>> pool = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, EndpointPool> pools = new ConcurrentHashMap<>();
 
-    private static ConcurrentLinkedQueue<FrontendSession> getQueue(String url) {
-        ConcurrentLinkedQueue<FrontendSession> queue = pool.get(url);
-        if (queue == null) {
-            // 避免多个线程生成不同的ConcurrentLinkedQueue实例
+    private static EndpointPool getPool(String url) {
+        EndpointPool pool = pools.get(url);
+        if (pool == null) {
+            // 避免多个线程生成不同的EndpointPool实例
             synchronized (FrontendSessionPool.class) {
-                queue = pool.get(url);
-                if (queue == null) {
-                    queue = new ConcurrentLinkedQueue<>();
-                    pool.put(url, queue);
+                pool = pools.get(url);
+                if (pool == null) {
+                    pool = new EndpointPool(url);
+                    pools.put(url, pool);
                 }
             }
         }
-        return queue;
+        return pool;
     }
 
     public static FrontendSession getFrontendSession(Session originalSession, String url) {
-        return getFrontendSession(originalSession, url, true);
+        return getPool(url).borrow(new SessionTemplate(originalSession), true);
     }
 
+    // 访问seed节点的会话用完就关闭了，不从池中借
     public static FrontendSession getSeedEndpointFrontendSession(Session originalSession, String url) {
-        return getFrontendSession(originalSession, url, false);
+        return new SessionTemplate(originalSession).createFrontendSession(url, false);
+    }
+
+    public static void release(FrontendSession fs) {
+        if (fs == null)
+            return;
+
+        getPool(fs.getURL()).giveBack(fs);
+    }
+
+    /**
+     * 为指定主机上的所有数据库预先建立minSize个会话，只有之前访问过的URL才知道用什么用户连接。
+     */
+    public static void warmUp(String hostAddress) {
+        for (EndpointPool pool : getPools(hostAddress))
+            pool.warmUp();
+    }
+
+    /**
+     * 节点下线后关闭它的所有空闲会话，借出的会话在归还时会发现已关闭。
+     */
+    public static void closeIdleSessions(String hostAddress) {
+        for (EndpointPool pool : getPools(hostAddress))
+            pool.closeIdleSessions();
+    }
+
+    /**
+     * 关闭空闲时间超过idleTimeout的会话，需要定期调用。
+     */
+    public static void evictIdleSessions() {
+        long now = System.currentTimeMillis();
+        for (EndpointPool pool : pools.values())
+            pool.evictIdleSessions(now);
+    }
+
+    // 以下统计方法的hostAddress为null时表示所有节点
+
+    public static long getActiveSessionCount(String hostAddress) {
+        long count = 0;
+        for (EndpointPool pool : getPools(hostAddress))
+            count += pool.getActiveCount();
+        return count;
+    }
+
+    public static long getIdleSessionCount(String hostAddress) {
+        long count = 0;
+        for (EndpointPool pool : getPools(hostAddress))
+            count += pool.getIdleCount();
+        return count;
+    }
+
+    public static long getWaitingCount(String hostAddress) {
+        long count = 0;
+        for (EndpointPool pool : getPools(hostAddress))
+            count += pool.getWaitingCount();
+        return count;
+    }
+
+    public static long getCreatedSessionCount(String hostAddress) {
+        long count = 0;
+        for (EndpointPool pool : getPools(hostAddress))
+            count += pool.getCreatedCount();
+        return count;
+    }
+
+    public static long getClosedSessionCount(String hostAddress) {
+        long count = 0;
+        for (EndpointPool pool : getPools(hostAddress))
+            count += pool.getClosedCount();
+        return count;
+    }
+
+    public static long getWaitTimeoutCount(String hostAddress) {
+        long count = 0;
+        for (EndpointPool pool : getPools(hostAddress))
+            count += pool.getWaitTimeoutCount();
+        return count;
+    }
+
+    private static List<EndpointPool> getPools(String hostAddress) {
+        List<EndpointPool> list = new ArrayList<>();
+        for (EndpointPool pool : pools.values())
+            if (hostAddress == null || hostAddress.equals(pool.hostAddress))
+                list.add(pool);
+        return list;
     }
 
-    private static FrontendSession getFrontendSession(Session originalSession, String url, boolean isLocal) {
-        FrontendSession fs = getQueue(url).poll();
+    // 从URL中取出主机地址，格式是jdbc:lealone:tcp://host:port/dbName
+    private static String getHostAddress(String url) {
+        int pos1 = url.indexOf("//") + 2;
+        int pos2 = url.indexOf(':', pos1);
+        if (pos2 == -1)
+            pos2 = url.indexOf('/', pos1);
+        return url.substring(pos1, pos2);
+    }
+
+    // 记下最初会话的用户和连接参数，池在补充会话时需要用它们建立新连接
+    public static class SessionTemplate {
+        private final Properties properties;
+        private final String userName;
+        private final byte[] userPasswordHash;
+        private final byte[] filePasswordHash;
+        private final byte[] fileEncryptionKey;
 
-        if (fs == null || fs.isClosed()) {
+        public SessionTemplate(Session originalSession) {
             ConnectionInfo oldCi = originalSession.getConnectionInfo();
             // 未来新加的代码如果忘记设置这两个字段，出问题时方便查找原因
             if (originalSession.getOriginalProperties() == null || oldCi == null)
                 throw DbException.throwInternalError();
 
-            ConnectionInfo ci = new ConnectionInfo(url, originalSession.getOriginalProperties());
+            properties = originalSession.getOriginalProperties();
+            userName = oldCi.getUserName();
+            userPasswordHash = oldCi.getUserPasswordHash();
+            filePasswordHash = oldCi.getFilePasswordHash();
+            fileEncryptionKey = oldCi.getFileEncryptionKey();
+        }
+
+        public FrontendSession createFrontendSession(String url, boolean isLocal) {
+            ConnectionInfo ci = new ConnectionInfo(url, properties);
             ci.setProperty("IS_LOCAL", isLocal ? "true" : "false");
-            ci.setUserName(oldCi.getUserName());
-            ci.setUserPasswordHash(oldCi.getUserPasswordHash());
-            ci.setFilePasswordHash(oldCi.getFilePasswordHash());
-            ci.setFileEncryptionKey(oldCi.getFileEncryptionKey());
-            fs = (FrontendSession) new FrontendSession(ci).connectEmbeddedOrServer(false);
+            ci.setUserName(userName);
+            ci.setUserPasswordHash(userPasswordHash);
+            ci.setFilePasswordHash(filePasswordHash);
+            ci.setFileEncryptionKey(fileEncryptionKey);
+            return (FrontendSession) new FrontendSession(ci).connectEmbeddedOrServer(false);
         }
+    }
 
-        return fs;
+    private static class IdleSession {
+        final FrontendSession session;
+        final long lastUsed;
+
+        IdleSession(FrontendSession session) {
+            this.session = session;
+            this.lastUsed = System.currentTimeMillis();
+        }
     }
 
-    public static void release(FrontendSession fs) {
-        if (fs == null || fs.isClosed())
-            return;
+    public static class EndpointPool {
+        final String url;
+        final String hostAddress;
+        final int minSize;
+        final int maxSize;
+        final long waitTimeout;
+        final long idleTimeout;
+        // 每借出一个受限的会话占用一个许可，公平模式让等待的线程按先后顺序拿到会话
+        final Semaphore permits;
+        // 头部是最近归还的会话，优先借出；尾部是空闲最久的，优先淘汰
+        final ConcurrentLinkedDeque<IdleSession> idle = new ConcurrentLinkedDeque<>();
+        // ConcurrentLinkedDeque.size()要遍历整个队列，所以单独计数
+        final AtomicInteger idleCount = new AtomicInteger();
+        // value表示这个会话是否占用了许可
+        final ConcurrentHashMap<FrontendSession, Boolean> borrowed = new ConcurrentHashMap<>();
+        final AtomicInteger waiting = new AtomicInteger();
+        final AtomicLong created = new AtomicLong();
+        final AtomicLong closed = new AtomicLong();
+        final AtomicLong waitTimeouts = new AtomicLong();
+        volatile SessionTemplate template;
+
+        EndpointPool(String url) {
+            this(url, MIN_SIZE, MAX_SIZE, WAIT_TIMEOUT, IDLE_TIMEOUT);
+        }
+
+        public EndpointPool(String url, int minSize, int maxSize, long waitTimeout, long idleTimeout) {
+            this.url = url;
+            this.hostAddress = getHostAddress(url);
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.waitTimeout = waitTimeout;
+            this.idleTimeout = idleTimeout;
+            permits = new Semaphore(maxSize, true);
+        }
+
+        /**
+         * @param limited 为false时不占用许可，用于要等事务结束才归还的会话
+         */
+        public FrontendSession borrow(SessionTemplate template, boolean limited) {
+            // 预热时用最近一次的用户和连接参数
+            this.template = template;
+            if (limited)
+                acquire();
+
+            FrontendSession fs;
+            try {
+                fs = pollIdle();
+                if (fs == null)
+                    fs = create(template);
+            } catch (RuntimeException e) {
+                if (limited)
+                    permits.release();
+                throw e;
+            }
+            borrowed.put(fs, limited);
+            return fs;
+        }
+
+        private void acquire() {
+            boolean acquired;
+            waiting.incrementAndGet();
+            try {
+                acquired = permits.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw DbException.convert(e);
+            } finally {
+                waiting.decrementAndGet();
+            }
+            if (!acquired) {
+                waitTimeouts.incrementAndGet();
+                throw DbException.get(ErrorCode.CONNECTION_BROKEN_1, "no free session for " + url + " after "
+                        + waitTimeout + " ms, pool max size is " + maxSize);
+            }
+        }
+
+        public void giveBack(FrontendSession fs) {
+            // 重复归还的会话已经在空闲队列中了
+            Boolean limited = borrowed.remove(fs);
+            if (limited == null)
+                return;
+            if (!fs.isClosed()) {
+                if (idleCount.get() < maxSize)
+                    offerIdle(new IdleSession(fs), true);
+                else
+                    close(fs);
+            }
+            // 先放回空闲队列再释放许可，这样被唤醒的线程可以直接复用
+            if (limited)
+                permits.release();
+        }
+
+        private void offerIdle(IdleSession e, boolean first) {
+            idleCount.incrementAndGet();
+            if (first)
+                idle.offerFirst(e);
+            else
+                idle.offerLast(e);
+        }
+
+        private IdleSession pollIdle(boolean first) {
+            IdleSession e = first ? idle.pollFirst() : idle.pollLast();
+            if (e != null)
+                idleCount.decrementAndGet();
+            return e;
+        }
+
+        private FrontendSession pollIdle() {
+            IdleSession e;
+            while ((e = pollIdle(true)) != null) {
+                if (!e.session.isClosed())
+                    return e.session;
+                closed.incrementAndGet();
+            }
+            return null;
+        }
+
+        FrontendSession create(SessionTemplate template) {
+            FrontendSession fs = template.createFrontendSession(url, true);
+            created.incrementAndGet();
+            return fs;
+        }
+
+        private void close(FrontendSession fs) {
+            closed.incrementAndGet();
+            try {
+                fs.close();
+            } catch (Exception e) {
+                // 节点可能已经不可用了，忽略关闭时的错误
+            }
+        }
+
+        void warmUp() {
+            SessionTemplate template = this.template;
+            if (template == null)
+                return;
+            try {
+                while (idleCount.get() + borrowed.size() < minSize)
+                    offerIdle(new IdleSession(create(template)), false);
+            } catch (Exception e) {
+                // 节点可能还没准备好接受连接，第一次访问时再建立
+            }
+        }
+
+        public void closeIdleSessions() {
+            IdleSession e;
+            while ((e = pollIdle(false)) != null)
+                close(e.session);
+        }
+
+        public void evictIdleSessions(long now) {
+            while (idleCount.get() > minSize) {
+                IdleSession e = idle.peekLast();
+                if (e == null || (now - e.lastUsed < idleTimeout && !e.session.isClosed()))
+                    break;
+                if (idle.removeLastOccurrence(e)) {
+                    idleCount.decrementAndGet();
+                    close(e.session);
+                }
+            }
+        }
+
+        public int getActiveCount() {
+            return borrowed.size();
+        }
+
+        public int getIdleCount() {
+            return idleCount.get();
+        }
+
+        public int getWaitingCount() {
+            return waiting.get();
+        }
+
+        public long getCreatedCount() {
+            return created.get();
+        }
+
+        public long getClosedCount() {
+            return closed.get();
+        }
+
+        public long getWaitTimeoutCount() {
+            return waitTimeouts.get();
+        }
 
-        ConcurrentLinkedQueue<FrontendSession> queue = getQueue(fs.getURL());
-        if (queue.size() > QUEUE_SIZE)
-            fs.close();
-        else
-            queue.offer(fs);
+        // 没有被受限的会话占用的许可数
+        public int getAvailablePermits() {
+            return permits.availablePermits();
+        }
     }
 
     public static FrontendCommand getFrontendCommand(Session originalSession, Prepared prepared, //
             String url, String sql) throws Exception {
+        FrontendSession fs = getFrontendSessionOf(originalSession, url);
+        return getFrontendCommand(fs, sql, prepared.getParameters(), prepared.getFetchSize());
+    }
+
+    // sql中的占位符与values一一对应，已经存储在本节点的LOB要转成小LOB，否则目标节点读不到。
+    // SQL跟行数有关的多行INSERT/MERGE不放进命令缓存(cacheable为false)，否则每种行数都会挤掉一个缓存的命令
+    public static FrontendCommand getFrontendCommand(Session originalSession, Prepared prepared, //
+            String url, String sql, List<Value> values, boolean cacheable) throws Exception {
+        FrontendSession fs = getFrontendSessionOf(originalSession, url);
+        FrontendCommand fc = cacheable ? fs.getCachedCommand(sql, prepared.getFetchSize()) : fs.getTemporaryCommand(
+                sql, prepared.getFetchSize());
+        ArrayList<? extends ParameterInterface> params = fc.getParameters();
+        if (SysProperties.CHECK && params.size() != values.size())
+            throw DbException.throwInternalError();
+        for (int i = 0, size = values.size(); i < size; i++) {
+            params.get(i).setValue(ValueLobDb.copyToSmallLob(values.get(i)), true);
+        }
+        return fc;
+    }
+
+    private static FrontendSession getFrontendSessionOf(Session originalSession, String url) {
         FrontendSession fs = originalSession.getFrontendSession(url);
         if (fs != null && fs.isClosed())
             fs = null;
         boolean isNew = false;
         if (fs == null) {
             isNew = true;
-            fs = getFrontendSession(originalSession, url);
+            // 会话要到原会话的事务结束时才归还，非自动提交的事务可能持续很久，不能占用许可
+            fs = getPool(url).borrow(new SessionTemplate(originalSession), originalSession.isAutoCommit());
         }
 
         if (fs.getTransaction() == null)
@@ -110,12 +447,12 @@ public class FrontendSessionPool {
         if (isNew)
             originalSession.addFrontendSession(url, fs);
 
-        return getFrontendCommand(fs, sql, prepared.getParameters(), prepared.getFetchSize());
+        return fs;
     }
 
     public static FrontendCommand getFrontendCommand(FrontendSession fs, String sql, //
             List<Parameter> parameters, int fetchSize) {
-        FrontendCommand fc = (FrontendCommand) fs.prepareCommand(sql, fetchSize);
+        FrontendCommand fc = fs.getCachedCommand(sql, fetchSize);
 
         // 传递最初的参数值到新的FrontendCommand
         if (parameters != null) {
@@ -134,8 +471,8 @@ public class FrontendSessionPool {
     }
 
     public static void check() {
-        for (ConcurrentLinkedQueue<FrontendSession> queue : pool.values())
-            for (FrontendSession sr : queue)
-                sr.checkTransfers();
+        for (EndpointPool pool : pools.values())
+            for (IdleSession e : pool.idle)
+                e.session.checkTransfers();
     }
 }
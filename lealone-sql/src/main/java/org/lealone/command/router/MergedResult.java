@@ -25,18 +25,25 @@ import org.lealone.dbobject.table.IndexColumn;
 import org.lealone.dbobject.table.Table;
 import org.lealone.result.DelegatedResult;
 import org.lealone.result.ResultInterface;
+import org.lealone.util.New;
 
 public class MergedResult extends DelegatedResult {
     public MergedResult(List<ResultInterface> results, Select newSelect, Select oldSelect) {
-        // 1. 结果集串行化，为合并做准备
-        SerializedResult serializedResult = new SerializedResult(results, oldSelect.getLimitRows());
-        Table table = newSelect.getTopTableFilter().getTable();
-        newSelect.getTopTableFilter().setIndex(
-                new MergedIndex(serializedResult, table, -1, IndexColumn.wrap(table.getColumns()), IndexType
-                        .createScan(false)));
+        // 1. 优先并行合并各节点返回的部分聚合结果，一边读一边合并，远程结果集在后台预取下一批记录
+        List<ResultInterface> prefetchedResults = New.arrayList(results.size());
+        for (ResultInterface r : results)
+            prefetchedResults.add(PrefetchedResult.wrap(r));
+        ResultInterface mergedResult = newSelect.queryGroupMerge(prefetchedResults);
 
-        // 2. 把多个结果集合并
-        ResultInterface mergedResult = newSelect.queryGroupMerge();
+        // 2. 存在不能并行合并的聚合函数时(例如distinct、group_concat)，结果集串行化后再合并
+        if (mergedResult == null) {
+            SerializedResult serializedResult = new SerializedResult(prefetchedResults, oldSelect.getLimitRows());
+            Table table = newSelect.getTopTableFilter().getTable();
+            newSelect.getTopTableFilter().setIndex(
+                    new MergedIndex(serializedResult, table, -1, IndexColumn.wrap(table.getColumns()), IndexType
+                            .createScan(false)));
+            mergedResult = newSelect.queryGroupMerge();
+        }
 
         // 3. 计算合并后的结果集,
         // 例如oldSelect="select avg"时，在分布式环境要转成newSelect="select count, sum"，
@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.command.router;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.lealone.command.CommandInterface;
+import org.lealone.message.DbException;
+import org.lealone.result.DelegatedResult;
+import org.lealone.result.ResultInterface;
+import org.lealone.value.Value;
+
+/**
+ * 同时执行所有节点上的子查询，哪个节点的记录先到就先返回哪个节点的
+ * <p>
+ * 每个节点最多只有一批记录在预取，调用者消费某个节点的一批记录时，这个节点的下一批已经在读了，
+ * 所以全表扫描的延迟接近最慢的那个节点，而不是SerializedResult那样是所有节点延迟之和。
+ * 记录数达到LIMIT后不再预取，等正在读的那一批结束后关闭所有节点的游标。
+ * 各节点的记录是交错返回的，所以只能用于没有ORDER BY和GROUP BY的查询。
+ */
+public class ParallelResult extends DelegatedResult {
+    private final static int UNKNOW_ROW_COUNT = -1;
+    private final int limitRows;
+    private final Cursor[] cursors;
+    // 每个节点最多只有一个Fetch在执行，所以节点数就是队列的上限
+    private final BlockingQueue<Fetch> completed;
+
+    private int remaining;
+    private ArrayList<Value[]> batch;
+    private int index;
+    private Value[] currentRow;
+    private int rowId = -1;
+    private int count;
+    private boolean closed;
+
+    public ParallelResult(List<? extends CommandInterface> commands, int maxRows, boolean scrollable, int limitRows) {
+        this.limitRows = limitRows;
+        int size = commands.size();
+        cursors = new Cursor[size];
+        completed = new ArrayBlockingQueue<>(size);
+        remaining = size;
+        for (int i = 0; i < size; i++)
+            cursors[i] = new Cursor(commands.get(i), maxRows, scrollable);
+        for (Cursor c : cursors)
+            c.startFetch();
+
+        // 最先返回的节点提供列的元数据
+        try {
+            nextBatch();
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private boolean nextBatch() {
+        while (batch == null || index >= batch.size()) {
+            if (remaining == 0)
+                return false;
+            Fetch fetch = takeCompleted();
+            Cursor c = fetch.cursor;
+            c.fetch = null;
+            batch = fetch.getBatch();
+            index = 0;
+            if (result == null)
+                result = c.result;
+            if (batch.size() < c.batchSize) {
+                c.isEnd = true;
+                remaining--;
+            } else {
+                c.startFetch();
+            }
+        }
+        return true;
+    }
+
+    private Fetch takeCompleted() {
+        Fetch fetch = completed.poll();
+        if (fetch != null)
+            return fetch;
+        // 线程池忙时有些Fetch可能还在队列中，由调用线程自己执行，避免一直等待
+        for (Cursor c : cursors) {
+            if (c.fetch != null && c.fetch.tryRun())
+                break;
+        }
+        try {
+            return completed.take();
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    @Override
+    public boolean next() {
+        if (closed)
+            return false;
+        count++;
+        if (limitRows >= 0 && count > limitRows) {
+            // 已经够了，不用再读其他节点的记录
+            closeCursors();
+            currentRow = null;
+            return false;
+        }
+        if (!nextBatch()) {
+            currentRow = null;
+            return false;
+        }
+        currentRow = batch.get(index++);
+        rowId++;
+        return true;
+    }
+
+    @Override
+    public Value[] currentRow() {
+        return currentRow;
+    }
+
+    @Override
+    public int getRowId() {
+        return rowId;
+    }
+
+    @Override
+    public int getRowCount() {
+        return UNKNOW_ROW_COUNT;
+    }
+
+    @Override
+    public void reset() {
+        throw DbException.getUnsupportedException("reset");
+    }
+
+    @Override
+    public void close() {
+        closeCursors();
+    }
+
+    private void closeCursors() {
+        if (closed)
+            return;
+        closed = true;
+        for (Cursor c : cursors)
+            c.close();
+        batch = null;
+    }
+
+    private class Cursor {
+        private final CommandInterface command;
+        private final int maxRows;
+        private final boolean scrollable;
+        private ResultInterface result;
+        private int batchSize;
+        private boolean isEnd;
+        private volatile Fetch fetch;
+
+        Cursor(CommandInterface command, int maxRows, boolean scrollable) {
+            this.command = command;
+            this.maxRows = maxRows;
+            this.scrollable = scrollable;
+        }
+
+        void startFetch() {
+            fetch = new Fetch(this);
+            try {
+                CommandParallel.getExecutor().execute(fetch);
+            } catch (RejectedExecutionException e) {
+                // 等需要时调用线程自己执行
+            }
+        }
+
+        // 关闭前要等正在执行的Fetch结束，避免两个线程同时读写同一个连接
+        void close() {
+            Fetch f = fetch;
+            if (f != null) {
+                try {
+                    f.getBatch();
+                } catch (Exception e) {
+                    // ignore
+                }
+                fetch = null;
+            }
+            if (result != null) {
+                result.close();
+                result = null;
+            }
+        }
+    }
+
+    private class Fetch extends FutureTask<ArrayList<Value[]>> {
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final Cursor cursor;
+
+        Fetch(final Cursor cursor) {
+            super(new Callable<ArrayList<Value[]>>() {
+                @Override
+                public ArrayList<Value[]> call() throws Exception {
+                    // 第一批记录之前先在节点上执行子查询
+                    if (cursor.result == null) {
+                        cursor.result = cursor.command.executeQuery(cursor.maxRows, cursor.scrollable);
+                        int fetchSize = cursor.result.getFetchSize();
+                        cursor.batchSize = fetchSize > 0 ? fetchSize : 100;
+                    }
+                    ResultInterface result = cursor.result;
+                    int batchSize = cursor.batchSize;
+                    ArrayList<Value[]> rows = new ArrayList<>(batchSize);
+                    for (int i = 0; i < batchSize && result.next(); i++)
+                        rows.add(result.currentRow());
+                    return rows;
+                }
+            });
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void run() {
+            tryRun();
+        }
+
+        boolean tryRun() {
+            if (started.compareAndSet(false, true)) {
+                super.run();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected void done() {
+            completed.offer(this);
+        }
+
+        ArrayList<Value[]> getBatch() {
+            // 还在线程池的队列中时直接由当前线程执行
+            tryRun();
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                throw DbException.convert(e.getCause());
+            } catch (InterruptedException e) {
+                throw DbException.convert(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.command.router;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.lealone.message.DbException;
+import org.lealone.result.DelegatedResult;
+import org.lealone.result.ResultInterface;
+import org.lealone.result.ResultRemote;
+import org.lealone.value.Value;
+
+/**
+ * 在后台预取远程结果集的下一批记录
+ * <p>
+ * 调用者消费当前这一批记录时，CommandParallel的线程池已经在读下一批了(对ResultRemote来说就是下一次RESULT_FETCH_ROWS)，
+ * 所以合并多个节点的结果时，网络延迟可以和合并重叠。
+ * 只有一个线程会调用被包装结果集的next()，预取还没开始时由调用线程自己执行，不会因为线程池满了而一直等待。
+ */
+public class PrefetchedResult extends DelegatedResult {
+
+    private final int batchSize;
+    private ArrayList<Value[]> batch;
+    private int index;
+    private boolean isEnd;
+    private Prefetch prefetch;
+    private Value[] currentRow;
+    private int rowId = -1;
+
+    /**
+     * 一般通过wrap创建，被包装的结果集每次按它的fetchSize读一批
+     */
+    public PrefetchedResult(ResultInterface result) {
+        this.result = result;
+        int fetchSize = result.getFetchSize();
+        this.batchSize = fetchSize > 0 ? fetchSize : 100;
+    }
+
+    /**
+     * 只有远程结果集才需要预取，本地的结果集原样返回
+     */
+    public static ResultInterface wrap(ResultInterface result) {
+        if (result instanceof ResultRemote)
+            return new PrefetchedResult(result);
+        return result;
+    }
+
+    @Override
+    public boolean next() {
+        while (batch == null || index >= batch.size()) {
+            if (isEnd) {
+                currentRow = null;
+                return false;
+            }
+            if (prefetch == null)
+                startPrefetch();
+            batch = prefetch.getBatch();
+            prefetch = null;
+            index = 0;
+            if (batch.size() < batchSize)
+                isEnd = true;
+            else
+                startPrefetch();
+        }
+        currentRow = batch.get(index++);
+        rowId++;
+        return true;
+    }
+
+    @Override
+    public Value[] currentRow() {
+        return currentRow;
+    }
+
+    @Override
+    public int getRowId() {
+        return rowId;
+    }
+
+    @Override
+    public void reset() {
+        waitPrefetch();
+        result.reset();
+        batch = null;
+        isEnd = false;
+        currentRow = null;
+        rowId = -1;
+    }
+
+    @Override
+    public void close() {
+        waitPrefetch();
+        result.close();
+    }
+
+    private void startPrefetch() {
+        prefetch = new Prefetch();
+        try {
+            CommandParallel.getExecutor().execute(prefetch);
+        } catch (RejectedExecutionException e) {
+            // 等需要时调用线程自己执行
+        }
+    }
+
+    // 关闭或重置前要等正在执行的预取结束，避免两个线程同时读写同一个连接
+    private void waitPrefetch() {
+        if (prefetch != null) {
+            try {
+                prefetch.getBatch();
+            } catch (Exception e) {
+                // ignore
+            }
+            prefetch = null;
+        }
+    }
+
+    private class Prefetch extends FutureTask<ArrayList<Value[]>> {
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        Prefetch() {
+            super(new Callable<ArrayList<Value[]>>() {
+                @Override
+                public ArrayList<Value[]> call() throws Exception {
+                    ArrayList<Value[]> rows = new ArrayList<>(batchSize);
+                    for (int i = 0; i < batchSize && result.next(); i++)
+                        rows.add(result.currentRow());
+                    return rows;
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            if (started.compareAndSet(false, true))
+                super.run();
+        }
+
+        ArrayList<Value[]> getBatch() {
+            // 还在线程池的队列中时直接由当前线程执行
+            run();
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                throw DbException.convert(e.getCause());
+            } catch (InterruptedException e) {
+                throw DbException.convert(e);
+            }
+        }
+    }
+}
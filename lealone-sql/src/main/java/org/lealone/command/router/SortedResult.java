@@ -27,24 +27,40 @@ import org.lealone.result.SortOrder;
 import org.lealone.value.Value;
 import org.lealone.value.ValueNull;
 
+/**
+ * 用最小堆对多个节点上已经排好序的结果做k路归并，每取一行只需要O(log n)次比较。
+ * <p>
+ * 每个节点的SQL已经带上了LIMIT limit+offset(见Select.getPlanSQL)，
+ * 远程结果集用PrefetchedResult包装，归并当前这一批记录时在后台取下一批。
+ */
 public class SortedResult extends DelegatedResult {
-    private static final Value[] END = new Value[0];
     private final SortOrder sort;
     private final ResultInterface[] results;
+    private final int offset;
     private final int limit;
     private final int size;
     private int rowCount = -1;
     private Value[] currentRow;
     private final Value[][] currentRows;
 
+    // 堆中存放的是results的下标，按currentRows排序
+    private final int[] heap;
+    private int heapSize;
+    private boolean initialized;
+    // 上一次返回的行来自哪个结果集，下一次调用next()时再让它前进，-1表示没有
+    private int last = -1;
+
     private int rowNumber;
 
     public SortedResult(int maxRows, Session session, Select select, List<ResultInterface> results) {
         this.sort = select.getSortOrder();
-        this.results = results.toArray(new ResultInterface[results.size()]);
+        this.size = results.size();
+        this.results = new ResultInterface[size];
+        for (int i = 0; i < size; i++)
+            this.results[i] = PrefetchedResult.wrap(results.get(i));
         this.result = this.results[0];
-        this.size = this.results.length;
         currentRows = new Value[size][];
+        heap = new int[size];
 
         int limitRows = maxRows == 0 ? -1 : maxRows;
         if (select.getLimit() != null) {
@@ -57,7 +73,6 @@ public class SortedResult extends DelegatedResult {
             }
         }
 
-        int offset;
         if (select.getOffset() != null) {
             offset = select.getOffset().getValue(session).getInt();
         } else {
@@ -67,16 +82,27 @@ public class SortedResult extends DelegatedResult {
         if (limitRows >= 0)
             rowCount = limitRows;
 
-        limit = limitRows + offset;
+        limit = limitRows < 0 ? -1 : limitRows + offset;
 
+        skipOffset();
+    }
+
+    private void skipOffset() {
         for (int i = 0; i < offset; i++)
-            next();
+            if (!next())
+                break;
     }
 
     @Override
     public void reset() {
         for (int i = 0; i < size; i++)
             results[i].reset();
+        initialized = false;
+        heapSize = 0;
+        last = -1;
+        rowNumber = 0;
+        currentRow = null;
+        skipOffset();
     }
 
     @Override
@@ -90,34 +116,62 @@ public class SortedResult extends DelegatedResult {
             currentRow = null;
             return false;
         }
-        rowNumber++;
 
-        int next = -1;
-        Value[] row = null;
-        for (int i = 0; i < size; i++) {
-            if (currentRows[i] == END)
-                continue;
-            if (currentRows[i] == null) {
-                if (results[i].next())
-                    currentRows[i] = results[i].currentRow();
-                else
-                    currentRows[i] = END;
-            }
-            if (currentRows[i] != END) {
-                if (next == -1) {
-                    next = i;
-                    row = currentRows[i];
-                } else {
-                    if (sort.compare(row, currentRows[i]) > 0) {
-                        next = i;
-                        row = currentRows[i];
-                    }
-                }
+        if (!initialized) {
+            initialized = true;
+            for (int i = 0; i < size; i++) {
+                if (advance(i))
+                    heap[heapSize++] = i;
             }
+            for (int i = heapSize / 2 - 1; i >= 0; i--)
+                siftDown(i);
+        } else if (last >= 0) {
+            if (!advance(last))
+                heap[0] = heap[--heapSize];
+            if (heapSize > 0)
+                siftDown(0);
         }
-        currentRow = row;
-        currentRows[next] = null;
-        return currentRow != null;
+
+        if (heapSize == 0) {
+            last = -1;
+            currentRow = null;
+            return false;
+        }
+        last = heap[0];
+        currentRow = currentRows[last];
+        rowNumber++;
+        return true;
+    }
+
+    private boolean advance(int i) {
+        if (results[i].next()) {
+            currentRows[i] = results[i].currentRow();
+            return true;
+        }
+        currentRows[i] = null;
+        return false;
+    }
+
+    private void siftDown(int pos) {
+        int x = heap[pos];
+        int half = heapSize >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < heapSize && compare(heap[right], heap[child]) < 0)
+                child = right;
+            if (compare(x, heap[child]) <= 0)
+                break;
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = x;
+    }
+
+    // 排序字段相同时按节点的顺序，保证结果是确定的
+    private int compare(int a, int b) {
+        int c = sort.compare(currentRows[a], currentRows[b]);
+        return c != 0 ? c : a - b;
     }
 
     @Override
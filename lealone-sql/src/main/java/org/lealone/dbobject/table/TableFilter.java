@@ -1040,6 +1040,10 @@ public class TableFilter implements ColumnResolver {
         return session;
     }
 
+    public ArrayList<IndexCondition> getIndexConditions() {
+        return indexConditions;
+    }
+
     /**
      * A visitor for table filters.
      */
@@ -80,15 +80,27 @@ public class DatabaseEngine implements SessionFactory {
 
     @Override
     public synchronized Session createSession(ConnectionInfo ci) {
-        return createSessionAndValidate(ci);
+        return createSessionAndValidate(ci, false);
     }
 
-    private Session createSessionAndValidate(ConnectionInfo ci) {
+    /**
+     * 用节点内部的身份给已有的用户创建会话，不验证用户的密码，
+     * 只给集群内部已经认证过的请求使用，比如重放hint时请求中不再带有用户的密码hash。
+     * 数据库必须已经存在，加密的数据库还必须已经打开。
+     *
+     * @param ci 连接信息，只用到数据库名、用户名和连接参数
+     * @return 会话
+     */
+    public synchronized Session createInternalSession(ConnectionInfo ci) {
+        return createSessionAndValidate(ci, true);
+    }
+
+    private Session createSessionAndValidate(ConnectionInfo ci, boolean internal) {
         try {
-            boolean ifExists = ci.getProperty("IFEXISTS", false);
+            boolean ifExists = internal || ci.getProperty("IFEXISTS", false);
             Session session;
             for (int i = 0;; i++) {
-                session = createSession(ci, ifExists);
+                session = createSession(ci, ifExists, internal);
                 if (session != null) {
                     break;
                 }
@@ -107,17 +119,18 @@ public class DatabaseEngine implements SessionFactory {
             }
 
             initSession(session, ci);
-            validateUserAndPassword(true);
+            if (!internal)
+                validateUserAndPassword(true);
             return session;
         } catch (DbException e) {
-            if (e.getErrorCode() == ErrorCode.WRONG_USER_OR_PASSWORD) {
+            if (e.getErrorCode() == ErrorCode.WRONG_USER_OR_PASSWORD && !internal) {
                 validateUserAndPassword(false);
             }
             throw e;
         }
     }
 
-    private Session createSession(ConnectionInfo ci, boolean ifExists) {
+    private Session createSession(ConnectionInfo ci, boolean ifExists, boolean internal) {
         String name = ci.getDatabaseName();
         name = Database.parseDatabaseShortName(ci.getDbSettings(), name);
         Database database;
@@ -136,7 +149,7 @@ public class DatabaseEngine implements SessionFactory {
             database = createDatabase(ci.isPersistent());
             database.init(ci, name);
             opened = true;
-            if (database.getAllUsers().isEmpty()) {
+            if (database.getAllUsers().isEmpty() && !internal) {
                 // users is the last thing we add, so if no user is around,
                 // the database is new (or not initialized correctly)
                 user = new User(database, database.allocateObjectId(), ci.getUserName(), false);
@@ -164,9 +177,11 @@ public class DatabaseEngine implements SessionFactory {
                 return null;
             }
             if (user == null) {
-                if (database.validateFilePasswordHash(ci.getProperty("CIPHER", null), ci.getFilePasswordHash())) {
+                // 节点内部的请求不带文件密码，已经打开的数据库就不用再验证了
+                if ((internal && !opened)
+                        || database.validateFilePasswordHash(ci.getProperty("CIPHER", null), ci.getFilePasswordHash())) {
                     user = database.findUser(ci.getUserName());
-                    if (user != null) {
+                    if (user != null && !internal) {
                         if (!user.validateUserPasswordHash(ci.getUserPasswordHash())) {
                             user = null;
                         }
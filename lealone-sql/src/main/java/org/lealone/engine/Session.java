@@ -10,9 +10,11 @@ import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.Callable;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.command.Command;
@@ -20,6 +22,7 @@ import org.lealone.command.Parser;
 import org.lealone.command.Prepared;
 import org.lealone.command.dml.Insert;
 import org.lealone.command.dml.Query;
+import org.lealone.command.router.CommandParallel;
 import org.lealone.command.router.FrontendSessionPool;
 import org.lealone.command.router.LocalRouter;
 import org.lealone.command.router.Router;
@@ -99,6 +102,9 @@ public class Session extends SessionWithState implements Transaction.Validator {
     private int objectId;
     private final int queryCacheSize;
     private SmallLRUCache<String, Command> queryCache;
+    private SmallLRUCache<String, Prepared> preparedCache;
+    // 从preparedCache中借出还没有归还的语句
+    private HashSet<Prepared> preparedInUse;
     private long modificationMetaID = -1;
 
     public Session(Database database, User user, int id) {
@@ -393,6 +399,47 @@ public class Session extends SessionWithState implements Transaction.Validator {
         return p;
     }
 
+    /**
+     * 解析内部使用的、带参数的SQL，同一个Session中相同的SQL只解析一次，
+     * 调用者每次执行前重新设置参数，元数据改变后会重新解析。
+     * <p>
+     * 借出的语句在调用releaseCached之前不会再被借出，
+     * 这期间(比如执行时又嵌套执行了相同的SQL)会重新解析一个不缓存的语句，避免参数被覆盖。
+     *
+     * @param sql the SQL statement
+     * @return the prepared statement, rights are not checked
+     */
+    public synchronized Prepared prepareCached(String sql) {
+        if (queryCacheSize <= 0) {
+            return prepare(sql, true);
+        }
+        if (preparedCache == null) {
+            preparedCache = SmallLRUCache.newInstance(queryCacheSize);
+            preparedInUse = new HashSet<>();
+        }
+        Prepared p = preparedCache.get(sql);
+        if (p != null && preparedInUse.contains(p)) {
+            return prepare(sql, true);
+        }
+        if (p == null || p.needRecompile()) {
+            p = prepare(sql, true);
+            preparedCache.put(sql, p);
+        }
+        preparedInUse.add(p);
+        return p;
+    }
+
+    /**
+     * 归还prepareCached借出的语句，不是从缓存中借出的语句会被忽略
+     *
+     * @param p the prepared statement
+     */
+    public synchronized void releaseCached(Prepared p) {
+        if (preparedInUse != null) {
+            preparedInUse.remove(p);
+        }
+    }
+
     public Command prepareCommandLocal(String sql) {
         Command c = prepareCommand(sql);
         c.getPrepared().setLocal(true);
@@ -1297,6 +1344,56 @@ public class Session extends SessionWithState implements Transaction.Validator {
         }
     }
 
+    @Override
+    public boolean validateTransactions(List<String> localTransactionNames) {
+        // 按节点分组，每个节点只需要一次网络往返，多个节点并行验证
+        Map<String, List<String>> hostAndPortMap = New.hashMap();
+        for (String localTransactionName : localTransactionNames) {
+            String hostAndPort = localTransactionName.substring(0, localTransactionName.lastIndexOf(':'));
+            List<String> names = hostAndPortMap.get(hostAndPort);
+            if (names == null) {
+                names = New.arrayList();
+                hostAndPortMap.put(hostAndPort, names);
+            }
+            names.add(localTransactionName);
+        }
+
+        List<Callable<Integer>> callables = New.arrayList(hostAndPortMap.size());
+        final String dbName = getDatabase().getShortName();
+        for (Map.Entry<String, List<String>> e : hostAndPortMap.entrySet()) {
+            final String hostAndPort = e.getKey();
+            final List<String> names = e.getValue();
+            callables.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    // 返回无效的节点数
+                    return validateTransactions(dbName, hostAndPort, names) ? 0 : 1;
+                }
+            });
+        }
+
+        if (callables.size() == 1) {
+            try {
+                return callables.get(0).call() == 0;
+            } catch (Exception e) {
+                throw DbException.convert(e);
+            }
+        }
+        return CommandParallel.executeUpdateCallable(callables) == 0;
+    }
+
+    private boolean validateTransactions(String dbName, String hostAndPort, List<String> localTransactionNames) {
+        FrontendSession fs = null;
+        try {
+            int index = hostAndPort.lastIndexOf(':');
+            String url = createURL(dbName, hostAndPort.substring(0, index), hostAndPort.substring(index + 1));
+            fs = FrontendSessionPool.getFrontendSession(this, url);
+            return fs.validateTransactions(localTransactionNames);
+        } finally {
+            FrontendSessionPool.release(fs);
+        }
+    }
+
     private static String createURL(String dbName, String host, String port) {
         StringBuilder url = new StringBuilder(100);
         url.append(Constants.URL_PREFIX).append(Constants.URL_TCP).append("//");
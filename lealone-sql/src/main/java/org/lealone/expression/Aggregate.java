@@ -439,6 +439,44 @@ public class Aggregate extends Expression {
         return v;
     }
 
+    /**
+     * 合并结果只依赖于各个节点返回的部分结果(而不依赖于合并的顺序和分组)时，
+     * 协调节点可以用多个线程同时合并，distinct和GROUP_CONCAT这类需要原始值的聚合函数不行
+     */
+    public boolean isPartialMergeable() {
+        if (distinct)
+            return false;
+        switch (type) {
+        case COUNT_ALL:
+        case COUNT:
+        case SUM:
+        case MIN:
+        case MAX:
+        case BOOL_AND:
+        case BOOL_OR:
+        case BIT_AND:
+        case BIT_OR:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * 创建一个不属于Select当前分组的合并状态，由调用者自己保存和同步
+     */
+    public Object createMergeData() {
+        return AggregateData.create(type);
+    }
+
+    public void mergeAggregate(Session session, Object data, Value v) {
+        ((AggregateData) data).merge(session.getDatabase(), dataType, distinct, v);
+    }
+
+    public Value getMergedValue(Session session, Object data) {
+        return ((AggregateData) data).getMergedValue(session.getDatabase(), dataType, distinct);
+    }
+
     @Override
     public void calculate(Calculator calculator) {
         switch (type) {
@@ -97,6 +97,10 @@ public class LobStorageMap implements LobStorage {
         lobMap = mvStore.openMap("lobMap");
         refMap = mvStore.openMap("lobRef");
         dataMap = mvStore.openMap("lobData");
+        if (database.getSettings().compressLobData) {
+            // LZ4
+            dataMap.setCompressionLevel(3);
+        }
         streamStore = new StreamStore(dataMap);
         // garbage collection of the last blocks
         if (database.isReadOnly()) {
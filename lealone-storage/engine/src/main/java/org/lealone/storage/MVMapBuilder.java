@@ -17,6 +17,7 @@
  */
 package org.lealone.storage;
 
+import org.lealone.mvstore.FileStore;
 import org.lealone.mvstore.MVMap;
 import org.lealone.mvstore.MVStore;
 import org.lealone.type.DataType;
@@ -38,4 +39,19 @@ public class MVMapBuilder extends StorageMap.BuilderBase {
     public String getMapName(int id) {
         return store.getMapName(id);
     }
+
+    @Override
+    public void sync() {
+        FileStore fileStore = store.getFileStore();
+        if (fileStore == null || fileStore.isReadOnly()) {
+            return;
+        }
+        store.commit();
+        store.sync();
+    }
+
+    @Override
+    public void addStoreListener(StorageMap.StoreListener listener) {
+        store.addStoreListener(listener);
+    }
 }
@@ -20,6 +20,8 @@ import java.util.zip.ZipOutputStream;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.command.ddl.CreateTableData;
+import org.lealone.compress.CompressTool;
+import org.lealone.compress.Compressor;
 import org.lealone.dbobject.index.ValueDataType;
 import org.lealone.dbobject.table.MVTable;
 import org.lealone.dbobject.table.Table;
@@ -112,6 +114,15 @@ public class MVStorageEngine extends StorageEngineBase implements TransactionSto
         byte[] key = db.getFileEncryptionKey();
         String dbPath = db.getDatabasePath();
         MVStore.Builder builder = new MVStore.Builder();
+        if (db.getSettings().concurrentWrites) {
+            builder.concurrentWrites();
+        }
+        if (db.getSettings().lazyPageDecoding) {
+            builder.lazyDecoding();
+        }
+        if (db.getSettings().compactPageKeys) {
+            builder.compactKeys();
+        }
         if (dbPath == null) {
             store = new Store(storageEngine, db, builder);
         } else {
@@ -139,10 +150,20 @@ public class MVStorageEngine extends StorageEngineBase implements TransactionSto
                 builder.encryptionKey(password);
             }
             if (db.getSettings().compressData) {
-                builder.compress();
+                int algorithm = CompressTool.getCompressAlgorithm(db.getSettings().compressAlgorithm);
+                if (algorithm == Compressor.DEFLATE) {
+                    builder.compressHigh();
+                } else if (algorithm == Compressor.LZ4) {
+                    builder.compressLZ4();
+                } else {
+                    builder.compress();
+                }
                 // use a larger page split size to improve the compression ratio
                 builder.pageSplitSize(64 * 1024);
             }
+            if (db.getSettings().adaptiveCompression) {
+                builder.adaptiveCompression();
+            }
             builder.backgroundExceptionHandler(new UncaughtExceptionHandler() {
 
                 @Override
@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore;
+
+import java.nio.ByteBuffer;
+
+import org.lealone.type.DataType;
+import org.lealone.type.LongKeyType;
+import org.lealone.type.WriteBuffer;
+import org.lealone.util.DataUtils;
+
+/**
+ * page的键的紧凑格式，page的类型带有DataUtils.PAGE_COMPACT_KEYS时使用。
+ *
+ * 键之前先写一个字节表示这一页选用的编码:
+ * PLAIN:      键一个一个按原样写
+ * PREFIX:     先写这一页所有键序列化后的公共前缀(varInt长度 + 字节)，
+ *             每个键只写去掉前缀后剩下的部分，前面加上它的长度(varInt)
+ * LONG_DELTA: 键的类型实现了LongKeyType并且这一页的键严格递增时(比如主键索引的row id)，
+ *             先写第一个键(varLong)，之后每个键只写与前一个键的差值(varLong)
+ *
+ * 按entry offsets格式写的page另外保存了每个键的长度，PREFIX就不在每个后缀前写长度了，
+ * 这时前缀之后的第一个键的位置就是entry offsets的起点。
+ */
+final class CompactKeys {
+
+    static final int PLAIN = 0;
+    static final int PREFIX = 1;
+    static final int LONG_DELTA = 2;
+
+    private CompactKeys() {
+    }
+
+    /**
+     * 按这一页的键能用上的最紧凑的编码写键
+     *
+     * @param buff 目标buffer
+     * @param keyType 键的类型
+     * @param keys 键
+     * @param len 键的个数
+     * @param lengths 不为null时是entry offsets格式，记下每个键写出的长度
+     * @return 第一个键的位置
+     */
+    static int write(WriteBuffer buff, DataType keyType, Object[] keys, int len, int[] lengths) {
+        if (isIncreasingLongs(keyType, keys, len)) {
+            LongKeyType t = (LongKeyType) keyType;
+            buff.put((byte) LONG_DELTA);
+            int start = buff.position();
+            long last = 0;
+            for (int i = 0; i < len; i++) {
+                int p = buff.position();
+                long k = t.getLong(keys[i]);
+                // 第一个键与0的差值就是它本身
+                buff.putVarLong(k - last);
+                last = k;
+                if (lengths != null) {
+                    lengths[i] = buff.position() - p;
+                }
+            }
+            return start;
+        }
+
+        // 先把键一个一个写进去，找出公共前缀后再决定要不要改成PREFIX
+        int modePos = buff.position();
+        buff.put((byte) PLAIN);
+        int start = buff.position();
+        int[] ends = new int[len];
+        for (int i = 0; i < len; i++) {
+            keyType.write(buff, keys[i]);
+            ends[i] = buff.position();
+        }
+        int prefix = getCommonPrefixLength(buff.getBuffer(), start, ends, len);
+        // 每个后缀多一个长度，省下的字节要比这些多才值得
+        if (prefix * (len - 1) <= len + DataUtils.getVarIntLen(prefix)) {
+            if (lengths != null) {
+                for (int i = 0, p = start; i < len; i++) {
+                    lengths[i] = ends[i] - p;
+                    p = ends[i];
+                }
+            }
+            return start;
+        }
+        byte[] data = new byte[ends[len - 1] - start];
+        buff.position(start).get(data);
+        buff.position(modePos).put((byte) PREFIX).putVarInt(prefix).put(data, 0, prefix);
+        int keysStart = buff.position();
+        for (int i = 0, p = 0; i < len; i++) {
+            int end = ends[i] - start;
+            int suffix = end - p - prefix;
+            if (lengths == null) {
+                buff.putVarInt(suffix);
+            } else {
+                lengths[i] = suffix;
+            }
+            buff.put(data, p + prefix, suffix);
+            p = end;
+        }
+        return keysStart;
+    }
+
+    private static boolean isIncreasingLongs(DataType keyType, Object[] keys, int len) {
+        if (!(keyType instanceof LongKeyType) || len == 0) {
+            return false;
+        }
+        LongKeyType t = (LongKeyType) keyType;
+        long last = 0;
+        for (int i = 0; i < len; i++) {
+            if (!t.isLongKey(keys[i])) {
+                return false;
+            }
+            long k = t.getLong(keys[i]);
+            if (i > 0 && k <= last) {
+                return false;
+            }
+            last = k;
+        }
+        return true;
+    }
+
+    private static int getCommonPrefixLength(ByteBuffer buff, int start, int[] ends, int len) {
+        if (len < 2) {
+            return 0;
+        }
+        int prefix = ends[0] - start;
+        for (int i = 1; i < len && prefix > 0; i++) {
+            int p = ends[i - 1];
+            int n = Math.min(prefix, ends[i] - p);
+            int j = 0;
+            while (j < n && buff.get(start + j) == buff.get(p + j)) {
+                j++;
+            }
+            prefix = j;
+        }
+        return prefix;
+    }
+
+    /**
+     * 读按紧凑格式写的键
+     *
+     * @param buff 源buffer
+     * @param keyType 键的类型
+     * @param keys 存放键的数组
+     * @param len 键的个数
+     */
+    static void read(ByteBuffer buff, DataType keyType, Object[] keys, int len) {
+        int mode = readMode(buff);
+        if (mode == LONG_DELTA) {
+            readLongKeys(buff, keyType, keys, len);
+        } else if (mode == PREFIX) {
+            byte[] prefix = readPrefix(buff);
+            for (int i = 0; i < len; i++) {
+                keys[i] = readKey(keyType, prefix, buff, DataUtils.readVarInt(buff));
+            }
+        } else {
+            for (int i = 0; i < len; i++) {
+                keys[i] = keyType.read(buff);
+            }
+        }
+    }
+
+    /**
+     * 读编码方式
+     *
+     * @param buff 源buffer
+     * @return PLAIN、PREFIX或LONG_DELTA
+     */
+    static int readMode(ByteBuffer buff) {
+        int mode = buff.get();
+        if (mode != PLAIN && mode != PREFIX && mode != LONG_DELTA) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Unknown key encoding {0}", mode);
+        }
+        return mode;
+    }
+
+    /**
+     * 读PREFIX编码的公共前缀
+     *
+     * @param buff 源buffer
+     * @return 公共前缀
+     */
+    static byte[] readPrefix(ByteBuffer buff) {
+        byte[] prefix = DataUtils.newBytes(DataUtils.readVarInt(buff));
+        buff.get(prefix);
+        return prefix;
+    }
+
+    /**
+     * 把公共前缀和一个键的后缀拼起来再读这个键
+     *
+     * @param keyType 键的类型
+     * @param prefix 公共前缀
+     * @param buff 位置在后缀开头的buffer
+     * @param suffixLength 后缀的长度
+     * @return 键
+     */
+    static Object readKey(DataType keyType, byte[] prefix, ByteBuffer buff, int suffixLength) {
+        byte[] bytes = DataUtils.newBytes(prefix.length + suffixLength);
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        buff.get(bytes, prefix.length, suffixLength);
+        return keyType.read(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 读LONG_DELTA编码的键，差值是连续写的，所以总是一次读完
+     *
+     * @param buff 位置在第一个键的buffer
+     * @param keyType 键的类型
+     * @param keys 存放键的数组
+     * @param len 键的个数
+     */
+    static void readLongKeys(ByteBuffer buff, DataType keyType, Object[] keys, int len) {
+        if (!(keyType instanceof LongKeyType)) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                    "Key type {0} can not read long keys", keyType.getClass().getName());
+        }
+        LongKeyType t = (LongKeyType) keyType;
+        long k = 0;
+        for (int i = 0; i < len; i++) {
+            k += DataUtils.readVarLong(buff);
+            keys[i] = t.createLongKey(k);
+        }
+    }
+}
@@ -18,231 +18,371 @@
 package org.lealone.mvstore;
 
 import java.util.ArrayList;
-import java.util.concurrent.Callable;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.lealone.type.DataType;
 import org.lealone.type.ObjectDataType;
+import org.lealone.util.DataUtils;
+import org.lealone.util.New;
+
+/**
+ * 写操作先缓冲在一个ConcurrentSkipListMap中，由所属MVStore的Merger线程按key的顺序成批合并到B-Tree。
+ * 
+ * 读操作最多查两次: 先查缓冲区，没有再查B-Tree。
+ * 缓冲区中的记录要等包含它的新root生效后才删除，所以两次查找之间不会漏掉任何写操作。
+ */
+public class LockFreeMVMap<K, V> extends MVMap<K, V> {
 
-public class LockFreeMVMap<K, V> extends MVMap<K, V> implements Callable<Void> {
+    /**
+     * 每批最多合并的记录数，同一批中落在同一个叶子page的记录只复制一次这个page
+     */
+    private static final int MERGE_BATCH_SIZE = 4 * 1024;
 
-    private static Merger merger;
-    static {
-        merger = new Merger();
-        merger.start();
-    }
+    /**
+     * 一轮中每个map最多合并的批数，避免一直在合并写入很多的那个map
+     */
+    private static final int MAX_BATCHES_PER_ROUND = 64;
 
-    public static void stopMerger() {
-        merger.stopMerger();
-    }
+    // 估算ConcurrentSkipListMap中每条记录的额外内存
+    private static final int ENTRY_MEMORY = 64;
 
+    private static final int PUT = 0;
+    private static final int PUT_IF_ABSENT = 1;
+    private static final int REPLACE = 2;
+    private static final int REMOVE = 3;
+
+    /**
+     * 写线程确定了写之前的值后ready才为true，在这之前Merger不会合并它，读线程和替换它的写线程要等待。
+     * 
+     * 这样写线程在缓冲区中没找到记录而去查B-Tree时，这个key在B-Tree中的值不会被Merger改掉。
+     */
     private static class ValueHolder<V> {
-        final V value;
+        V value; // 为null时表示删除，ready之后不再改变
+        final int memory;
+        volatile boolean ready;
 
-        ValueHolder(V value) {
+        ValueHolder(V value, int memory) {
             this.value = value;
+            this.memory = memory;
+        }
+
+        V getValue() {
+            while (!ready) {
+                Thread.yield();
+            }
+            return value;
         }
     }
 
-    private volatile ConcurrentSkipListMap<K, ValueHolder<V>> current = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<K, ValueHolder<V>> buffer = new ConcurrentSkipListMap<>();
 
-    //snapshot里的数据是临时只读的
-    private volatile ConcurrentSkipListMap<K, ValueHolder<V>> snapshot;
+    // B-Tree加上缓冲区之后的记录数，写操作时增量维护，不用每次遍历缓冲区
+    private final AtomicLong size = new AtomicLong();
+
+    private Merger merger;
 
     public LockFreeMVMap(DataType keyType, DataType valueType) {
         super(keyType, valueType);
+    }
 
+    @Override
+    protected void init(MVStore store, HashMap<String, Object> config) {
+        super.init(store, config);
+        merger = store.getLockFreeMVMapMerger();
         merger.addMap(this);
     }
 
     @Override
-    public V put(K key, V value) {
-        ValueHolder<V> vh = current.put(key, new ValueHolder<V>(value));
-        if (vh != null)
-            return vh.value;
+    void setRootPos(long rootPos, long version) {
+        super.setRootPos(rootPos, version);
+        // 打开map或回滚store时，缓冲区中还没合并的写操作都比新的root要新，直接丢弃
+        discardBuffer();
+        size.set(super.sizeAsLong());
+    }
 
-        return null;
+    @Override
+    void close() {
+        super.close();
+        if (merger != null) {
+            merger.removeMap(this);
+        }
     }
 
+    // 写操作都先缓冲在buffer中，由Merger单线程合并到B-Tree，不需要并发写
     @Override
-    public V get(Object key) {
-        ValueHolder<V> vh = current.get(key);
-        if (vh != null)
-            return vh.value;
+    protected boolean supportsConcurrentWrites() {
+        return false;
+    }
 
-        if (snapshot != null) {
-            vh = snapshot.get(key);
-            if (vh != null)
-                return vh.value;
-        }
+    @Override
+    public V put(K key, V value) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        return write(key, value, PUT);
+    }
 
+    @Override
+    public V get(Object key) {
+        ValueHolder<V> vh = buffer.get(key);
+        if (vh != null)
+            return vh.getValue();
         return super.get(key);
     }
 
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public V remove(Object key) {
-        //按旧到新的次序找，B-Tree中最旧，其次是snapshot，最新是current
-        V old = super.get(key);
-        if (old != null)
-            current.put((K) key, new ValueHolder<V>(null));
-
-        ValueHolder<V> vh;
-
-        if (snapshot != null) {
-            vh = snapshot.get(key);
-            if (vh != null && vh.value != null) {
-                current.put((K) key, new ValueHolder<V>(null));
-                old = vh.value;
-            }
-        }
-
-        vh = current.remove(key);
-        if (vh != null && vh.value != null)
-            old = vh.value;
-
-        return old;
+        return write((K) key, null, REMOVE);
     }
 
     @Override
-    public V replace(K key, V value) {
-        V old = super.get(key);
-        if (old != null)
-            current.put(key, new ValueHolder<V>(value));
-
-        ValueHolder<V> vh;
-
-        if (snapshot != null) {
-            vh = snapshot.get(key);
-            if (vh != null && vh.value != null) {
-                current.put(key, new ValueHolder<V>(value));
-                old = vh.value;
-            }
-        }
-
-        vh = current.replace(key, new ValueHolder<V>(value));
-        if (vh != null && vh.value != null)
-            old = vh.value;
-
-        return old;
+    public V putIfAbsent(K key, V value) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        return write(key, value, PUT_IF_ABSENT);
     }
 
     @Override
-    public int size() {
-        int size = super.size();
-        size += size(current);
-        size += size(snapshot);
-        return size;
+    public V replace(K key, V value) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        return write(key, value, REPLACE);
     }
 
-    private int size(ConcurrentSkipListMap<K, ValueHolder<V>> map) {
-        if (map == null)
-            return 0;
-        int size = 0;
-        for (ValueHolder<V> vh : map.values()) {
-            if (vh.value != null)
-                size++;
+    @Override
+    public void clear() {
+        synchronized (this) {
+            discardBuffer();
+            super.clear();
+            size.set(0);
         }
-        return size;
     }
 
     @Override
-    public Void call() throws Exception {
-        beginMerge();
-        return null;
+    public long sizeAsLong() {
+        return size.get();
     }
 
-    private void beginMerge() {
-        if (current.isEmpty())
-            return;
+    @Override
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
 
-        snapshot = current;
-        current = new ConcurrentSkipListMap<K, ValueHolder<V>>();
-        merge();
-        snapshot = null;
+    /**
+     * 所有写操作都先无条件放入缓冲区，再确定写之前的值，条件不满足时把写之前的值写回去。
+     * 
+     * 同时维护size和未合并的内存，未合并的内存超出预算时写线程要等待Merger。
+     * 
+     * @return 写之前的值
+     */
+    private V write(K key, V value, int op) {
+        int memory = ENTRY_MEMORY + getKeyType().getMemory(key);
+        if (value != null)
+            memory += getValueType().getMemory(value);
+        ValueHolder<V> vh = new ValueHolder<V>(value, memory);
+        ValueHolder<V> old = buffer.put(key, vh);
+        V oldValue;
+        try {
+            // 没有旧的缓冲记录时，这个key之前的写操作都已经合并到B-Tree了
+            oldValue = old != null ? old.getValue() : super.get(key);
+            if ((op == PUT_IF_ABSENT && oldValue != null) || (op == REPLACE && oldValue == null))
+                vh.value = oldValue;
+        } finally {
+            vh.ready = true;
+        }
+        if (oldValue == null && vh.value != null)
+            size.incrementAndGet();
+        else if (oldValue != null && vh.value == null)
+            size.decrementAndGet();
+        if (old != null)
+            memory -= old.memory;
+        // B-Tree中本来就没有这个key，不用留下删除标记
+        if (old == null && oldValue == null && vh.value == null && buffer.remove(key, vh))
+            memory -= vh.memory;
+        merger.addMemory(memory);
+        // 在map的锁中等待会挡住Merger，比如MVMap.replace(key, oldValue, newValue)
+        if (!Thread.holdsLock(this))
+            merger.throttle();
+        return oldValue;
     }
 
-    private void merge() {
-        beforeWrite();
-
-        long v = writeVersion;
-        Page p = root.copy(v);
-        Object key;
-        Object value;
-
-        for (Entry<K, ValueHolder<V>> e : snapshot.entrySet()) {
-            key = e.getKey();
-            value = e.getValue().value;
-            if (value != null) {
-                p = splitRootIfNeeded(p, v);
-                put(p, v, key, value);
-            } else {
-                remove(p, v, key);
-                if (!p.isLeaf() && p.getTotalCount() == 0) {
-                    p.removePage();
-                    p = Page.createEmpty(this, p.getVersion());
-                }
-            }
+    private void discardBuffer() {
+        for (Map.Entry<K, ValueHolder<V>> e : buffer.entrySet()) {
+            if (buffer.remove(e.getKey(), e.getValue()))
+                merger.addMemory(-e.getValue().memory);
         }
-        newRoot(p);
-        store.commit();
     }
 
-    public static class Merger extends Thread {
-        private static final ExecutorService executorService = Executors.newCachedThreadPool();
+    /**
+     * 把缓冲区中按key排好序的前一批记录合并到B-Tree
+     * 
+     * @return 合并的记录数
+     */
+    private synchronized int merge() {
+        if (buffer.isEmpty() || isClosed())
+            return 0;
+        ArrayList<K> keys = New.arrayList();
+        ArrayList<V> values = New.arrayList();
+        ArrayList<ValueHolder<V>> holders = New.arrayList();
+        for (Map.Entry<K, ValueHolder<V>> e : buffer.entrySet()) {
+            ValueHolder<V> vh = e.getValue();
+            // 写线程还没完成的留到下一批
+            if (!vh.ready)
+                continue;
+            keys.add(e.getKey());
+            values.add(vh.value);
+            holders.add(vh);
+            if (keys.size() >= MERGE_BATCH_SIZE)
+                break;
+        }
+        applyBatch(keys, values);
+        // 新root已经生效，如果期间没有新的写操作替换这条记录就可以删除了
+        for (int i = 0, count = keys.size(); i < count; i++) {
+            ValueHolder<V> vh = holders.get(i);
+            if (buffer.remove(keys.get(i), vh))
+                merger.addMemory(-vh.memory);
+        }
+        return keys.size();
+    }
 
-        private volatile boolean isRunning;
-        private final ArrayList<LockFreeMVMap<?, ?>> maps = new ArrayList<>();
-        private final ArrayList<Future<Void>> futures = new ArrayList<>();
+    /**
+     * 每个MVStore一个Merger线程，负责合并这个MVStore中所有LockFreeMVMap的缓冲区。
+     * 
+     * 除了定期合并，未合并的内存超过预算的一半时马上开始合并，超过预算时写线程要等到Merger把它降下来。
+     */
+    static class Merger extends Thread {
+
+        private final MVStore store;
+        private final long maxMemory;
+        private final long interval;
+        private final ArrayList<LockFreeMVMap<?, ?>> maps = New.arrayList();
+        private final AtomicLong unmergedMemory = new AtomicLong();
+        private final Object sync = new Object();
+        private volatile boolean running = true;
+        private volatile boolean mergeRequested;
+
+        Merger(MVStore store, long maxMemory) {
+            super("LockFreeMVMap merger " + store.getFileStore());
+            this.store = store;
+            this.maxMemory = maxMemory;
+            int delay = store.getAutoCommitDelay();
+            interval = delay > 0 ? delay : 1000;
+            setDaemon(true);
+        }
 
-        public synchronized void addMap(LockFreeMVMap<?, ?> map) {
+        synchronized void addMap(LockFreeMVMap<?, ?> map) {
             maps.add(map);
         }
 
-        public Merger() {
-            super("BTree-Merger");
+        synchronized void removeMap(LockFreeMVMap<?, ?> map) {
+            maps.remove(map);
         }
 
-        @Override
-        public void run() {
-            isRunning = true;
-            long millis = 5 * 60 * 1000; //TODO 可配置
-            while (isRunning) {
-                try {
-                    sleep(millis);
-                } catch (InterruptedException e) {
-                    //e.printStackTrace();
+        private synchronized ArrayList<LockFreeMVMap<?, ?>> getMaps() {
+            return new ArrayList<>(maps);
+        }
+
+        void addMemory(long memory) {
+            long m = unmergedMemory.addAndGet(memory);
+            if (memory > 0 && m > maxMemory / 2 && !mergeRequested) {
+                mergeRequested = true;
+                synchronized (sync) {
+                    sync.notifyAll();
                 }
+            }
+        }
 
-                for (LockFreeMVMap<?, ?> map : maps) {
-                    futures.add(executorService.submit(map));
+        void throttle() {
+            if (unmergedMemory.get() <= maxMemory || Thread.currentThread() == this)
+                return;
+            synchronized (sync) {
+                while (running && unmergedMemory.get() > maxMemory) {
+                    try {
+                        sync.wait(interval);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
                 }
+            }
+        }
 
-                for (Future<Void> f : futures) {
+        @Override
+        public void run() {
+            while (running) {
+                synchronized (sync) {
+                    if (!mergeRequested) {
+                        try {
+                            sync.wait(interval);
+                        } catch (InterruptedException e) {
+                            // ignore
+                        }
+                    }
+                }
+                if (running && mergeAll()) {
                     try {
-                        f.get();
+                        store.commit();
                     } catch (Exception e) {
-                        //e.printStackTrace();
+                        store.handleBackgroundException(e);
                     }
                 }
-
-                futures.clear();
             }
         }
 
-        public void stopMerger() {
-            isRunning = false;
-            interrupt();
-            try {
-                join();
-            } catch (InterruptedException e) {
-                //e.printStackTrace();
+        /**
+         * 合并所有map的缓冲区，每合并一批就唤醒等待的写线程
+         * 
+         * @return 是否合并了记录
+         */
+        boolean mergeAll() {
+            mergeRequested = false;
+            boolean merged = false;
+            for (LockFreeMVMap<?, ?> map : getMaps()) {
+                try {
+                    for (int i = 0; i < MAX_BATCHES_PER_ROUND; i++) {
+                        int count = map.merge();
+                        if (count > 0) {
+                            merged = true;
+                            synchronized (sync) {
+                                sync.notifyAll();
+                            }
+                        }
+                        if (count < MERGE_BATCH_SIZE)
+                            break;
+                    }
+                } catch (Exception e) {
+                    store.handleBackgroundException(e);
+                }
             }
+            return merged;
+        }
 
-            executorService.shutdown();
+        /**
+         * 停止Merger线程
+         * 
+         * @param mergeAll 是否在当前线程中把剩下的缓冲区都合并完
+         */
+        void stopMerger(boolean mergeAll) {
+            running = false;
+            synchronized (sync) {
+                sync.notifyAll();
+            }
+            if (Thread.currentThread() != this) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+            if (mergeAll) {
+                while (unmergedMemory.get() > 0 && mergeAll()) {
+                    // 一轮中每个map最多合并MAX_BATCHES_PER_ROUND批
+                }
+            }
         }
     }
 
@@ -297,4 +437,4 @@ public class LockFreeMVMap<K, V> extends MVMap<K, V> implements Callable<Void> {
             return new LockFreeMVMap<K, V>(keyType, valueType);
         }
     }
-}
\ No newline at end of file
+}
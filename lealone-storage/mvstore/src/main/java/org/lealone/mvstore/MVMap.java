@@ -8,12 +8,15 @@ package org.lealone.mvstore;
 import java.util.AbstractList;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.lealone.storage.StorageMap;
 import org.lealone.type.DataType;
@@ -31,13 +34,28 @@ import org.lealone.util.New;
  * concurrently, and only then modify the data. The in-memory part of write
  * operations is synchronized. For scalable concurrent in-memory write
  * operations, the map should be split into multiple smaller sub-maps that are
- * then synchronized independently.
+ * then synchronized independently, or the store should be opened with
+ * concurrent writes enabled: then each writer copies the path from the root
+ * to the leaf it changes, and installs the new root with a compare-and-swap,
+ * retrying if another writer changed the root in the meantime.
  *
  * @param <K> the key class
  * @param <V> the value class
  */
 public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, StorageMap<K, V> {
 
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MVMap, Page> rootUpdater = AtomicReferenceFieldUpdater
+            .newUpdater(MVMap.class, Page.class, "root");
+
+    // the write operations of the concurrent write mode
+    private static final int PUT = 0;
+    private static final int PUT_IF_ABSENT = 1;
+    private static final int REPLACE = 2;
+    private static final int REPLACE_IF_EQUAL = 3;
+    private static final int REMOVE = 4;
+    private static final int REMOVE_IF_EQUAL = 5;
+
     /**
      * The store.
      */
@@ -63,6 +81,21 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
     private boolean closed;
     private boolean readOnly;
     private boolean isVolatile;
+    private boolean concurrentWrites;
+
+    /**
+     * The compression level of new pages, or -1 to use the level of the store.
+     */
+    private volatile int compressionLevel = -1;
+
+    /**
+     * The number of pages in a row that did not compress well, the number of
+     * pages to write without trying to compress them, and the length of the
+     * current pause. Only used by the thread that stores the pages.
+     */
+    private int poorlyCompressedPages;
+    private int compressionSkip;
+    private int compressionPause;
 
     protected MVMap(DataType keyType, DataType valueType) {
         this.keyType = keyType;
@@ -101,6 +134,29 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         this.id = DataUtils.readHexInt(config, "id", 0);
         this.createVersion = DataUtils.readHexLong(config, "createVersion", 0);
         this.writeVersion = store.getCurrentVersion();
+        // the meta map (id 0) is only changed while the store is locked
+        this.concurrentWrites = store.isConcurrentWrites() && supportsConcurrentWrites() && id != 0;
+    }
+
+    /**
+     * Whether this map can use the concurrent write mode if the store enables
+     * it. Maps that override the write operations with their own buffering
+     * should return false.
+     *
+     * @return true if supported
+     */
+    protected boolean supportsConcurrentWrites() {
+        return true;
+    }
+
+    /**
+     * Whether writers install a new root with a compare-and-swap instead of
+     * synchronizing on this map.
+     *
+     * @return true if the concurrent write mode is used
+     */
+    public boolean isConcurrentWrites() {
+        return concurrentWrites;
     }
 
     /**
@@ -111,9 +167,16 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return the old value if the key existed, or null otherwise
      */
     @Override
-    @SuppressWarnings("unchecked")
-    public synchronized V put(K key, V value) {
+    public V put(K key, V value) {
         DataUtils.checkArgument(value != null, "The value may not be null");
+        if (concurrentWrites) {
+            return update(key, value, null, PUT);
+        }
+        return putSynchronized(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized V putSynchronized(K key, V value) {
         beforeWrite();
         long v = writeVersion;
         Page p = root.copy(v);
@@ -172,6 +235,21 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return the old value, or null
      */
     protected Object put(Page p, long writeVersion, Object key, Object value) {
+        return put(p, writeVersion, key, value, null);
+    }
+
+    /**
+     * Add or update a key-value pair.
+     *
+     * @param p the page
+     * @param writeVersion the write version
+     * @param key the key (may not be null)
+     * @param value the value (may not be null)
+     * @param changes the replaced pages that are removed once the new root is
+     *            installed, or null to remove them at once
+     * @return the old value, or null
+     */
+    private Object put(Page p, long writeVersion, Object key, Object value, Changes changes) {
         int index = p.binarySearch(key);
         if (p.isLeaf()) {
             if (index < 0) {
@@ -187,7 +265,7 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         } else {
             index++;
         }
-        Page c = p.getChildPage(index).copy(writeVersion);
+        Page c = copy(p.getChildPage(index), writeVersion, changes);
         if (c.getMemory() > store.getPageSplitSize() && c.getKeyCount() > 1) {
             // split on the way down
             int at = c.getKeyCount() / 2;
@@ -196,9 +274,9 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
             p.setChild(index, split);
             p.insertNode(index, k, c);
             // now we are not sure where to add
-            return put(p, writeVersion, key, value);
+            return put(p, writeVersion, key, value, changes);
         }
-        Object result = put(c, writeVersion, key, value);
+        Object result = put(c, writeVersion, key, value, changes);
         p.setChild(index, c);
         return result;
     }
@@ -509,7 +587,21 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * Remove all entries.
      */
     @Override
-    public synchronized void clear() {
+    public void clear() {
+        if (concurrentWrites) {
+            beforeWrite();
+            while (true) {
+                Page r = root;
+                if (installRoot(r, Page.createEmpty(this, writeVersion))) {
+                    r.removeAllRecursive();
+                    return;
+                }
+            }
+        }
+        clearSynchronized();
+    }
+
+    private synchronized void clearSynchronized() {
         beforeWrite();
         root.removeAllRecursive();
         newRoot(Page.createEmpty(this, writeVersion));
@@ -537,6 +629,9 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
     @Override
     @SuppressWarnings("unchecked")
     public V remove(Object key) {
+        if (concurrentWrites) {
+            return update(key, null, null, REMOVE);
+        }
         beforeWrite();
         V result = get(key);
         if (result == null) {
@@ -563,7 +658,15 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return the old value if the key existed, or null otherwise
      */
     @Override
-    public synchronized V putIfAbsent(K key, V value) {
+    public V putIfAbsent(K key, V value) {
+        if (concurrentWrites) {
+            DataUtils.checkArgument(value != null, "The value may not be null");
+            return update(key, value, null, PUT_IF_ABSENT);
+        }
+        return putIfAbsentSynchronized(key, value);
+    }
+
+    private synchronized V putIfAbsentSynchronized(K key, V value) {
         V old = get(key);
         if (old == null) {
             put(key, value);
@@ -579,7 +682,14 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return true if the item was removed
      */
     @Override
-    public synchronized boolean remove(Object key, Object value) {
+    public boolean remove(Object key, Object value) {
+        if (concurrentWrites) {
+            return areValuesEqual(update(key, null, value, REMOVE_IF_EQUAL), value);
+        }
+        return removeSynchronized(key, value);
+    }
+
+    private synchronized boolean removeSynchronized(Object key, Object value) {
         V old = get(key);
         if (areValuesEqual(old, value)) {
             remove(key);
@@ -614,7 +724,15 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return true if the value was replaced
      */
     @Override
-    public synchronized boolean replace(K key, V oldValue, V newValue) {
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (concurrentWrites) {
+            DataUtils.checkArgument(newValue != null, "The value may not be null");
+            return areValuesEqual(update(key, newValue, oldValue, REPLACE_IF_EQUAL), oldValue);
+        }
+        return replaceSynchronized(key, oldValue, newValue);
+    }
+
+    private synchronized boolean replaceSynchronized(K key, V oldValue, V newValue) {
         V old = get(key);
         if (areValuesEqual(old, oldValue)) {
             put(key, newValue);
@@ -631,7 +749,15 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return the old value, if the value was replaced, or null
      */
     @Override
-    public synchronized V replace(K key, V value) {
+    public V replace(K key, V value) {
+        if (concurrentWrites) {
+            DataUtils.checkArgument(value != null, "The value may not be null");
+            return update(key, value, null, REPLACE);
+        }
+        return replaceSynchronized(key, value);
+    }
+
+    private synchronized V replaceSynchronized(K key, V value) {
         V old = get(key);
         if (old != null) {
             put(key, value);
@@ -649,6 +775,20 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return the old value, or null if the key did not exist
      */
     protected Object remove(Page p, long writeVersion, Object key) {
+        return remove(p, writeVersion, key, null);
+    }
+
+    /**
+     * Remove a key-value pair.
+     *
+     * @param p the page (may not be null)
+     * @param writeVersion the write version
+     * @param key the key
+     * @param changes the replaced pages that are removed once the new root is
+     *            installed, or null to remove them at once
+     * @return the old value, or null if the key did not exist
+     */
+    private Object remove(Page p, long writeVersion, Object key, Changes changes) {
         int index = p.binarySearch(key);
         Object result = null;
         if (p.isLeaf()) {
@@ -665,8 +805,8 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
             index++;
         }
         Page cOld = p.getChildPage(index);
-        Page c = cOld.copy(writeVersion);
-        result = remove(c, writeVersion, key);
+        Page c = copy(cOld, writeVersion, changes);
+        result = remove(c, writeVersion, key, changes);
         if (result == null || c.getTotalCount() != 0) {
             // no change, or
             // there are more nodes
@@ -675,7 +815,7 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
             // this child was deleted
             if (p.getKeyCount() == 0) {
                 p.setChild(index, c);
-                c.removePage();
+                removePage(c, changes);
             } else {
                 p.remove(index);
             }
@@ -683,6 +823,197 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         return result;
     }
 
+    private static Page copy(Page p, long writeVersion, Changes changes) {
+        if (changes == null) {
+            return p.copy(writeVersion);
+        }
+        return changes.copy(p, writeVersion);
+    }
+
+    private static void removePage(Page p, Changes changes) {
+        if (changes == null) {
+            p.removePage();
+        } else {
+            changes.remove(p);
+        }
+    }
+
+    /**
+     * The pages replaced by a write operation. They are only removed once the
+     * new root is installed, so that a failed attempt does not free pages that
+     * are still in use. Within a batch, a page that was already copied by an
+     * earlier change of the same batch is not visible to anyone else yet, and
+     * is changed in place instead of being copied again.
+     */
+    private static class Changes {
+
+        private final ArrayList<Page> removedPages = New.arrayList();
+
+        /**
+         * The pages copied in this batch, or null if this is not a batch.
+         */
+        private final IdentityHashMap<Page, Page> copiedPages;
+
+        Changes(boolean batch) {
+            copiedPages = batch ? new IdentityHashMap<Page, Page>() : null;
+        }
+
+        Page copy(Page p, long writeVersion) {
+            if (copiedPages != null && copiedPages.containsKey(p)) {
+                return p;
+            }
+            removedPages.add(p);
+            Page c = p.copyWithoutRemove(writeVersion);
+            if (copiedPages != null) {
+                copiedPages.put(c, c);
+            }
+            return c;
+        }
+
+        void remove(Page p) {
+            removedPages.add(p);
+        }
+
+        void removePages() {
+            for (int i = 0, size = removedPages.size(); i < size; i++) {
+                removedPages.get(i).removePage();
+            }
+        }
+    }
+
+    /**
+     * Apply a write operation in the concurrent write mode. The current root is
+     * used as a snapshot: the decision whether to write is made on the value
+     * found there, the path to the leaf is copied, and the new root is
+     * installed only if the root is still the same, otherwise everything is
+     * done again. The replaced pages are removed only after that, so that a
+     * failed attempt does not free pages that are still in use.
+     *
+     * @param key the key
+     * @param value the new value, or null for the remove operations
+     * @param expected the expected old value of REPLACE_IF_EQUAL and
+     *            REMOVE_IF_EQUAL
+     * @param op the operation
+     * @return the old value found in the snapshot; for the *_IF_EQUAL
+     *         operations the write was done if it is equal to the expected
+     *         value
+     */
+    @SuppressWarnings("unchecked")
+    private V update(Object key, V value, Object expected, int op) {
+        beforeWrite();
+        while (true) {
+            // read the root before the write version, so that the root never
+            // gets an older version than the one it replaces
+            Page r = root;
+            long v = writeVersion;
+            // a plain put does not need to look at the old value first
+            V old = op == PUT ? null : (V) binarySearch(r, key);
+            switch (op) {
+            case PUT_IF_ABSENT:
+                if (old != null) {
+                    return old;
+                }
+                break;
+            case REPLACE:
+            case REMOVE:
+                if (old == null) {
+                    return null;
+                }
+                break;
+            case REPLACE_IF_EQUAL:
+                if (!areValuesEqual(old, expected)) {
+                    return old;
+                }
+                break;
+            case REMOVE_IF_EQUAL:
+                if (old == null || !areValuesEqual(old, expected)) {
+                    return old;
+                }
+                break;
+            default:
+                break;
+            }
+            Changes changes = new Changes(false);
+            Page p = changes.copy(r, v);
+            if (value != null) {
+                p = splitRootIfNeeded(p, v);
+                Object result = put(p, v, key, value, changes);
+                if (op == PUT) {
+                    old = (V) result;
+                }
+            } else {
+                remove(p, v, key, changes);
+                if (!p.isLeaf() && p.getTotalCount() == 0) {
+                    changes.remove(p);
+                    p = Page.createEmpty(this, p.getVersion());
+                }
+            }
+            if (installRoot(r, p)) {
+                changes.removePages();
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Apply a batch of changes and install the new root once at the end. The
+     * keys must be sorted: every page on the way to a leaf is copied only for
+     * the first key that reaches it, the following keys that fall into the
+     * same leaf change that copy in place. This must not be called
+     * concurrently with other write operations on this map.
+     *
+     * @param keys the sorted keys
+     * @param values the new values, null to remove the key
+     */
+    protected void applyBatch(List<K> keys, List<V> values) {
+        beforeWrite();
+        long v = writeVersion;
+        Changes changes = new Changes(true);
+        Page p = changes.copy(root, v);
+        for (int i = 0, size = keys.size(); i < size; i++) {
+            Object key = keys.get(i);
+            Object value = values.get(i);
+            if (value != null) {
+                p = splitRootIfNeeded(p, v);
+                put(p, v, key, value, changes);
+            } else {
+                remove(p, v, key, changes);
+                if (!p.isLeaf() && p.getTotalCount() == 0) {
+                    changes.remove(p);
+                    p = Page.createEmpty(this, p.getVersion());
+                }
+            }
+        }
+        newRoot(p);
+        changes.removePages();
+    }
+
+    /**
+     * Replace the root page with a compare-and-swap.
+     *
+     * @param oldRoot the expected current root
+     * @param newRoot the new root
+     * @return false if the root was changed by another writer
+     */
+    private boolean installRoot(Page oldRoot, Page newRoot) {
+        if (oldRoot.getVersion() == newRoot.getVersion()) {
+            return rootUpdater.compareAndSet(this, oldRoot, newRoot);
+        }
+        // a new version starts: this happens once per version only,
+        // so synchronizing keeps the old roots sorted by version cheaply
+        synchronized (oldRoots) {
+            if (!rootUpdater.compareAndSet(this, oldRoot, newRoot)) {
+                return false;
+            }
+            removeUnusedOldVersions();
+            Page last = oldRoots.peekLast();
+            if (last == null || last.getVersion() != oldRoot.getVersion()) {
+                oldRoots.add(oldRoot);
+            }
+            return true;
+        }
+    }
+
     /**
      * Use the new root page from now on.
      *
@@ -1035,6 +1366,65 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         return isVolatile;
     }
 
+    /**
+     * Set the compression level for new pages of this map, for example to
+     * compress large or rarely changed data while leaving frequently written
+     * maps uncompressed. The level is not persisted.
+     *
+     * @param level 0 for disabled, 1 for fast, 2 for high, 3 for LZ4, or -1
+     *            to use the level of the store
+     */
+    public void setCompressionLevel(int level) {
+        DataUtils.checkArgument(level >= -1 && level <= 3, "Unsupported compression level {0}", level);
+        compressionLevel = level;
+    }
+
+    /**
+     * Get the compression level for new pages of this map.
+     *
+     * @return the level of this map if set, otherwise the level of the store
+     */
+    public int getCompressionLevel() {
+        int level = compressionLevel;
+        return level < 0 ? store.getCompressionLevel() : level;
+    }
+
+    /**
+     * Check whether the next page should be written without trying to
+     * compress it, because the previous pages did not compress well.
+     *
+     * @return true if compression should be skipped
+     */
+    boolean skipCompression() {
+        if (compressionSkip == 0) {
+            return false;
+        }
+        compressionSkip--;
+        return true;
+    }
+
+    /**
+     * Record how well a page compressed. With adaptive compression, after 8
+     * pages in a row did not get at least 1/8 smaller, the next 16 pages are
+     * not compressed; the pause doubles (up to 1024 pages) while the page
+     * written after it does not compress well either.
+     *
+     * @param length the length of the page data
+     * @param compressedLength the length after compression
+     */
+    void pageCompressed(int length, int compressedLength) {
+        if (!store.isAdaptiveCompression()) {
+            return;
+        }
+        if (compressedLength <= length - length / 8) {
+            poorlyCompressedPages = 0;
+            compressionPause = 0;
+        } else if (++poorlyCompressedPages >= 8) {
+            compressionPause = compressionPause == 0 ? 16 : Math.min(compressionPause * 2, 1024);
+            compressionSkip = compressionPause;
+        }
+    }
+
     /**
      * This method is called before writing to the map. The default
      * implementation checks whether writing is allowed, and tries
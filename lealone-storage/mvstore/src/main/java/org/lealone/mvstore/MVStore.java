@@ -18,8 +18,10 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.lealone.compress.CompressDeflate;
+import org.lealone.compress.CompressLZ4;
 import org.lealone.compress.CompressLZF;
 import org.lealone.compress.Compressor;
 import org.lealone.mvstore.Page.PageChildren;
@@ -68,7 +70,6 @@ MVStore:
     use a transaction log where only the deltas are stored
 - serialization for lists, sets, sets, sorted sets, maps, sorted maps
 - maybe rename 'rollback' to 'revert' to distinguish from transactions
-- support other compression algorithms (deflate, LZ4,...)
 - remove features that are not really needed; simplify the code
     possibly using a separate layer or tools
     (retainVersion?)
@@ -97,7 +98,6 @@ MVStore:
     internally uses regular maps and merge sort
 - chunk metadata: maybe split into static and variable,
     or use a small page size for metadata
-- data type "string": maybe use prefix compression for keys
 - test chunk id rollover
 - feature to auto-compact from time to time and on close
 - compact very small chunks
@@ -209,14 +209,59 @@ public class MVStore {
 
     /**
      * The compression level for new pages (0 for disabled, 1 for fast, 2 for
-     * high). Even if disabled, the store may contain (old) compressed pages.
+     * high, 3 for LZ4). Even if disabled, the store may contain (old)
+     * compressed pages. A map may use its own level.
      */
     private final int compressionLevel;
 
+    /**
+     * Whether maps stop trying to compress their pages for a while after a
+     * number of pages did not compress well.
+     */
+    private final boolean adaptiveCompression;
+
+    /**
+     * Whether the maps of this store install their new root with a
+     * compare-and-swap instead of synchronizing all writers.
+     */
+    private final boolean concurrentWrites;
+
+    /**
+     * Whether new pages are written with the offset of every entry, so that
+     * reading them only decodes the entries that are accessed.
+     */
+    private final boolean lazyDecoding;
+
+    /**
+     * Whether the keys of new pages are written without the prefix they share,
+     * or as the difference to the previous key.
+     */
+    private final boolean compactKeys;
+
+    /**
+     * The maximum memory (in bytes) of the writes buffered by the
+     * LockFreeMVMaps of this store that are not merged yet.
+     */
+    private final long mergeBufferMemory;
+
+    /**
+     * The thread that merges the buffered writes of the LockFreeMVMaps, if any
+     * such map was opened.
+     */
+    private volatile LockFreeMVMap.Merger lockFreeMVMapMerger;
+
+    /**
+     * The listeners that are called before and after the changes are stored.
+     */
+    private final CopyOnWriteArrayList<StorageMap.StoreListener> storeListeners =
+            new CopyOnWriteArrayList<StorageMap.StoreListener>();
+
     private Compressor compressorFast;
 
     private Compressor compressorHigh;
 
+    private Compressor compressorLZ4;
+
     private final UncaughtExceptionHandler backgroundExceptionHandler;
 
     private long currentVersion;
@@ -280,6 +325,12 @@ public class MVStore {
     MVStore(HashMap<String, Object> config) {
         Object o = config.get("compress");
         this.compressionLevel = o == null ? 0 : (Integer) o;
+        this.adaptiveCompression = config.containsKey("adaptiveCompression");
+        this.concurrentWrites = config.containsKey("concurrentWrites");
+        this.lazyDecoding = config.containsKey("lazyDecoding");
+        this.compactKeys = config.containsKey("compactKeys");
+        o = config.get("mergeBufferSize");
+        this.mergeBufferMemory = (o == null ? 16 * 1024 : (Integer) o) * 1024L;
         String fileName = (String) config.get("fileName");
         o = config.get("pageSplitSize");
         if (o == null) {
@@ -769,6 +820,7 @@ public class MVStore {
         if (closed) {
             return;
         }
+        stopLockFreeMVMapMerger(true);
         if (fileStore != null && !fileStore.isReadOnly()) {
             stopBackgroundThread();
             if (hasUnsavedChanges()) {
@@ -800,6 +852,7 @@ public class MVStore {
         // the thread also synchronized on this, which
         // could result in a deadlock
         stopBackgroundThread();
+        stopLockFreeMVMapMerger(false);
         closed = true;
         if (fileStore == null) {
             return;
@@ -900,6 +953,11 @@ public class MVStore {
      * @return the new version
      */
     public long commit() {
+        LockFreeMVMap.Merger merger = lockFreeMVMapMerger;
+        if (merger != null && Thread.currentThread() != merger) {
+            // the writes buffered before the commit are part of it
+            merger.mergeAll();
+        }
         if (fileStore != null) {
             return commitAndSave();
         }
@@ -917,7 +975,27 @@ public class MVStore {
      *
      * @return the new version (incremented if there were changes)
      */
-    private synchronized long commitAndSave() {
+    private long commitAndSave() {
+        if (storeListeners.isEmpty()) {
+            return commitAndSaveSynchronized();
+        }
+        // the listeners may write to other maps, so they are called before
+        // the store is locked (except when compacting, which already writes
+        // to the maps while the store is locked); whatever they write is
+        // stored together with the changes they are called for
+        for (StorageMap.StoreListener listener : storeListeners) {
+            listener.beforeStore();
+        }
+        try {
+            return commitAndSaveSynchronized();
+        } finally {
+            for (StorageMap.StoreListener listener : storeListeners) {
+                listener.afterStore();
+            }
+        }
+    }
+
+    private synchronized long commitAndSaveSynchronized() {
         if (closed) {
             return currentVersion;
         }
@@ -1889,10 +1967,79 @@ public class MVStore {
         return compressorHigh;
     }
 
+    Compressor getCompressorLZ4() {
+        if (compressorLZ4 == null) {
+            compressorLZ4 = new CompressLZ4();
+        }
+        return compressorLZ4;
+    }
+
     int getCompressionLevel() {
         return compressionLevel;
     }
 
+    boolean isAdaptiveCompression() {
+        return adaptiveCompression;
+    }
+
+    public boolean isConcurrentWrites() {
+        return concurrentWrites;
+    }
+
+    boolean isLazyDecoding() {
+        return lazyDecoding;
+    }
+
+    boolean isCompactKeys() {
+        return compactKeys;
+    }
+
+    /**
+     * Get the merger of the LockFreeMVMaps of this store, and start it if this
+     * is the first such map.
+     *
+     * @return the merger
+     */
+    synchronized LockFreeMVMap.Merger getLockFreeMVMapMerger() {
+        if (lockFreeMVMapMerger == null) {
+            lockFreeMVMapMerger = new LockFreeMVMap.Merger(this, mergeBufferMemory);
+            lockFreeMVMapMerger.start();
+        }
+        return lockFreeMVMapMerger;
+    }
+
+    /**
+     * Add a listener that is called before and after the changes are stored.
+     *
+     * @param listener the listener
+     */
+    public void addStoreListener(StorageMap.StoreListener listener) {
+        storeListeners.add(listener);
+    }
+
+    private void stopLockFreeMVMapMerger(boolean mergeAll) {
+        LockFreeMVMap.Merger merger;
+        synchronized (this) {
+            merger = lockFreeMVMapMerger;
+            lockFreeMVMapMerger = null;
+        }
+        if (merger != null) {
+            merger.stopMerger(mergeAll);
+        }
+    }
+
+    /**
+     * Pass an exception of a background operation to the exception handler,
+     * if there is one.
+     *
+     * @param e the exception
+     */
+    void handleBackgroundException(Exception e) {
+        if (backgroundExceptionHandler != null) {
+            backgroundExceptionHandler.uncaughtException(null, e);
+        }
+    }
+
     public int getPageSplitSize() {
         return pageSplitSize;
     }
@@ -2678,6 +2825,90 @@ public class MVStore {
             return set("compress", 2);
         }
 
+        /**
+         * Compress data before writing using the LZ4 algorithm. This will save
+         * about as much disk space as LZF, but reading is faster.
+         * <p>
+         * This setting only affects writes; it is not necessary to enable
+         * compression when reading, even if compression was enabled when
+         * writing.
+         *
+         * @return this
+         */
+        public Builder compressLZ4() {
+            return set("compress", 3);
+        }
+
+        /**
+         * Stop trying to compress the pages of a map for a while after a number
+         * of its pages in a row did not get at least 1/8 smaller. The pause
+         * doubles every time the first page written after it does not
+         * compress well either. This saves the compression time for maps with
+         * data that is already compressed or random.
+         *
+         * @return this
+         */
+        public Builder adaptiveCompression() {
+            return set("adaptiveCompression", 1);
+        }
+
+        /**
+         * Let multiple threads write to the same map concurrently. Each writer
+         * copies the path from the root to the leaf it changes, and installs
+         * the new root with a compare-and-swap, retrying if the root was
+         * changed in the meantime. Writes to disjoint keys then scale with the
+         * number of threads, while writes to the same leaf retry more often.
+         *
+         * @return this
+         */
+        public Builder concurrentWrites() {
+            return set("concurrentWrites", 1);
+        }
+
+        /**
+         * Set the maximum memory, in KB, of the writes buffered by the
+         * LockFreeMVMaps of this store that are not merged into the maps yet.
+         * The merge starts early when half of it is used, and writers wait
+         * when all of it is used.
+         * <p>
+         * The default is 16 MB.
+         *
+         * @param kb the buffer size, in kilobytes
+         * @return this
+         */
+        public Builder mergeBufferSize(int kb) {
+            return set("mergeBufferSize", kb);
+        }
+
+        /**
+         * Write new pages with the length of every key and value. A page read
+         * from disk then keeps the serialized entries and only decodes the
+         * keys compared during a search and the values that are returned, so
+         * that point reads allocate less and the cache holds more pages. Pages
+         * written without this option can still be read. Files written with
+         * it can not be read by versions that do not support it.
+         *
+         * @return this
+         */
+        public Builder lazyDecoding() {
+            return set("lazyDecoding", 1);
+        }
+
+        /**
+         * Write the keys of new pages in a compact form. If the key type
+         * implements LongKeyType and the keys of a page are increasing longs,
+         * such as row ids, only the difference to the previous key is stored.
+         * Otherwise, the bytes that all serialized keys of a page start with
+         * are stored once. The meta map is not affected. Pages written without
+         * this option can still be read. Files written with it can not be read
+         * by versions that do not support it.
+         *
+         * @return this
+         */
+        public Builder compactKeys() {
+            return set("compactKeys", 1);
+        }
+
         /**
          * Set the amount of memory a page should contain at most, in bytes,
          * before it is split. The default is 16 KB for persistent stores and 4
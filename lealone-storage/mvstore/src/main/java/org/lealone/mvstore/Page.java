@@ -26,11 +26,15 @@ import org.lealone.util.New;
  * check value: short
  * map id: varInt
  * number of keys: varInt
- * type: byte (0: leaf, 1: node; +2: compressed)
+ * type: byte (0: leaf, 1: node; +2: compressed, +4: high compression, +32:
+ * LZ4; +8: entry offsets; +16: compact keys)
  * compressed: bytes saved (varInt)
  * keys
  * leaf: values (one for each key)
  * node: children (1 more than keys)
+ * entry offsets: the length of each key, then of each value (varInt), and
+ * the start of these lengths relative to the first key (int)
+ * compact keys: the keys start with their encoding, see CompactKeys
  */
 public class Page {
 
@@ -79,6 +83,25 @@ public class Page {
      */
     private PageReference[] children;
 
+    /**
+     * The serialized keys and values if the page was read in the format with
+     * entry offsets, otherwise null. A key or value that is still null in its
+     * array is decoded from this buffer on first access.
+     */
+    private ByteBuffer entryBuff;
+
+    /**
+     * The position of each key, and for leaves then of each value, in the
+     * entry buffer.
+     */
+    private int[] entryOffsets;
+
+    /**
+     * The prefix shared by all serialized keys, if the page was read in the
+     * format with entry offsets and the keys were written without it.
+     */
+    private byte[] keyPrefix;
+
     /**
      * Whether the page is an in-memory (not stored, or not yet stored) page,
      * and it is removed. This is to keep track of pages that concurrently
@@ -144,13 +167,18 @@ public class Page {
      * @return the page
      */
     public static Page create(MVMap<?, ?> map, long version, Page source) {
+        source.decodeAll();
         Page p = new Page(map, version);
         // the position is 0
         p.keys = source.keys;
         p.values = source.values;
         p.children = source.children;
         p.totalCount = source.totalCount;
-        p.memory = source.memory;
+        if (source.entryBuff == null) {
+            p.memory = source.memory;
+        } else {
+            p.recalculateMemory();
+        }
         MVStore store = map.store;
         if (store != null) {
             store.registerUnsavedPage(p.memory);
@@ -198,7 +226,11 @@ public class Page {
      * @return the key
      */
     public Object getKey(int index) {
-        return keys[index];
+        Object k = keys[index];
+        if (k == null) {
+            k = decodeKey(index);
+        }
+        return k;
     }
 
     /**
@@ -229,7 +261,58 @@ public class Page {
      * @return the value
      */
     public Object getValue(int index) {
-        return values[index];
+        Object v = values[index];
+        if (v == null && entryBuff != null) {
+            v = decodeValue(index);
+        }
+        return v;
+    }
+
+    private Object decodeKey(int index) {
+        // the buffer is shared by all readers of the page
+        ByteBuffer buff = entryBuff.duplicate();
+        buff.position(entryOffsets[index]);
+        Object k;
+        if (keyPrefix == null) {
+            k = map.getKeyType().read(buff);
+        } else {
+            int suffixLength = entryOffsets[index + 1] - entryOffsets[index];
+            k = CompactKeys.readKey(map.getKeyType(), keyPrefix, buff, suffixLength);
+        }
+        // another reader may have decoded the same entry concurrently;
+        // only count it once in the rare case the race is seen
+        if (keys[index] == null) {
+            keys[index] = k;
+            addMemory(map.getKeyType().getMemory(k));
+        }
+        return k;
+    }
+
+    private Object decodeValue(int index) {
+        ByteBuffer buff = entryBuff.duplicate();
+        buff.position(entryOffsets[keys.length + index]);
+        Object v = map.getValueType().read(buff);
+        if (values[index] == null) {
+            values[index] = v;
+            addMemory(map.getValueType().getMemory(v));
+        }
+        return v;
+    }
+
+    /**
+     * Decode all entries that were not accessed yet, before the arrays are
+     * shared with a copy of this page.
+     */
+    private void decodeAll() {
+        if (entryBuff == null) {
+            return;
+        }
+        for (int i = 0, len = keys.length; i < len; i++) {
+            getKey(i);
+            if (values != null) {
+                getValue(i);
+            }
+        }
     }
 
     /**
@@ -277,10 +360,10 @@ public class Page {
                 buff.append("[" + Long.toHexString(children[i].pos) + "] ");
             }
             if (i < keys.length) {
-                buff.append(keys[i]);
+                buff.append(getKey(i));
                 if (values != null) {
                     buff.append(':');
-                    buff.append(values[i]);
+                    buff.append(getValue(i));
                 }
             }
         }
@@ -294,9 +377,23 @@ public class Page {
      * @return a page with the given version
      */
     public Page copy(long version) {
-        Page newPage = create(map, version, keys, values, children, totalCount, getMemory());
+        Page newPage = copyWithoutRemove(version);
         // mark the old as deleted
         removePage();
+        return newPage;
+    }
+
+    /**
+     * Create a copy of this page, without marking this page as removed. The
+     * caller has to call removePage() once the copy is actually used.
+     *
+     * @param version the new version
+     * @return a page with the given version
+     */
+    Page copyWithoutRemove(long version) {
+        decodeAll();
+        // the copy only counts the decoded entries
+        Page newPage = create(map, version, keys, values, children, totalCount, entryBuff == null ? getMemory() : 0);
         newPage.cachedCompare = cachedCompare;
         return newPage;
     }
@@ -323,7 +420,11 @@ public class Page {
         }
         Object[] k = keys;
         while (low <= high) {
-            int compare = map.compare(key, k[x]);
+            Object kx = k[x];
+            if (kx == null) {
+                kx = decodeKey(x);
+            }
+            int compare = map.compare(key, kx);
             if (compare > 0) {
                 low = x + 1;
             } else if (compare < 0) {
@@ -459,7 +560,10 @@ public class Page {
             PageReference ref = new PageReference(null, 0, 0);
             children[index] = ref;
             totalCount -= oldCount;
-        } else if (c != children[index].page || c.getPos() != children[index].pos) {
+        } else if (c != children[index].page || c.getPos() != children[index].pos
+                || c.totalCount != children[index].count) {
+            // the count differs if the child was changed in place, see
+            // MVMap.applyBatch
             long oldCount = children[index].count;
             // this is slightly slower:
             // children = Arrays.copyOf(children, children.length);
@@ -663,7 +767,9 @@ public class Page {
         boolean compressed = (type & DataUtils.PAGE_COMPRESSED) != 0;
         if (compressed) {
             Compressor compressor;
-            if ((type & DataUtils.PAGE_COMPRESSED_HIGH) == DataUtils.PAGE_COMPRESSED_HIGH) {
+            if ((type & DataUtils.PAGE_COMPRESSED_LZ4) == DataUtils.PAGE_COMPRESSED_LZ4) {
+                compressor = map.getStore().getCompressorLZ4();
+            } else if ((type & DataUtils.PAGE_COMPRESSED_HIGH) == DataUtils.PAGE_COMPRESSED_HIGH) {
                 compressor = map.getStore().getCompressorHigh();
             } else {
                 compressor = map.getStore().getCompressorFast();
@@ -676,12 +782,45 @@ public class Page {
             buff = ByteBuffer.allocate(l);
             compressor.expand(comp, 0, compLen, buff.array(), buff.arrayOffset(), l);
         }
-        map.getKeyType().read(buff, keys, len, true);
         if (!node) {
             values = new Object[len];
-            map.getValueType().read(buff, values, len, false);
             totalCount = len;
         }
+        boolean compactKeys = (type & DataUtils.PAGE_COMPACT_KEYS) != 0;
+        if ((type & DataUtils.PAGE_ENTRY_OFFSETS) != 0) {
+            int keyMode = compactKeys ? CompactKeys.readMode(buff) : CompactKeys.PLAIN;
+            if (keyMode == CompactKeys.PREFIX) {
+                keyPrefix = CompactKeys.readPrefix(buff);
+            }
+            // only the offsets are read, the entries are decoded on demand;
+            // the last offset is the end of the last entry
+            int dataStart = buff.position();
+            buff.position(dataStart + buff.getInt(buff.limit() - 4));
+            int[] offsets = new int[(node ? len : 2 * len) + 1];
+            int p = dataStart;
+            for (int i = 0; i < offsets.length - 1; i++) {
+                offsets[i] = p;
+                p += DataUtils.readVarInt(buff);
+            }
+            offsets[offsets.length - 1] = p;
+            entryOffsets = offsets;
+            entryBuff = buff;
+            if (keyMode == CompactKeys.LONG_DELTA) {
+                // each difference depends on the previous key
+                ByteBuffer keyBuff = buff.duplicate();
+                keyBuff.position(dataStart);
+                CompactKeys.readLongKeys(keyBuff, map.getKeyType(), keys, len);
+            }
+        } else {
+            if (compactKeys) {
+                CompactKeys.read(buff, map.getKeyType(), keys, len);
+            } else {
+                map.getKeyType().read(buff, keys, len, true);
+            }
+            if (!node) {
+                map.getValueType().read(buff, values, len, false);
+            }
+        }
         recalculateMemory();
     }
 
@@ -696,9 +835,17 @@ public class Page {
         int start = buff.position();
         int len = keys.length;
         int type = children != null ? DataUtils.PAGE_TYPE_NODE : DataUtils.PAGE_TYPE_LEAF;
+        MVStore store = map.getStore();
+        // the flags are not part of the position
+        int flags = store.isLazyDecoding() ? DataUtils.PAGE_ENTRY_OFFSETS : 0;
+        // the meta map keeps plain keys, so that MVStoreTool can read them
+        boolean compactKeys = store.isCompactKeys() && map.getId() != 0;
+        if (compactKeys) {
+            flags += DataUtils.PAGE_COMPACT_KEYS;
+        }
         buff.putInt(0).putShort((byte) 0).putVarInt(map.getId()).putVarInt(len);
         int typePos = buff.position();
-        buff.put((byte) type);
+        buff.put((byte) (type + flags));
         if (type == DataUtils.PAGE_TYPE_NODE) {
             writeChildren(buff);
             for (int i = 0; i <= len; i++) {
@@ -706,31 +853,42 @@ public class Page {
             }
         }
         int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, len, true);
-        if (type == DataUtils.PAGE_TYPE_LEAF) {
-            map.getValueType().write(buff, values, len, false);
+        if ((flags & DataUtils.PAGE_ENTRY_OFFSETS) == 0) {
+            if (compactKeys) {
+                CompactKeys.write(buff, map.getKeyType(), keys, len, null);
+            } else {
+                map.getKeyType().write(buff, keys, len, true);
+            }
+            if (type == DataUtils.PAGE_TYPE_LEAF) {
+                map.getValueType().write(buff, values, len, false);
+            }
+        } else {
+            writeWithEntryOffsets(buff, len, compactKeys);
         }
-        MVStore store = map.getStore();
         int expLen = buff.position() - compressStart;
         if (expLen > 16) {
-            int compressionLevel = store.getCompressionLevel();
-            if (compressionLevel > 0) {
+            int compressionLevel = map.getCompressionLevel();
+            if (compressionLevel > 0 && !map.skipCompression()) {
                 Compressor compressor;
                 int compressType;
                 if (compressionLevel == 1) {
                     compressor = map.getStore().getCompressorFast();
                     compressType = DataUtils.PAGE_COMPRESSED;
-                } else {
+                } else if (compressionLevel == 2) {
                     compressor = map.getStore().getCompressorHigh();
                     compressType = DataUtils.PAGE_COMPRESSED_HIGH;
+                } else {
+                    compressor = map.getStore().getCompressorLZ4();
+                    compressType = DataUtils.PAGE_COMPRESSED_LZ4;
                 }
                 byte[] exp = new byte[expLen];
                 buff.position(compressStart).get(exp);
                 byte[] comp = new byte[expLen * 2];
                 int compLen = compressor.compress(exp, expLen, comp, 0);
                 int plus = DataUtils.getVarIntLen(compLen - expLen);
+                map.pageCompressed(expLen, compLen + plus);
                 if (compLen + plus < expLen) {
-                    buff.position(typePos).put((byte) (type + compressType));
+                    buff.position(typePos).put((byte) (type + flags + compressType));
                     buff.position(compressStart).putVarInt(expLen - compLen).put(comp, 0, compLen);
                 }
             }
@@ -764,6 +922,43 @@ public class Page {
         return typePos + 1;
     }
 
+    /**
+     * Write the keys and values one by one, followed by the length of each, so
+     * that a reader can decode a single entry without the others.
+     *
+     * @param buff the target buffer
+     * @param len the number of keys
+     * @param compactKeys whether the keys are written in the compact format
+     */
+    private void writeWithEntryOffsets(WriteBuffer buff, int len, boolean compactKeys) {
+        int[] lengths = new int[values == null ? len : 2 * len];
+        DataType keyType = map.getKeyType();
+        int dataStart;
+        if (compactKeys) {
+            dataStart = CompactKeys.write(buff, keyType, keys, len, lengths);
+        } else {
+            dataStart = buff.position();
+            for (int i = 0; i < len; i++) {
+                int p = buff.position();
+                keyType.write(buff, keys[i]);
+                lengths[i] = buff.position() - p;
+            }
+        }
+        if (values != null) {
+            DataType valueType = map.getValueType();
+            for (int i = 0; i < len; i++) {
+                int p = buff.position();
+                valueType.write(buff, values[i]);
+                lengths[len + i] = buff.position() - p;
+            }
+        }
+        int tableStart = buff.position() - dataStart;
+        for (int l : lengths) {
+            buff.putVarInt(l);
+        }
+        buff.putInt(tableStart);
+    }
+
     private void writeChildren(WriteBuffer buff) {
         int len = keys.length;
         for (int i = 0; i <= len; i++) {
@@ -864,6 +1059,32 @@ public class Page {
 
     private void recalculateMemory() {
         int mem = DataUtils.PAGE_MEMORY;
+        if (entryBuff != null) {
+            // the serialized entries, and the offset and array slot of each,
+            // plus the entries decoded so far
+            mem += entryBuff.capacity() + entryOffsets.length * 12;
+            if (keyPrefix != null) {
+                mem += keyPrefix.length;
+            }
+            DataType keyType = map.getKeyType();
+            for (Object k : keys) {
+                if (k != null) {
+                    mem += keyType.getMemory(k);
+                }
+            }
+            if (isLeaf()) {
+                DataType valueType = map.getValueType();
+                for (Object v : values) {
+                    if (v != null) {
+                        mem += valueType.getMemory(v);
+                    }
+                }
+            } else {
+                mem += this.getRawChildPageCount() * DataUtils.PAGE_MEMORY_CHILD;
+            }
+            addMemory(mem - memory);
+            return;
+        }
         DataType keyType = map.getKeyType();
         for (int i = 0; i < keys.length; i++) {
             mem += keyType.getMemory(keys[i]);
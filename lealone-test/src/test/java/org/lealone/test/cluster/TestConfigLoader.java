@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.cluster;
+
+import org.lealone.cluster.config.Config;
+import org.lealone.cluster.config.ConfigurationLoader;
+import org.lealone.cluster.config.DatabaseDescriptor;
+
+//不读lealone.yaml，只给单元测试用到DatabaseDescriptor的类提供一份最小的配置，
+//所有测试在同一个JVM中运行，配置只会加载一次，所以每个测试都用这个类
+public class TestConfigLoader implements ConfigurationLoader {
+    @Override
+    public Config loadConfig() {
+        Config config = new Config();
+        config.run_mode = Config.RunMode.client_server;
+        config.listen_address = "127.0.0.1";
+        return config;
+    }
+
+    public static void load() {
+        System.setProperty("lealone.config.loader", TestConfigLoader.class.getName());
+        DatabaseDescriptor.loadConfig();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.cluster.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.lealone.cluster.io.BufferedDataOutputStreamPlus;
+import org.lealone.test.UnitTestBase;
+
+//对照java.io.DataOutputStream的输出，检查缓冲区边界附近、超过缓冲区大小的写入和flush的次数
+public class BufferedDataOutputStreamPlusTest extends UnitTestBase {
+    // 和OutboundTcpConnection.sendMessage一样的帧头，加上不同长度的消息体
+    static final int FRAMES = 20;
+
+    @Test
+    public void run() throws Exception {
+        testFrameBoundaries();
+        testPartialChannelWrites();
+        testLargeWrites();
+        testOneWritePerFlush();
+    }
+
+    // 缓冲区大小从只能放下一个long到比一帧还大，写出的字节都和DataOutputStream一样，
+    // flush之前留在缓冲区中没写出的数据不超过缓冲区大小
+    void testFrameBoundaries() throws IOException {
+        byte[] expected = expectedFrames();
+        for (int size = 8; size <= 48; size++) {
+            RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+            BufferedDataOutputStreamPlus out = new BufferedDataOutputStreamPlus(channel, size);
+            writeFrames(out);
+            assertTrue(expected.length - channel.bytes.size() <= size);
+            out.flush();
+            assertTrue("size=" + size, Arrays.equals(expected, channel.bytes.toByteArray()));
+            assertTrue(channel.isOpen());
+            out.close();
+            assertFalse(channel.isOpen());
+
+            RecordingStream stream = new RecordingStream();
+            out = new BufferedDataOutputStreamPlus(stream, size);
+            writeFrames(out);
+            assertTrue(expected.length - stream.size() <= size);
+            out.flush();
+            assertTrue("size=" + size, Arrays.equals(expected, stream.toByteArray()));
+            assertEquals(1, stream.flushes);
+        }
+    }
+
+    // channel一次只写出一部分时要写完整个缓冲区
+    void testPartialChannelWrites() throws IOException {
+        RecordingChannel channel = new RecordingChannel(3);
+        BufferedDataOutputStreamPlus out = new BufferedDataOutputStreamPlus(channel, 16);
+        writeFrames(out);
+        out.write(new byte[100]);
+        out.flush();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(expected);
+        writeFrames(dout);
+        dout.write(new byte[100]);
+        assertTrue(Arrays.equals(expected.toByteArray(), channel.bytes.toByteArray()));
+    }
+
+    // 超过缓冲区大小的byte[]和ByteBuffer不经过缓冲区直接写出，但要排在缓冲区中已有的数据后面，
+    // ByteBuffer的position不能变
+    void testLargeWrites() throws IOException {
+        byte[] large = new byte[100];
+        for (int i = 0; i < large.length; i++)
+            large[i] = (byte) i;
+        ByteBuffer heap = ByteBuffer.wrap(large);
+        heap.position(10);
+        ByteBuffer direct = ByteBuffer.allocateDirect(large.length);
+        direct.put(large);
+        direct.position(20);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            expected.write(1);
+            expected.write(2);
+            expected.write(large, 0, large.length);
+            expected.write(large, 10, 90);
+            expected.write(large, 20, 80);
+            // 刚好等于缓冲区大小的写入还是经过缓冲区
+            expected.write(large, 0, 16);
+        }
+
+        RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+        writeLarge(new BufferedDataOutputStreamPlus(channel, 16), large, heap, direct);
+        assertTrue(Arrays.equals(expected.toByteArray(), channel.bytes.toByteArray()));
+        assertTrue(channel.writes.contains(100));
+
+        RecordingStream stream = new RecordingStream();
+        writeLarge(new BufferedDataOutputStreamPlus(stream, 16), large, heap, direct);
+        assertTrue(Arrays.equals(expected.toByteArray(), stream.toByteArray()));
+        // 堆内存的ByteBuffer把数组整块交给下层的OutputStream
+        assertTrue(stream.writes.contains(90));
+
+        assertEquals(10, heap.position());
+        assertEquals(20, direct.position());
+    }
+
+    // OutboundTcpConnection把合并窗口内收到的一批消息写完后只flush一次，
+    // 只要这批消息能放进缓冲区，下层就只收到一次写入
+    void testOneWritePerFlush() throws IOException {
+        byte[] expected = expectedFrames();
+        RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+        BufferedDataOutputStreamPlus out = new BufferedDataOutputStreamPlus(channel, 64 * 1024);
+        writeFrames(out);
+        assertEquals(0, channel.writes.size());
+        out.flush();
+        assertEquals(1, channel.writes.size());
+        assertTrue(Arrays.equals(expected, channel.bytes.toByteArray()));
+
+        // 空的缓冲区flush时不写出
+        out.flush();
+        assertEquals(1, channel.writes.size());
+
+        RecordingStream stream = new RecordingStream();
+        out = new BufferedDataOutputStreamPlus(stream, 64 * 1024);
+        writeFrames(out);
+        assertEquals(0, stream.writes.size());
+        out.flush();
+        out.flush();
+        assertEquals(1, stream.writes.size());
+        assertEquals(2, stream.flushes);
+    }
+
+    static void writeLarge(BufferedDataOutputStreamPlus out, byte[] large, ByteBuffer heap, ByteBuffer direct)
+            throws IOException {
+        for (int i = 0; i < 3; i++) {
+            out.write(1);
+            out.write(2);
+            out.write(large);
+            out.write(heap);
+            out.write(direct);
+            out.write(large, 0, 16);
+        }
+        out.flush();
+    }
+
+    static byte[] expectedFrames() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeFrames(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    static void writeFrames(DataOutput out) throws IOException {
+        for (int i = 0; i < FRAMES; i++) {
+            out.writeInt(0xCA552DFA);
+            out.writeInt(i);
+            out.writeInt(i * 1000);
+            out.writeBoolean(i % 2 == 0);
+            out.writeShort(i);
+            out.writeLong(Long.MAX_VALUE - i);
+            out.writeUTF("frame" + i);
+            byte[] body = new byte[i * 3];
+            Arrays.fill(body, (byte) i);
+            out.writeInt(body.length);
+            out.write(body);
+        }
+    }
+
+    // 每次最多写出maxPerWrite个字节，记录每次写出的长度
+    static class RecordingChannel implements WritableByteChannel {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<Integer> writes = new ArrayList<>();
+        final int maxPerWrite;
+        boolean open = true;
+
+        RecordingChannel(int maxPerWrite) {
+            this.maxPerWrite = maxPerWrite;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int len = Math.min(src.remaining(), maxPerWrite);
+            for (int i = 0; i < len; i++)
+                bytes.write(src.get());
+            writes.add(len);
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    static class RecordingStream extends ByteArrayOutputStream {
+        final List<Integer> writes = new ArrayList<>();
+        int flushes;
+
+        @Override
+        public synchronized void write(int b) {
+            writes.add(1);
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes.add(len);
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.cluster.locator;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.cluster.config.DatabaseDescriptor;
+import org.lealone.cluster.dht.Murmur3Partitioner.LongToken;
+import org.lealone.cluster.dht.Token;
+import org.lealone.cluster.locator.AbstractReplicationStrategy;
+import org.lealone.cluster.locator.IEndpointSnitch;
+import org.lealone.cluster.locator.SimpleSnitch;
+import org.lealone.cluster.locator.SimpleStrategy;
+import org.lealone.cluster.locator.TokenMetaData;
+import org.lealone.test.UnitTestBase;
+
+//AbstractReplicationStrategy通过ReplicaRing查找副本，结果要和原来直接在token环上计算的一样，
+//token环或pending ranges变化后整体换成新的ReplicaRing
+public class ReplicaRingTest extends UnitTestBase {
+    static final String KEYSPACE = "ReplicaRingTest";
+    static final int NODES = 8;
+    static final int TOKENS_PER_NODE = 16;
+
+    final Random random = new Random(20150101);
+    IEndpointSnitch oldSnitch;
+    TokenMetaData metadata;
+    AbstractReplicationStrategy strategy;
+    List<Token> lookupTokens;
+
+    @Test
+    public void run() throws Exception {
+        // TokenMetaData记录节点的机架和数据中心时要用到snitch，测试中不加载集群的配置
+        oldSnitch = DatabaseDescriptor.getEndpointSnitch();
+        DatabaseDescriptor.setEndpointSnitch(new SimpleSnitch());
+        try {
+            metadata = new TokenMetaData();
+            Map<String, String> options = new HashMap<>();
+            options.put("replication_factor", "3");
+            strategy = new SimpleStrategy(KEYSPACE, metadata, new SimpleSnitch(), options);
+
+            testEmptyRing();
+            for (int n = 1; n <= NODES; n++)
+                metadata.updateNormalTokens(randomTokens(TOKENS_PER_NODE), endpoint(n));
+            lookupTokens = lookupTokens();
+
+            testSameAsOldLookup();
+            testRingChange();
+            testPendingRanges();
+            testConcurrentSwap();
+        } finally {
+            DatabaseDescriptor.setEndpointSnitch(oldSnitch);
+        }
+    }
+
+    void testEmptyRing() {
+        Token t = new LongToken(0);
+        assertTrue(strategy.getCachedNaturalEndpoints(t).isEmpty());
+        assertTrue(strategy.getWriteEndpoints(t).isEmpty());
+    }
+
+    // 包括环上的每个token、相邻的token、最小的token和比最大的token还大的token
+    void testSameAsOldLookup() throws Exception {
+        assertLookup();
+        List<InetAddress> list = strategy.getWriteEndpoints(lookupTokens.get(0));
+        try {
+            list.add(endpoint(100));
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // 共享的列表不能修改
+        }
+        // getNaturalEndpoints返回的是副本，可以修改
+        strategy.getNaturalEndpoints(lookupTokens.get(0)).add(endpoint(100));
+        assertLookup();
+    }
+
+    // 加入节点后第一次查找就用新的token环，副本没变的token继续用原来的列表对象
+    void testRingChange() throws Exception {
+        Map<Token, List<InetAddress>> before = naturalEndpoints();
+        long version = metadata.getRingVersion();
+        InetAddress newNode = endpoint(NODES + 1);
+        metadata.updateNormalTokens(randomTokens(TOKENS_PER_NODE), newNode);
+        assertTrue(metadata.getRingVersion() > version);
+        assertLookup();
+
+        int reused = 0;
+        int changed = 0;
+        for (Token t : lookupTokens) {
+            List<InetAddress> list = strategy.getCachedNaturalEndpoints(t);
+            if (list.contains(newNode))
+                changed++;
+            else if (list == before.get(t))
+                reused++;
+        }
+        assertTrue(changed > 0);
+        assertTrue(reused > 0);
+
+        // 节点离开后回到原来的副本
+        metadata.removeEndpoint(newNode);
+        assertLookup();
+        for (Token t : lookupTokens)
+            assertEquals(before.get(t), strategy.getCachedNaturalEndpoints(t));
+    }
+
+    // 只有pending ranges变了时token环部分直接复用，写操作要加上正在加入的节点
+    void testPendingRanges() throws Exception {
+        Map<Token, List<InetAddress>> before = naturalEndpoints();
+        long ringVersion = metadata.getRingVersion();
+        long pendingRangesVersion = metadata.getPendingRangesVersion();
+
+        InetAddress bootstrapNode = endpoint(NODES + 2);
+        Collection<Token> bootstrapTokens = randomTokens(TOKENS_PER_NODE);
+        metadata.addBootstrapTokens(bootstrapTokens, bootstrapNode);
+        metadata.calculatePendingRanges(strategy, KEYSPACE);
+        assertEquals(ringVersion, metadata.getRingVersion());
+        assertTrue(metadata.getPendingRangesVersion() > pendingRangesVersion);
+        assertLookup();
+
+        int pending = 0;
+        for (Token t : lookupTokens) {
+            assertSame(before.get(t), strategy.getCachedNaturalEndpoints(t));
+            List<InetAddress> write = strategy.getWriteEndpoints(t);
+            if (write.contains(bootstrapNode)) {
+                pending++;
+                assertEquals(before.get(t).size() + 1, write.size());
+            } else {
+                assertSame(before.get(t), write);
+            }
+        }
+        assertTrue(pending > 0);
+
+        // 加入完成后变成自然副本，不再有pending节点
+        metadata.updateNormalTokens(bootstrapTokens, bootstrapNode);
+        metadata.calculatePendingRanges(strategy, KEYSPACE);
+        assertTrue(metadata.getPendingRanges(KEYSPACE).isEmpty());
+        assertLookup();
+        for (Token t : lookupTokens)
+            assertSame(strategy.getCachedNaturalEndpoints(t), strategy.getWriteEndpoints(t));
+
+        metadata.removeEndpoint(bootstrapNode);
+        metadata.calculatePendingRanges(strategy, KEYSPACE);
+        assertLookup();
+    }
+
+    // 一个线程不断加入和移除节点，其他线程查找时只能看到变化前或变化后的完整结果，
+    // 变化停止后所有线程都用最新的token环
+    void testConcurrentSwap() throws Exception {
+        final Map<Token, List<InetAddress>> without = naturalEndpoints();
+        final InetAddress node = endpoint(NODES + 3);
+        final Collection<Token> tokens = randomTokens(TOKENS_PER_NODE);
+        metadata.updateNormalTokens(tokens, node);
+        final Map<Token, List<InetAddress>> with = naturalEndpoints();
+        metadata.removeEndpoint(node);
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch started = new CountDownLatch(4);
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        while (!stop.get()) {
+                            for (Token t : lookupTokens) {
+                                List<InetAddress> list = strategy.getWriteEndpoints(t);
+                                if (!list.equals(without.get(t)) && !list.equals(with.get(t)))
+                                    throw new AssertionError(t + ": " + list);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            t.start();
+            readers.add(t);
+        }
+        started.await();
+        for (int i = 0; i < 50; i++) {
+            metadata.updateNormalTokens(tokens, node);
+            Thread.sleep(1);
+            metadata.removeEndpoint(node);
+            Thread.sleep(1);
+        }
+        metadata.updateNormalTokens(tokens, node);
+        stop.set(true);
+        for (Thread t : readers)
+            t.join();
+        assertNull(error.get());
+
+        for (Token t : lookupTokens)
+            assertEquals(with.get(t), strategy.getWriteEndpoints(t));
+        assertLookup();
+    }
+
+    // 原来的查找方式：每次在token环上计算自然副本，再加上pending节点
+    void assertLookup() {
+        TokenMetaData tm = metadata.cloneOnlyTokenMap();
+        for (Token t : lookupTokens) {
+            List<InetAddress> natural = strategy.calculateNaturalEndpoints(t, tm);
+            assertEquals(natural, strategy.getCachedNaturalEndpoints(t));
+            assertEquals(natural, strategy.getNaturalEndpoints(t));
+
+            Collection<InetAddress> pending = metadata.pendingEndpointsFor(t, KEYSPACE);
+            List<InetAddress> write = strategy.getWriteEndpoints(t);
+            // 自然副本在前，pending节点的顺序不固定，不能有重复的节点
+            assertEquals(natural, write.subList(0, natural.size()));
+            HashSet<InetAddress> expected = new HashSet<>(natural);
+            expected.addAll(pending);
+            assertEquals(expected, new HashSet<>(write));
+            assertEquals(expected.size(), write.size());
+        }
+    }
+
+    Map<Token, List<InetAddress>> naturalEndpoints() {
+        Map<Token, List<InetAddress>> map = new HashMap<>();
+        for (Token t : lookupTokens)
+            map.put(t, strategy.getCachedNaturalEndpoints(t));
+        return map;
+    }
+
+    List<Token> lookupTokens() {
+        List<Token> list = new ArrayList<>();
+        list.add(new LongToken(Long.MIN_VALUE));
+        list.add(new LongToken(Long.MAX_VALUE));
+        for (Token t : metadata.sortedTokens()) {
+            long v = (Long) t.getTokenValue();
+            list.add(t);
+            list.add(new LongToken(v - 1));
+            list.add(new LongToken(v + 1));
+        }
+        for (int i = 0; i < 1000; i++)
+            list.add(new LongToken(random.nextLong()));
+        return list;
+    }
+
+    Collection<Token> randomTokens(int count) {
+        List<Token> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            tokens.add(new LongToken(random.nextLong()));
+        return tokens;
+    }
+
+    static InetAddress endpoint(int n) throws Exception {
+        return InetAddress.getByName("127.0.1." + n);
+    }
+}
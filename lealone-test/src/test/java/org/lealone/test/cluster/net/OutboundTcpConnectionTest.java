@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.cluster.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.lealone.cluster.net.OutboundTcpConnection;
+import org.lealone.test.UnitTestBase;
+import org.lealone.test.cluster.TestConfigLoader;
+
+//run()每次取出一批消息，在合并窗口内等待更多的消息，这一批写完后只flush一次
+public class OutboundTcpConnectionTest extends UnitTestBase {
+    static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+    @Test
+    public void run() throws Exception {
+        // 加载OutboundTcpConnection时要用到DatabaseDescriptor中的配置
+        TestConfigLoader.load();
+
+        testWindowExpires();
+        testMaxMessages();
+        testLateMessages();
+    }
+
+    // 窗口内没有新消息时等到窗口结束，窗口内到达的消息都放进同一批
+    void testWindowExpires() throws Exception {
+        BlockingQueue<Integer> backlog = new LinkedBlockingQueue<>();
+        List<Integer> drained = new ArrayList<>(Arrays.asList(0));
+        long start = System.nanoTime();
+        OutboundTcpConnection.coalesce(backlog, drained, 128, TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(Arrays.asList(0), drained);
+
+        Thread producer = produce(backlog, 1, 5, 2);
+        drained = new ArrayList<>(Arrays.asList(0));
+        OutboundTcpConnection.coalesce(backlog, drained, 128, WINDOW);
+        producer.join();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), drained);
+        assertTrue(backlog.isEmpty());
+    }
+
+    // 一批最多maxMessages个消息，够了就不再等，剩下的留给下一批
+    void testMaxMessages() throws Exception {
+        BlockingQueue<Integer> backlog = new LinkedBlockingQueue<>();
+        for (int i = 1; i <= 10; i++)
+            backlog.put(i);
+        List<Integer> drained = new ArrayList<>(Arrays.asList(0));
+        long start = System.nanoTime();
+        OutboundTcpConnection.coalesce(backlog, drained, 4, WINDOW);
+        assertTrue(System.nanoTime() - start < WINDOW);
+        assertEquals(Arrays.asList(0, 1, 2, 3), drained);
+        assertEquals(7, backlog.size());
+
+        // 已经够了就不等
+        drained = new ArrayList<>(Arrays.asList(0, 1, 2, 3));
+        start = System.nanoTime();
+        OutboundTcpConnection.coalesce(backlog, drained, 4, WINDOW);
+        assertTrue(System.nanoTime() - start < WINDOW);
+        assertEquals(4, drained.size());
+        assertEquals(7, backlog.size());
+    }
+
+    // 窗口结束后到达的消息放到下一批
+    void testLateMessages() throws Exception {
+        BlockingQueue<Integer> backlog = new LinkedBlockingQueue<>();
+        Thread producer = produce(backlog, 1, 2, 150);
+        List<Integer> drained = new ArrayList<>(Arrays.asList(0));
+        OutboundTcpConnection.coalesce(backlog, drained, 128, WINDOW);
+        producer.join();
+        assertEquals(Arrays.asList(0, 1), drained);
+        assertEquals(Arrays.asList(2), new ArrayList<>(backlog));
+    }
+
+    // 从first开始每隔intervalMillis放一个消息
+    static Thread produce(final BlockingQueue<Integer> backlog, final int first, final int last,
+            final long intervalMillis) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = first; i <= last; i++) {
+                        Thread.sleep(intervalMillis);
+                        backlog.put(i);
+                    }
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.cluster.router;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+import org.lealone.api.ErrorCode;
+import org.lealone.cluster.config.DatabaseDescriptor;
+import org.lealone.cluster.net.MessagingService;
+import org.lealone.cluster.router.HintedHandOffManager;
+import org.lealone.cluster.router.SQLRequest;
+import org.lealone.cluster.router.SQLVerbHandler;
+import org.lealone.engine.ConnectionInfo;
+import org.lealone.engine.Constants;
+import org.lealone.message.DbException;
+import org.lealone.test.UnitTestBase;
+import org.lealone.test.cluster.TestConfigLoader;
+import org.lealone.transaction.Transaction;
+import org.lealone.value.Value;
+import org.lealone.value.ValueInt;
+
+public class HintedHandOffManagerTest extends UnitTestBase {
+    static final String URL = Constants.URL_PREFIX + Constants.URL_MEM + Constants.URL_EMBED + "HintedHandOffTest";
+    // 发给目标节点的请求中是目标节点的URL，这里的目标节点就是本地已经打开的内存数据库
+    static final String TARGET_URL = Constants.URL_PREFIX + Constants.URL_TCP + "//127.0.0.2:5210/HintedHandOffTest";
+
+    TestManager manager;
+    TestHandler handler;
+    Connection conn;
+    Statement stmt;
+    InetAddress target;
+    ConnectionInfo ci;
+    int nextValue;
+
+    @Test
+    public void run() throws Exception {
+        TestConfigLoader.load();
+
+        conn = DriverManager.getConnection(URL, "sa", "");
+        stmt = conn.createStatement();
+        stmt.executeUpdate("CREATE USER IF NOT EXISTS hint_user PASSWORD 'secret' ADMIN");
+        stmt.executeUpdate("DROP TABLE IF EXISTS hints");
+        stmt.executeUpdate("DROP TABLE IF EXISTS HintTarget");
+        stmt.executeUpdate("CREATE TABLE HintTarget(f1 int PRIMARY KEY)");
+
+        Properties info = new Properties();
+        info.setProperty("user", "hint_user");
+        info.setProperty("password", "secret");
+        ci = new ConnectionInfo(URL, info);
+        target = InetAddress.getByName("127.0.0.2");
+        handler = new TestHandler();
+        manager = new TestManager(handler);
+        manager.init(conn);
+        // 目标节点存活时保存hint后会马上在后台重放，测试中只在需要时调用deliverHints
+        manager.alive = false;
+
+        testRecord();
+        testRollback();
+        testRollbackToSavepoint();
+        testMaxHintWindow();
+        testReplay();
+        testHasHints();
+        testHintVerb();
+
+        stmt.close();
+        conn.close();
+    }
+
+    // 自动提交时马上保存，保存的hint中没有用户的凭证
+    void testRecord() throws Exception {
+        manager.hint(newTransaction(true, null), newHints());
+        assertEquals(1, countHints());
+
+        ResultSet rs = stmt.executeQuery("SELECT target, request FROM hints");
+        assertTrue(rs.next());
+        assertEquals("127.0.0.2", rs.getString(1));
+        byte[] bytes = rs.getBytes(2);
+        rs.close();
+        assertFalse(contains(bytes, ci.getUserPasswordHash()));
+        SQLRequest request = SQLRequest.fromBytes(bytes);
+        assertFalse(request.hasCredentials());
+        assertNull(request.userPasswordHash);
+        assertNull(request.filePasswordHash);
+        assertNull(request.fileEncryptionKey);
+        assertEquals("hint_user", request.userName.toLowerCase());
+        assertEquals(1, request.parameters.length);
+        stmt.executeUpdate("DELETE FROM hints");
+    }
+
+    // 事务中的hint等提交时才保存，回滚时丢弃
+    void testRollback() throws Exception {
+        List<Transaction.Participant> participants = new ArrayList<>();
+        manager.hint(newTransaction(false, participants), newHints());
+        assertEquals(0, countHints());
+        participants.get(0).rollbackTransaction();
+        participants.get(0).commitTransaction("t1");
+        assertEquals(0, countHints());
+
+        participants.clear();
+        manager.hint(newTransaction(false, participants), newHints());
+        participants.get(0).commitTransaction("t2");
+        assertEquals(1, countHints());
+        stmt.executeUpdate("DELETE FROM hints");
+    }
+
+    // 只丢弃保存点之后产生的hint
+    void testRollbackToSavepoint() throws Exception {
+        List<Transaction.Participant> participants = new ArrayList<>();
+        Transaction t = newTransaction(false, participants);
+        manager.hint(t, newHints());
+        // 保存点之前加入的参与者会收到addSavepoint
+        participants.get(0).addSavepoint("sp");
+        manager.hint(t, newHints());
+        for (Transaction.Participant p : participants)
+            p.rollbackToSavepoint("sp");
+        for (Transaction.Participant p : participants)
+            p.commitTransaction("t3");
+        assertEquals(1, countHints());
+        stmt.executeUpdate("DELETE FROM hints");
+    }
+
+    void testMaxHintWindow() {
+        int window = DatabaseDescriptor.getMaxHintWindow();
+        assertTrue(HintedHandOffManager.shouldHint(0));
+        assertTrue(HintedHandOffManager.shouldHint(window));
+        assertFalse(HintedHandOffManager.shouldHint(window + 1L));
+    }
+
+    // 重放成功或者语句本身出错的hint都会删掉，节点没有响应时留到下次
+    void testReplay() throws Exception {
+        for (int i = 0; i < 3; i++)
+            manager.hint(newTransaction(true, null), newHints());
+        assertEquals(3, countHints());
+
+        assertFalse(manager.deliverHints(target));
+        assertEquals(3, countHints());
+        manager.alive = true;
+
+        manager.error = DbException.get(ErrorCode.CONNECTION_BROKEN_1, "timeout");
+        assertFalse(manager.deliverHints(target));
+        assertEquals(3, countHints());
+        manager.error = null;
+
+        assertTrue(manager.deliverHints(target));
+        assertEquals(0, countHints());
+        assertEquals(3, manager.sent);
+        // 目标节点上用原来的用户执行
+        ResultSet rs = stmt.executeQuery("SELECT count(*) FROM HintTarget");
+        rs.next();
+        assertEquals(3, rs.getInt(1));
+        rs.close();
+
+        // 再放一次会主键冲突，这种hint直接丢弃
+        stmt.executeUpdate("DELETE FROM HintTarget");
+        stmt.executeUpdate("INSERT INTO HintTarget VALUES(" + nextValue + ")");
+        manager.alive = false;
+        manager.hint(newTransaction(true, null), newHints());
+        manager.alive = true;
+        assertTrue(manager.deliverHints(target));
+        assertEquals(0, countHints());
+        assertEquals(3, manager.sent);
+        manager.alive = false;
+    }
+
+    // 有hint没重放完时hasHints为true，P2PRouter据此把后续写操作也记成hint，全部重放完后才恢复直接发送
+    void testHasHints() throws Exception {
+        assertFalse(manager.hasHints(target));
+        manager.hint(newTransaction(true, null), newHints());
+        assertTrue(manager.hasHints(target));
+
+        // 重放中途超时，hint还在
+        manager.alive = true;
+        manager.error = DbException.get(ErrorCode.CONNECTION_BROKEN_1, "timeout");
+        assertFalse(manager.deliverHints(target));
+        assertTrue(manager.hasHints(target));
+        manager.error = null;
+
+        // 排在后面的写操作按保存的顺序重放
+        manager.alive = false;
+        manager.hint(newTransaction(true, null), newHints());
+        manager.alive = true;
+        int sent = manager.sent;
+        assertTrue(manager.deliverHints(target));
+        assertEquals(sent + 2, manager.sent);
+        assertEquals(Arrays.asList(nextValue - 2, nextValue - 1), manager.values.subList(sent, sent + 2));
+        assertFalse(manager.hasHints(target));
+        assertEquals(0, countHints());
+        manager.alive = false;
+
+        // 重新打开hints表时从表中恢复还有hint的节点
+        manager.hint(newTransaction(true, null), newHints());
+        TestManager other = new TestManager(handler);
+        other.init(conn);
+        assertTrue(other.hasHints(target));
+        stmt.executeUpdate("DELETE FROM hints");
+    }
+
+    // 没有凭证的请求只能通过SQL_HINT从token环中的节点发来，并且只能是INSERT/MERGE ... VALUES
+    void testHintVerb() throws Exception {
+        SQLRequest request = newRequest("hint_user").withoutCredentials();
+        assertException(ErrorCode.WRONG_USER_OR_PASSWORD, MessagingService.Verb.SQL_UPDATE, request);
+        assertException(ErrorCode.WRONG_USER_OR_PASSWORD, MessagingService.Verb.SQL_QUERY, request);
+
+        handler.member = false;
+        assertException(ErrorCode.NOT_ENOUGH_RIGHTS_FOR_1, MessagingService.Verb.SQL_HINT, request);
+        handler.member = true;
+
+        assertException(ErrorCode.WRONG_USER_OR_PASSWORD, MessagingService.Verb.SQL_HINT,
+                newRequest("unknown_user").withoutCredentials());
+        assertException(ErrorCode.NOT_ENOUGH_RIGHTS_FOR_1, MessagingService.Verb.SQL_HINT,
+                newRequest("hint_user", "DROP TABLE HintTarget").withoutCredentials());
+        assertException(ErrorCode.NOT_ENOUGH_RIGHTS_FOR_1, MessagingService.Verb.SQL_HINT,
+                newRequest("hint_user", "CREATE USER evil PASSWORD 'evil' ADMIN").withoutCredentials());
+        assertException(ErrorCode.NOT_ENOUGH_RIGHTS_FOR_1, MessagingService.Verb.SQL_HINT,
+                newRequest("hint_user", "INSERT INTO HintTarget SELECT f1 + ? FROM HintTarget")
+                        .withoutCredentials());
+        // 一次只能准备一条语句
+        assertException(ErrorCode.SYNTAX_ERROR_1, MessagingService.Verb.SQL_HINT,
+                newRequest("hint_user", "INSERT INTO HintTarget VALUES(?); DROP TABLE HintTarget")
+                        .withoutCredentials());
+
+        // 密码不对的请求不管是哪种verb都拒绝
+        Properties info = new Properties();
+        info.setProperty("user", "hint_user");
+        info.setProperty("password", "wrong");
+        request = new SQLRequest(new ConnectionInfo(URL, info), TARGET_URL, new Properties(), "SELECT 1",
+                new Value[0], 0);
+        assertException(ErrorCode.WRONG_USER_OR_PASSWORD, MessagingService.Verb.SQL_QUERY, request);
+
+        ResultSet rs = stmt.executeQuery("SELECT count(*) FROM INFORMATION_SCHEMA.USERS WHERE NAME='EVIL'");
+        rs.next();
+        assertEquals(0, rs.getInt(1));
+        rs.close();
+        int count = handler.execute(MessagingService.Verb.SQL_HINT, newRequest("hint_user").withoutCredentials(),
+                target).getUpdateCount();
+        assertEquals(1, count);
+    }
+
+    void assertException(int errorCode, MessagingService.Verb verb, SQLRequest request) {
+        try {
+            handler.execute(verb, request, target).getUpdateCount();
+            fail();
+        } catch (DbException e) {
+            assertEquals(errorCode, e.getErrorCode());
+        }
+    }
+
+    int countHints() throws Exception {
+        ResultSet rs = stmt.executeQuery("SELECT count(*) FROM hints");
+        rs.next();
+        int count = rs.getInt(1);
+        rs.close();
+        return count;
+    }
+
+    Map<InetAddress, SQLRequest> newHints() {
+        return Collections.singletonMap(target, newRequest("hint_user"));
+    }
+
+    SQLRequest newRequest(String userName) {
+        return newRequest(userName, "INSERT INTO HintTarget VALUES(?)");
+    }
+
+    SQLRequest newRequest(String userName, String sql) {
+        Properties info = new Properties();
+        info.setProperty("user", userName);
+        info.setProperty("password", "secret");
+        Value[] parameters = sql.indexOf('?') < 0 ? new Value[0] : new Value[] { ValueInt.get(nextValue++) };
+        return new SQLRequest(new ConnectionInfo(URL, info), TARGET_URL, new Properties(), sql, parameters, 0);
+    }
+
+    static boolean contains(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            int j = 0;
+            while (j < part.length && bytes[i + j] == part[j])
+                j++;
+            if (j == part.length)
+                return true;
+        }
+        return false;
+    }
+
+    // 只实现hint用到的两个方法
+    static Transaction newTransaction(final boolean autoCommit, final List<Transaction.Participant> participants) {
+        return (Transaction) Proxy.newProxyInstance(Transaction.class.getClassLoader(),
+                new Class<?>[] { Transaction.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("isAutoCommit"))
+                            return autoCommit;
+                        if (method.getName().equals("addParticipant")) {
+                            participants.add((Transaction.Participant) args[0]);
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    // 所有节点都在token环中，测试时可以改成false
+    static class TestHandler extends SQLVerbHandler {
+        volatile boolean member = true;
+
+        @Override
+        protected boolean isRingMember(InetAddress endpoint) {
+            return member;
+        }
+    }
+
+    // 不经过FailureDetector和MessagingService，直接在本地用SQLVerbHandler执行
+    static class TestManager extends HintedHandOffManager {
+        final TestHandler handler;
+        final List<Integer> values = new ArrayList<>();
+        volatile boolean alive = true;
+        volatile DbException error;
+        int sent;
+
+        TestManager(TestHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        protected boolean isAlive(InetAddress target) {
+            return alive;
+        }
+
+        @Override
+        protected void send(InetAddress target, SQLRequest request) {
+            if (error != null)
+                throw error;
+            handler.execute(MessagingService.Verb.SQL_HINT, request, target).getUpdateCount();
+            values.add(request.parameters[0].getInt());
+            sent++;
+        }
+    }
+}
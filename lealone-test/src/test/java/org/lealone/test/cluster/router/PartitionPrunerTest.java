@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.cluster.router;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.lealone.cluster.dht.ByteOrderedPartitioner;
+import org.lealone.cluster.dht.Token;
+import org.lealone.cluster.router.PartitionPruner;
+import org.lealone.engine.Constants;
+import org.lealone.test.UnitTestBase;
+import org.lealone.value.Value;
+import org.lealone.value.ValueInt;
+import org.lealone.value.ValueLong;
+import org.lealone.value.ValueShort;
+
+//5个节点，每个token区间有2个副本(拥有这个token的节点和它的下一个节点)，每个节点是一个内存数据库
+public class PartitionPrunerTest extends UnitTestBase {
+    static final int NODES = 5;
+    static final int MAX_KEY = 600;
+
+    final List<Token> ring = new ArrayList<>();
+    final List<InetAddress> endpoints = new ArrayList<>();
+    final Set<InetAddress> dead = new HashSet<>();
+    final Connection[] nodes = new Connection[NODES];
+
+    final PartitionPruner.Replicas replicas = new PartitionPruner.Replicas() {
+        @Override
+        public Token getToken(Value key) {
+            return ByteOrderedPartitioner.instance.getToken(ByteBuffer.wrap(key.getBytesNoCopy()));
+        }
+
+        @Override
+        public List<InetAddress> getNaturalEndpoints(Token token) {
+            int i = 0;
+            while (i < ring.size() && ring.get(i).compareTo(token) < 0)
+                i++;
+            if (i == ring.size())
+                i = 0;
+            return Arrays.asList(endpoints.get(i), endpoints.get((i + 1) % NODES));
+        }
+
+        @Override
+        public boolean isAlive(InetAddress endpoint) {
+            return !dead.contains(endpoint);
+        }
+    };
+
+    @Test
+    public void run() throws Exception {
+        // 有完整的4字节token，也有比key短的和比key长的token
+        ring.add(token(100));
+        ring.add(new ByteOrderedPartitioner.BytesToken(new byte[] { 0, 0, 1 }));
+        ring.add(token(400));
+        ring.add(new ByteOrderedPartitioner.BytesToken(new byte[] { 0, 0, 1, (byte) 194, 7 }));
+        ring.add(token(500));
+        for (int i = 0; i < NODES; i++)
+            endpoints.add(InetAddress.getByName("127.0.0." + (11 + i)));
+
+        testMaxKeyNotAfter();
+        createNodes();
+        testSplitKeys();
+        testSplitRange();
+        testDeadReplicas();
+        for (Connection conn : nodes)
+            conn.close();
+    }
+
+    void testMaxKeyNotAfter() {
+        assertEquals(ValueInt.get(100), PartitionPruner.getMaxKeyNotAfter(token(100), Value.INT));
+        assertEquals(ValueInt.get(255), PartitionPruner.getMaxKeyNotAfter(ring.get(1), Value.INT));
+        assertEquals(ValueInt.get(450), PartitionPruner.getMaxKeyNotAfter(ring.get(3), Value.INT));
+        assertEquals(ValueShort.get((short) 0), PartitionPruner.getMaxKeyNotAfter(ring.get(1), Value.SHORT));
+        assertEquals(ValueInt.get(Integer.MAX_VALUE), PartitionPruner.getMaxKeyNotAfter(
+                new ByteOrderedPartitioner.BytesToken(new byte[] { (byte) 0x80 }), Value.INT));
+        assertEquals(ValueLong.get(Long.MAX_VALUE), PartitionPruner.getMaxKeyNotAfter(
+                new ByteOrderedPartitioner.BytesToken(new byte[] { (byte) 0xff, 0, 0, 0, 0, 0, 0, 0, 0 }),
+                Value.LONG));
+        assertNull(PartitionPruner.getMaxKeyNotAfter(ByteOrderedPartitioner.MINIMUM, Value.INT));
+    }
+
+    // 每个节点只保存它是副本的那些key
+    void createNodes() throws Exception {
+        for (int i = 0; i < NODES; i++) {
+            String url = Constants.URL_PREFIX + Constants.URL_MEM + Constants.URL_EMBED + "PartitionPrunerTest" + i;
+            nodes[i] = DriverManager.getConnection(url, "sa", "");
+            Statement stmt = nodes[i].createStatement();
+            stmt.executeUpdate("DROP TABLE IF EXISTS t");
+            stmt.executeUpdate("CREATE TABLE t(id int PRIMARY KEY)");
+            stmt.close();
+        }
+        for (int key = 0; key <= MAX_KEY; key++) {
+            for (InetAddress endpoint : replicas.getNaturalEndpoints(replicas.getToken(ValueInt.get(key)))) {
+                Statement stmt = node(endpoint).createStatement();
+                stmt.executeUpdate("INSERT INTO t VALUES(" + key + ")");
+                stmt.close();
+            }
+        }
+    }
+
+    void testSplitKeys() throws Exception {
+        Value[] keys = values(5, 100, 101, 255, 256, 300, 420, 451, 460, 550);
+        PartitionPruner pruner = new PartitionPruner(replicas, endpoints.get(0));
+        Map<InetAddress, List<Value>> endpointToKeys = pruner.splitKeys(keys);
+        int total = 0;
+        int rows = 0;
+        for (Map.Entry<InetAddress, List<Value>> e : endpointToKeys.entrySet()) {
+            for (Value key : e.getValue())
+                assertTrue(replicas.getNaturalEndpoints(replicas.getToken(key)).contains(e.getKey()));
+            total += e.getValue().size();
+            rows += count(e.getKey(), PartitionPruner.getInCondition("id", e.getValue()));
+        }
+        assertEquals(keys.length, total);
+        assertEquals(keys.length, rows);
+        // 本地节点是副本时优先选本地节点，环的起点也拥有比最大的token还大的key
+        assertEquals(Arrays.asList(values(5, 100, 451, 460, 550)), endpointToKeys.get(endpoints.get(0)));
+        // 优先选已经选中的节点: 300的副本是第2、3个节点，101的副本是第1、2个节点
+        endpointToKeys = pruner.splitKeys(values(300, 101));
+        assertEquals(1, endpointToKeys.size());
+        assertEquals(2, endpointToKeys.get(endpoints.get(2)).size());
+    }
+
+    void testSplitRange() throws Exception {
+        int[][] ranges = { { 0, MAX_KEY }, { 50, 150 }, { 120, 130 }, { 255, 256 }, { 256, 256 }, { 260, 460 },
+                { 400, 451 }, { 455, 600 }, { 510, 600 }, { 100, 100 } };
+        for (InetAddress local : new InetAddress[] { endpoints.get(0), endpoints.get(2),
+                InetAddress.getByName("127.0.0.1") }) {
+            PartitionPruner pruner = new PartitionPruner(replicas, local);
+            for (int[] range : ranges)
+                assertRange(pruner, range[0], range[1]);
+        }
+
+        // 不裁剪时，多副本的记录会被重复计算
+        int rows = 0;
+        for (InetAddress endpoint : endpoints)
+            rows += count(endpoint, "id BETWEEN 0 AND " + MAX_KEY);
+        assertEquals(2 * (MAX_KEY + 1), rows);
+
+        // 只涉及一个token区间时只访问一个节点，不需要再加条件
+        Map<InetAddress, List<Value[]>> endpointToRanges = new PartitionPruner(replicas, endpoints.get(0))
+                .splitRange(ring, ValueInt.get(120), ValueInt.get(130), false);
+        assertEquals(1, endpointToRanges.size());
+        assertNull(PartitionPruner.getRangeCondition("id", endpointToRanges.values().iterator().next()));
+    }
+
+    // 一个副本不可用时用另一个副本，某个区间的副本都不可用时不能裁剪
+    void testDeadReplicas() throws Exception {
+        dead.add(endpoints.get(2));
+        PartitionPruner pruner = new PartitionPruner(replicas, endpoints.get(2));
+        assertRange(pruner, 0, MAX_KEY);
+        assertRange(pruner, 260, 460);
+        Map<InetAddress, List<Value>> endpointToKeys = pruner.splitKeys(values(300, 420));
+        assertFalse(endpointToKeys.containsKey(endpoints.get(2)));
+
+        dead.add(endpoints.get(3));
+        // 第2个token区间的副本是第2个和第3个节点
+        assertNull(pruner.splitRange(ring, ValueInt.get(0), ValueInt.get(MAX_KEY), false));
+        assertNull(pruner.splitKeys(values(300)));
+        assertRange(pruner, 0, 255);
+        dead.clear();
+    }
+
+    void assertRange(PartitionPruner pruner, int start, int end) throws Exception {
+        Map<InetAddress, List<Value[]>> endpointToRanges = pruner.splitRange(ring, ValueInt.get(start),
+                ValueInt.get(end), false);
+        assertNotNull(endpointToRanges);
+        int rows = 0;
+        for (Map.Entry<InetAddress, List<Value[]>> e : endpointToRanges.entrySet()) {
+            assertFalse(dead.contains(e.getKey()));
+            String condition = PartitionPruner.getRangeCondition("id", e.getValue());
+            String where = "id BETWEEN " + start + " AND " + end;
+            if (condition != null)
+                where += " AND " + condition;
+            rows += count(e.getKey(), where);
+        }
+        assertEquals("range: " + start + ", " + end, end - start + 1, rows);
+    }
+
+    int count(InetAddress endpoint, String where) throws Exception {
+        Statement stmt = node(endpoint).createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT count(*) FROM t WHERE " + where);
+        rs.next();
+        int count = rs.getInt(1);
+        rs.close();
+        stmt.close();
+        return count;
+    }
+
+    Connection node(InetAddress endpoint) {
+        return nodes[endpoints.indexOf(endpoint)];
+    }
+
+    static Token token(int key) {
+        return ByteOrderedPartitioner.instance.getToken(ByteBuffer.wrap(ValueInt.get(key).getBytesNoCopy()));
+    }
+
+    static Value[] values(int... keys) {
+        Value[] values = new Value[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            values[i] = ValueInt.get(keys[i]);
+        return values;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.cluster.router;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Test;
+import org.lealone.api.ErrorCode;
+import org.lealone.cluster.io.DataOutputStreamPlus;
+import org.lealone.cluster.net.MessageIn;
+import org.lealone.cluster.net.MessageOut;
+import org.lealone.cluster.net.MessagingService;
+import org.lealone.cluster.router.MessagingCommand;
+import org.lealone.cluster.router.SQLRequest;
+import org.lealone.cluster.router.SQLResponse;
+import org.lealone.engine.ConnectionInfo;
+import org.lealone.engine.Constants;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.message.DbException;
+import org.lealone.result.ResultInterface;
+import org.lealone.test.UnitTestBase;
+import org.lealone.test.cluster.TestConfigLoader;
+import org.lealone.value.Value;
+import org.lealone.value.ValueBytes;
+import org.lealone.value.ValueDecimal;
+import org.lealone.value.ValueInt;
+import org.lealone.value.ValueLobDb;
+import org.lealone.value.ValueNull;
+import org.lealone.value.ValueString;
+
+//SQLRequest和SQLResponse按节点间消息的格式编码再解码，由SQLVerbHandler在本地数据库上执行，
+//不经过MessagingService的连接，所以只需要加载DatabaseDescriptor的配置
+public class SQLVerbHandlerTest extends UnitTestBase {
+    static final String TABLE = "SQLVerbHandlerTest";
+    // 内存数据库中的LOB都是小LOB，用文件数据库才能得到已经存储的LOB
+    static final String URL = Constants.URL_PREFIX + Constants.URL_EMBED + TEST_DIR + "/" + TABLE;
+    // 请求中是目标节点的URL，接收端按其中的数据库名打开本地数据库，这里就是上面的文件数据库
+    static final String TARGET_URL = Constants.URL_PREFIX + Constants.URL_TCP + "//127.0.0.2:5210/" + TEST_DIR + "/"
+            + TABLE;
+
+    HintedHandOffManagerTest.TestHandler handler = new HintedHandOffManagerTest.TestHandler();
+    InetAddress from;
+    ConnectionInfo ci;
+    String largeString;
+    byte[] largeBytes;
+    Value storedClob;
+    Value storedBlob;
+
+    @Test
+    public void run() throws Exception {
+        TestConfigLoader.load();
+
+        Connection conn = DriverManager.getConnection(URL, "sa", "");
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("DROP TABLE IF EXISTS " + TABLE);
+        stmt.executeUpdate("CREATE TABLE " + TABLE + "(id int PRIMARY KEY, name varchar, c clob, b blob)");
+        createStoredLobs(conn);
+        Properties info = new Properties();
+        info.setProperty("user", "sa");
+        info.setProperty("password", "");
+        ci = new ConnectionInfo(URL, info);
+        from = InetAddress.getByName("127.0.0.3");
+
+        testRequestRoundTrip();
+        testExecute();
+        testErrors();
+        testResponseCallback();
+
+        stmt.close();
+        conn.close();
+    }
+
+    // 参数中已经存储的LOB要变成小LOB发出去，其他参数值和会话信息原样读出
+    void testRequestRoundTrip() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("MODE", "MySQL");
+        Value[] parameters = { ValueInt.get(1), ValueString.get("it's"), ValueNull.INSTANCE,
+                ValueDecimal.get(new BigDecimal("12.345")), ValueBytes.get(new byte[] { 1, 2, 3 }),
+                ValueLobDb.createSmallLob(Value.CLOB, "small".getBytes(Constants.UTF8)), storedClob, storedBlob };
+        SQLRequest request = new SQLRequest(ci, TARGET_URL, properties, "SELECT ?", parameters, 10);
+        SQLRequest r = roundTrip(MessagingService.Verb.SQL_QUERY, request);
+
+        assertEquals(request.url, r.url);
+        assertEquals(request.dbName, r.dbName);
+        assertEquals(request.userName, r.userName);
+        assertTrue(Arrays.equals(request.userPasswordHash, r.userPasswordHash));
+        assertTrue(Arrays.equals(request.filePasswordHash, r.filePasswordHash));
+        assertTrue(Arrays.equals(request.fileEncryptionKey, r.fileEncryptionKey));
+        assertEquals(properties, r.properties);
+        assertEquals("SELECT ?", r.sql);
+        assertEquals(10, r.maxRows);
+        assertEquals(request.getSessionKey(), r.getSessionKey());
+        assertTrue(r.hasCredentials());
+
+        assertEquals(parameters.length, r.parameters.length);
+        for (int i = 0; i < 6; i++)
+            assertEquals(parameters[i], r.parameters[i]);
+        assertLob(r.parameters[6], Value.CLOB);
+        assertLob(r.parameters[7], Value.BLOB);
+        // 发送端的值不变
+        assertTrue(((ValueLobDb) storedClob).isStored());
+    }
+
+    // 按SQL_UPDATE和SQL_QUERY执行，已经存储的LOB作为参数和查询结果都能传过去
+    void testExecute() throws Exception {
+        SQLResponse response = execute(MessagingService.Verb.SQL_UPDATE, "INSERT INTO " + TABLE
+                + "(id, name, c, b) VALUES(?, ?, ?, ?)", 0, ValueInt.get(1), ValueString.get("a"), storedClob,
+                storedBlob);
+        assertEquals(1, response.getUpdateCount());
+        response = execute(MessagingService.Verb.SQL_UPDATE, "UPDATE " + TABLE + " SET name = 'b' WHERE id >= ?", 0,
+                ValueInt.get(0));
+        assertEquals(2, response.getUpdateCount());
+
+        String sql = "SELECT id, name, c, b FROM " + TABLE + " WHERE id >= ? ORDER BY id";
+        ResultInterface result = execute(MessagingService.Verb.SQL_QUERY, sql, 0, ValueInt.get(0)).getResult();
+        assertEquals(4, result.getVisibleColumnCount());
+        assertEquals("ID", result.getColumnName(0));
+        assertEquals(Value.INT, result.getColumnType(0));
+        assertEquals("C", result.getColumnName(2));
+        assertEquals(Value.CLOB, result.getColumnType(2));
+        for (int id = 0; id <= 1; id++) {
+            assertTrue(result.next());
+            Value[] row = result.currentRow();
+            assertEquals(id, row[0].getInt());
+            assertEquals("b", row[1].getString());
+            assertLob(row[2], Value.CLOB);
+            assertLob(row[3], Value.BLOB);
+        }
+        assertFalse(result.next());
+        result.close();
+
+        // 最多返回maxRows行
+        result = execute(MessagingService.Verb.SQL_QUERY, sql, 1, ValueInt.get(0)).getResult();
+        assertTrue(result.next());
+        assertFalse(result.next());
+        result.close();
+    }
+
+    // 执行出错时发送端收到同样的错误码，出错后会话还能继续用
+    void testErrors() throws Exception {
+        SQLResponse response = execute(MessagingService.Verb.SQL_UPDATE, "INSERT INTO " + TABLE + "(id) VALUES(?)",
+                0, ValueInt.get(1));
+        assertError(ErrorCode.DUPLICATE_KEY_1, response);
+
+        response = execute(MessagingService.Verb.SQL_QUERY, "SELECT * FROM " + TABLE + "_not_exists", 0);
+        DbException e = assertError(ErrorCode.TABLE_OR_VIEW_NOT_FOUND_1, response);
+        assertTrue(e.getMessage().contains(TABLE.toUpperCase() + "_NOT_EXISTS"));
+        try {
+            response.getResult();
+            fail();
+        } catch (DbException e2) {
+            assertEquals(ErrorCode.TABLE_OR_VIEW_NOT_FOUND_1, e2.getErrorCode());
+        }
+
+        // 参数个数不对
+        response = execute(MessagingService.Verb.SQL_UPDATE, "DELETE FROM " + TABLE + " WHERE id = ?", 0);
+        assertError(ErrorCode.GENERAL_ERROR_1, response);
+
+        // 没有凭证的SQL_QUERY和SQL_UPDATE都拒绝，只有SQL_HINT可以不带凭证
+        SQLRequest request = new SQLRequest(ci, TARGET_URL, new Properties(), "DELETE FROM " + TABLE, new Value[0],
+                0).withoutCredentials();
+        response = roundTrip(handler.execute(MessagingService.Verb.SQL_UPDATE, roundTrip(
+                MessagingService.Verb.SQL_UPDATE, request), from));
+        assertError(ErrorCode.WRONG_USER_OR_PASSWORD, response);
+        request = new SQLRequest(ci, TARGET_URL, new Properties(), "SELECT count(*) FROM " + TABLE, new Value[0],
+                0).withoutCredentials();
+        response = roundTrip(handler.execute(MessagingService.Verb.SQL_QUERY, roundTrip(
+                MessagingService.Verb.SQL_QUERY, request), from));
+        assertError(ErrorCode.WRONG_USER_OR_PASSWORD, response);
+        // SQL_HINT也不能执行INSERT/MERGE以外的语句
+        response = roundTrip(handler.execute(MessagingService.Verb.SQL_HINT, roundTrip(MessagingService.Verb.SQL_HINT,
+                request), from));
+        assertError(ErrorCode.NOT_ENOUGH_RIGHTS_FOR_1, response);
+
+        ResultInterface result = execute(MessagingService.Verb.SQL_QUERY, "SELECT count(*) FROM " + TABLE, 0)
+                .getResult();
+        assertTrue(result.next());
+        assertEquals(2, result.currentRow()[0].getInt());
+        result.close();
+    }
+
+    // 超时或对方节点失败时都抛出CONNECTION_BROKEN_1
+    void testResponseCallback() throws Exception {
+        InetAddress endpoint = InetAddress.getByName("127.0.0.2");
+        MessagingCommand.ResponseCallback callback = new MessagingCommand.ResponseCallback(endpoint, "SELECT 1");
+        long start = System.currentTimeMillis();
+        try {
+            callback.get(100);
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.CONNECTION_BROKEN_1, e.getErrorCode());
+            assertTrue(e.getMessage().contains("127.0.0.2"));
+            assertTrue(e.getMessage().contains("SELECT 1"));
+        }
+        assertTrue(System.currentTimeMillis() - start >= 100);
+
+        // 失败时不用等到超时
+        final MessagingCommand.ResponseCallback callback2 = new MessagingCommand.ResponseCallback(endpoint,
+                "SELECT 1");
+        final InetAddress from = endpoint;
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                callback2.onFailure(from);
+            }
+        }.start();
+        start = System.currentTimeMillis();
+        try {
+            callback2.get(60000);
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.CONNECTION_BROKEN_1, e.getErrorCode());
+        }
+        assertTrue(System.currentTimeMillis() - start < 30000);
+    }
+
+    void createStoredLobs(Connection conn) throws Exception {
+        StringBuilder buff = new StringBuilder();
+        while (buff.length() < 64 * 1024)
+            buff.append("0123456789'");
+        largeString = buff.toString();
+        largeBytes = new byte[64 * 1024];
+        for (int i = 0; i < largeBytes.length; i++)
+            largeBytes[i] = (byte) i;
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO " + TABLE + "(id, c, b) VALUES(0, ?, ?)");
+        ps.setString(1, largeString);
+        ps.setBytes(2, largeBytes);
+        ps.executeUpdate();
+        ps.close();
+
+        Session session = (Session) ((JdbcConnection) conn).getSession();
+        ResultInterface result = session.prepare("SELECT c, b FROM " + TABLE + " WHERE id = 0").query(0);
+        assertTrue(result.next());
+        storedClob = result.currentRow()[0];
+        storedBlob = result.currentRow()[1];
+        result.close();
+        // 直接通过Session查询时不会自动提交，不提交的话接收端的会话拿不到表锁
+        session.commit(false);
+        assertTrue(((ValueLobDb) storedClob).isStored());
+        assertTrue(((ValueLobDb) storedBlob).isStored());
+    }
+
+    void assertLob(Value v, int type) {
+        assertEquals(type, v.getType());
+        assertNotNull(((ValueLobDb) v).getSmall());
+        if (type == Value.CLOB)
+            assertEquals(largeString, v.getString());
+        else
+            assertTrue(Arrays.equals(largeBytes, v.getBytesNoCopy()));
+    }
+
+    static DbException assertError(int errorCode, SQLResponse response) {
+        try {
+            response.getUpdateCount();
+            fail();
+            return null;
+        } catch (DbException e) {
+            assertEquals(errorCode, e.getErrorCode());
+            return e;
+        }
+    }
+
+    SQLResponse execute(MessagingService.Verb verb, String sql, int maxRows, Value... parameters) throws IOException {
+        SQLRequest request = new SQLRequest(ci, TARGET_URL, new Properties(), sql, parameters, maxRows);
+        return roundTrip(handler.execute(verb, roundTrip(verb, request), from));
+    }
+
+    // 和OutboundTcpConnection.sendMessage、IncomingTcpConnection一样，消息头之后是payload
+    static SQLRequest roundTrip(MessagingService.Verb verb, SQLRequest request) throws IOException {
+        MessageOut<SQLRequest> message = new MessageOut<>(verb, request, SQLRequest.serializer);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        message.serialize(new DataOutputStreamPlus(bytes), MessagingService.CURRENT_VERSION);
+        assertEquals(message.serializedSize(MessagingService.CURRENT_VERSION), bytes.size());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        @SuppressWarnings("unchecked")
+        MessageIn<SQLRequest> m = (MessageIn<SQLRequest>) MessageIn.read(in, MessagingService.CURRENT_VERSION, 1);
+        assertEquals(verb, m.verb);
+        assertEquals(-1, in.read());
+        return m.payload;
+    }
+
+    // REQUEST_RESPONSE要按回调找反序列化器，这里直接用SQLResponse.serializer
+    static SQLResponse roundTrip(SQLResponse response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SQLResponse.serializer.serialize(response, new DataOutputStreamPlus(bytes), MessagingService.CURRENT_VERSION);
+        assertEquals(SQLResponse.serializer.serializedSize(response, MessagingService.CURRENT_VERSION), bytes.size());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        SQLResponse r = SQLResponse.serializer.deserialize(in, MessagingService.CURRENT_VERSION);
+        assertEquals(-1, in.read());
+        return r;
+    }
+}
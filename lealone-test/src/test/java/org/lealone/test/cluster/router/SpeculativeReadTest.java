@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.cluster.router;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+import org.lealone.api.ErrorCode;
+import org.lealone.cluster.gms.IFailureDetector;
+import org.lealone.cluster.locator.AbstractEndpointSnitch;
+import org.lealone.cluster.router.SpeculativeRead;
+import org.lealone.command.CommandInterface;
+import org.lealone.message.DbException;
+import org.lealone.result.ResultInterface;
+import org.lealone.test.UnitTestBase;
+
+public class SpeculativeReadTest extends UnitTestBase {
+    static final long MILLIS = 1000; // 阈值的单位是微秒
+
+    InetAddress a;
+    InetAddress b;
+    InetAddress c;
+    List<InetAddress> endpoints;
+
+    @Test
+    public void run() throws Exception {
+        a = InetAddress.getByName("127.0.0.11");
+        b = InetAddress.getByName("127.0.0.12");
+        c = InetAddress.getByName("127.0.0.13");
+        endpoints = Arrays.asList(a, b);
+
+        testNoThreshold();
+        testFastFirstReplica();
+        testSlowFirstReplica();
+        testFailedFirstReplica();
+        testAllReplicasFailed();
+        testSubMillisecondLatency();
+        testSortByProximity();
+    }
+
+    // 没有阈值时只读第一个副本，即使它很慢
+    void testNoThreshold() throws Exception {
+        TestReader reader = new TestReader();
+        reader.delays.put(a, 50 * MILLIS);
+        assertEquals(a, endpointOf(SpeculativeRead.executeReadQuery(reader, endpoints, 0, false, 0)));
+        assertEquals(Arrays.asList(a), reader.created);
+    }
+
+    // 第一个副本在阈值内返回时不创建第二个副本的命令
+    void testFastFirstReplica() throws Exception {
+        TestReader reader = new TestReader();
+        for (int i = 0; i < 10; i++) {
+            ResultInterface result = SpeculativeRead.executeReadQuery(reader, endpoints, 0, false, 2000 * MILLIS);
+            assertEquals(a, endpointOf(result));
+        }
+        assertEquals(10, reader.created.size());
+        assertFalse(reader.created.contains(b));
+    }
+
+    // 第一个副本超过阈值才创建第二个副本的命令，用先返回的结果，另一个结果返回后关闭
+    void testSlowFirstReplica() throws Exception {
+        TestReader reader = new TestReader();
+        reader.delays.put(a, 1000 * MILLIS);
+        long start = System.nanoTime();
+        ResultInterface result = SpeculativeRead.executeReadQuery(reader, endpoints, 0, false, 20 * MILLIS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(b, endpointOf(result));
+        assertTrue("elapsed: " + elapsed, elapsed >= 15 && elapsed < 900);
+        assertEquals(Arrays.asList(a, b), reader.created);
+        assertFalse(isClosed(result));
+
+        ResultInterface abandoned = reader.awaitResult(a);
+        assertNotNull(abandoned);
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (!isClosed(abandoned) && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertTrue(isClosed(abandoned));
+        assertFalse(isClosed(result));
+    }
+
+    // 第一个副本很快失败时不用等到阈值就读第二个副本
+    void testFailedFirstReplica() throws Exception {
+        TestReader reader = new TestReader();
+        reader.failed.add(a);
+        long start = System.nanoTime();
+        ResultInterface result = SpeculativeRead.executeReadQuery(reader, endpoints, 0, false, 10 * 1000 * MILLIS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(b, endpointOf(result));
+        assertTrue("elapsed: " + elapsed, elapsed < 5000);
+        assertEquals(Arrays.asList(a, b), reader.created);
+    }
+
+    void testAllReplicasFailed() throws Exception {
+        TestReader reader = new TestReader();
+        reader.failed.add(a);
+        reader.failed.add(b);
+        reader.delays.put(a, 50 * MILLIS);
+        try {
+            SpeculativeRead.executeReadQuery(reader, endpoints, 0, false, 10 * MILLIS);
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.CONNECTION_BROKEN_1, e.getErrorCode());
+        }
+        assertEquals(2, reader.created.size());
+    }
+
+    // 亚毫秒级的读按毫秒记录的话都是0
+    void testSubMillisecondLatency() throws Exception {
+        TestReader reader = new TestReader();
+        reader.delays.put(a, 200L);
+        SpeculativeRead.executeReadQuery(reader, endpoints, 0, false, 0);
+        assertEquals(1, reader.latencies.size());
+        long latency = reader.latencies.get(0);
+        assertTrue("latency: " + latency, latency >= 200);
+    }
+
+    // 可用的节点按snitch排序，不可用的节点排在最后
+    void testSortByProximity() throws Exception {
+        final List<InetAddress> order = Arrays.asList(c, b, a);
+        AbstractEndpointSnitch snitch = new AbstractEndpointSnitch() {
+            @Override
+            public String getRack(InetAddress endpoint) {
+                return "rack1";
+            }
+
+            @Override
+            public String getDatacenter(InetAddress endpoint) {
+                return "dc1";
+            }
+
+            @Override
+            public int compareEndpoints(InetAddress target, InetAddress a1, InetAddress a2) {
+                return order.indexOf(a1) - order.indexOf(a2);
+            }
+        };
+        Set<InetAddress> dead = new HashSet<>();
+        List<InetAddress> replicas = Arrays.asList(a, b, c);
+        assertEquals(Arrays.asList(c, b, a), sort(replicas, snitch, dead));
+
+        dead.add(c);
+        assertEquals(Arrays.asList(b, a, c), sort(replicas, snitch, dead));
+
+        dead.add(b);
+        dead.add(a);
+        assertEquals(Arrays.asList(a, b, c), sort(replicas, snitch, dead));
+        // 不修改传入的列表
+        assertEquals(Arrays.asList(a, b, c), replicas);
+    }
+
+    List<InetAddress> sort(List<InetAddress> replicas, AbstractEndpointSnitch snitch, Set<InetAddress> dead) {
+        return SpeculativeRead.sortByProximity(replicas, snitch, newFailureDetector(dead), a);
+    }
+
+    static IFailureDetector newFailureDetector(final Set<InetAddress> dead) {
+        return (IFailureDetector) Proxy.newProxyInstance(IFailureDetector.class.getClassLoader(),
+                new Class<?>[] { IFailureDetector.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("isAlive"))
+                            return !dead.contains(args[0]);
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    static InetAddress endpointOf(ResultInterface result) {
+        return ((TestResult) Proxy.getInvocationHandler(result)).endpoint;
+    }
+
+    static boolean isClosed(ResultInterface result) {
+        return ((TestResult) Proxy.getInvocationHandler(result)).closed;
+    }
+
+    static class TestResult implements InvocationHandler {
+        final InetAddress endpoint;
+        volatile boolean closed;
+
+        TestResult(InetAddress endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("close")) {
+                closed = true;
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    /**
+     * 每个副本的命令按delays延迟(微秒)后返回结果，failed中的副本抛出异常
+     */
+    static class TestReader implements SpeculativeRead.ReplicaReader {
+        final Map<InetAddress, Long> delays = new HashMap<>();
+        final Set<InetAddress> failed = new HashSet<>();
+        final List<InetAddress> created = new ArrayList<>();
+        final List<Long> latencies = new ArrayList<>();
+        final Map<InetAddress, ResultInterface> results = new HashMap<>();
+
+        @Override
+        public CommandInterface createCommand(final InetAddress endpoint) {
+            created.add(endpoint);
+            return (CommandInterface) Proxy.newProxyInstance(CommandInterface.class.getClassLoader(),
+                    new Class<?>[] { CommandInterface.class }, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (!method.getName().equals("executeQuery"))
+                                throw new UnsupportedOperationException(method.getName());
+                            Long delay = delays.get(endpoint);
+                            if (delay != null)
+                                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(delay));
+                            if (failed.contains(endpoint))
+                                throw DbException.get(ErrorCode.CONNECTION_BROKEN_1, endpoint.toString());
+                            ResultInterface result = (ResultInterface) Proxy.newProxyInstance(
+                                    ResultInterface.class.getClassLoader(), new Class<?>[] { ResultInterface.class },
+                                    new TestResult(endpoint));
+                            synchronized (results) {
+                                results.put(endpoint, result);
+                                results.notifyAll();
+                            }
+                            return result;
+                        }
+                    });
+        }
+
+        @Override
+        public synchronized void addLatency(InetAddress endpoint, long latency) {
+            latencies.add(latency);
+        }
+
+        ResultInterface awaitResult(InetAddress endpoint) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            synchronized (results) {
+                while (!results.containsKey(endpoint) && System.currentTimeMillis() < deadline)
+                    results.wait(100);
+                return results.get(endpoint);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.command.router;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.command.router.CommandParallel;
+import org.lealone.message.DbException;
+import org.lealone.result.ResultInterface;
+import org.lealone.test.TestBase;
+
+public class CommandParallelTest extends TestBase {
+    @Test
+    public void run() throws Exception {
+        ExecutorService old = CommandParallel.getExecutor();
+        // 只有一个线程时嵌套的并行命令也不能死锁
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        CommandParallel.setExecutor(pool);
+        try {
+            testUpdate();
+            testNested();
+            testException();
+            testCloseAfterCancel();
+        } finally {
+            CommandParallel.setExecutor(old);
+            pool.shutdown();
+        }
+        // 换回来的线程池还要能用
+        assertFalse(old.isShutdown());
+        testUpdate();
+    }
+
+    void testUpdate() {
+        assertEquals(1 + 2 + 3 + 4 + 5, CommandParallel.executeUpdateCallable(commands(5, 1)));
+    }
+
+    void testNested() {
+        List<Callable<Integer>> commands = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            commands.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return CommandParallel.executeUpdateCallable(commands(3, 1));
+                }
+            });
+        }
+        assertEquals(4 * (1 + 2 + 3), CommandParallel.executeUpdateCallable(commands));
+    }
+
+    void testException() {
+        List<Callable<Integer>> commands = commands(3, 1);
+        commands.add(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                throw new RuntimeException("test");
+            }
+        });
+        try {
+            CommandParallel.executeUpdateCallable(commands);
+            fail();
+        } catch (DbException e) {
+            assertTrue(e.getMessage().contains("test"));
+        }
+    }
+
+    // 某个任务失败后，已经完成的和取消后才完成的任务返回的结果集都要关闭
+    void testCloseAfterCancel() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        List<Callable<ResultInterface>> commands = new ArrayList<>();
+        commands.add(new Callable<ResultInterface>() {
+            @Override
+            public ResultInterface call() throws Exception {
+                started.await(10, TimeUnit.SECONDS);
+                throw new RuntimeException("test");
+            }
+        });
+        // 由线程池执行，取消时还没执行完
+        commands.add(new Callable<ResultInterface>() {
+            @Override
+            public ResultInterface call() throws Exception {
+                started.countDown();
+                Thread.sleep(200);
+                return newResult(created, closed);
+            }
+        });
+        commands.add(new Callable<ResultInterface>() {
+            @Override
+            public ResultInterface call() throws Exception {
+                return newResult(created, closed);
+            }
+        });
+        try {
+            CommandParallel.executeSelectCallable(commands);
+            fail();
+        } catch (DbException e) {
+            assertTrue(e.getMessage().contains("test"));
+        }
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (closed.get() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, created.get());
+        assertEquals(2, closed.get());
+    }
+
+    static ResultInterface newResult(AtomicInteger created, final AtomicInteger closed) {
+        created.incrementAndGet();
+        return (ResultInterface) Proxy.newProxyInstance(ResultInterface.class.getClassLoader(),
+                new Class<?>[] { ResultInterface.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("close")) {
+                            closed.incrementAndGet();
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    static List<Callable<Integer>> commands(int count, int first) {
+        List<Callable<Integer>> commands = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int n = first + i;
+            commands.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return n;
+                }
+            });
+        }
+        return commands;
+    }
+}
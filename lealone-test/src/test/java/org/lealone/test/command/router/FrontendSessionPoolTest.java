@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.command.router;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+import org.lealone.api.ErrorCode;
+import org.lealone.command.router.FrontendSessionPool;
+import org.lealone.engine.Constants;
+import org.lealone.engine.FrontendSession;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.message.DbException;
+import org.lealone.server.TcpServer;
+import org.lealone.test.UnitTestBase;
+
+//池中的会话连到同一个进程中的TcpServer
+public class FrontendSessionPoolTest extends UnitTestBase {
+    static final int MIN_SIZE = 1;
+    static final int MAX_SIZE = 2;
+    static final long WAIT_TIMEOUT = 200;
+    static final long IDLE_TIMEOUT = 100;
+
+    TcpServer server;
+    Connection conn;
+    Session originalSession;
+    FrontendSessionPool.SessionTemplate template;
+    String url;
+
+    @Test
+    public void run() throws Exception {
+        server = new TcpServer();
+        server.init("-tcpPort", "0", "-tcpDaemon");
+        server.start();
+        String embedded = Constants.URL_PREFIX + Constants.URL_MEM + Constants.URL_EMBED + "FrontendSessionPoolTest";
+        conn = DriverManager.getConnection(embedded, "sa", "");
+        try {
+            originalSession = (Session) ((JdbcConnection) conn).getSession();
+            originalSession.setOriginalProperties(new Properties());
+            template = new FrontendSessionPool.SessionTemplate(originalSession);
+            url = Constants.URL_PREFIX + Constants.URL_MEM + Constants.URL_TCP + "//127.0.0.1:" + server.getPort()
+                    + "/FrontendSessionPoolTest";
+
+            testBorrowAndReturn();
+            testDoubleRelease();
+            testTimeout();
+            testUnlimitedBorrow();
+            testIdleEviction();
+            testSeedBypassesPool();
+        } finally {
+            conn.close();
+            server.stop();
+        }
+    }
+
+    FrontendSessionPool.EndpointPool newPool() {
+        return new FrontendSessionPool.EndpointPool(url, MIN_SIZE, MAX_SIZE, WAIT_TIMEOUT, IDLE_TIMEOUT);
+    }
+
+    // 归还的会话优先被下一次借出，不会新建
+    void testBorrowAndReturn() {
+        FrontendSessionPool.EndpointPool pool = newPool();
+        FrontendSession fs1 = pool.borrow(template, true);
+        assertFalse(fs1.isClosed());
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(MAX_SIZE - 1, pool.getAvailablePermits());
+
+        pool.giveBack(fs1);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(MAX_SIZE, pool.getAvailablePermits());
+
+        FrontendSession fs2 = pool.borrow(template, true);
+        assertSame(fs1, fs2);
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(0, pool.getIdleCount());
+
+        // 已关闭的空闲会话不会被借出
+        pool.giveBack(fs2);
+        fs2.close();
+        FrontendSession fs3 = pool.borrow(template, true);
+        assertNotSame(fs2, fs3);
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(1, pool.getClosedCount());
+        pool.giveBack(fs3);
+        pool.closeIdleSessions();
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    // 重复归还时不会多放一个许可，空闲队列中也不会有两个相同的会话
+    void testDoubleRelease() {
+        FrontendSessionPool.EndpointPool pool = newPool();
+        FrontendSession fs = pool.borrow(template, true);
+        pool.giveBack(fs);
+        pool.giveBack(fs);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(MAX_SIZE, pool.getAvailablePermits());
+
+        // 不是从这个池借出的会话也被忽略
+        FrontendSession other = template.createFrontendSession(url, true);
+        pool.giveBack(other);
+        assertEquals(1, pool.getIdleCount());
+        assertFalse(other.isClosed());
+        other.close();
+        pool.closeIdleSessions();
+    }
+
+    // 借满之后在waitTimeout内借不到就失败，有会话归还后又能借到
+    void testTimeout() {
+        FrontendSessionPool.EndpointPool pool = newPool();
+        List<FrontendSession> list = new ArrayList<>();
+        for (int i = 0; i < MAX_SIZE; i++)
+            list.add(pool.borrow(template, true));
+        long start = System.currentTimeMillis();
+        try {
+            pool.borrow(template, true);
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.CONNECTION_BROKEN_1, e.getErrorCode());
+        }
+        assertTrue(System.currentTimeMillis() - start >= WAIT_TIMEOUT - 10);
+        assertEquals(1, pool.getWaitTimeoutCount());
+        assertEquals(0, pool.getWaitingCount());
+
+        pool.giveBack(list.remove(0));
+        list.add(pool.borrow(template, true));
+        assertEquals(MAX_SIZE, pool.getCreatedCount());
+        for (FrontendSession fs : list)
+            pool.giveBack(fs);
+        pool.closeIdleSessions();
+    }
+
+    // 事务中借的会话不占用许可，长事务不会让其他语句借不到会话
+    void testUnlimitedBorrow() {
+        FrontendSessionPool.EndpointPool pool = newPool();
+        List<FrontendSession> list = new ArrayList<>();
+        for (int i = 0; i < MAX_SIZE + 1; i++)
+            list.add(pool.borrow(template, false));
+        assertEquals(MAX_SIZE, pool.getAvailablePermits());
+        FrontendSession fs = pool.borrow(template, true);
+        assertEquals(MAX_SIZE - 1, pool.getAvailablePermits());
+        pool.giveBack(fs);
+        for (FrontendSession s : list)
+            pool.giveBack(s);
+        assertEquals(MAX_SIZE, pool.getAvailablePermits());
+        // 空闲的会话不超过maxSize个
+        assertEquals(MAX_SIZE, pool.getIdleCount());
+        assertEquals(MAX_SIZE + 2, pool.getCreatedCount());
+        assertEquals(2, pool.getClosedCount());
+        pool.closeIdleSessions();
+    }
+
+    // 空闲超过idleTimeout的会话被关闭，但至少保留minSize个
+    void testIdleEviction() throws Exception {
+        FrontendSessionPool.EndpointPool pool = newPool();
+        FrontendSession fs1 = pool.borrow(template, true);
+        FrontendSession fs2 = pool.borrow(template, true);
+        pool.giveBack(fs1);
+        pool.giveBack(fs2);
+        assertEquals(2, pool.getIdleCount());
+
+        pool.evictIdleSessions(System.currentTimeMillis());
+        assertEquals(2, pool.getIdleCount());
+
+        Thread.sleep(IDLE_TIMEOUT + 50);
+        pool.evictIdleSessions(System.currentTimeMillis());
+        assertEquals(MIN_SIZE, pool.getIdleCount());
+        // 最早归还的会话先被淘汰
+        assertTrue(fs1.isClosed());
+        assertFalse(fs2.isClosed());
+        pool.closeIdleSessions();
+        assertTrue(fs2.isClosed());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    // 种子节点的会话不经过池
+    // 全局的池是按主机统计的，同一个进程中的其他测试也可能用过127.0.0.1，所以只比较前后的变化
+    void testSeedBypassesPool() {
+        String host = "127.0.0.1";
+        long created = FrontendSessionPool.getCreatedSessionCount(host);
+        long active = FrontendSessionPool.getActiveSessionCount(host);
+        long idle = FrontendSessionPool.getIdleSessionCount(host);
+        FrontendSession fs = FrontendSessionPool.getSeedEndpointFrontendSession(originalSession, url);
+        assertFalse(fs.isClosed());
+        assertEquals(created, FrontendSessionPool.getCreatedSessionCount(host));
+        assertEquals(active, FrontendSessionPool.getActiveSessionCount(host));
+
+        // 归还给池也会被忽略
+        FrontendSessionPool.release(fs);
+        assertEquals(idle, FrontendSessionPool.getIdleSessionCount(host));
+        assertFalse(fs.isClosed());
+        fs.close();
+    }
+}
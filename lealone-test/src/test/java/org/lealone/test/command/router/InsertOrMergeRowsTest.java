@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.command.router;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+import org.lealone.command.FrontendCommand;
+import org.lealone.command.Prepared;
+import org.lealone.command.dml.InsertOrMerge;
+import org.lealone.command.router.FrontendSessionPool;
+import org.lealone.engine.Constants;
+import org.lealone.engine.FrontendSession;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.message.DbException;
+import org.lealone.result.ResultInterface;
+import org.lealone.result.Row;
+import org.lealone.server.TcpServer;
+import org.lealone.test.UnitTestBase;
+import org.lealone.value.Value;
+import org.lealone.value.ValueInt;
+import org.lealone.value.ValueLobDb;
+import org.lealone.value.ValueNull;
+import org.lealone.value.ValueString;
+
+//按P2PRouter发往其他节点的方式，把嵌入式数据库中的行用getPlanSQL生成带占位符的SQL，
+//再通过FrontendSessionPool以二进制参数发给同一个进程中的TcpServer执行
+public class InsertOrMergeRowsTest extends UnitTestBase {
+    static final String TABLE = "InsertOrMergeRowsTest";
+    static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE
+            + "(id int primary key, name varchar, f int default 7, c clob, b blob)";
+
+    TcpServer server;
+    String url;
+    Session originalSession;
+    Statement remote;
+    Value storedClob;
+    Value storedBlob;
+    String largeString;
+    byte[] largeBytes;
+
+    @Test
+    public void run() throws Exception {
+        server = new TcpServer();
+        server.init("-tcpPort", "0", "-tcpDaemon");
+        server.start();
+        url = Constants.URL_PREFIX + Constants.URL_MEM + Constants.URL_TCP + "//127.0.0.1:" + server.getPort() + "/"
+                + TABLE;
+        // 内存数据库中的LOB不会存到LOB存储中，所以本节点用文件数据库
+        String embedded = Constants.URL_PREFIX + Constants.URL_EMBED + TEST_DIR + "/" + TABLE + "Origin";
+        Connection originConn = DriverManager.getConnection(embedded, "sa", "");
+        Connection remoteConn = DriverManager.getConnection(url, "sa", "");
+        try {
+            originalSession = (Session) ((JdbcConnection) originConn).getSession();
+            originalSession.setOriginalProperties(new Properties());
+            originConn.createStatement().executeUpdate("DROP TABLE IF EXISTS " + TABLE);
+            originConn.createStatement().executeUpdate(CREATE_TABLE);
+            remote = remoteConn.createStatement();
+            remote.executeUpdate(CREATE_TABLE);
+            createStoredLobs(originConn);
+
+            testInsert();
+            testMerge();
+            testAtomicOnNode();
+            testCommandCache();
+        } finally {
+            // 事务结束时借来的会话才归还到池中
+            if (originalSession != null)
+                originalSession.commit(false);
+            originConn.close();
+            remoteConn.close();
+            server.stop();
+        }
+    }
+
+    // DEFAULT、NULL和已经存储在本节点的LOB都要正确写到目标节点
+    void testInsert() throws Exception {
+        InsertOrMerge insert = (InsertOrMerge) originalSession.prepare("INSERT INTO " + TABLE
+                + "(id, name, f, c, b) VALUES(?, ?, ?, ?, ?)");
+        List<Row> rows = new ArrayList<>();
+        rows.add(newRow(1, ValueString.get("it's"), ValueInt.get(10), ValueLobDb.createSmallLob(Value.CLOB,
+                "small'clob".getBytes(Constants.UTF8)), ValueLobDb.createSmallLob(Value.BLOB, new byte[] { 1, 2 })));
+        rows.add(newRow(2, ValueNull.INSTANCE, null, storedClob, storedBlob));
+        rows.add(newRow(3, ValueString.get("3"), ValueInt.get(30), ValueNull.INSTANCE, null));
+
+        List<Value> values = new ArrayList<>();
+        String sql = insert.getPlanSQL(rows, values);
+        assertTrue(sql, sql.endsWith(" VALUES (?, ?, ?, ?, ?),(?, ?, DEFAULT, ?, ?),(?, ?, ?, ?, DEFAULT)"));
+        assertEquals(13, values.size());
+        assertEquals(3, execute(insert, sql, values));
+
+        assertRow(1, "it's", 10, "small'clob", new byte[] { 1, 2 });
+        assertRow(2, null, 7, largeString, largeBytes);
+        assertRow(3, "3", 30, null, null);
+    }
+
+    // MERGE以前自己给字符串加引号，值中有单引号时SQL就错了
+    void testMerge() throws Exception {
+        InsertOrMerge merge = (InsertOrMerge) originalSession.prepare("MERGE INTO " + TABLE
+                + "(id, name, f) KEY(id) VALUES(?, ?, ?)");
+        String[] names = { "O'Reilly", "'); DELETE FROM " + TABLE + "; --", "a''b", "\\'" };
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < names.length; i++)
+            rows.add(newRow(3 + i, ValueString.get(names[i]), i == names.length - 1 ? null : ValueInt.get(i + 10),
+                    null, null));
+        List<Value> values = new ArrayList<>();
+        String sql = merge.getPlanSQL(rows, values);
+        assertTrue(sql, sql.endsWith(" KEY(ID) VALUES (?, ?, ?),(?, ?, ?),(?, ?, ?),(?, ?, DEFAULT)"));
+        assertEquals(names.length, execute(merge, sql, values));
+
+        // id=3已经存在，被更新；最后一行是新插入的，f没给值用默认值
+        for (int i = 0; i < names.length - 1; i++)
+            assertRow(3 + i, names[i], i + 10, null, null);
+        assertRow(3 + names.length - 1, names[names.length - 1], 7, null, null);
+        assertRow(1, "it's", 10, "small'clob", new byte[] { 1, 2 });
+        assertRow(2, null, 7, largeString, largeBytes);
+    }
+
+    // 发往一个节点的行在一条语句中执行，其中一行出错时其他行也不会写入
+    void testAtomicOnNode() throws Exception {
+        InsertOrMerge insert = (InsertOrMerge) originalSession.prepare("INSERT INTO " + TABLE
+                + "(id, name) VALUES(?, ?)");
+        List<Row> rows = new ArrayList<>();
+        rows.add(newRow(100, ValueString.get("a"), null, null, null));
+        rows.add(newRow(101, ValueString.get("b"), null, null, null));
+        // id=1已经存在
+        rows.add(newRow(1, ValueString.get("c"), null, null, null));
+        List<Value> values = new ArrayList<>();
+        String sql = insert.getPlanSQL(rows, values);
+        try {
+            execute(insert, sql, values);
+            fail();
+        } catch (DbException e) {
+            // 主键冲突
+        }
+        ResultSet rs = remote.executeQuery("SELECT count(*) FROM " + TABLE + " WHERE id >= 100");
+        assertTrue(rs.next());
+        assertEquals(0, rs.getInt(1));
+        rs.close();
+    }
+
+    // 不管每次有多少行都只发一条语句，多行的语句不放进命令缓存，缓存中的其他命令不会被挤出去
+    void testCommandCache() throws Exception {
+        InsertOrMerge insert = (InsertOrMerge) originalSession.prepare("INSERT INTO " + TABLE
+                + "(id, name) VALUES(?, ?)");
+        FrontendSession fs = originalSession.getFrontendSession(url);
+        String select = "SELECT count(*) FROM " + TABLE;
+        FrontendCommand cached = fs.getCachedCommand(select, 100);
+        cached.executeQuery(0, false).close();
+
+        int id = 1000;
+        int total = 0;
+        FrontendCommand single = null;
+        for (int size = 1; size <= 100; size++) {
+            List<Row> rows = new ArrayList<>();
+            for (int i = 0; i < size; i++)
+                rows.add(newRow(id++, ValueString.get("v" + i), null, null, null));
+            List<Value> values = new ArrayList<>();
+            String sql = insert.getPlanSQL(rows, values);
+            FrontendCommand c = getFrontendCommand(insert, sql, values, size == 1);
+            if (size == 1)
+                single = c;
+            total += c.executeUpdate();
+        }
+        assertEquals(100 * 101 / 2, total);
+        assertSame(cached, fs.getCachedCommand(select, 100));
+        // 单行的语句还在缓存中
+        List<Value> values = new ArrayList<>();
+        String sql = insert.getPlanSQL(Arrays.asList(newRow(0, ValueString.get("x"), null, null, null)), values);
+        assertSame(single, fs.getCachedCommand(sql, ((Prepared) insert).getFetchSize()));
+
+        ResultInterface result = cached.executeQuery(0, false);
+        assertTrue(result.next());
+        assertEquals(total + 6, result.currentRow()[0].getInt());
+        result.close();
+    }
+
+    int execute(InsertOrMerge iom, String sql, List<Value> values) throws Exception {
+        return getFrontendCommand(iom, sql, values, false).executeUpdate();
+    }
+
+    FrontendCommand getFrontendCommand(InsertOrMerge iom, String sql, List<Value> values, boolean cacheable)
+            throws Exception {
+        return FrontendSessionPool.getFrontendCommand(originalSession, (Prepared) iom, url, sql, values, cacheable);
+    }
+
+    // 大的LOB在本节点插入后再读出来，得到的是只带lobId的LOB
+    void createStoredLobs(Connection conn) throws Exception {
+        StringBuilder buff = new StringBuilder();
+        while (buff.length() < 64 * 1024)
+            buff.append("0123456789'");
+        largeString = buff.toString();
+        largeBytes = new byte[64 * 1024];
+        for (int i = 0; i < largeBytes.length; i++)
+            largeBytes[i] = (byte) i;
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO " + TABLE + "(id, c, b) VALUES(0, ?, ?)");
+        ps.setString(1, largeString);
+        ps.setBytes(2, largeBytes);
+        ps.executeUpdate();
+        ps.close();
+
+        ResultInterface result = originalSession.prepare("SELECT c, b FROM " + TABLE + " WHERE id = 0").query(0);
+        assertTrue(result.next());
+        storedClob = result.currentRow()[0];
+        storedBlob = result.currentRow()[1];
+        result.close();
+        assertTrue(((ValueLobDb) storedClob).isStored());
+        assertTrue(((ValueLobDb) storedBlob).isStored());
+    }
+
+    void assertRow(int id, String name, int f, String c, byte[] b) throws Exception {
+        ResultSet rs = remote.executeQuery("SELECT name, f, c, b FROM " + TABLE + " WHERE id = " + id);
+        assertTrue(rs.next());
+        assertEquals(name, rs.getString(1));
+        assertEquals(f, rs.getInt(2));
+        assertEquals(c, rs.getString(3));
+        assertTrue(Arrays.equals(b, rs.getBytes(4)));
+        assertFalse(rs.next());
+        rs.close();
+    }
+
+    // 值为null的列在生成的SQL中是DEFAULT
+    static Row newRow(int id, Value name, Value f, Value c, Value b) {
+        return new Row(new Value[] { ValueInt.get(id), name, f, c, b }, 0);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.command.router;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lealone.cluster.config.DatabaseDescriptor;
+import org.lealone.cluster.dht.IPartitioner;
+import org.lealone.cluster.dht.Token;
+import org.lealone.cluster.locator.AbstractReplicationStrategy;
+import org.lealone.cluster.locator.SimpleStrategy;
+import org.lealone.cluster.locator.TokenMetaData;
+
+//测量P2PRouter在多行insert时为每一行计算目标节点的开销
+public class InsertRoutingBenchmark {
+    public static void main(String[] args) throws Exception {
+        new InsertRoutingBenchmark().run();
+    }
+
+    static final String KEYSPACE = "benchmark";
+    static final int NODES = 32;
+    static final int TOKENS_PER_NODE = 256;
+    static final int ROWS = 1000000;
+
+    TokenMetaData metadata = new TokenMetaData();
+    AbstractReplicationStrategy strategy;
+    IPartitioner partitioner;
+    Token[] rowTokens = new Token[ROWS];
+
+    void run() throws Exception {
+        System.setProperty("lealone.config", "lealone-onedc.yaml");
+        DatabaseDescriptor.loadConfig();
+        partitioner = DatabaseDescriptor.getPartitioner();
+
+        for (int n = 1; n <= NODES; n++) {
+            List<Token> tokens = new ArrayList<>(TOKENS_PER_NODE);
+            for (int i = 0; i < TOKENS_PER_NODE; i++)
+                tokens.add(partitioner.getRandomToken());
+            metadata.updateNormalTokens(tokens, InetAddress.getByName("127.0.1." + n));
+        }
+        Map<String, String> options = new HashMap<>();
+        options.put("replication_factor", "3");
+        strategy = new SimpleStrategy(KEYSPACE, metadata, DatabaseDescriptor.getEndpointSnitch(), options);
+
+        for (int i = 0; i < ROWS; i++)
+            rowTokens[i] = partitioner.getToken(ByteBuffer.wrap(Integer.toString(i).getBytes()));
+
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round + ":");
+            measure("  calculateNaturalEndpoints + pendingEndpointsFor", new Router() {
+                @Override
+                public int route(Token tk) {
+                    List<InetAddress> natural = strategy.calculateNaturalEndpoints(tk, metadata.cachedOnlyTokenMap());
+                    Collection<InetAddress> pending = metadata.pendingEndpointsFor(tk, KEYSPACE);
+                    return natural.size() + pending.size();
+                }
+            });
+            measure("  getNaturalEndpoints(copy) + pendingEndpointsFor", new Router() {
+                @Override
+                public int route(Token tk) {
+                    List<InetAddress> natural = strategy.getNaturalEndpoints(tk);
+                    Collection<InetAddress> pending = metadata.pendingEndpointsFor(tk, KEYSPACE);
+                    return natural.size() + pending.size();
+                }
+            });
+            measure("  getWriteEndpoints", new Router() {
+                @Override
+                public int route(Token tk) {
+                    return strategy.getWriteEndpoints(tk).size();
+                }
+            });
+        }
+
+        // 加入一个新节点后第一次查找要重建ReplicaRing
+        List<Token> tokens = new ArrayList<>(TOKENS_PER_NODE);
+        for (int i = 0; i < TOKENS_PER_NODE; i++)
+            tokens.add(partitioner.getRandomToken());
+        metadata.updateNormalTokens(tokens, InetAddress.getByName("127.0.1." + (NODES + 1)));
+        long start = System.nanoTime();
+        strategy.getWriteEndpoints(rowTokens[0]);
+        System.out.println("rebuild after ring change: " + (System.nanoTime() - start) / 1000000 + " ms, tokens: "
+                + metadata.sortedTokens().size());
+    }
+
+    interface Router {
+        int route(Token tk);
+    }
+
+    void measure(String name, Router router) {
+        long start = System.nanoTime();
+        long sum = 0;
+        for (Token tk : rowTokens)
+            sum += router.route(tk);
+        long nanos = System.nanoTime() - start;
+        System.out.println(name + ": " + nanos / ROWS + " ns/row (" + sum + ")");
+    }
+}
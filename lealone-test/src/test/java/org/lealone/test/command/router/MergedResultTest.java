@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.command.router;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.lealone.command.dml.Select;
+import org.lealone.command.router.MergedResult;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.result.ResultInterface;
+import org.lealone.test.TestBase;
+
+//用几个本地表模拟多个节点，合并后的结果要和在一个表上执行的结果一样
+public class MergedResultTest extends TestBase {
+    static final int NODES = 3;
+
+    Session session;
+
+    @Test
+    public void run() throws Exception {
+        setInMemory(true);
+        setEmbedded(true);
+        Connection conn = getConnection();
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("DROP TABLE IF EXISTS MergedResultTestAll");
+        stmt.executeUpdate("CREATE TABLE MergedResultTestAll (f1 int, f2 int)");
+        for (int n = 0; n < NODES; n++) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS MergedResultTest" + n);
+            stmt.executeUpdate("CREATE TABLE MergedResultTest" + n + " (f1 int, f2 int)");
+        }
+        for (int i = 0; i < 100; i++) {
+            String values = " VALUES(" + (i % 7) + ", " + i + ")";
+            stmt.executeUpdate("INSERT INTO MergedResultTest" + (i % NODES) + values);
+            stmt.executeUpdate("INSERT INTO MergedResultTestAll" + values);
+        }
+        session = (Session) ((JdbcConnection) conn).getSession();
+
+        // 可以并行合并
+        check("SELECT f1, count(*), count(f2), sum(f2), min(f2), max(f2) FROM %s GROUP BY f1");
+        check("SELECT count(*), sum(f2), avg(f2) FROM %s");
+        check("SELECT max(f2), f1 FROM %s WHERE f2 > 1000 GROUP BY f1");
+        check("SELECT count(*), max(f2) FROM %s WHERE f2 > 1000");
+        // 需要串行合并
+        check("SELECT f1, count(DISTINCT f2) FROM %s GROUP BY f1");
+
+        for (int n = 0; n < NODES; n++)
+            stmt.executeUpdate("DROP TABLE IF EXISTS MergedResultTest" + n);
+        stmt.executeUpdate("DROP TABLE IF EXISTS MergedResultTestAll");
+        stmt.close();
+        conn.close();
+    }
+
+    void check(String sql) {
+        Select select = (Select) session.prepare(String.format(sql, "MergedResultTest0"));
+        Select newSelect = (Select) session.prepare(select.getPlanSQL(true, true));
+        String nodeSQL = select.getPlanSQL(true);
+        List<ResultInterface> results = new ArrayList<>(NODES);
+        for (int n = 0; n < NODES; n++)
+            results.add(session.prepare(nodeSQL.replace("MERGEDRESULTTEST0", "MERGEDRESULTTEST" + n)).query(0));
+        MergedResult merged = new MergedResult(results, newSelect, select);
+        ResultInterface expected = session.prepare(String.format(sql, "MergedResultTestAll")).query(0);
+        assertEquals(toString(expected), toString(merged));
+    }
+
+    // 分组的顺序是不确定的，所以排序后再比较
+    static String toString(ResultInterface result) {
+        TreeSet<String> rows = new TreeSet<>();
+        while (result.next())
+            rows.add(Arrays.toString(result.currentRow()));
+        result.close();
+        return rows.toString();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.command.router;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.lealone.command.CommandInterface;
+import org.lealone.command.router.CommandParallel;
+import org.lealone.command.router.ParallelResult;
+import org.lealone.message.DbException;
+import org.lealone.test.UnitTestBase;
+import org.lealone.test.command.router.PrefetchedResultTest.StubResult;
+
+//用StubResult模拟多个节点上的子查询，不需要启动TcpServer，节点n上是模NODES余n的数，每次只取2行
+public class ParallelResultStubTest extends UnitTestBase {
+    static final int NODES = 3;
+    static final int ROWS = 30;
+
+    @Test
+    public void run() throws Exception {
+        testAllRows();
+        testLimit();
+        testCallerRunsQueuedFetch();
+        testNodeFailure();
+        testCloseWhileFetching();
+    }
+
+    void testAllRows() {
+        List<StubResult> stubs = newStubs();
+        ParallelResult result = new ParallelResult(commands(stubs), 0, false, -1);
+        assertEquals(1, result.getVisibleColumnCount());
+        assertRows(result, ROWS);
+        assertClosed(stubs);
+    }
+
+    // 达到LIMIT后不再读其他节点的记录，所有节点的游标马上关闭，不用等调用close()
+    void testLimit() {
+        List<StubResult> stubs = newStubs();
+        ParallelResult result = new ParallelResult(commands(stubs), 0, false, 5);
+        for (int i = 0; i < 5; i++)
+            assertTrue(result.next());
+        assertFalse(result.next());
+        assertFalse(result.next());
+        int read = 0;
+        for (StubResult stub : stubs) {
+            assertEquals(1, stub.closed.get());
+            read += stub.index + 1;
+        }
+        assertTrue(read < ROWS);
+        result.close();
+        assertClosed(stubs);
+    }
+
+    // 线程池被占满时Fetch一直在队列中，由调用线程自己执行，不会一直等待
+    void testCallerRunsQueuedFetch() throws Exception {
+        ExecutorService old = CommandParallel.getExecutor();
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        });
+        CommandParallel.setExecutor(pool);
+        try {
+            List<StubResult> stubs = newStubs();
+            ParallelResult result = new ParallelResult(commands(stubs), 0, false, -1);
+            assertRows(result, ROWS);
+            for (StubResult stub : stubs) {
+                assertEquals(1, stub.threads.size());
+                assertTrue(stub.threads.contains(Thread.currentThread()));
+            }
+            assertClosed(stubs);
+        } finally {
+            CommandParallel.setExecutor(old);
+            release.countDown();
+            pool.shutdown();
+        }
+        // 已经被调用线程执行过的Fetch在线程池中什么也不做
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    // 某个节点扫描到一半出错时，调用者读到这一批时抛出同样的错误，关闭时所有节点的游标都关闭
+    void testNodeFailure() {
+        List<StubResult> stubs = newStubs();
+        stubs.get(1).failAt = 5;
+        ParallelResult result = new ParallelResult(commands(stubs), 0, false, -1);
+        try {
+            while (result.next())
+                ;
+            fail();
+        } catch (DbException e) {
+            assertTrue(e.getMessage().contains(StubResult.FAILURE));
+        }
+        result.close();
+        assertFalse(result.next());
+        assertClosed(stubs);
+    }
+
+    // 关闭时还有节点在读，要等它读完再关闭这个节点的游标，不能两个线程同时用同一个连接
+    void testCloseWhileFetching() throws Exception {
+        List<StubResult> stubs = newStubs();
+        StubResult slow = stubs.get(NODES - 1);
+        slow.blockAt = 0;
+        ParallelResult result = new ParallelResult(commands(stubs), 0, false, -1);
+        assertTrue(result.next());
+        assertTrue(slow.blocked.await(10, TimeUnit.SECONDS));
+        slow.releaseLater(100);
+        long start = System.currentTimeMillis();
+        result.close();
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertClosed(stubs);
+    }
+
+    static void assertRows(ParallelResult result, int rows) {
+        // 各节点的记录交错返回，顺序不确定
+        TreeSet<Integer> set = new TreeSet<>();
+        while (result.next())
+            assertTrue(set.add(result.currentRow()[0].getInt()));
+        assertFalse(result.next());
+        result.close();
+        assertEquals(rows, set.size());
+        assertEquals(0, set.first().intValue());
+        assertEquals(rows - 1, set.last().intValue());
+    }
+
+    static void assertClosed(List<StubResult> stubs) {
+        for (StubResult stub : stubs) {
+            assertEquals(1, stub.closed.get());
+            assertFalse(stub.concurrentAccess);
+        }
+    }
+
+    static List<StubResult> newStubs() {
+        List<StubResult> stubs = new ArrayList<>(NODES);
+        for (int n = 0; n < NODES; n++)
+            stubs.add(new StubResult(n, NODES, ROWS / NODES, 2));
+        return stubs;
+    }
+
+    static List<CommandInterface> commands(List<StubResult> stubs) {
+        List<CommandInterface> commands = new ArrayList<>(stubs.size());
+        for (final StubResult stub : stubs) {
+            commands.add((CommandInterface) Proxy.newProxyInstance(CommandInterface.class.getClassLoader(),
+                    new Class<?>[] { CommandInterface.class }, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().equals("executeQuery"))
+                                return stub.proxy();
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    }));
+        }
+        return commands;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.command.router;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.lealone.command.CommandInterface;
+import org.lealone.command.router.CommandWrapper;
+import org.lealone.command.router.ParallelResult;
+import org.lealone.engine.FrontendSession;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.result.ResultInterface;
+import org.lealone.test.TestBase;
+
+//用一个本地表和几个远程表模拟多个节点，远程结果集每次只取2行
+public class ParallelResultTest extends TestBase {
+    static final int NODES = 3;
+    static final int ROWS = 30;
+
+    @Test
+    public void run() throws Exception {
+        Connection conn = getConnection();
+        Statement stmt = conn.createStatement();
+        for (int n = 0; n < NODES; n++) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS ParallelResultTest" + n);
+            stmt.executeUpdate("CREATE TABLE ParallelResultTest" + n + " (f1 int)");
+            for (int i = n; i < ROWS; i += NODES)
+                stmt.executeUpdate("INSERT INTO ParallelResultTest" + n + " VALUES(" + i + ")");
+        }
+        FrontendSession fs = (FrontendSession) ((JdbcConnection) conn).getSession();
+
+        TestBase local = new TestBase();
+        local.setInMemory(true);
+        local.setEmbedded(true);
+        Connection localConn = local.getConnection();
+        Statement localStmt = localConn.createStatement();
+        localStmt.executeUpdate("DROP TABLE IF EXISTS ParallelResultTestLocal");
+        localStmt.executeUpdate("CREATE TABLE ParallelResultTestLocal (f1 int)");
+        for (int i = ROWS; i < ROWS + 5; i++)
+            localStmt.executeUpdate("INSERT INTO ParallelResultTestLocal VALUES(" + i + ")");
+        Session session = (Session) ((JdbcConnection) localConn).getSession();
+
+        List<CommandInterface> commands = new ArrayList<>(NODES + 1);
+        commands.add(new CommandWrapper(session.prepare("SELECT f1 FROM ParallelResultTestLocal")));
+        for (int n = 0; n < NODES; n++)
+            commands.add(fs.prepareCommand("SELECT f1 FROM ParallelResultTest" + n, 2));
+
+        // 所有节点的记录都要返回，顺序不确定
+        ParallelResult result = new ParallelResult(commands, 0, false, -1);
+        assertEquals(1, result.getVisibleColumnCount());
+        TreeSet<Integer> rows = new TreeSet<>();
+        while (result.next())
+            assertTrue(rows.add(result.currentRow()[0].getInt()));
+        assertFalse(result.next());
+        result.close();
+        assertEquals(ROWS + 5, rows.size());
+        assertEquals(0, rows.first().intValue());
+        assertEquals(ROWS + 4, rows.last().intValue());
+
+        // 达到LIMIT后关闭所有节点的游标
+        result = new ParallelResult(commands, 0, false, 7);
+        int count = 0;
+        while (result.next())
+            count++;
+        assertEquals(7, count);
+        assertFalse(result.next());
+        result.close();
+
+        // 关闭后还能继续用同一个连接
+        ResultInterface r = fs.prepareCommand("SELECT count(*) FROM ParallelResultTest0", 1).executeQuery(0, false);
+        assertTrue(r.next());
+        assertEquals(ROWS / NODES, r.currentRow()[0].getInt());
+        r.close();
+
+        for (int n = 0; n < NODES; n++)
+            stmt.executeUpdate("DROP TABLE IF EXISTS ParallelResultTest" + n);
+        stmt.close();
+        conn.close();
+        localStmt.close();
+        localConn.close();
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.command.router;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.command.router.PrefetchedResult;
+import org.lealone.message.DbException;
+import org.lealone.result.ResultInterface;
+import org.lealone.test.UnitTestBase;
+import org.lealone.value.Value;
+import org.lealone.value.ValueInt;
+
+//用StubResult代替远程结果集，不需要启动TcpServer
+public class PrefetchedResultTest extends UnitTestBase {
+    @Test
+    public void run() throws Exception {
+        testPrefetch();
+        testDefaultBatchSize();
+        testReset();
+        testCloseWhilePrefetching();
+        testPrefetchFailure();
+    }
+
+    // 调用者还在消费当前这一批时，下一批已经在后台读好了
+    void testPrefetch() throws Exception {
+        StubResult stub = new StubResult(0, 1, 10, 3);
+        PrefetchedResult result = new PrefetchedResult(stub.proxy());
+        assertTrue(result.next());
+        assertEquals(0, result.currentRow()[0].getInt());
+        assertEquals(0, result.getRowId());
+        // 第二批是rowId 3到5
+        assertTrue(stub.awaitRowsRead(6));
+        for (int i = 1; i < 10; i++) {
+            assertTrue(result.next());
+            assertEquals(i, result.currentRow()[0].getInt());
+            assertEquals(i, result.getRowId());
+        }
+        assertFalse(result.next());
+        assertNull(result.currentRow());
+        assertFalse(result.next());
+        result.close();
+        assertEquals(1, stub.closed.get());
+        assertFalse(stub.concurrentAccess);
+    }
+
+    // fetchSize为0时每批100行，行数正好是批大小的整数倍时最后读到一个空批
+    void testDefaultBatchSize() {
+        StubResult stub = new StubResult(0, 1, 200, 0);
+        PrefetchedResult result = new PrefetchedResult(stub.proxy());
+        for (int i = 0; i < 200; i++) {
+            assertTrue(result.next());
+            assertEquals(i, result.currentRow()[0].getInt());
+        }
+        assertFalse(result.next());
+        result.close();
+        assertEquals(1, stub.closed.get());
+        assertFalse(stub.concurrentAccess);
+    }
+
+    // 重置前等正在执行的预取结束，重置后从第一行重新开始
+    void testReset() {
+        StubResult stub = new StubResult(0, 1, 10, 3);
+        PrefetchedResult result = new PrefetchedResult(stub.proxy());
+        for (int i = 0; i < 4; i++)
+            assertTrue(result.next());
+        result.reset();
+        assertEquals(1, stub.resets.get());
+        assertNull(result.currentRow());
+        assertEquals(-1, result.getRowId());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(result.next());
+            assertEquals(i, result.currentRow()[0].getInt());
+            assertEquals(i, result.getRowId());
+        }
+        assertFalse(result.next());
+        result.close();
+        assertEquals(1, stub.closed.get());
+        assertFalse(stub.concurrentAccess);
+    }
+
+    // 关闭时预取还在读，要等它结束再关闭被包装的结果集
+    void testCloseWhilePrefetching() throws Exception {
+        StubResult stub = new StubResult(0, 1, 10, 3);
+        stub.blockAt = 4;
+        PrefetchedResult result = new PrefetchedResult(stub.proxy());
+        assertTrue(result.next());
+        assertTrue(stub.blocked.await(10, TimeUnit.SECONDS));
+        stub.releaseLater(100);
+        long start = System.currentTimeMillis();
+        result.close();
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(1, stub.closed.get());
+        assertFalse(stub.concurrentAccess);
+    }
+
+    // 预取出错时在调用者读到这一批时抛出，之后还能关闭
+    void testPrefetchFailure() {
+        StubResult stub = new StubResult(0, 1, 10, 3);
+        stub.failAt = 4;
+        PrefetchedResult result = new PrefetchedResult(stub.proxy());
+        for (int i = 0; i < 3; i++)
+            assertTrue(result.next());
+        try {
+            result.next();
+            fail();
+        } catch (DbException e) {
+            assertTrue(e.getMessage().contains(StubResult.FAILURE));
+        }
+        result.close();
+        assertEquals(1, stub.closed.get());
+        assertFalse(stub.concurrentAccess);
+    }
+
+    /**
+     * 按fetchSize分批返回first, first + step, ...，可以让next()在某一行阻塞或抛出异常，
+     * 同时记录是否有两个线程同时访问
+     */
+    static class StubResult implements InvocationHandler {
+        static final String FAILURE = "stub result failed";
+
+        final int first;
+        final int step;
+        final int rows;
+        final int fetchSize;
+        final AtomicInteger closed = new AtomicInteger();
+        final AtomicInteger resets = new AtomicInteger();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final AtomicBoolean busy = new AtomicBoolean();
+        volatile boolean concurrentAccess;
+        // 读到这一行时阻塞或抛出异常，-1表示不阻塞和不出错
+        volatile int blockAt = -1;
+        volatile int failAt = -1;
+        volatile int index = -1;
+
+        StubResult(int first, int step, int rows, int fetchSize) {
+            this.first = first;
+            this.step = step;
+            this.rows = rows;
+            this.fetchSize = fetchSize;
+        }
+
+        ResultInterface proxy() {
+            return (ResultInterface) Proxy.newProxyInstance(ResultInterface.class.getClassLoader(),
+                    new Class<?>[] { ResultInterface.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+            if (!busy.compareAndSet(false, true))
+                concurrentAccess = true;
+            try {
+                threads.add(Thread.currentThread());
+                switch (method.getName()) {
+                case "next":
+                    if (closed.get() > 0)
+                        concurrentAccess = true;
+                    return next();
+                case "currentRow":
+                    return new Value[] { ValueInt.get(first + index * step) };
+                case "getFetchSize":
+                    return fetchSize;
+                case "getVisibleColumnCount":
+                    return 1;
+                case "getRowCount":
+                    return rows;
+                case "needToClose":
+                    return true;
+                case "reset":
+                    resets.incrementAndGet();
+                    index = -1;
+                    return null;
+                case "close":
+                    closed.incrementAndGet();
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            } finally {
+                busy.set(false);
+            }
+        }
+
+        private boolean next() throws InterruptedException {
+            if (index + 1 >= rows)
+                return false;
+            if (index + 1 == blockAt) {
+                blocked.countDown();
+                released.await(10, TimeUnit.SECONDS);
+            }
+            if (index + 1 == failAt)
+                throw new RuntimeException(FAILURE);
+            index++;
+            return true;
+        }
+
+        boolean awaitRowsRead(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (index + 1 < count && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            return index + 1 >= count;
+        }
+
+        void releaseLater(final long millis) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(millis);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                    released.countDown();
+                }
+            }.start();
+        }
+    }
+}
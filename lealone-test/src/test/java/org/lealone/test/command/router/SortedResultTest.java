@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.command.router;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.lealone.command.dml.Select;
+import org.lealone.command.router.PrefetchedResult;
+import org.lealone.command.router.SortedResult;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.result.ResultInterface;
+import org.lealone.test.TestBase;
+
+//用几个本地表或StubResult模拟多个节点上已经排好序的结果，不需要启动TcpServer
+public class SortedResultTest extends TestBase {
+    static final int NODES = 3;
+
+    Session session;
+
+    @Test
+    public void run() throws Exception {
+        setInMemory(true);
+        setEmbedded(true);
+        Connection conn = getConnection();
+        Statement stmt = conn.createStatement();
+        for (int n = 0; n < NODES; n++) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS SortedResultTest" + n);
+            stmt.executeUpdate("CREATE TABLE SortedResultTest" + n + " (f1 int)");
+            // 节点n上是模NODES余n的数，再加一个所有节点都有的重复值
+            for (int i = n; i < 30; i += NODES)
+                stmt.executeUpdate("INSERT INTO SortedResultTest" + n + " VALUES(" + i + ")");
+            stmt.executeUpdate("INSERT INTO SortedResultTest" + n + " VALUES(10)");
+        }
+        session = (Session) ((JdbcConnection) conn).getSession();
+
+        int[] all = new int[30 + NODES];
+        for (int i = 0, j = 0; i < 30; i++) {
+            all[j++] = i;
+            if (i == 10)
+                for (int k = 0; k < NODES; k++)
+                    all[j++] = 10;
+        }
+
+        assertRows(merge("", ""), all, 0, all.length);
+        assertRows(merge(" LIMIT 5", ""), all, 0, 5);
+        assertRows(merge(" LIMIT 5 OFFSET 9", ""), all, 9, 5);
+        assertRows(merge(" LIMIT NULL OFFSET 31", ""), all, 31, all.length - 31);
+        assertRows(merge(" LIMIT 0", ""), all, 0, 0);
+        // 只有OFFSET没有LIMIT时返回OFFSET之后的所有行
+        assertRows(merge(" OFFSET 31 ROWS", ""), all, 31, all.length - 31);
+        assertRows(merge(" OFFSET 100 ROWS", ""), all, 0, 0);
+
+        int[] desc = new int[all.length];
+        for (int i = 0; i < all.length; i++)
+            desc[i] = all[all.length - 1 - i];
+        assertRows(merge(" LIMIT 4", " DESC"), desc, 0, 4);
+
+        testPrefetchedResults();
+
+        stmt.close();
+        conn.close();
+    }
+
+    // 远程结果集每次只取2行，PrefetchedResult在后台多次预取，合并完后每个结果集都关闭了
+    void testPrefetchedResults() throws Exception {
+        int[] all = new int[30];
+        for (int i = 0; i < all.length; i++)
+            all[i] = i;
+        assertPrefetchedRows(" LIMIT 20 OFFSET 3", 0, all, 3, 20);
+        assertPrefetchedRows(" OFFSET 3 ROWS", 0, all, 3, all.length - 3);
+        // 没有LIMIT时maxRows就是OFFSET之后最多返回的行数
+        assertPrefetchedRows(" OFFSET 3 ROWS", 5, all, 3, 5);
+    }
+
+    void assertPrefetchedRows(String limit, int maxRows, int[] expected, int offset, int count) throws Exception {
+        Select select = (Select) session.prepare("SELECT f1 FROM SortedResultTest0 ORDER BY f1" + limit);
+        List<PrefetchedResultTest.StubResult> stubs = new ArrayList<>(NODES);
+        List<ResultInterface> results = new ArrayList<>(NODES);
+        for (int n = 0; n < NODES; n++) {
+            PrefetchedResultTest.StubResult stub = new PrefetchedResultTest.StubResult(n, NODES, 30 / NODES, 2);
+            stubs.add(stub);
+            results.add(new PrefetchedResult(stub.proxy()));
+        }
+        assertRows(new SortedResult(maxRows, session, select, results), expected, offset, count);
+        for (PrefetchedResultTest.StubResult stub : stubs) {
+            assertEquals(1, stub.closed.get());
+            assertFalse(stub.concurrentAccess);
+        }
+    }
+
+    SortedResult merge(String limit, String order) {
+        Select select = (Select) session.prepare("SELECT f1 FROM SortedResultTest0 ORDER BY f1" + order + limit);
+        List<ResultInterface> results = new ArrayList<>(NODES);
+        for (int n = 0; n < NODES; n++)
+            results.add(session.prepare("SELECT f1 FROM SortedResultTest" + n + " ORDER BY f1" + order).query(0));
+        return new SortedResult(0, session, select, results);
+    }
+
+    void assertRows(SortedResult result, int[] expected, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(result.next());
+            assertEquals(expected[offset + i], result.currentRow()[0].getInt());
+        }
+        assertFalse(result.next());
+        assertFalse(result.next());
+        result.close();
+    }
+}
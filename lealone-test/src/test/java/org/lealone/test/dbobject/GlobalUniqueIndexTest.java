@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.dbobject;
+
+import org.junit.Test;
+import org.lealone.command.Prepared;
+import org.lealone.dbobject.index.Cursor;
+import org.lealone.dbobject.index.GlobalUniqueIndex;
+import org.lealone.dbobject.index.IndexType;
+import org.lealone.dbobject.table.Column;
+import org.lealone.dbobject.table.IndexColumn;
+import org.lealone.dbobject.table.MVTable;
+import org.lealone.result.Row;
+import org.lealone.value.Value;
+import org.lealone.value.ValueInt;
+
+//直接创建GlobalUniqueIndex，在同一个Session中交错执行对同一个索引的查找
+public class GlobalUniqueIndexTest extends DbObjectTestBase {
+    static final String NAME = "GlobalUniqueIndexTest_gui";
+    static final String FIND_SQL = "select _gui_row_id_,f1 from " + NAME + " where f1>=? and f1<=?";
+
+    MVTable table;
+    GlobalUniqueIndex index;
+
+    @Test
+    public void run() {
+        executeUpdate("DROP TABLE IF EXISTS " + NAME);
+        executeUpdate("CREATE TABLE IF NOT EXISTS GlobalUniqueIndexTest(id int, f1 int)");
+        table = (MVTable) db.getSchema(session.getCurrentSchemaName()).getTableOrView(session,
+                "GlobalUniqueIndexTest");
+        Column[] columns = { table.getColumn("f1") };
+        index = new GlobalUniqueIndex(session, table, db.allocateObjectId(), NAME, IndexColumn.wrap(columns),
+                IndexType.createUnique(false, false));
+        for (int i = 1; i <= 30; i++)
+            index.add(session, row(i, i * 10));
+
+        testInterleavedCursors();
+        testNestedLookup();
+
+        index.remove(session);
+        executeUpdate("DROP TABLE GlobalUniqueIndexTest");
+    }
+
+    // 前一个游标还没读完时再查找，两个游标各自返回自己范围内的记录
+    void testInterleavedCursors() {
+        Cursor c1 = index.find(session, row(0, 10), row(0, 50));
+        assertEquals(10, f1(next(c1)));
+        Cursor c2 = index.find(session, row(0, 200), row(0, 220));
+        assertEquals(200, f1(next(c2)));
+        assertEquals(20, f1(next(c1)));
+        assertEquals(210, f1(next(c2)));
+        assertEquals(220, f1(next(c2)));
+        assertFalse(c2.next());
+        assertEquals(30, f1(next(c1)));
+        assertEquals(40, f1(next(c1)));
+        assertEquals(50, f1(next(c1)));
+        assertFalse(c1.next());
+    }
+
+    // 缓存的语句正在使用时(比如执行中又嵌套查找同一个索引)，另一次查找不能覆盖它的参数
+    void testNestedLookup() {
+        Prepared outer = session.prepareCached(FIND_SQL);
+        outer.getParameters().get(0).setValue(ValueInt.get(200));
+        outer.getParameters().get(1).setValue(ValueInt.get(300));
+
+        Cursor c = index.find(session, row(0, 10), row(0, 20));
+        assertEquals(1, next(c).getKey());
+        assertEquals(2, next(c).getKey());
+        assertFalse(c.next());
+        assertEquals(ValueInt.get(200), outer.getParameters().get(0).getParamValue());
+        assertEquals(ValueInt.get(300), outer.getParameters().get(1).getParamValue());
+
+        // 在用的语句不会被再次借出
+        Prepared other = session.prepareCached(FIND_SQL);
+        assertNotSame(outer, other);
+        session.releaseCached(other);
+
+        // 归还后又能复用
+        session.releaseCached(outer);
+        Prepared p = session.prepareCached(FIND_SQL);
+        assertSame(outer, p);
+        session.releaseCached(p);
+        c = index.find(session, row(0, 100), row(0, 100));
+        assertEquals(10, next(c).getKey());
+        assertFalse(c.next());
+    }
+
+    Row row(int id, int f1) {
+        Value[] values = new Value[table.getColumns().length];
+        values[table.getColumn("id").getColumnId()] = ValueInt.get(id);
+        values[table.getColumn("f1").getColumnId()] = ValueInt.get(f1);
+        Row row = new Row(values, 0);
+        row.setKey(id);
+        return row;
+    }
+
+    static Row next(Cursor c) {
+        assertTrue(c.next());
+        return c.get();
+    }
+
+    static int f1(Row row) {
+        return row.getValue(1).getInt();
+    }
+}
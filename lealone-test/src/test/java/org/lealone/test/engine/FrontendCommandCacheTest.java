@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.engine;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.Test;
+import org.lealone.command.FrontendCommand;
+import org.lealone.engine.FrontendSession;
+import org.lealone.engine.SysProperties;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.result.ResultInterface;
+import org.lealone.server.TcpServer;
+import org.lealone.test.TestBase;
+import org.lealone.test.UnitTestBase;
+import org.lealone.value.ValueInt;
+
+//同一个FrontendSession中交错使用相同SQL的缓存命令时，先借出的命令的参数不会被覆盖
+public class FrontendCommandCacheTest extends UnitTestBase {
+    static final String INSERT = "INSERT INTO FrontendCommandCacheTest(f1, f2) VALUES(?, ?)";
+    static final String SELECT = "SELECT f2 FROM FrontendCommandCacheTest WHERE f1 = ?";
+
+    FrontendSession session;
+
+    @Test
+    public void run() throws Exception {
+        TcpServer server = new TcpServer();
+        server.init("-tcpPort", "0", "-tcpDaemon");
+        server.start();
+        try {
+            TestBase test = new TestBase();
+            test.setInMemory(true);
+            test.setHost("127.0.0.1");
+            test.setPort(server.getPort());
+            Connection conn = DriverManager.getConnection(test.getURL("FrontendCommandCacheTest"));
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS FrontendCommandCacheTest(f1 int, f2 int)");
+            session = (FrontendSession) ((JdbcConnection) conn).getSession();
+
+            testInterleavedUpdates();
+            testInterleavedQueries();
+            testEvictedWhileCheckedOut();
+
+            ResultSet rs = stmt.executeQuery("SELECT count(*) FROM FrontendCommandCacheTest");
+            assertTrue(rs.next());
+            assertEquals(4, rs.getInt(1));
+            rs.close();
+            stmt.close();
+            conn.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    void testInterleavedUpdates() {
+        FrontendCommand c1 = session.getCachedCommand(INSERT, 100);
+        setParameters(c1, 1, 10);
+        // c1还没执行，再借相同的SQL得到的是另一个命令
+        FrontendCommand c2 = session.getCachedCommand(INSERT, 100);
+        assertNotSame(c1, c2);
+        setParameters(c2, 2, 20);
+        assertEquals(1, c2.executeUpdate());
+        assertEquals(1, c1.executeUpdate());
+        // 临时的命令执行完就关闭了
+        assertTrue(c2.getParameters().isEmpty());
+
+        // c1执行完后又能借出
+        FrontendCommand c3 = session.getCachedCommand(INSERT, 100);
+        assertSame(c1, c3);
+        setParameters(c3, 3, 30);
+        assertEquals(1, c3.executeUpdate());
+
+        assertEquals(10, queryF2(1));
+        assertEquals(20, queryF2(2));
+        assertEquals(30, queryF2(3));
+    }
+
+    void testInterleavedQueries() {
+        FrontendCommand q1 = session.getCachedCommand(SELECT, 100);
+        q1.getParameters().get(0).setValue(ValueInt.get(1), true);
+        FrontendCommand q2 = session.getCachedCommand(SELECT, 100);
+        q2.getParameters().get(0).setValue(ValueInt.get(2), true);
+        assertEquals(20, getInt(q2.executeQuery(0, false)));
+        assertEquals(10, getInt(q1.executeQuery(0, false)));
+    }
+
+    // 借出期间被挤出缓存的命令执行完后才关闭
+    void testEvictedWhileCheckedOut() {
+        FrontendCommand c = session.getCachedCommand(INSERT, 100);
+        setParameters(c, 4, 40);
+        for (int i = 0; i < SysProperties.CLIENT_COMMAND_CACHE_SIZE; i++) {
+            FrontendCommand other = session.getCachedCommand("SELECT " + i + " FROM FrontendCommandCacheTest", 100);
+            other.executeQuery(0, false).close();
+        }
+        assertFalse(c.getParameters().isEmpty());
+        assertEquals(1, c.executeUpdate());
+        assertTrue(c.getParameters().isEmpty());
+        assertNotSame(c, session.getCachedCommand(INSERT, 100));
+        assertEquals(40, queryF2(4));
+    }
+
+    int queryF2(int f1) {
+        FrontendCommand q = session.getCachedCommand(SELECT, 100);
+        q.getParameters().get(0).setValue(ValueInt.get(f1), true);
+        return getInt(q.executeQuery(0, false));
+    }
+
+    static void setParameters(FrontendCommand c, int f1, int f2) {
+        c.getParameters().get(0).setValue(ValueInt.get(f1), true);
+        c.getParameters().get(1).setValue(ValueInt.get(f2), true);
+    }
+
+    static int getInt(ResultInterface result) {
+        assertTrue(result.next());
+        int v = result.currentRow()[0].getInt();
+        assertFalse(result.next());
+        result.close();
+        return v;
+    }
+}
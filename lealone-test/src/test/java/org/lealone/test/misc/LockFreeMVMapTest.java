@@ -59,7 +59,6 @@ public class LockFreeMVMapTest {
             testPut();
             testGet();
         } finally {
-            LockFreeMVMap.stopMerger();
             store.close();
         }
     }
@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.test.UnitTestBase;
+import org.lealone.value.MultiplexedConnection;
+import org.lealone.value.MultiplexedConnection.VirtualSocket;
+import org.lealone.value.Transfer;
+
+//直接在一对socket上测试MultiplexedConnection的窗口和stream的关闭
+public class MultiplexedStreamTest extends UnitTestBase {
+    static final int WINDOW = MultiplexedConnection.STREAM_WINDOW;
+
+    MultiplexedConnection client;
+    MultiplexedConnection server;
+    final BlockingQueue<VirtualSocket> opened = new LinkedBlockingQueue<>();
+
+    @Test
+    public void run() throws Exception {
+        Socket[] sockets = connect();
+        client = start(sockets[0], null);
+        server = start(sockets[1], new MultiplexedConnection.StreamListener() {
+            @Override
+            public void streamOpened(VirtualSocket socket) {
+                opened.add(socket);
+            }
+        });
+
+        testSlowReader();
+        testCloseStream();
+        testLateFrames();
+        testWindowExceeded();
+        testConcurrentOpen();
+        // 最后关闭物理连接
+        testCloseConnection();
+    }
+
+    // 一个stream的读者不读时，写者在窗口用完后阻塞，但同一个连接上的其他stream不受影响
+    void testSlowReader() throws Exception {
+        VirtualSocket slow = client.openStream();
+        slow.getOutputStream().write(1);
+        final VirtualSocket slowPeer = accept();
+        assertEquals(1, slowPeer.getInputStream().read());
+
+        final int total = 4 * WINDOW;
+        final AtomicLong written = new AtomicLong();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = slowPeer.getOutputStream();
+                    byte[] buff = new byte[8 * 1024];
+                    while (written.get() < total) {
+                        for (int i = 0; i < buff.length; i++)
+                            buff[i] = (byte) (written.get() + i);
+                        out.write(buff);
+                        written.addAndGet(buff.length);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+
+        // 另一个stream照常收发
+        VirtualSocket fast = client.openStream();
+        for (int round = 0; round < 10; round++) {
+            fast.getOutputStream().write(round);
+            VirtualSocket fastPeer = round == 0 ? accept() : null;
+            if (fastPeer != null)
+                echo(fastPeer);
+            assertEquals(round, fast.getInputStream().read());
+        }
+
+        // 写者停在窗口处，读者缓冲的数据不超过窗口
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (written.get() < WINDOW && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Thread.sleep(200);
+        assertEquals(WINDOW, written.get());
+        assertTrue(writer.isAlive());
+        assertEquals(WINDOW, slow.getInputStream().available());
+
+        // 读者开始读之后写者能写完
+        InputStream in = slow.getInputStream();
+        byte[] buff = new byte[4096];
+        long read = 0;
+        while (read < total) {
+            int n = in.read(buff);
+            assertTrue(n > 0);
+            for (int i = 0; i < n; i++)
+                assertEquals((byte) (read + i), buff[i]);
+            read += n;
+            assertTrue(in.available() <= WINDOW);
+        }
+        writer.join(10 * 1000);
+        assertFalse(writer.isAlive());
+        assertNull(error.get());
+        slow.close();
+        fast.close();
+    }
+
+    // 一端关闭stream后，另一端读到EOF，再写会抛出异常
+    void testCloseStream() throws Exception {
+        VirtualSocket s = client.openStream();
+        s.getOutputStream().write(new byte[] { 1, 2, 3 });
+        VirtualSocket peer = accept();
+        s.close();
+        InputStream in = peer.getInputStream();
+        byte[] buff = new byte[3];
+        assertEquals(3, in.read(buff));
+        assertEquals(-1, in.read());
+        assertTrue(peer.isEndOfStream());
+        try {
+            peer.getOutputStream().write(1);
+            fail();
+        } catch (IOException e) {
+            // 对方已经关闭了
+        }
+        peer.close();
+
+        // 服务器端关闭
+        s = client.openStream();
+        s.getOutputStream().write(1);
+        peer = accept();
+        peer.close();
+        assertEquals(-1, s.getInputStream().read());
+        try {
+            s.getOutputStream().write(new byte[10]);
+            fail();
+        } catch (IOException e) {
+            // 对方已经关闭了
+        }
+        s.close();
+
+        // 等待窗口的写者在对方关闭stream时不会一直阻塞
+        s = client.openStream();
+        s.getOutputStream().write(1);
+        final VirtualSocket blocked = accept();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    blocked.getOutputStream().write(new byte[2 * WINDOW]);
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        writer.start();
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (s.getInputStream().available() < WINDOW && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(writer.isAlive());
+        s.close();
+        writer.join(10 * 1000);
+        assertFalse(writer.isAlive());
+        assertTrue(error.get() instanceof IOException);
+        assertEquals(0, client.getStreamCount());
+    }
+
+    // 服务器端关闭stream之后，客户端迟到的数据不会被当成新的stream
+    void testLateFrames() throws Exception {
+        Socket[] sockets = connect();
+        Transfer raw = new Transfer(null, sockets[0]);
+        raw.init();
+        MultiplexedConnection mux = start(sockets[1], new MultiplexedConnection.StreamListener() {
+            @Override
+            public void streamOpened(VirtualSocket socket) {
+                opened.add(socket);
+            }
+        });
+        raw.writeInt(1).writeInt(1).writeBytes(new byte[] { 1 }, 0, 1);
+        raw.flush();
+        VirtualSocket peer = accept();
+        peer.close();
+        assertEquals(1, raw.readInt());
+        assertEquals(-1, raw.readInt());
+        raw.writeInt(1).writeInt(1).writeBytes(new byte[] { 2 }, 0, 1);
+        raw.flush();
+        raw.writeInt(2).writeInt(1).writeBytes(new byte[] { 3 }, 0, 1);
+        raw.flush();
+        peer = accept();
+        assertEquals(3, peer.getInputStream().read());
+        assertNull(opened.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, mux.getStreamCount());
+        raw.close();
+    }
+
+    // 对方不遵守窗口时断开物理连接
+    void testWindowExceeded() throws Exception {
+        Socket[] sockets = connect();
+        Transfer raw = new Transfer(null, sockets[0]);
+        raw.init();
+        Transfer t = new Transfer(null, sockets[1]);
+        t.init();
+        MultiplexedConnection mux = new MultiplexedConnection(t, null);
+        VirtualSocket s = mux.openStream();
+        byte[] data = new byte[WINDOW];
+        for (int i = 0; i < 2; i++) {
+            raw.writeInt(1).writeInt(data.length);
+            raw.writeBytes(data, 0, data.length);
+        }
+        raw.flush();
+        mux.readFrame();
+        assertEquals(WINDOW, s.getInputStream().available());
+        try {
+            mux.readFrame();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("window"));
+        }
+        mux.close();
+        raw.close();
+        assertEquals(WINDOW, s.getInputStream().skip(WINDOW));
+        assertEquals(-1, s.getInputStream().read());
+    }
+
+    // 多个线程同时打开stream时，服务器端不会把先分配streamId的stream当成已经关闭的
+    void testConcurrentOpen() throws Exception {
+        final int threads = 8;
+        final int rounds = 20;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] list = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            list[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        // 打开stream时就会发出打开帧，不用写数据
+                        for (int r = 0; r < rounds; r++)
+                            client.openStream();
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            list[i].start();
+        }
+        start.countDown();
+        for (int i = 0; i < threads * rounds; i++)
+            accept().close();
+        for (Thread t : list)
+            t.join(10 * 1000);
+        assertNull(error.get());
+        assertNull(opened.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    // 物理连接断开后所有stream都读到EOF，不能再打开新的stream
+    void testCloseConnection() throws Exception {
+        VirtualSocket s = client.openStream();
+        s.getOutputStream().write(1);
+        VirtualSocket peer = accept();
+        client.close();
+        assertEquals(-1, s.getInputStream().read());
+        InputStream in = peer.getInputStream();
+        assertEquals(1, in.read());
+        assertEquals(-1, in.read());
+        try {
+            client.openStream();
+            fail();
+        } catch (IOException e) {
+            // 已经关闭
+        }
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (!server.isClosed() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(server.isClosed());
+    }
+
+    VirtualSocket accept() throws InterruptedException {
+        VirtualSocket s = opened.poll(10, TimeUnit.SECONDS);
+        assertNotNull(s);
+        return s;
+    }
+
+    static void echo(final VirtualSocket s) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = s.getInputStream();
+                    OutputStream out = s.getOutputStream();
+                    int b;
+                    while ((b = in.read()) >= 0)
+                        out.write(b);
+                } catch (IOException e) {
+                    // 关闭了
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    static Socket[] connect() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        Socket client = new Socket("127.0.0.1", serverSocket.getLocalPort());
+        Socket server = serverSocket.accept();
+        serverSocket.close();
+        return new Socket[] { client, server };
+    }
+
+    // 和FrontendSession、TcpServerThread一样用一个线程一直读帧
+    static MultiplexedConnection start(Socket socket, MultiplexedConnection.StreamListener listener)
+            throws IOException {
+        Transfer transfer = new Transfer(null, socket);
+        transfer.init();
+        final MultiplexedConnection mux = new MultiplexedConnection(transfer, listener);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true)
+                        mux.readFrame();
+                } catch (IOException e) {
+                    // 物理连接断开了
+                } finally {
+                    mux.close();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return mux;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.server;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.lealone.server.TcpServer;
+import org.lealone.test.TestBase;
+import org.lealone.test.UnitTestBase;
+import org.lealone.value.MultiplexedConnection;
+
+//NIO模式下请求分多次到达时不能占住工作线程，只有一个工作线程时其他连接也要能正常执行
+public class TcpServerNioTest extends UnitTestBase {
+    static final String DB_NAME = "TcpServerNioTest";
+
+    TcpServer server;
+
+    @Test
+    public void run() throws Exception {
+        server = new TcpServer();
+        server.init("-tcpPort", "0", "-tcpNio", "-tcpNioWorkers", "1", "-tcpDaemon");
+        server.start();
+        try {
+            Connection conn = getConnection(server.getPort());
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS TcpServerNioTest(f1 int, f2 varchar)");
+
+            testStalledClient(conn);
+            testFragmentedRequests(conn);
+            testMultiplexed(conn);
+
+            stmt.close();
+            conn.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    // 握手只发了一半的客户端不能占住唯一的工作线程
+    void testStalledClient(Connection conn) throws Exception {
+        Proxy proxy = new Proxy(server.getPort(), 16, 10);
+        proxy.start();
+        final int port = proxy.getPort();
+        final Connection[] slow = new Connection[1];
+        final Throwable[] error = new Throwable[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    slow[0] = getConnection(port);
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        };
+        t.start();
+        assertTrue(proxy.paused.await(10, TimeUnit.SECONDS));
+
+        Statement stmt = conn.createStatement();
+        for (int i = 0; i < 10; i++) {
+            ResultSet rs = stmt.executeQuery("SELECT count(*) FROM TcpServerNioTest");
+            assertTrue(rs.next());
+            rs.close();
+        }
+        Connection other = getConnection(server.getPort());
+        other.close();
+        stmt.close();
+
+        proxy.resume.countDown();
+        t.join(10 * 1000);
+        assertNull(error[0]);
+        assertNotNull(slow[0]);
+        insertAndCount(slow[0], 1, 10);
+        slow[0].close();
+        proxy.close();
+    }
+
+    // 每个请求都拆成很小的片段发送，其中有比缓冲区还大的参数
+    void testFragmentedRequests(Connection conn) throws Exception {
+        Proxy proxy = new Proxy(server.getPort(), -1, 3);
+        proxy.start();
+        Connection c = getConnection(proxy.getPort());
+        insertAndCount(c, 2, 10);
+
+        StringBuilder buff = new StringBuilder();
+        while (buff.length() < 20 * 1024)
+            buff.append("0123456789");
+        String large = buff.toString();
+        PreparedStatement ps = c.prepareStatement("INSERT INTO TcpServerNioTest(f1, f2) VALUES(?, ?)");
+        ps.setInt(1, 3);
+        ps.setString(2, large);
+        assertEquals(1, ps.executeUpdate());
+        ps.close();
+
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT f2 FROM TcpServerNioTest WHERE f1 = 3");
+        assertTrue(rs.next());
+        assertEquals(large, rs.getString(1));
+        rs.close();
+        stmt.close();
+        c.close();
+        proxy.close();
+    }
+
+    // 复用连接上的stream也由工作线程池处理，不再为每个stream启动一个线程
+    void testMultiplexed(Connection conn) throws Exception {
+        Connection[] conns = new Connection[3];
+        for (int i = 0; i < conns.length; i++)
+            conns[i] = getConnection(server.getPort(), true);
+        for (int i = 0; i < conns.length; i++)
+            insertAndCount(conns[i], 10 + i, 10);
+
+        // 比stream的窗口还大的参数要分多帧发送
+        StringBuilder buff = new StringBuilder();
+        while (buff.length() < 3 * MultiplexedConnection.STREAM_WINDOW)
+            buff.append("0123456789");
+        String large = buff.toString();
+        PreparedStatement ps = conns[0].prepareStatement("INSERT INTO TcpServerNioTest(f1, f2) VALUES(?, ?)");
+        ps.setInt(1, 20);
+        ps.setString(2, large);
+        assertEquals(1, ps.executeUpdate());
+        ps.close();
+        Statement stmt = conns[1].createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT f2 FROM TcpServerNioTest WHERE f1 = 20");
+        assertTrue(rs.next());
+        assertEquals(large, rs.getString(1));
+        rs.close();
+        stmt.close();
+
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            assertFalse(t.getName(), t.getName().startsWith(server.getName()) && t.getName().endsWith(" thread"));
+        for (Connection c : conns)
+            c.close();
+    }
+
+    static void insertAndCount(Connection conn, int f1, int rows) throws Exception {
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO TcpServerNioTest(f1, f2) VALUES(?, ?)");
+        for (int i = 0; i < rows; i++) {
+            ps.setInt(1, f1);
+            ps.setString(2, "v" + i);
+            ps.executeUpdate();
+        }
+        ps.close();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT count(*) FROM TcpServerNioTest WHERE f1 = " + f1);
+        assertTrue(rs.next());
+        assertEquals(rows, rs.getInt(1));
+        rs.close();
+        stmt.close();
+    }
+
+    static Connection getConnection(int port) throws Exception {
+        return getConnection(port, false);
+    }
+
+    static Connection getConnection(int port, boolean multiplexed) throws Exception {
+        TestBase test = new TestBase();
+        if (multiplexed)
+            test.addConnectionParameter("MULTIPLEXED", "true");
+        test.setInMemory(true);
+        test.setHost("127.0.0.1");
+        test.setPort(port);
+        return DriverManager.getConnection(test.getURL(DB_NAME));
+    }
+
+    /**
+     * 把客户端发来的数据拆成chunkSize字节的片段转发给服务器，
+     * 转发了pauseAfter个字节后停下来，直到resume
+     */
+    static class Proxy extends Thread {
+        final CountDownLatch paused = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final ServerSocket serverSocket;
+        final int serverPort;
+        final int pauseAfter;
+        final int chunkSize;
+        Socket client;
+        Socket target;
+
+        Proxy(int serverPort, int pauseAfter, int chunkSize) throws Exception {
+            this.serverPort = serverPort;
+            this.pauseAfter = pauseAfter;
+            this.chunkSize = chunkSize;
+            serverSocket = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                client = serverSocket.accept();
+                target = new Socket("127.0.0.1", serverPort);
+                client.setTcpNoDelay(true);
+                target.setTcpNoDelay(true);
+                final InputStream fromTarget = target.getInputStream();
+                final OutputStream toClient = client.getOutputStream();
+                Thread back = new Thread() {
+                    @Override
+                    public void run() {
+                        copy(fromTarget, toClient);
+                    }
+                };
+                back.setDaemon(true);
+                back.start();
+
+                InputStream in = client.getInputStream();
+                OutputStream out = target.getOutputStream();
+                long forwarded = 0;
+                int b;
+                byte[] chunk = new byte[chunkSize];
+                int len = 0;
+                int chunks = 0;
+                while ((b = in.read()) >= 0) {
+                    chunk[len++] = (byte) b;
+                    forwarded++;
+                    if (forwarded == pauseAfter) {
+                        out.write(chunk, 0, len);
+                        out.flush();
+                        len = 0;
+                        paused.countDown();
+                        resume.await();
+                    }
+                    if (len == chunkSize || in.available() == 0) {
+                        out.write(chunk, 0, len);
+                        out.flush();
+                        len = 0;
+                        // 让服务器分多次读到
+                        if (++chunks % 16 == 0)
+                            Thread.sleep(1);
+                    }
+                }
+            } catch (Exception e) {
+                // 连接关闭
+            } finally {
+                close();
+            }
+        }
+
+        static void copy(InputStream in, OutputStream out) {
+            try {
+                byte[] buff = new byte[4096];
+                int n;
+                while ((n = in.read(buff)) >= 0) {
+                    out.write(buff, 0, n);
+                    out.flush();
+                }
+            } catch (Exception e) {
+                // 连接关闭
+            }
+        }
+
+        void close() {
+            try {
+                serverSocket.close();
+                if (client != null)
+                    client.close();
+                if (target != null)
+                    target.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.test.TestBase;
+import org.lealone.test.sql.SqlTestBase;
+
+//多个连接共用一个socket并发执行
+public class MultiplexedConnectionTest extends SqlTestBase {
+    static final int THREADS = 4;
+    static final int ROWS = 200;
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS MultiplexedConnectionTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS MultiplexedConnectionTest(f1 int, f2 int)");
+
+        final TestBase test = new TestBase();
+        test.addConnectionParameter("MULTIPLEXED", "true");
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int i = 0; i < THREADS; i++) {
+            final int threadId = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Connection conn = test.getConnection()) {
+                        PreparedStatement ps = conn
+                                .prepareStatement("INSERT INTO MultiplexedConnectionTest(f1, f2) VALUES(?, ?)");
+                        for (int row = 0; row < ROWS; row++) {
+                            ps.setInt(1, threadId);
+                            ps.setInt(2, row);
+                            ps.executeUpdate();
+                        }
+                        ps.close();
+                        Statement stmt = conn.createStatement();
+                        ResultSet rs = stmt.executeQuery("SELECT count(*) FROM MultiplexedConnectionTest WHERE f1="
+                                + threadId);
+                        rs.next();
+                        assertEquals(ROWS, rs.getInt(1));
+                        rs.close();
+                        stmt.close();
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        latch.await();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+
+        sql = "SELECT count(*) FROM MultiplexedConnectionTest";
+        assertEquals(THREADS * ROWS, getIntValue(1, true));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.lealone.mvstore.LockFreeMVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.test.UnitTestBase;
+import org.lealone.type.ObjectDataType;
+
+//缓冲区很小时写线程要等Merger合并，合并完的结果要和直接写B-Tree一样
+public class LockFreeMVMapMergeTest extends UnitTestBase {
+    static final int THREADS = 4;
+    static final int KEYS_PER_THREAD = 10000;
+
+    String fileName = TEST_DIR + "/mvstore/LockFreeMVMapMergeTest.mv.db";
+
+    @Test
+    public void run() throws Exception {
+        new File(fileName).delete();
+        new File(fileName).getParentFile().mkdirs();
+        MVStore store = openStore(fileName);
+        final LockFreeMVMap<Integer, String> map = openMap(store);
+
+        execute(new Runnable2() {
+            @Override
+            public void run(int threadId) {
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    int key = i * THREADS + threadId; // 不同线程的key交错在同一批叶子page中
+                    assertNull(map.put(key, "v" + key));
+                    assertEquals("v" + key, map.get(key));
+                }
+                for (int i = 0; i < KEYS_PER_THREAD; i += 2) {
+                    int key = i * THREADS + threadId;
+                    assertEquals("v" + key, map.remove(key));
+                    assertNull(map.remove(key));
+                    assertNull(map.replace(key, "x"));
+                    assertNull(map.putIfAbsent(key, "p" + key));
+                    assertEquals("p" + key, map.putIfAbsent(key, "x"));
+                    assertEquals("p" + key, map.replace(key, "v" + key));
+                }
+            }
+        });
+        check(map);
+        store.close();
+
+        // MVStoreCache按文件名缓存了关闭前的MVStore，换成绝对路径才会重新打开文件
+        store = openStore(new File(fileName).getAbsolutePath());
+        LockFreeMVMap<Integer, String> map2 = openMap(store);
+        check(map2);
+        for (int key = 0; key < THREADS * KEYS_PER_THREAD; key += 3)
+            map2.remove(key);
+        map2.clear();
+        assertEquals(0, map2.size());
+        assertNull(map2.get(1));
+        store.close();
+    }
+
+    MVStore openStore(String fileName) {
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(fileName);
+        builder.mergeBufferSize(32);
+        builder.pageSplitSize(1024);
+        return builder.open();
+    }
+
+    LockFreeMVMap<Integer, String> openMap(MVStore store) {
+        LockFreeMVMap.Builder<Integer, String> builder = new LockFreeMVMap.Builder<>();
+        builder.keyType(new ObjectDataType());
+        return store.openMap("test", builder);
+    }
+
+    void check(LockFreeMVMap<Integer, String> map) {
+        assertEquals(THREADS * KEYS_PER_THREAD, map.size());
+        for (int key = 0; key < THREADS * KEYS_PER_THREAD; key++)
+            assertEquals("v" + key, map.get(key));
+    }
+
+    interface Runnable2 {
+        void run(int threadId);
+    }
+
+    void execute(final Runnable2 task) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+        final Throwable[] error = new Throwable[1];
+        for (int i = 0; i < THREADS; i++) {
+            final int threadId = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(threadId);
+                    } catch (Throwable t) {
+                        error[0] = t;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        latch.await();
+        if (error[0] != null)
+            throw new AssertionError(error[0]);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+
+//比较多个线程往同一个MVMap写不相交的key时，synchronized和CAS两种写模式的吞吐量
+public class MVMapConcurrentWriteBenchmark {
+    public static void main(String[] args) throws Exception {
+        new MVMapConcurrentWriteBenchmark().run();
+    }
+
+    static final int KEYS_PER_THREAD = 200000;
+
+    void run() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        // 先预热
+        write(false, cores);
+        write(true, cores);
+        for (int threadCount = 1; threadCount <= cores; threadCount *= 2) {
+            long synchronizedOps = write(false, threadCount);
+            long concurrentOps = write(true, threadCount);
+            System.out.println("threads: " + threadCount + ", synchronized puts/s: " + synchronizedOps
+                    + ", concurrent puts/s: " + concurrentOps);
+        }
+    }
+
+    long write(boolean concurrentWrites, final int threadCount) throws Exception {
+        MVStore.Builder builder = new MVStore.Builder();
+        if (concurrentWrites)
+            builder.concurrentWrites();
+        MVStore store = builder.open();
+        final MVMap<Long, Long> map = store.openMap("benchmark");
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final long threadId = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // 每个线程写自己的key区间，跟MVPrimaryIndex里不同线程插入不同的行类似
+                    long base = threadId * KEYS_PER_THREAD;
+                    for (long key = base; key < base + KEYS_PER_THREAD; key++) {
+                        map.put(key, key);
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        latch.await();
+        long nanos = System.nanoTime() - start;
+        store.close();
+        return threadCount * KEYS_PER_THREAD * 1000000000L / nanos;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.test.UnitTestBase;
+
+//多个线程同时写同一个MVMap，每次写操作用CAS安装新的root，结果要和串行写一样
+public class MVMapConcurrentWriteTest extends UnitTestBase {
+    static final int THREADS = 4;
+    static final int KEYS_PER_THREAD = 5000;
+    static final int INCREMENTS_PER_THREAD = 500;
+
+    String fileName = TEST_DIR + "/mvstore/MVMapConcurrentWriteTest.mv.db";
+
+    @Test
+    public void run() throws Exception {
+        new File(fileName).delete();
+        new File(fileName).getParentFile().mkdirs();
+        MVStore store = openStore(fileName);
+        MVMap<Integer, Integer> map = store.openMap("test");
+        assertTrue(map.isConcurrentWrites());
+
+        final AtomicInteger absentCount = new AtomicInteger();
+        execute(map, new Task() {
+            @Override
+            public void run(MVMap<Integer, Integer> map, int threadId) {
+                // 每个线程写不相交的key
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    int key = threadId * KEYS_PER_THREAD + i;
+                    assertNull(map.put(key, key));
+                }
+                // 同一个key只有一个线程能putIfAbsent成功
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    if (map.putIfAbsent(-1 - i, threadId) == null)
+                        absentCount.incrementAndGet();
+                }
+                // 用replace实现的计数器不能丢失更新
+                for (int i = 0; i < INCREMENTS_PER_THREAD; i++) {
+                    while (true) {
+                        Integer old = map.get(Integer.MIN_VALUE);
+                        if (old == null) {
+                            if (map.putIfAbsent(Integer.MIN_VALUE, 1) == null)
+                                break;
+                        } else if (map.replace(Integer.MIN_VALUE, old, old + 1)) {
+                            break;
+                        }
+                    }
+                }
+            }
+        });
+        assertEquals(KEYS_PER_THREAD, absentCount.get());
+        assertEquals(THREADS * INCREMENTS_PER_THREAD, map.get(Integer.MIN_VALUE).intValue());
+        assertEquals(THREADS * KEYS_PER_THREAD + KEYS_PER_THREAD + 1, map.size());
+
+        execute(map, new Task() {
+            @Override
+            public void run(MVMap<Integer, Integer> map, int threadId) {
+                // 删除自己的偶数key，其他线程的key删不掉
+                for (int i = 0; i < KEYS_PER_THREAD; i += 2) {
+                    int key = threadId * KEYS_PER_THREAD + i;
+                    assertFalse(map.remove(key, key + 1));
+                    assertTrue(map.remove(key, key));
+                    assertNull(map.remove(key));
+                }
+                for (int i = 0; i < KEYS_PER_THREAD; i++)
+                    map.remove(-1 - i);
+            }
+        });
+        check(map);
+        store.close();
+
+        // MVStoreCache按文件名缓存了关闭前的MVStore，换成绝对路径才会重新打开文件
+        store = openStore(new File(fileName).getAbsolutePath());
+        map = store.openMap("test");
+        check(map);
+        map.clear();
+        assertEquals(0, map.size());
+        store.close();
+    }
+
+    MVStore openStore(String fileName) {
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(fileName);
+        builder.concurrentWrites();
+        // 让后台线程频繁保存，跟写操作并发执行
+        builder.autoCommitBufferSize(1);
+        builder.pageSplitSize(1024);
+        return builder.open();
+    }
+
+    void check(MVMap<Integer, Integer> map) {
+        assertEquals(THREADS * KEYS_PER_THREAD / 2 + 1, map.size());
+        for (int key = 0; key < THREADS * KEYS_PER_THREAD; key++) {
+            if (key % 2 == 0)
+                assertNull(map.get(key));
+            else
+                assertEquals(key, map.get(key).intValue());
+        }
+    }
+
+    interface Task {
+        void run(MVMap<Integer, Integer> map, int threadId);
+    }
+
+    void execute(final MVMap<Integer, Integer> map, final Task task) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+        final Throwable[] error = new Throwable[1];
+        for (int i = 0; i < THREADS; i++) {
+            final int threadId = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(map, threadId);
+                    } catch (Throwable t) {
+                        error[0] = t;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        latch.await();
+        if (error[0] != null)
+            throw new AssertionError(error[0]);
+    }
+}
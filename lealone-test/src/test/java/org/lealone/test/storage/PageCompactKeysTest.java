@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.junit.Test;
+import org.lealone.dbobject.index.ValueDataType;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.test.UnitTestBase;
+import org.lealone.value.ValueLong;
+
+//紧凑格式的键有三种编码: 递增的long只存差值，有公共前缀的键只存一次前缀，其他的键按原样存
+public class PageCompactKeysTest extends UnitTestBase {
+    static final int COUNT = 5000;
+
+    int openCount;
+
+    @Test
+    public void run() {
+        // 先用旧格式写，再用紧凑格式改，最后两种格式的page混在一起读
+        test(false);
+        // 紧凑格式的键也可以和entry offsets一起用
+        test(true);
+
+        long plain = writeRowIds(false);
+        long compact = writeRowIds(true);
+        assertTrue("plain: " + plain + ", compact: " + compact, compact < plain);
+    }
+
+    void test(boolean lazyDecoding) {
+        String fileName = TEST_DIR + "/mvstore/PageCompactKeysTest" + lazyDecoding + ".mv.db";
+        new File(fileName).delete();
+        new File(fileName).getParentFile().mkdirs();
+
+        MVStore store = openStore(fileName, false, lazyDecoding);
+        MVMap<Long, Integer> longs = store.openMap("longs");
+        MVMap<String, Integer> strings = store.openMap("strings");
+        MVMap<Object, Integer> mixed = store.openMap("mixed");
+        for (int i = 0; i < COUNT; i += 2)
+            put(longs, strings, mixed, i, i);
+        store.close();
+
+        store = openStore(fileName, true, lazyDecoding);
+        longs = store.openMap("longs");
+        strings = store.openMap("strings");
+        mixed = store.openMap("mixed");
+        for (int i = 1; i < COUNT; i += 2)
+            put(longs, strings, mixed, i, i);
+        // 相邻两个键的差超出long的范围时也要能还原
+        longs.put(Long.MIN_VALUE, -1);
+        longs.put(Long.MAX_VALUE, -2);
+        store.close();
+
+        store = openStore(fileName, false, lazyDecoding);
+        longs = store.openMap("longs");
+        strings = store.openMap("strings");
+        mixed = store.openMap("mixed");
+        assertEquals(COUNT + 2, longs.size());
+        assertEquals(Integer.valueOf(-1), longs.get(Long.MIN_VALUE));
+        assertEquals(Integer.valueOf(-2), longs.get(Long.MAX_VALUE));
+        Iterator<Long> it = longs.keyIterator(0L);
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(Integer.valueOf(i), longs.get((long) i));
+            assertEquals(Integer.valueOf(i), strings.get(key(i)));
+            assertEquals(Integer.valueOf(i), mixed.get(i % 3 == 0 ? (Object) key(i) : (Object) (long) i));
+            assertEquals(i, it.next().longValue());
+        }
+        assertNull(strings.get("user:"));
+        assertNull(strings.get(key(COUNT)));
+        assertEquals(key(COUNT / 2), strings.getKey(COUNT / 2));
+        store.close();
+    }
+
+    void put(MVMap<Long, Integer> longs, MVMap<String, Integer> strings, MVMap<Object, Integer> mixed, int i,
+            int value) {
+        longs.put((long) i, value);
+        strings.put(key(i), value);
+        mixed.put(i % 3 == 0 ? (Object) key(i) : (Object) (long) i, value);
+    }
+
+    static String key(int i) {
+        return String.format("user:%08d", i);
+    }
+
+    // 用主键索引的键类型写一组row id，返回文件的大小
+    long writeRowIds(boolean compactKeys) {
+        String fileName = TEST_DIR + "/mvstore/PageCompactKeysTestRowIds" + compactKeys + ".mv.db";
+        new File(fileName).delete();
+        MVStore store = openStore(fileName, compactKeys, false);
+        MVMap<Object, Object> map = store.openMap("rows",
+                new MVMap.Builder<Object, Object>().keyType(new ValueDataType(null, null, null)));
+        for (long i = 1; i <= 100000; i++)
+            map.put(ValueLong.get(i * 7), "");
+        store.close();
+
+        store = openStore(fileName, false, false);
+        map = store.openMap("rows", new MVMap.Builder<Object, Object>().keyType(new ValueDataType(null, null, null)));
+        assertEquals(100000, map.size());
+        assertEquals("", map.get(ValueLong.get(7 * 500)));
+        assertNull(map.get(ValueLong.get(7 * 500 + 1)));
+        store.close();
+        return new File(fileName).length();
+    }
+
+    MVStore openStore(String fileName, boolean compactKeys, boolean lazyDecoding) {
+        // MVStoreCache按文件名缓存了关闭前的MVStore，每次换一个指向同一文件的路径才会重新打开文件
+        String name = fileName;
+        for (int i = 0; i < openCount; i++)
+            name = "./" + name;
+        openCount++;
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(name);
+        builder.pageSplitSize(1024);
+        builder.cacheSize(1);
+        if (compactKeys)
+            builder.compactKeys();
+        if (lazyDecoding)
+            builder.lazyDecoding();
+        return builder.open();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.lealone.compress.CompressLZ4;
+import org.lealone.compress.CompressTool;
+import org.lealone.compress.Compressor;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.test.UnitTestBase;
+
+public class PageCompressionTest extends UnitTestBase {
+    static final int COUNT = 2000;
+
+    int openCount;
+
+    @Test
+    public void run() {
+        testLZ4();
+        // 只压缩指定的map
+        long plain = writeStore(false, false, -1);
+        long perMap = writeStore(false, false, 3);
+        assertTrue("plain: " + plain + ", perMap: " + perMap, perMap < plain);
+        // 整个store都用LZ4压缩，但有一个map不压缩
+        long all = writeStore(true, false, -1);
+        long exceptOne = writeStore(true, false, 0);
+        assertTrue("all: " + all + ", exceptOne: " + exceptOne, all < exceptOne);
+        // 压缩效果差的map暂停压缩，其他map照常压缩
+        writeStore(true, true, -1);
+    }
+
+    void testLZ4() {
+        Random random = new Random(1);
+        Compressor lz4 = new CompressLZ4();
+        for (int len : new int[] { 0, 1, 4, 12, 13, 15, 16, 100, 300, 1000, 70000 }) {
+            byte[][] inputs = new byte[4][len];
+            random.nextBytes(inputs[0]);
+            // 长的重复和重叠的匹配
+            Arrays.fill(inputs[1], (byte) 'a');
+            for (int i = 0; i < len; i++) {
+                inputs[2][i] = (byte) (i % 7 == 0 ? random.nextInt() : 'x' + i % 3);
+                inputs[3][i] = (byte) (i < len / 2 ? random.nextInt() : inputs[3][i - len / 2]);
+            }
+            for (byte[] in : inputs) {
+                byte[] comp = new byte[len * 2 + 16];
+                int compLen = lz4.compress(in, len, comp, 3);
+                byte[] out = new byte[len + 5];
+                lz4.expand(comp, 3, compLen - 3, out, 5, len);
+                assertTrue(Arrays.equals(in, Arrays.copyOfRange(out, 5, len + 5)));
+                assertTrue(Arrays.equals(in, CompressTool.getInstance().expand(
+                        CompressTool.getInstance().compress(in, "LZ4"))));
+            }
+        }
+    }
+
+    // 返回文件的大小
+    long writeStore(boolean compressLZ4, boolean adaptive, int textCompressionLevel) {
+        String fileName = TEST_DIR + "/mvstore/PageCompressionTest.mv.db";
+        new File(fileName).delete();
+        new File(fileName).getParentFile().mkdirs();
+        MVStore store = openStore(fileName, compressLZ4, adaptive);
+        MVMap<Integer, String> text = store.openMap("text");
+        MVMap<Integer, byte[]> random = store.openMap("random");
+        if (textCompressionLevel >= 0)
+            text.setCompressionLevel(textCompressionLevel);
+        Random r = new Random(1);
+        for (int i = 0; i < COUNT; i++) {
+            text.put(i, "the same text is compressed well " + i % 10);
+            byte[] b = new byte[100];
+            r.nextBytes(b);
+            random.put(i, b);
+            if (i % 100 == 0)
+                store.commit();
+        }
+        store.close();
+
+        store = openStore(fileName, false, false);
+        text = store.openMap("text");
+        random = store.openMap("random");
+        r = new Random(1);
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals("the same text is compressed well " + i % 10, text.get(i));
+            byte[] b = new byte[100];
+            r.nextBytes(b);
+            assertTrue(Arrays.equals(b, random.get(i)));
+        }
+        store.close();
+        return new File(fileName).length();
+    }
+
+    MVStore openStore(String fileName, boolean compressLZ4, boolean adaptive) {
+        // MVStoreCache按文件名缓存了关闭前的MVStore，每次换一个指向同一文件的路径才会重新打开文件
+        String name = fileName;
+        for (int i = 0; i < openCount; i++)
+            name = "./" + name;
+        openCount++;
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(name);
+        builder.pageSplitSize(1024);
+        if (compressLZ4)
+            builder.compressLZ4();
+        if (adaptive)
+            builder.adaptiveCompression();
+        return builder.open();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.test.TestBase;
+
+//比较page缓存很小时随机点查每次分配的内存，以及带entry偏移量的格式让文件变大了多少
+public class PageLazyDecodingBenchmark {
+    public static void main(String[] args) throws Exception {
+        new PageLazyDecodingBenchmark().run();
+    }
+
+    static final int COUNT = 200000;
+    static final int GETS = 20000;
+
+    String dir = TestBase.TEST_DIR + "/mvstore";
+    int round;
+
+    void run() throws Exception {
+        new File(dir).mkdirs();
+        // 各跑两次，第一次相当于预热
+        get(false);
+        get(true);
+        get(false);
+        get(true);
+    }
+
+    void get(boolean lazyDecoding) {
+        String fileName = dir + "/PageLazyDecodingBenchmark" + (round++) + ".mv.db";
+        new File(fileName).delete();
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(fileName);
+        if (lazyDecoding)
+            builder.lazyDecoding();
+        MVStore store = builder.open();
+        MVMap<Integer, String> map = store.openMap("benchmark");
+        for (int i = 0; i < COUNT; i++)
+            map.put(i, "value" + i);
+        store.close();
+
+        // MVStoreCache按文件名缓存了关闭前的MVStore，换成绝对路径才会重新打开文件
+        builder = new MVStore.Builder();
+        builder.fileName(new File(fileName).getAbsolutePath());
+        builder.cacheSize(1);
+        store = builder.open();
+        map = store.openMap("benchmark");
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        Random random = new Random(1);
+        long bytes = bean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < GETS; i++)
+            map.get(random.nextInt(COUNT));
+        long nanos = System.nanoTime() - start;
+        bytes = bean.getThreadAllocatedBytes(threadId) - bytes;
+        store.close();
+        System.out.println("lazyDecoding: " + lazyDecoding + ", bytes/get: " + bytes / GETS + ", us/get: "
+                + nanos / GETS / 1000.0 + ", file size: " + new File(fileName).length());
+        new File(fileName).delete();
+    }
+}
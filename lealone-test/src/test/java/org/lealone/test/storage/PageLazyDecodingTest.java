@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.junit.Test;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.Page;
+import org.lealone.test.UnitTestBase;
+
+//同一个文件中可能既有旧格式的page又有带entry偏移量的page，两种page都要能读能改
+public class PageLazyDecodingTest extends UnitTestBase {
+    static final int COUNT = 5000;
+
+    String fileName = TEST_DIR + "/mvstore/PageLazyDecodingTest.mv.db";
+    int openCount;
+
+    @Test
+    public void run() {
+        new File(fileName).delete();
+        new File(fileName).getParentFile().mkdirs();
+
+        // 先用旧格式写一半
+        MVStore store = openStore(false, false);
+        MVMap<Integer, String> map = store.openMap("test");
+        for (int i = 0; i < COUNT; i += 2)
+            map.put(i, "value" + i);
+        store.close();
+
+        // 再用新格式写另一半，并改掉一些旧格式page中的记录
+        store = openStore(true, true);
+        map = store.openMap("test");
+        check(map, 2, "value");
+        for (int i = 1; i < COUNT; i += 2)
+            map.put(i, "value" + i);
+        for (int i = 0; i < COUNT; i += 10)
+            map.put(i, "new" + i);
+        store.close();
+
+        store = openStore(true, false);
+        map = store.openMap("test");
+        checkMemory(map);
+        check(map, 1, "new");
+        // 从磁盘读出来的page被复制后再修改
+        for (int i = 0; i < COUNT; i += 3)
+            assertNotNull(map.remove(i));
+        store.close();
+
+        // 不打开lazyDecoding也能读新格式的page
+        store = openStore(false, true);
+        map = store.openMap("test");
+        for (int i = 0; i < COUNT; i++) {
+            if (i % 3 == 0)
+                assertNull(map.get(i));
+            else
+                assertEquals((i % 10 == 0 ? "new" : "value") + i, map.get(i));
+        }
+        store.close();
+    }
+
+    // 按需解码的key和value也要计入page的内存
+    void checkMemory(MVMap<Integer, String> map) {
+        Page p = map.getRoot();
+        while (!p.isLeaf())
+            p = p.getChildPage(0);
+        int before = p.getMemory();
+        int decoded = 0;
+        for (int i = 0; i < p.getKeyCount(); i++) {
+            decoded += map.getKeyType().getMemory(p.getKey(i));
+            decoded += map.getValueType().getMemory(p.getValue(i));
+        }
+        assertTrue(decoded > 0);
+        assertEquals(before + decoded, p.getMemory());
+        // 再读一次不会重复计入
+        p.getKey(0);
+        p.getValue(0);
+        assertEquals(before + decoded, p.getMemory());
+    }
+
+    MVStore openStore(boolean lazyDecoding, boolean compress) {
+        // MVStoreCache按文件名缓存了关闭前的MVStore，每次换一个指向同一文件的路径才会重新打开文件
+        String name = fileName;
+        for (int i = 0; i < openCount; i++)
+            name = "./" + name;
+        openCount++;
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(name);
+        builder.pageSplitSize(1024);
+        builder.cacheSize(1);
+        if (lazyDecoding)
+            builder.lazyDecoding();
+        if (compress)
+            builder.compress();
+        return builder.open();
+    }
+
+    void check(MVMap<Integer, String> map, int step, String newPrefix) {
+        assertEquals(COUNT / step, map.size());
+        for (int i = 0; i < COUNT; i += step) {
+            String prefix = step == 1 && i % 10 == 0 ? newPrefix : "value";
+            assertEquals(prefix + i, map.get(i));
+        }
+        assertNull(map.get(-1));
+        assertNull(map.get(COUNT));
+        Iterator<Integer> it = map.keyIterator(null);
+        for (int i = 0; i < COUNT; i += step)
+            assertEquals(i, it.next().intValue());
+        assertFalse(it.hasNext());
+        assertEquals(Integer.valueOf(COUNT - step), map.lastKey());
+        assertEquals(Integer.valueOf(COUNT / 2), map.getKey(COUNT / 2 / step));
+    }
+}
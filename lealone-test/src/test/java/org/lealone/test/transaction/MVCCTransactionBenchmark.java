@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.transaction;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.lealone.storage.StorageMap;
+import org.lealone.test.storage.MemoryStorageEngine;
+import org.lealone.transaction.MVCCTransaction;
+import org.lealone.transaction.MVCCTransactionEngine;
+import org.lealone.transaction.MVCCTransactionMap;
+import org.lealone.type.ObjectDataType;
+
+//测试多个线程同时写时的吞吐量是否随线程数增长
+public class MVCCTransactionBenchmark {
+    public static void main(String[] args) throws Exception {
+        new MVCCTransactionBenchmark().run();
+    }
+
+    static final int TRANSACTIONS_PER_THREAD = 20000;
+    static final int ROWS_PER_TRANSACTION = 10;
+
+    MVCCTransactionEngine engine;
+
+    void run() throws Exception {
+        StorageMap.Builder mapBuilder = new MemoryStorageEngine.MemoryMapBuilder();
+        engine = new MVCCTransactionEngine(new ObjectDataType(), mapBuilder, "127.0.0.1:5210", false);
+        engine.init(null);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        // 先预热
+        write(cores);
+        for (int threadCount = 1; threadCount <= cores; threadCount *= 2) {
+            long ops = write(threadCount);
+            System.out.println("threads: " + threadCount + ", writes/s: " + ops);
+        }
+    }
+
+    long write(final int threadCount) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        final String mapName = "benchmark" + threadCount;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int threadId = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < TRANSACTIONS_PER_THREAD; n++) {
+                        MVCCTransaction t = engine.beginTransaction(false);
+                        MVCCTransactionMap<String, String> map = t.openMap(mapName);
+                        for (int row = 0; row < ROWS_PER_TRANSACTION; row++) {
+                            String key = threadId + "_" + n + "_" + row;
+                            map.put(key, key);
+                        }
+                        t.commit();
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        latch.await();
+        long nanos = System.nanoTime() - start;
+        long writes = (long) threadCount * TRANSACTIONS_PER_THREAD * ROWS_PER_TRANSACTION;
+        return writes * 1000000000L / nanos;
+    }
+}
@@ -53,5 +53,30 @@ public class MVCCTransactionTest extends UnitTestBase {
         t.commit();
 
         assertEquals(2, map.sizeAsLong());
+
+        t = e.beginTransaction(false);
+        map = map.getInstance(t, Long.MAX_VALUE);
+        map.put("3", "c");
+        long savepointId = t.getSavepointId();
+        map.put("4", "d");
+        map.remove("1");
+        assertEquals(1, e.getOpenTransactions().size());
+
+        // 其他事务看不到未提交的修改
+        MVCCTransaction t2 = e.beginTransaction(false);
+        MVCCTransactionMap<String, String> map2 = map.getInstance(t2, Long.MAX_VALUE);
+        assertEquals("a", map2.get("1"));
+        assertNull(map2.get("3"));
+        assertEquals(2, map2.sizeAsLong());
+
+        t.rollbackToSavepoint(savepointId);
+        assertEquals("a", map.get("1"));
+        assertNull(map.get("4"));
+        assertEquals("c", map.get("3"));
+        t.commit();
+        t2.commit();
+
+        assertEquals(0, e.getOpenTransactions().size());
+        assertEquals(3, map.sizeAsLong());
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.transaction;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.test.UnitTestBase;
+import org.lealone.transaction.TransactionStatusCache;
+
+public class TransactionStatusCacheTest extends UnitTestBase {
+    // 和TransactionStatusCache.MAX_PROBES一样，16个槽的表中每个tid都能探测到所有槽
+    static final int SMALL = 16;
+
+    @Test
+    public void run() throws Exception {
+        testCounters();
+        testCollisions();
+        testClockEviction();
+        testResize();
+        testConcurrentResize();
+    }
+
+    void testCounters() {
+        TransactionStatusCache cache = new TransactionStatusCache(SMALL, SMALL);
+        assertEquals(-1, cache.get(1));
+        cache.set(1, 100);
+        cache.set(2, -2);
+        assertEquals(100, cache.get(1));
+        assertEquals(-2, cache.get(2));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // 放不进int的tid和状态不缓存
+        cache.set(-1, 100);
+        cache.set(Integer.MAX_VALUE, 100);
+        cache.set(3, Integer.MAX_VALUE + 1L);
+        cache.set(4, -1);
+        assertEquals(2, cache.size());
+        assertEquals(-1, cache.get(-1));
+        assertEquals(-1, cache.get(Integer.MAX_VALUE));
+        assertEquals(-1, cache.get(3));
+        assertEquals(-1, cache.get(4));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(5, cache.getMissCount());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    // 表只有16个槽时，16个tid中一定有探测起点相同的，它们都要能放下并且互不覆盖
+    void testCollisions() {
+        TransactionStatusCache cache = new TransactionStatusCache(SMALL, SMALL);
+        for (int tid = 0; tid < SMALL; tid++)
+            cache.set(tid, tid * 10);
+        assertEquals(SMALL, cache.size());
+        assertEquals(SMALL, cache.capacity());
+        assertEquals(0, cache.getEvictionCount());
+        for (int tid = 0; tid < SMALL; tid++)
+            assertEquals(tid * 10, cache.get(tid));
+
+        // 更新已有的tid不占用新的槽
+        for (int tid = 0; tid < SMALL; tid++)
+            cache.set(tid, -2);
+        assertEquals(SMALL, cache.size());
+        for (int tid = 0; tid < SMALL; tid++)
+            assertEquals(-2, cache.get(tid));
+        assertEquals(-1, cache.get(SMALL));
+    }
+
+    // 表满了以后淘汰最近没被访问过的tid
+    void testClockEviction() {
+        TransactionStatusCache cache = new TransactionStatusCache(SMALL, SMALL);
+        for (int tid = 0; tid < SMALL; tid++)
+            cache.set(tid, tid);
+        // 刚放进去的槽都被访问过，第一轮清掉所有访问位，然后替换掉一个
+        cache.set(100, 100);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(SMALL, cache.size());
+        assertEquals(100, cache.get(100));
+        int evicted = -1;
+        for (int tid = 0; tid < SMALL / 2; tid++) {
+            if (cache.get(tid) == -1)
+                evicted = tid;
+        }
+
+        // 只有后一半没被访问过，新的tid只能替换它们中的一个
+        cache.set(101, 101);
+        assertEquals(2, cache.getEvictionCount());
+        assertEquals(100, cache.get(100));
+        assertEquals(101, cache.get(101));
+        for (int tid = 0; tid < SMALL / 2; tid++) {
+            if (tid != evicted)
+                assertEquals(tid, cache.get(tid));
+        }
+        int present = 0;
+        for (int tid = 0; tid < SMALL; tid++) {
+            long v = cache.get(tid);
+            if (v != -1) {
+                assertEquals(tid, v);
+                present++;
+            }
+        }
+        assertEquals(SMALL - 2, present);
+    }
+
+    // 单线程扩容不丢记录，探测范围满了也是先扩容；到最大容量后不再扩容，开始淘汰
+    void testResize() {
+        int count = 20000;
+        TransactionStatusCache cache = new TransactionStatusCache(SMALL, 1 << 20);
+        for (int tid = 0; tid < count; tid++)
+            cache.set(tid, tid);
+        assertTrue(cache.capacity() > count);
+        assertTrue(cache.capacity() < 1 << 20);
+        assertEquals(count, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+        for (int tid = 0; tid < count; tid++)
+            assertEquals(tid, cache.get(tid));
+
+        cache = new TransactionStatusCache(SMALL, 1024);
+        for (int tid = 0; tid < 5000; tid++)
+            cache.set(tid, tid);
+        assertEquals(1024, cache.capacity());
+        assertTrue(cache.size() <= 1024);
+        assertTrue(cache.getEvictionCount() > 0);
+        // 最近放进去的还在
+        assertEquals(4999, cache.get(4999));
+    }
+
+    // 多个线程并发写入时不断扩容，读到的要么是未命中要么是正确的状态，扩容完成后所有记录都在
+    void testConcurrentResize() throws Exception {
+        final int threads = 8;
+        final int perThread = 5000;
+        final TransactionStatusCache cache = new TransactionStatusCache(SMALL, 1 << 17);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] list = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int first = i * perThread;
+            list[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int tid = first; tid < first + perThread; tid++) {
+                            cache.set(tid, tid + 1);
+                            long v = cache.get(tid);
+                            if (v != -1 && v != tid + 1)
+                                throw new AssertionError("tid=" + tid + " status=" + v);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            list[i].start();
+        }
+        start.countDown();
+        for (Thread t : list)
+            t.join();
+        assertNull(error.get());
+
+        int total = threads * perThread;
+        assertTrue(cache.capacity() > total);
+        assertEquals(0, cache.getEvictionCount());
+        assertEquals(total, cache.size());
+        for (int tid = 0; tid < total; tid++)
+            assertEquals(tid + 1, cache.get(tid));
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.mvstore.MVStore;
+import org.lealone.storage.MVMapBuilder;
+import org.lealone.storage.StorageMap;
+import org.lealone.test.UnitTestBase;
+import org.lealone.transaction.MVCCTransaction;
+import org.lealone.transaction.MVCCTransactionEngine;
+import org.lealone.transaction.MVCCTransactionMap;
+import org.lealone.transaction.TransactionSyncer;
+import org.lealone.type.DataType;
+import org.lealone.type.ObjectDataType;
+
+public class TransactionSyncerTest extends UnitTestBase {
+
+    @Test
+    public void run() throws Exception {
+        testBatching();
+        testMaxDelay();
+        testMaxBatchSize();
+        testDrainOnClose();
+        testEnqueueWhileClosing();
+        testError();
+        testUncommittedDataOfOthers();
+    }
+
+    // 一次sync还没完成时提交的事务合并到下一次sync
+    void testBatching() throws Exception {
+        SyncCounter builder = new SyncCounter();
+        builder.block();
+        TransactionSyncer syncer = start(builder, 0, 100);
+        Future<Void> first = syncer.enqueue();
+        builder.awaitSync(1);
+
+        final List<Future<Void>> futures = new ArrayList<>();
+        final TransactionSyncer s = syncer;
+        Thread[] threads = new Thread[10];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Future<Void> f = s.enqueue();
+                    synchronized (futures) {
+                        futures.add(f);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertFalse(first.isDone());
+        for (Future<Void> f : futures)
+            assertFalse(f.isDone());
+
+        builder.unblock();
+        first.get(10, TimeUnit.SECONDS);
+        for (Future<Void> f : futures)
+            f.get(10, TimeUnit.SECONDS);
+        assertEquals(2, builder.syncCount.get());
+        syncer.close();
+    }
+
+    // 最多等maxDelay，等待期间提交的事务都在同一批中
+    void testMaxDelay() throws Exception {
+        SyncCounter builder = new SyncCounter();
+        TransactionSyncer syncer = start(builder, 300, 100);
+        long start = System.nanoTime();
+        Future<Void> f1 = syncer.enqueue();
+        Future<Void> f2 = syncer.enqueue();
+        Future<Void> f3 = syncer.enqueue();
+        f1.get(10, TimeUnit.SECONDS);
+        f2.get(10, TimeUnit.SECONDS);
+        f3.get(10, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("elapsed: " + elapsed, elapsed >= 250);
+        assertEquals(1, builder.syncCount.get());
+        syncer.close();
+    }
+
+    // 攒够maxBatchSize个就不用等到maxDelay
+    void testMaxBatchSize() throws Exception {
+        SyncCounter builder = new SyncCounter();
+        TransactionSyncer syncer = start(builder, 60 * 1000, 2);
+        Future<Void> f1 = syncer.enqueue();
+        Future<Void> f2 = syncer.enqueue();
+        f1.get(10, TimeUnit.SECONDS);
+        f2.get(10, TimeUnit.SECONDS);
+        assertEquals(1, builder.syncCount.get());
+        syncer.close();
+    }
+
+    // 关闭时队列中的事务也要持久化，关闭后提交的事务直接sync
+    void testDrainOnClose() throws Exception {
+        SyncCounter builder = new SyncCounter();
+        builder.block();
+        final TransactionSyncer syncer = start(builder, 0, 100);
+        Future<Void> f1 = syncer.enqueue();
+        builder.awaitSync(1);
+        Future<Void> f2 = syncer.enqueue();
+        Future<Void> f3 = syncer.enqueue();
+
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                syncer.close();
+            }
+        };
+        closer.start();
+        builder.unblock();
+        closer.join(10 * 1000);
+        assertFalse(syncer.isAlive());
+        assertTrue(f1.isDone());
+        assertTrue(f2.isDone());
+        assertTrue(f3.isDone());
+        f2.get();
+
+        int count = builder.syncCount.get();
+        Future<Void> f4 = syncer.enqueue();
+        assertTrue(f4.isDone());
+        assertEquals(count + 1, builder.syncCount.get());
+    }
+
+    // 和close并发提交的事务不管在关闭前还是关闭后加入，都要完成
+    void testEnqueueWhileClosing() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            SyncCounter builder = new SyncCounter();
+            final TransactionSyncer syncer = start(builder, 0, 100);
+            final List<Future<Void>> futures = new ArrayList<>();
+            final CountDownLatch started = new CountDownLatch(4);
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        for (int j = 0; j < 200; j++) {
+                            Future<Void> f = syncer.enqueue();
+                            synchronized (futures) {
+                                futures.add(f);
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            started.await();
+            syncer.close();
+            for (Thread t : threads)
+                t.join();
+            for (Future<Void> f : futures)
+                f.get(10, TimeUnit.SECONDS);
+            assertEquals(800, futures.size());
+        }
+    }
+
+    // sync失败时这一批的每个事务都要拿到异常
+    void testError() throws Exception {
+        SyncCounter builder = new SyncCounter();
+        builder.block();
+        TransactionSyncer syncer = start(builder, 0, 100);
+        Future<Void> first = syncer.enqueue();
+        builder.awaitSync(1);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            futures.add(syncer.enqueue());
+        builder.error = new IllegalStateException("disk full");
+        builder.unblock();
+        futures.add(first);
+        for (Future<Void> f : futures) {
+            try {
+                f.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() == builder.error);
+            }
+        }
+        // 失败之后还能继续用
+        builder.error = null;
+        syncer.enqueue().get(10, TimeUnit.SECONDS);
+        syncer.close();
+    }
+
+    // 组提交时会把其他未提交事务的数据也写到文件中，崩溃后这些事务要能回滚
+    void testUncommittedDataOfOthers() throws Exception {
+        String fileName = TEST_DIR + "/mvstore/TransactionSyncerTest.mv.db";
+        new File(fileName).delete();
+        new File(fileName).getParentFile().mkdirs();
+        MVStore store = new MVStore.Builder().fileName(fileName).autoCommitDisabled().open();
+        MVMapBuilder builder = new MVMapBuilder(store);
+        MVCCTransactionEngine e = new MVCCTransactionEngine(new ObjectDataType(), builder, "localhost:0", false);
+        e.init(null);
+        TransactionSyncer syncer = start(builder, 0, 100);
+
+        MVCCTransaction open = e.beginTransaction(false);
+        MVCCTransactionMap<String, String> map = open.openMap("test");
+        map.put("uncommitted", "a");
+        MVCCTransaction t = e.beginTransaction(false);
+        map.getInstance(t, Long.MAX_VALUE).put("committed", "b");
+        t.commit();
+        syncer.enqueue().get(10, TimeUnit.SECONDS);
+        syncer.close();
+        store.closeImmediately();
+
+        // MVStoreCache按文件名缓存了关闭前的MVStore，换一个指向同一文件的路径才会重新打开文件
+        store = new MVStore.Builder().fileName("./" + fileName).autoCommitDisabled().open();
+        e = new MVCCTransactionEngine(new ObjectDataType(), new MVMapBuilder(store), "localhost:0", false);
+        e.init(null);
+        assertEquals(1, e.getOpenTransactions().size());
+        e.getOpenTransactions().get(0).rollback();
+        t = e.beginTransaction(false);
+        map = t.openMap("test");
+        assertNull(map.get("uncommitted"));
+        assertEquals("b", map.get("committed"));
+        t.commit();
+        store.close();
+    }
+
+    static TransactionSyncer start(StorageMap.Builder builder, int maxDelay, int maxBatchSize) {
+        TransactionSyncer syncer = new TransactionSyncer(builder, maxDelay, maxBatchSize);
+        syncer.start();
+        return syncer;
+    }
+
+    static class SyncCounter extends StorageMap.BuilderBase {
+        final AtomicInteger syncCount = new AtomicInteger();
+        volatile CountDownLatch blocker;
+        volatile RuntimeException error;
+
+        void block() {
+            blocker = new CountDownLatch(1);
+        }
+
+        void unblock() {
+            CountDownLatch latch = blocker;
+            blocker = null;
+            latch.countDown();
+        }
+
+        void awaitSync(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (syncCount.get() < count && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+            assertEquals(count, syncCount.get());
+        }
+
+        @Override
+        public void sync() {
+            syncCount.incrementAndGet();
+            CountDownLatch latch = blocker;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+
+        @Override
+        public <K, V> StorageMap<K, V> openMap(String name, DataType keyType, DataType valueType) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getMapName(int id) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.transaction;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+import org.lealone.engine.Constants;
+import org.lealone.engine.FrontendSession;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.mvstore.MVStore;
+import org.lealone.server.TcpServer;
+import org.lealone.storage.MVMapBuilder;
+import org.lealone.storage.StorageMap;
+import org.lealone.test.TestBase;
+import org.lealone.test.UnitTestBase;
+import org.lealone.transaction.MVCCTransaction;
+import org.lealone.transaction.MVCCTransactionEngine;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.TransactionStatusTable;
+import org.lealone.type.ObjectDataType;
+
+//两个TcpServer在同一个进程中，共用同一个TransactionStatusTable，相当于两个节点都能查到所有已提交的事务
+public class TransactionValidateTest extends UnitTestBase {
+    static final String DB_NAME = "TransactionValidateTest";
+
+    TcpServer server1;
+    TcpServer server2;
+    String hostAndPort1;
+    String hostAndPort2;
+    MVStore store1;
+    MVStore store2;
+    MVCCTransactionEngine engine1;
+    MVCCTransactionEngine engine2;
+    // 只用来拼远程节点上的事务名，这些事务不需要真的存在
+    int nextRemoteTid = 1000000;
+
+    @Test
+    public void run() throws Exception {
+        server1 = startServer();
+        server2 = startServer();
+        hostAndPort1 = "127.0.0.1:" + server1.getPort();
+        hostAndPort2 = "127.0.0.1:" + server2.getPort();
+        store1 = MVStore.open(null);
+        store2 = MVStore.open(null);
+        engine1 = newEngine(store1, hostAndPort1);
+        engine2 = newEngine(store2, hostAndPort2);
+        try {
+            testProtocolRoundTrip();
+            testMultiHost();
+            testStatusTable();
+            testRemoteTransactionNames();
+            testPersistence();
+        } finally {
+            store1.close();
+            store2.close();
+            server1.stop();
+            server2.stop();
+        }
+    }
+
+    // COMMAND_EXECUTE_BATCH_TRANSACTION_VALIDATE一次发送多个事务名，服务器要读完所有事务名再返回结果
+    void testProtocolRoundTrip() throws Exception {
+        TestBase test = new TestBase();
+        test.setInMemory(true);
+        test.setHost("127.0.0.1");
+        test.setPort(server1.getPort());
+        Connection conn = DriverManager.getConnection(test.getURL(DB_NAME));
+        FrontendSession fs = (FrontendSession) ((JdbcConnection) conn).getSession();
+
+        String a1 = commit(engine1);
+        String a2 = commit(engine1);
+        String b1 = commit(engine2);
+        String unknown = MVCCTransaction.getTransactionName(hostAndPort1, Integer.MAX_VALUE);
+
+        assertTrue(fs.validateTransactions(Collections.<String> emptyList()));
+        assertTrue(fs.validateTransactions(Arrays.asList(a1, a2, b1)));
+        assertFalse(fs.validateTransactions(Arrays.asList(unknown, a1, a2)));
+        assertFalse(fs.validateTransactions(Arrays.asList(a1, a2, unknown)));
+        // 前一次请求中无效事务名之后的事务名也被读完了，同一个连接还能继续使用
+        assertTrue(fs.validateTransactions(Arrays.asList(a2)));
+        assertTrue(fs.validateTransaction(a1));
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            names.add(commit(i % 2 == 0 ? engine1 : engine2));
+        assertTrue(fs.validateTransactions(names));
+        names.set(499, unknown);
+        assertFalse(fs.validateTransactions(names));
+        conn.close();
+    }
+
+    // 按节点分组后每个节点一次请求，多个节点并行验证，任何一个节点上的事务无效结果就是无效
+    void testMultiHost() throws Exception {
+        String embedded = Constants.URL_PREFIX + Constants.URL_MEM + Constants.URL_EMBED + DB_NAME;
+        Connection conn = DriverManager.getConnection(embedded, "sa", "");
+        Session session = (Session) ((JdbcConnection) conn).getSession();
+        session.setOriginalProperties(new Properties());
+
+        String a1 = commit(engine1);
+        String a2 = commit(engine1);
+        String b1 = commit(engine2);
+        String b2 = commit(engine2);
+        assertTrue(session.validateTransactions(Arrays.asList(a1)));
+        assertTrue(session.validateTransactions(Arrays.asList(a1, b1, a2, b2)));
+        assertFalse(session.validateTransactions(Arrays.asList(a1, b1,
+                MVCCTransaction.getTransactionName(hostAndPort2, Integer.MAX_VALUE), a2)));
+        assertFalse(session.validateTransactions(Arrays.asList(MVCCTransaction.getTransactionName(hostAndPort1,
+                Integer.MAX_VALUE), b1, b2)));
+        conn.close();
+    }
+
+    // 验证旧事务时，其他节点上的本地事务只调用一次validateTransactions，结果会被缓存
+    void testStatusTable() {
+        MVCCTransaction t = engine1.beginTransaction(false);
+        long oldTid = t.getTransactionId();
+        String old = getTransactionName(engine1, t);
+        String b1 = MVCCTransaction.getTransactionName(hostAndPort2, nextRemoteTid++);
+        String b2 = MVCCTransaction.getTransactionName(hostAndPort2, nextRemoteTid++);
+        String c1 = MVCCTransaction.getTransactionName("127.0.0.2:9000", nextRemoteTid++);
+        commit(t, old, b2, b1, c1);
+
+        RecordingValidator validator = new RecordingValidator(true);
+        MVCCTransaction current = newTransaction(engine1, validator);
+        assertTrue(TransactionStatusTable.validateTransaction(hostAndPort1, oldTid, current));
+        assertEquals(1, validator.calls.size());
+        assertEquals(Arrays.asList(b2, b1, c1), validator.calls.get(0));
+        assertTrue(TransactionStatusTable.validateTransaction(hostAndPort1, oldTid, current));
+        assertEquals(1, validator.calls.size());
+
+        // 有一个参与者的本地事务无效，这条记录就是无效的，同样会被缓存
+        t = engine1.beginTransaction(false);
+        oldTid = t.getTransactionId();
+        old = getTransactionName(engine1, t);
+        commit(t, old, b1);
+        validator = new RecordingValidator(false);
+        current = newTransaction(engine1, validator);
+        assertFalse(TransactionStatusTable.validateTransaction(hostAndPort1, oldTid, current));
+        assertFalse(TransactionStatusTable.validateTransaction(hostAndPort1, oldTid, current));
+        assertEquals(1, validator.calls.size());
+        assertEquals(Arrays.asList(b1), validator.calls.get(0));
+
+        // 只有一个本地事务时不需要网络往返
+        t = engine1.beginTransaction(false);
+        oldTid = t.getTransactionId();
+        old = getTransactionName(engine1, t);
+        commit(t, old);
+        validator = new RecordingValidator(false);
+        current = newTransaction(engine1, validator);
+        assertTrue(TransactionStatusTable.validateTransaction(hostAndPort1, oldTid, current));
+        assertEquals(0, validator.calls.size());
+    }
+
+    // 只排除hostAndPort这个节点自己的本地事务，端口是它前缀的节点不能被排除
+    void testRemoteTransactionNames() {
+        String[] names = { "127.0.0.1:9000:1", "127.0.0.1:90001:2", "127.0.0.1:9001:3", "127.0.0.2:9000:4" };
+        assertEquals(Arrays.asList(names[1], names[2], names[3]),
+                TransactionStatusTable.getRemoteTransactionNames(names, "127.0.0.1:9000", null));
+        assertEquals(Arrays.asList(names[0], names[1], names[3]),
+                TransactionStatusTable.getRemoteTransactionNames(names, null, names[2]));
+    }
+
+    // 本地事务名按String[]存储，重新打开后还能读出来，老版本用逗号分隔的字符串也能读
+    void testPersistence() {
+        String fileName = TEST_DIR + "/mvstore/TransactionValidateTest.mv.db";
+        new File(fileName).delete();
+        new File(fileName).getParentFile().mkdirs();
+        MVStore s = new MVStore.Builder().fileName(fileName).open();
+        StorageMap<String, Object[]> map = new MVMapBuilder(s).openMap("transactionStatusTable");
+        String[] names = { "127.0.0.1:9000:1", "127.0.0.1:9001:2" };
+        map.put("127.0.0.1:9000:1", new Object[] { names, 3L });
+        map.put("127.0.0.1:9000:5", new Object[] { "127.0.0.1:9000:5,127.0.0.1:9001:6", 7L });
+        s.close();
+
+        // MVStoreCache按文件名缓存了关闭前的MVStore，换一个指向同一文件的路径才会重新打开文件
+        s = new MVStore.Builder().fileName("./" + fileName).open();
+        map = new MVMapBuilder(s).openMap("transactionStatusTable");
+        Object[] v = map.get("127.0.0.1:9000:1");
+        assertTrue(v[0] instanceof String[]);
+        assertTrue(Arrays.equals(names, TransactionStatusTable.getAllLocalTransactionNames(v)));
+        assertEquals(3L, v[1]);
+        v = map.get("127.0.0.1:9000:5");
+        assertTrue(Arrays.equals(new String[] { "127.0.0.1:9000:5", "127.0.0.1:9001:6" },
+                TransactionStatusTable.getAllLocalTransactionNames(v)));
+        s.close();
+    }
+
+    static TcpServer startServer() throws Exception {
+        TcpServer server = new TcpServer();
+        server.init("-tcpPort", "0", "-tcpDaemon", "-baseDir", TEST_DIR);
+        server.start();
+        return server;
+    }
+
+    static MVCCTransactionEngine newEngine(MVStore store, String hostAndPort) {
+        MVCCTransactionEngine e = new MVCCTransactionEngine(new ObjectDataType(), new MVMapBuilder(store),
+                hostAndPort, false);
+        e.init(null);
+        return e;
+    }
+
+    static String commit(MVCCTransactionEngine e) {
+        MVCCTransaction t = e.beginTransaction(false);
+        String name = getTransactionName(e, t);
+        commit(t, name);
+        return name;
+    }
+
+    // 直接写事务状态表，相当于一个分布式事务在提交
+    static void commit(MVCCTransaction t, String... allLocalTransactionNames) {
+        t.setCommitTimestamp(t.getTransactionId());
+        TransactionStatusTable.commit(t, allLocalTransactionNames);
+    }
+
+    static String getTransactionName(MVCCTransactionEngine e, MVCCTransaction t) {
+        return MVCCTransaction.getTransactionName(e.getHostAndPort(), t.getTransactionId());
+    }
+
+    // 在所有已提交的事务之后开始，事务ID比它们的提交时间戳都大
+    static MVCCTransaction newTransaction(MVCCTransactionEngine e, Transaction.Validator validator) {
+        MVCCTransaction t = e.beginTransaction(false);
+        t.setValidator(validator);
+        return t;
+    }
+
+    static class RecordingValidator implements Transaction.Validator {
+        final List<List<String>> calls = new ArrayList<>();
+        final boolean result;
+
+        RecordingValidator(boolean result) {
+            this.result = result;
+        }
+
+        @Override
+        public boolean validateTransaction(String localTransactionName) {
+            return validateTransactions(Arrays.asList(localTransactionName));
+        }
+
+        @Override
+        public boolean validateTransactions(List<String> localTransactionNames) {
+            calls.add(new ArrayList<>(localTransactionNames));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.transaction;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+import org.lealone.mvstore.MVStore;
+import org.lealone.storage.MVMapBuilder;
+import org.lealone.test.UnitTestBase;
+import org.lealone.transaction.MVCCTransaction;
+import org.lealone.transaction.MVCCTransactionEngine;
+import org.lealone.transaction.MVCCTransactionMap;
+import org.lealone.transaction.Transaction;
+import org.lealone.type.ObjectDataType;
+
+//存储层把未提交的数据写到文件后进程被杀掉，重启后这些数据要能回滚，并且回滚后还能正常读
+public class UndoLogRecoveryTest extends UnitTestBase {
+    int openCount;
+
+    @Test
+    public void run() {
+        String fileName = TEST_DIR + "/mvstore/UndoLogRecoveryTest.mv.db";
+        new File(fileName).delete();
+        new File(fileName).getParentFile().mkdirs();
+
+        MVStore store = openStore(fileName);
+        MVCCTransactionEngine e = openEngine(store);
+        MVCCTransaction t = e.beginTransaction(false);
+        MVCCTransactionMap<String, String> map = t.openMap("test");
+        for (int i = 0; i < 100; i++)
+            map.put("k" + i, "v" + i);
+        t.commit();
+
+        // 未提交的事务
+        MVCCTransaction t2 = e.beginTransaction(false);
+        MVCCTransactionMap<String, String> map2 = map.getInstance(t2, Long.MAX_VALUE);
+        map2.put("k1", "changed");
+        map2.remove("k2");
+        map2.put("new1", "new");
+        long savepointId = t2.getSavepointId();
+        map2.put("k4", "rolled back");
+        map2.put("new2", "rolled back");
+        t2.rollbackToSavepoint(savepointId);
+        store.commit();
+
+        // 已经spill过的事务，之后的修改也要持久化
+        map2.put("k3", "changed after store");
+        // 在两次store之间开始并提交的事务不需要undo log
+        MVCCTransaction t3 = e.beginTransaction(false);
+        MVCCTransactionMap<String, String> map3 = map.getInstance(t3, Long.MAX_VALUE);
+        map3.put("k5", "committed");
+        t3.commit();
+        store.commit();
+
+        // 模拟进程被杀掉: 不关闭事务引擎，也不再写任何东西
+        store.closeImmediately();
+
+        store = openStore(fileName);
+        e = openEngine(store);
+        List<Transaction> list = e.getOpenTransactions();
+        assertEquals(1, list.size());
+        list.get(0).rollback();
+        assertEquals(0, e.getOpenTransactions().size());
+
+        t = e.beginTransaction(false);
+        map = t.openMap("test");
+        assertEquals(100, map.sizeAsLong());
+        assertEquals("v1", map.get("k1"));
+        assertEquals("v2", map.get("k2"));
+        assertEquals("v3", map.get("k3"));
+        assertEquals("v4", map.get("k4"));
+        assertEquals("committed", map.get("k5"));
+        assertNull(map.get("new1"));
+        assertNull(map.get("new2"));
+        for (int i = 6; i < 100; i++)
+            assertEquals("v" + i, map.get("k" + i));
+        t.commit();
+        e.close();
+        store.close();
+    }
+
+    MVStore openStore(String fileName) {
+        // MVStoreCache按文件名缓存了关闭前的MVStore，每次换一个指向同一文件的路径才会重新打开文件
+        String name = fileName;
+        for (int i = 0; i < openCount; i++)
+            name = "./" + name;
+        openCount++;
+        return new MVStore.Builder().fileName(name).autoCommitDisabled().open();
+    }
+
+    MVCCTransactionEngine openEngine(MVStore store) {
+        MVCCTransactionEngine e = new MVCCTransactionEngine(new ObjectDataType(), new MVMapBuilder(store),
+                getHost() + ":" + getPort(), false);
+        e.init(null);
+        return e;
+    }
+}
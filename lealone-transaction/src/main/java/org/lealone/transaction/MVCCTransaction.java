@@ -33,6 +33,11 @@ public class MVCCTransaction implements Transaction {
     final int transactionId;
     final String transactionName;
 
+    /**
+     * The undo log of this transaction.
+     */
+    final UndoLog undoLog;
+
     /**
      * The log id of the last entry in the undo log map.
      */
@@ -59,6 +64,7 @@ public class MVCCTransaction implements Transaction {
         transactionEngine = engine;
         transactionId = tid;
         transactionName = getTransactionName(engine.hostAndPort, tid);
+        undoLog = new UndoLog(tid);
 
         this.status = status;
         this.name = name;
@@ -188,15 +194,32 @@ public class MVCCTransaction implements Transaction {
      */
     @Override
     public void commit() {
+        waitFuture(commitAsync());
+    }
+
+    /**
+     * Commit the transaction without waiting until the changes are persisted.
+     * Afterwards, this transaction is closed.
+     *
+     * @return the future that is done when the changes are persisted
+     */
+    public Future<Void> commitAsync() {
         if (local) {
             commitLocal();
             endTransaction();
-        } else
-            commit(null);
+        } else {
+            commitDistributed(null);
+        }
+        return transactionEngine.sync(this);
     }
 
     @Override
     public void commit(String allLocalTransactionNames) {
+        commitDistributed(allLocalTransactionNames);
+        waitFuture(transactionEngine.sync(this));
+    }
+
+    private void commitDistributed(String allLocalTransactionNames) {
         if (allLocalTransactionNames == null)
             allLocalTransactionNames = getAllLocalTransactionNames();
         List<Future<Void>> futures = null;
@@ -220,6 +243,14 @@ public class MVCCTransaction implements Transaction {
         transactionEngine.commitTransactionStatusTable(this, allLocalTransactionNames);
     }
 
+    private static void waitFuture(Future<Void> future) {
+        try {
+            future.get();
+        } catch (Exception e) {
+            throw DbException.convert(e);
+        }
+    }
+
     private void waitFutures(List<Future<Void>> futures) {
         try {
             for (int i = 0, size = futures.size(); i < size; i++) {
@@ -312,7 +343,7 @@ public class MVCCTransaction implements Transaction {
         return commitTimestamp;
     }
 
-    void setCommitTimestamp(long commitTimestamp) {
+    public void setCommitTimestamp(long commitTimestamp) {
         this.commitTimestamp = commitTimestamp;
     }
 
@@ -354,6 +385,8 @@ public class MVCCTransaction implements Transaction {
         checkNotClosed();
         status = STATUS_PREPARED;
         transactionEngine.storeTransaction(this);
+        // prepare之后的事务在重启后也要能提交或回滚
+        transactionEngine.spillUndoLog(this);
     }
 
     /**
@@ -421,7 +454,7 @@ public class MVCCTransaction implements Transaction {
         return localTransactionNamesBuilder.toString();
     }
 
-    static String getTransactionName(String hostAndPort, long tid) {
+    public static String getTransactionName(String hostAndPort, long tid) {
         if (hostAndPort == null)
             hostAndPort = "0:0";
         StringBuilder buff = new StringBuilder(hostAndPort);
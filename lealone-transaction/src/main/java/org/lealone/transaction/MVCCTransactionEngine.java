@@ -6,12 +6,19 @@
 package org.lealone.transaction;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.lealone.engine.SysProperties;
 import org.lealone.storage.StorageMap;
 import org.lealone.type.DataType;
 import org.lealone.type.ObjectDataType;
@@ -35,7 +42,10 @@ public class MVCCTransactionEngine implements TransactionEngine {
     final StorageMap<Integer, Object[]> preparedTransactions;
 
     /**
-     * The undo log.
+     * The persisted undo log.
+     * <p>
+     * 每个事务的undo log平时只在事务自己的UndoLog中，
+     * 只有在需要崩溃恢复时才会spill到这里(见UndoLog.spill)。
      * <p>
      * If the first entry for a transaction doesn't have a logId
      * of 0, then the transaction is partially committed (which means rollback
@@ -46,6 +56,13 @@ public class MVCCTransactionEngine implements TransactionEngine {
      */
     final StorageMap<Long, Object[]> undoLog;
 
+    /**
+     * 有未清除的undo log的事务
+     * <p>
+     * Key: transactionId, value: transaction.
+     */
+    private final ConcurrentHashMap<Integer, MVCCTransaction> currentTransactions = new ConcurrentHashMap<>();
+
     /**
      * The map of maps.
      */
@@ -70,6 +87,17 @@ public class MVCCTransactionEngine implements TransactionEngine {
 
     private final boolean isClusterMode;
 
+    /**
+     * 没有启用组提交时是null，提交事务的线程不加锁读取
+     */
+    private volatile TransactionSyncer syncer;
+
+    /**
+     * 正在把修改写到存储设备的次数，大于0时新写的undo log要马上spill，
+     * 否则这个事务未提交的数据写到存储设备后，崩溃恢复时就找不到它的undo log了
+     */
+    private final AtomicInteger storing = new AtomicInteger();
+
     /**
      * Create a new transaction engine.
      *
@@ -91,6 +119,20 @@ public class MVCCTransactionEngine implements TransactionEngine {
                     "Undo map open with a different value type");
         }
 
+        mapBuilder.addStoreListener(new StorageMap.StoreListener() {
+            @Override
+            public void beforeStore() {
+                storing.incrementAndGet();
+                for (MVCCTransaction t : currentTransactions.values()) {
+                    spillUndoLog(t);
+                }
+            }
+
+            @Override
+            public void afterStore() {
+                storing.decrementAndGet();
+            }
+        });
     }
 
     /**
@@ -111,15 +153,19 @@ public class MVCCTransactionEngine implements TransactionEngine {
                 }
             }
         }
-        synchronized (undoLog) {
-            if (undoLog.size() > 0) {
-                Long key = undoLog.firstKey();
-                lastTransactionId.set(getTransactionId(key));
-            }
+        if (undoLog.size() > 0) {
+            Long key = undoLog.firstKey();
+            lastTransactionId.set(getTransactionId(key));
+            recoverTransactions();
         }
 
         TransactionStatusTable.init(mapBuilder);
 
+        if (SysProperties.TRANSACTION_GROUP_COMMIT && syncer == null) {
+            syncer = new TransactionSyncer(mapBuilder);
+            syncer.start();
+        }
+
         if (isClusterMode)
             TransactionValidator.getInstance().start();
     }
@@ -169,6 +215,44 @@ public class MVCCTransactionEngine implements TransactionEngine {
         return operationId & ((1L << 40) - 1);
     }
 
+    /**
+     * 把持久化undoLog中的记录恢复到每个事务自己的UndoLog中
+     */
+    private void recoverTransactions() {
+        Long key = undoLog.firstKey();
+        while (key != null) {
+            int transactionId = getTransactionId(key);
+            Object[] data = preparedTransactions.get(transactionId);
+            int status;
+            String name;
+            if (data == null) {
+                if (undoLog.containsKey(getOperationId(transactionId, 0))) {
+                    status = MVCCTransaction.STATUS_OPEN;
+                } else {
+                    status = MVCCTransaction.STATUS_COMMITTING;
+                }
+                name = null;
+            } else {
+                status = (Integer) data[0];
+                name = (String) data[1];
+            }
+            Long lastKey = undoLog.lowerKey(getOperationId(transactionId + 1, 0));
+            MVCCTransaction t = new MVCCTransaction(this, transactionId, status, name, getLogId(lastKey) + 1);
+            while (key != null && key <= lastKey) {
+                t.undoLog.recover(undoLog, getLogId(key), undoLog.get(key));
+                key = undoLog.higherKey(key);
+            }
+            currentTransactions.put(transactionId, t);
+        }
+    }
+
+    /**
+     * 事务名的前缀，单机模式时是null
+     */
+    public String getHostAndPort() {
+        return hostAndPort;
+    }
+
     /**
      * Get the list of unclosed transactions that have pending writes.
      *
@@ -176,33 +260,20 @@ public class MVCCTransactionEngine implements TransactionEngine {
      */
     @Override
     public List<Transaction> getOpenTransactions() {
-        synchronized (undoLog) {
-            ArrayList<Transaction> list = New.arrayList();
-            Long key = undoLog.firstKey();
-            while (key != null) {
-                int transactionId = getTransactionId(key);
-                key = undoLog.lowerKey(getOperationId(transactionId + 1, 0));
-                long logId = getLogId(key) + 1;
-                Object[] data = preparedTransactions.get(transactionId);
-                int status;
-                String name;
-                if (data == null) {
-                    if (undoLog.containsKey(getOperationId(transactionId, 0))) {
-                        status = MVCCTransaction.STATUS_OPEN;
-                    } else {
-                        status = MVCCTransaction.STATUS_COMMITTING;
-                    }
-                    name = null;
-                } else {
-                    status = (Integer) data[0];
-                    name = (String) data[1];
-                }
-                MVCCTransaction t = new MVCCTransaction(this, transactionId, status, name, logId);
+        ArrayList<Transaction> list = New.arrayList();
+        for (MVCCTransaction t : currentTransactions.values()) {
+            // 已经提交但还在等待验证的分布式事务不算
+            if (!t.undoLog.isEmpty() && t.getStatus() != MVCCTransaction.STATUS_CLOSED) {
                 list.add(t);
-                key = undoLog.ceilingKey(getOperationId(transactionId + 1, 0));
             }
-            return list;
         }
+        Collections.sort(list, new Comparator<Transaction>() {
+            @Override
+            public int compare(Transaction t1, Transaction t2) {
+                return Long.compare(t1.getTransactionId(), t2.getTransactionId());
+            }
+        });
+        return list;
     }
 
     private int nextTransactionId(boolean autoCommit) {
@@ -273,6 +344,14 @@ public class MVCCTransactionEngine implements TransactionEngine {
     @Override
     public void close() {
         // store.commit();
+        if (syncer != null) {
+            syncer.close();
+            syncer = null;
+        }
+        // 还没结束的事务需要在下次启动时回滚或提交
+        for (MVCCTransaction t : currentTransactions.values()) {
+            spillUndoLog(t);
+        }
         if (isClusterMode)
             TransactionValidator.getInstance().close();
     }
@@ -299,17 +378,18 @@ public class MVCCTransactionEngine implements TransactionEngine {
      * @param oldValue the old value
      */
     void log(MVCCTransaction t, long logId, int mapId, Object key, Object oldValue) {
-        Long undoKey = getOperationId(t.transactionId, logId);
         Object[] log = new Object[] { mapId, key, oldValue };
-        synchronized (undoLog) {
-            if (logId == 0) {
-                if (undoLog.containsKey(undoKey)) {
-                    throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_STILL_OPEN,
-                            "An old transaction with the same id " + "is still open: {0}", t.transactionId);
-                }
+        if (logId == 0) {
+            MVCCTransaction old = currentTransactions.putIfAbsent(t.transactionId, t);
+            if (old != null && old != t) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_STILL_OPEN,
+                        "An old transaction with the same id " + "is still open: {0}", t.transactionId);
             }
-            undoLog.put(undoKey, log);
         }
+        t.undoLog.add(logId, log);
+        // beforeStore遍历currentTransactions时可能还没有这个事务
+        if (storing.get() > 0)
+            spillUndoLog(t);
     }
 
     /**
@@ -319,14 +399,57 @@ public class MVCCTransactionEngine implements TransactionEngine {
      * @param logId the log id
      */
     public void logUndo(MVCCTransaction t, long logId) {
-        Long undoKey = getOperationId(t.transactionId, logId);
-        synchronized (undoLog) {
-            Object[] old = undoLog.remove(undoKey);
-            if (old == null) {
-                throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_ILLEGAL_STATE,
-                        "Transaction {0} was concurrently rolled back", t.transactionId);
-            }
+        Object[] old = t.undoLog.remove(logId);
+        if (old == null) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_ILLEGAL_STATE,
+                    "Transaction {0} was concurrently rolled back", t.transactionId);
+        }
+    }
+
+    /**
+     * Get the undo log entry of the given operation id.
+     *
+     * @param operationId the operation id
+     * @return the entry [ mapId, key, oldValue ], or null if not found
+     */
+    Object[] getUndoLog(long operationId) {
+        MVCCTransaction t = currentTransactions.get(getTransactionId(operationId));
+        if (t == null)
+            return null;
+        return t.undoLog.get(getLogId(operationId));
+    }
+
+    /**
+     * Get the number of undo log entries of all transactions.
+     *
+     * @return the number of entries
+     */
+    long getUndoLogSize() {
+        long size = 0;
+        for (MVCCTransaction t : currentTransactions.values()) {
+            size += t.undoLog.size();
         }
+        return size;
+    }
+
+    /**
+     * Get the transactions which still have undo log entries.
+     *
+     * @return the transactions
+     */
+    Iterable<MVCCTransaction> getCurrentTransactions() {
+        return currentTransactions.values();
+    }
+
+    /**
+     * Write the undo log of the given transaction to the persisted undo log,
+     * so that the transaction can be recovered after a restart.
+     *
+     * @param t the transaction
+     */
+    void spillUndoLog(MVCCTransaction t) {
+        if (!t.undoLog.isEmpty())
+            t.undoLog.spill(undoLog);
     }
 
     /**
@@ -356,35 +479,42 @@ public class MVCCTransactionEngine implements TransactionEngine {
 
         // 分布式事务推迟删除undoLog
         if (t.transactionId % 2 == 0) {
-            removeUndoLog(t.transactionId, maxLogId);
+            removeUndoLog(t, maxLogId);
         }
 
         endTransaction(t);
     }
 
+    /**
+     * Wait until the changes of the committed transaction are persisted.
+     *
+     * @param t the transaction
+     * @return the future that is done when the changes are persisted
+     */
+    Future<Void> sync(MVCCTransaction t) {
+        TransactionSyncer syncer = this.syncer;
+        // 只读事务不需要等
+        if (syncer == null || t.logId == 0)
+            return TransactionSyncer.COMPLETED;
+        return syncer.enqueue();
+    }
+
     public void commitAfterValidate(int tid) {
         // if (store.isClosed()) {
         // return;
         // }
 
-        removeUndoLog(tid, Long.MAX_VALUE);
+        MVCCTransaction t = currentTransactions.get(tid);
+        if (t != null)
+            removeUndoLog(t, Long.MAX_VALUE);
     }
 
-    private void removeUndoLog(int tid, long maxLogId) {
-        // TODO could synchronize on blocks (100 at a time or so)
-        synchronized (undoLog) {
-            for (long logId = 0; logId < maxLogId; logId++) {
-                Long undoKey = getOperationId(tid, logId);
-                Object[] op = undoLog.get(undoKey);
-                if (op == null) {
-                    // partially committed: load next
-                    undoKey = undoLog.ceilingKey(undoKey);
-                    if (undoKey == null || getTransactionId(undoKey) != tid) {
-                        break;
-                    }
-                    logId = getLogId(undoKey) - 1;
-                    continue;
-                }
+    private void removeUndoLog(MVCCTransaction t, long maxLogId) {
+        // 分布式事务的undo log可能被多个验证它的事务同时清除，只需要锁住这个事务自己的undo log
+        synchronized (t.undoLog) {
+            NavigableMap<Long, Object[]> log = t.undoLog.subLog(0, maxLogId);
+            for (Entry<Long, Object[]> e : log.entrySet()) {
+                Object[] op = e.getValue();
                 int mapId = (Integer) op[0];
                 StorageMap<Object, VersionedValue> map = openMap(mapId);
                 if (map == null) {
@@ -404,8 +534,10 @@ public class MVCCTransactionEngine implements TransactionEngine {
                     }
                 }
 
-                undoLog.remove(undoKey);
+                t.undoLog.remove(e.getKey());
             }
+            if (t.undoLog.isEmpty())
+                currentTransactions.remove(t.transactionId, t);
         }
     }
 
@@ -512,20 +644,10 @@ public class MVCCTransactionEngine implements TransactionEngine {
      * @param toLogId the log id to roll back to
      */
     void rollbackTo(MVCCTransaction t, long maxLogId, long toLogId) {
-        // TODO could synchronize on blocks (100 at a time or so)
-        synchronized (undoLog) {
-            for (long logId = maxLogId - 1; logId >= toLogId; logId--) {
-                Long undoKey = getOperationId(t.transactionId, logId);
-                Object[] op = undoLog.get(undoKey);
-                if (op == null) {
-                    // partially rolled back: load previous
-                    undoKey = undoLog.floorKey(undoKey);
-                    if (undoKey == null || getTransactionId(undoKey) != t.transactionId) {
-                        break;
-                    }
-                    logId = getLogId(undoKey) + 1;
-                    continue;
-                }
+        synchronized (t.undoLog) {
+            NavigableMap<Long, Object[]> log = t.undoLog.subLog(toLogId, maxLogId).descendingMap();
+            for (Entry<Long, Object[]> e : log.entrySet()) {
+                Object[] op = e.getValue();
                 int mapId = ((Integer) op[0]).intValue();
                 StorageMap<Object, VersionedValue> map = openMap(mapId);
                 if (map != null) {
@@ -539,8 +661,10 @@ public class MVCCTransactionEngine implements TransactionEngine {
                         map.put(key, oldValue);
                     }
                 }
-                undoLog.remove(undoKey);
+                t.undoLog.remove(e.getKey());
             }
+            if (t.undoLog.isEmpty())
+                currentTransactions.remove(t.transactionId, t);
         }
     }
 
@@ -556,7 +680,8 @@ public class MVCCTransactionEngine implements TransactionEngine {
     Iterator<Change> getChanges(final MVCCTransaction t, final long maxLogId, final long toLogId) {
         return new Iterator<Change>() {
 
-            private long logId = maxLogId - 1;
+            private final Iterator<Object[]> log = t.undoLog.subLog(toLogId, maxLogId).descendingMap().values()
+                    .iterator();
             private Change current;
 
             {
@@ -564,32 +689,19 @@ public class MVCCTransactionEngine implements TransactionEngine {
             }
 
             private void fetchNext() {
-                synchronized (undoLog) {
-                    while (logId >= toLogId) {
-                        Long undoKey = getOperationId(t.transactionId, logId);
-                        Object[] op = undoLog.get(undoKey);
-                        logId--;
-                        if (op == null) {
-                            // partially rolled back: load previous
-                            undoKey = undoLog.floorKey(undoKey);
-                            if (undoKey == null || getTransactionId(undoKey) != t.transactionId) {
-                                break;
-                            }
-                            logId = getLogId(undoKey);
-                            continue;
-                        }
-                        int mapId = ((Integer) op[0]).intValue();
-                        StorageMap<Object, VersionedValue> m = openMap(mapId);
-                        if (m == null) {
-                            // map was removed later on
-                        } else {
-                            current = new Change();
-                            current.mapName = m.getName();
-                            current.key = op[1];
-                            VersionedValue oldValue = (VersionedValue) op[2];
-                            current.value = oldValue == null ? null : oldValue.value;
-                            return;
-                        }
+                while (log.hasNext()) {
+                    Object[] op = log.next();
+                    int mapId = ((Integer) op[0]).intValue();
+                    StorageMap<Object, VersionedValue> m = openMap(mapId);
+                    if (m == null) {
+                        // map was removed later on
+                    } else {
+                        current = new Change();
+                        current.mapName = m.getName();
+                        current.key = op[1];
+                        VersionedValue oldValue = (VersionedValue) op[2];
+                        current.value = oldValue == null ? null : oldValue.value;
+                        return;
                     }
                 }
                 current = null;
@@ -620,8 +732,10 @@ public class MVCCTransactionEngine implements TransactionEngine {
 
     void commitTransactionStatusTable(MVCCTransaction t, String allLocalTransactionNames) {
         t.setCommitTimestamp(nextOddTransactionId());
-        TransactionStatusTable.commit(t, allLocalTransactionNames);
-        TransactionValidator.enqueue(t, allLocalTransactionNames);
+        // 只在这里解析一次，之后都使用解析好的事务名
+        String[] names = allLocalTransactionNames.split(",");
+        TransactionStatusTable.commit(t, names);
+        TransactionValidator.enqueue(t, names);
     }
 
     boolean validateTransaction(int tid, MVCCTransaction currentTransaction) {
@@ -92,11 +92,8 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
     @Override
     public long sizeAsLong() {
         long sizeRaw = map.sizeAsLong();
-        StorageMap<Long, Object[]> undo = transaction.transactionEngine.undoLog;
-        long undoLogSize;
-        synchronized (undo) {
-            undoLogSize = undo.sizeAsLong();
-        }
+        MVCCTransactionEngine engine = transaction.transactionEngine;
+        long undoLogSize = engine.getUndoLogSize();
         if (undoLogSize == 0) {
             return sizeRaw;
         }
@@ -117,13 +114,12 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
         }
         // the undo log is smaller than the map -
         // scan the undo log and subtract invisible entries
-        synchronized (undo) {
-            // re-fetch in case any transaction was committed now
-            long size = map.sizeAsLong();
-            StorageMap<Object, Integer> temp = transaction.transactionEngine.createTempMap();
-            try {
-                for (Entry<Long, Object[]> e : undo.entrySet()) {
-                    Object[] op = e.getValue();
+        // re-fetch in case any transaction was committed now
+        long size = map.sizeAsLong();
+        StorageMap<Object, Integer> temp = engine.createTempMap();
+        try {
+            for (MVCCTransaction t : engine.getCurrentTransactions()) {
+                for (Object[] op : t.undoLog.values()) {
                     int m = (Integer) op[0];
                     if (m != mapId) {
                         // a different map - ignore
@@ -140,12 +136,12 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
                         }
                     }
                 }
-            } finally {
-                //transaction.transactionEngine.store.removeMap(temp);
-                temp.remove();
             }
-            return size;
+        } finally {
+            //transaction.transactionEngine.store.removeMap(temp);
+            temp.remove();
         }
+        return size;
     }
 
     /**
@@ -422,10 +418,7 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
                 }
             }
             // get the value before the uncommitted transaction
-            Object[] d;
-            synchronized (transaction.transactionEngine.undoLog) {
-                d = transaction.transactionEngine.undoLog.get(id);
-            }
+            Object[] d = transaction.transactionEngine.getUndoLog(id);
             if (d == null) {
                 // this entry should be committed or rolled back
                 // in the meantime (the transaction might still be open)
@@ -17,70 +17,274 @@
  */
 package org.lealone.transaction;
 
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.lealone.engine.Constants;
+import org.lealone.util.MathUtils;
 
 /**
- * 
- * 事务状态缓存，用于提高查询性能，有三种事务状态: 
+ *
+ * 事务状态缓存，用于提高查询性能，有三种事务状态:
  * <ul>-1: 事务状态未知</ul>
  * <ul>-2: 事务未正常提交</ul>
  * <ul>其他值: 事务正常提交</ul>
+ * <p>
+ *
+ * 实现方式是无锁的开放地址(线性探测)哈希表，每个槽是一个long，高32位是tid+1，低32位是状态，
+ * 所以读写一个槽只需要一次原子操作，不会读到tid和状态不匹配的槽。<p>
+ *
+ * 表从一个较小的容量开始，按需扩容到最大容量(探测范围满了也是先扩容)，
+ * 到了最大容量后才在探测范围内按CLOCK算法淘汰最近没被访问过的槽，所以内存是有上限的。
+ * 扩容时并发写入旧表的记录会在扩容完成后再写到新表中，不会丢失。
  *
  */
-class TransactionStatusCache {
-    //桶个数
-    private static final int BUCKET_NUMBER = Integer.valueOf(System.getProperty(Constants.PROJECT_NAME_PREFIX
-            + "transaction.status.cache.bucket.number", Integer.toString(1 << 15)));
-
-    //每个桶的容量大小
-    private static final int BUCKET_SIZE = Integer.valueOf(System.getProperty(Constants.PROJECT_NAME_PREFIX
-            + "transaction.status.cache.bucket.size", Integer.toString(1 << 14)));
-
-    private final Bucket buckets[] = new Bucket[BUCKET_NUMBER];
-
-    public synchronized void set(long tid, long timestamp) {
-        int position = getPosition(tid);
-        Bucket bucket = buckets[position];
-        if (bucket == null) {
-            bucket = new Bucket();
-            buckets[position] = bucket;
+public class TransactionStatusCache {
+    //最大槽数(会向上取2的幂)
+    private static final int MAX_SIZE = Integer.valueOf(System.getProperty(Constants.PROJECT_NAME_PREFIX
+            + "transaction.status.cache.max.size", Integer.toString(1 << 20)));
+
+    //初始槽数(会向上取2的幂)
+    private static final int INITIAL_SIZE = Integer.valueOf(System.getProperty(Constants.PROJECT_NAME_PREFIX
+            + "transaction.status.cache.initial.size", Integer.toString(1 << 10)));
+
+    //每次get/set最多探测的槽数
+    private static final int MAX_PROBES = 16;
+
+    private static final long EMPTY = 0;
+
+    //Table.set的结果
+    private static final int STORED = 0;
+    private static final int EVICTED = 1;
+    private static final int NO_ROOM = 2;
+
+    private final int maxSize;
+    private volatile Table table;
+    private final AtomicBoolean resizing = new AtomicBoolean();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    TransactionStatusCache() {
+        this(INITIAL_SIZE, MAX_SIZE);
+    }
+
+    public TransactionStatusCache(int initialSize, int maxSize) {
+        this.maxSize = MathUtils.nextPowerOf2(Math.max(MAX_PROBES, maxSize));
+        table = new Table(Math.min(this.maxSize, MathUtils.nextPowerOf2(Math.max(MAX_PROBES, initialSize))));
+    }
+
+    public void set(long tid, long timestamp) {
+        if (!isCacheable(tid, timestamp))
+            return;
+        Table t = table;
+        while (true) {
+            int result = t.set((int) tid, (int) timestamp, t.capacity >= maxSize);
+            if (result == NO_ROOM) {
+                // 还没到最大容量时探测范围满了就先扩容，而不是淘汰;
+                // 其他线程正在扩容时等它完成，然后写到新表中
+                if (!resize(t)) {
+                    while (resizing.get())
+                        Thread.yield();
+                }
+                t = table;
+                continue;
+            }
+            if (result == EVICTED)
+                evictions.incrementAndGet();
+            if (t.isFull() && t.capacity < maxSize)
+                resize(t);
+            // 正在扩容时复制可能已经错过了这条记录，等扩容完成后如果表被换掉了就在新表中再写一次
+            while (resizing.get())
+                Thread.yield();
+            Table current = table;
+            if (current == t)
+                return;
+            t = current;
         }
-        bucket.set(tid, timestamp);
     }
 
     /**
-     * 
+     *
      * @param tid 事务id
      * @return -1: 事务状态未知; -2: 事务未正常提交; 其他值: 事务正常提交
      */
     public long get(long tid) {
-        Bucket bucket = buckets[getPosition(tid)];
-        if (bucket == null) {
+        if (tid < 0 || tid >= Integer.MAX_VALUE) {
+            misses.incrementAndGet();
             return -1;
         }
-        return bucket.get(tid);
+        long timestamp = table.get((int) tid);
+        if (timestamp == -1)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return timestamp;
     }
 
-    //算出tid在哪个桶
-    private int getPosition(long tid) {
-        return ((int) (tid / BUCKET_SIZE)) % BUCKET_NUMBER;
+    public long getHitCount() {
+        return hits.get();
     }
 
-    private static class Bucket {
-        private final long tids[] = new long[BUCKET_SIZE];
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
 
-        Bucket() {
-            Arrays.fill(tids, -1);
+    public int size() {
+        return table.size.get();
+    }
+
+    public int capacity() {
+        return table.capacity;
+    }
+
+    //tid和状态都需要能放进int
+    private static boolean isCacheable(long tid, long timestamp) {
+        return tid >= 0 && tid < Integer.MAX_VALUE && timestamp >= Integer.MIN_VALUE && timestamp <= Integer.MAX_VALUE
+                && timestamp != -1;
+    }
+
+    /**
+     * @return 如果其他线程正在扩容返回false，否则返回true
+     */
+    private boolean resize(Table old) {
+        if (!resizing.compareAndSet(false, true))
+            return false;
+        try {
+            if (table != old)
+                return true;
+            int capacity = old.capacity * 2;
+            Table t;
+            // 复制时新表的探测范围也可能满了，还没到最大容量就继续扩大，不丢记录
+            while ((t = copy(old, capacity)) == null)
+                capacity *= 2;
+            table = t;
+            return true;
+        } finally {
+            resizing.set(false);
+        }
+    }
+
+    private Table copy(Table old, int capacity) {
+        Table t = new Table(capacity);
+        boolean evict = capacity >= maxSize;
+        for (int i = 0; i < old.capacity; i++) {
+            long slot = old.slots.get(i);
+            if (slot != EMPTY && t.set(getTid(slot), getTimestamp(slot), evict) == NO_ROOM)
+                return null;
         }
+        return t;
+    }
+
+    private static long toSlot(int tid, int timestamp) {
+        return ((long) (tid + 1) << 32) | (timestamp & 0xffffffffL);
+    }
+
+    private static int getTid(long slot) {
+        return (int) (slot >>> 32) - 1;
+    }
 
-        long get(long tid) {
-            return tids[(int) (tid % BUCKET_SIZE)];
+    private static int getTimestamp(long slot) {
+        return (int) slot;
+    }
+
+    private static int hash(int tid) {
+        // tid大多是连续的，打散一下避免探测序列聚集
+        int h = tid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static class Table {
+        final int capacity;
+        final int mask;
+        final AtomicLongArray slots;
+        // CLOCK算法的访问位，并发读写时丢失一次更新只会影响淘汰的选择，所以不需要原子操作
+        final byte[] referenced;
+        final AtomicInteger size = new AtomicInteger();
+        final int threshold;
+
+        Table(int capacity) {
+            this.capacity = capacity;
+            mask = capacity - 1;
+            slots = new AtomicLongArray(capacity);
+            referenced = new byte[capacity];
+            threshold = capacity / 4 * 3;
+        }
+
+        boolean isFull() {
+            return size.get() >= threshold;
+        }
+
+        long get(int tid) {
+            int index = hash(tid) & mask;
+            for (int i = 0; i < MAX_PROBES; i++, index = (index + 1) & mask) {
+                long slot = slots.get(index);
+                if (slot == EMPTY)
+                    break;
+                if (getTid(slot) == tid) {
+                    referenced[index] = 1;
+                    return getTimestamp(slot);
+                }
+            }
+            return -1;
         }
 
-        void set(long tid, long timestamp) {
-            tids[(int) (tid % BUCKET_SIZE)] = timestamp;
+        /**
+         * @param evict 探测范围内都满了时是否淘汰一个旧的槽
+         * @return STORED、EVICTED，或者不能淘汰时返回NO_ROOM
+         */
+        int set(int tid, int timestamp, boolean evict) {
+            long newSlot = toSlot(tid, timestamp);
+            int home = hash(tid) & mask;
+            while (true) {
+                int index = home;
+                for (int i = 0; i < MAX_PROBES; i++, index = (index + 1) & mask) {
+                    long slot = slots.get(index);
+                    if (slot == EMPTY) {
+                        if (slots.compareAndSet(index, EMPTY, newSlot)) {
+                            referenced[index] = 1;
+                            size.incrementAndGet();
+                            return STORED;
+                        }
+                        // 被其他线程抢先了，重新检查这个槽
+                        i--;
+                        index = (index - 1) & mask;
+                        continue;
+                    }
+                    if (getTid(slot) == tid) {
+                        if (slot == newSlot || slots.compareAndSet(index, slot, newSlot)) {
+                            referenced[index] = 1;
+                            return STORED;
+                        }
+                        i--;
+                        index = (index - 1) & mask;
+                        continue;
+                    }
+                }
+                if (!evict)
+                    return NO_ROOM;
+                // 探测范围内都满了，用CLOCK算法找一个最近没被访问过的槽替换掉，
+                // 替换不会产生空槽，所以不会打断其他tid的探测序列
+                index = home;
+                for (int i = 0; i < MAX_PROBES * 2; i++, index = (i % MAX_PROBES + home) & mask) {
+                    if (referenced[index] != 0) {
+                        referenced[index] = 0;
+                        continue;
+                    }
+                    long slot = slots.get(index);
+                    if (slot != EMPTY && slots.compareAndSet(index, slot, newSlot)) {
+                        referenced[index] = 1;
+                        return EVICTED;
+                    }
+                }
+            }
         }
     }
 }
@@ -17,45 +17,66 @@
  */
 package org.lealone.transaction;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.lealone.storage.StorageMap;
-import org.lealone.util.New;
 
-class TransactionStatusTable {
+public class TransactionStatusTable {
     private TransactionStatusTable() {
     }
 
-    private final static Map<String, TransactionStatusCache> hostAndPortMap = New.hashMap();
+    private final static ConcurrentHashMap<String, TransactionStatusCache> hostAndPortMap = new ConcurrentHashMap<>();
 
     /**
      * The persisted map of transactionStatusTable.
-     * Key: transactionName, value: [ allLocalTransactionNames, commitTimestamp ].
+     * Key: transactionName, value: [ allLocalTransactionNames(String[]), commitTimestamp ].
      */
     private static StorageMap<String, Object[]> map;
 
     private static TransactionStatusCache newCache(String hostAndPort) {
-        synchronized (TransactionStatusTable.class) {
-            TransactionStatusCache cache = hostAndPortMap.get(hostAndPort);
-            if (cache == null) {
-                cache = new TransactionStatusCache();
-                hostAndPortMap.put(hostAndPort, cache);
-            }
-
-            return cache;
-        }
+        TransactionStatusCache cache = new TransactionStatusCache();
+        TransactionStatusCache old = hostAndPortMap.putIfAbsent(hostAndPort, cache);
+        return old != null ? old : cache;
     }
 
     static synchronized void init(StorageMap.Builder mapBuilder) {
-        if (map == null)
+        // 同一个进程中前一个数据库关闭后它的map也关闭了，要换成新打开的
+        if (map == null || map.isClosed())
             map = mapBuilder.openMap("transactionStatusTable");
     }
 
-    static void commit(MVCCTransaction transaction, String allLocalTransactionNames) {
+    public static void commit(MVCCTransaction transaction, String[] allLocalTransactionNames) {
         Object[] v = { allLocalTransactionNames, transaction.getCommitTimestamp() };
         map.put(transaction.transactionName, v);
     }
 
+    public static String[] getAllLocalTransactionNames(Object[] v) {
+        // 老版本存的是用逗号分隔的字符串
+        if (v[0] instanceof String)
+            return ((String) v[0]).split(",");
+        return (String[]) v[0];
+    }
+
+    /**
+     * 返回allLocalTransactionNames中除了excludeName之外的其他本地事务名
+     */
+    public static List<String> getRemoteTransactionNames(String[] allLocalTransactionNames, String hostAndPort,
+            String excludeName) {
+        List<String> names = new ArrayList<>(allLocalTransactionNames.length);
+        for (String localTransactionName : allLocalTransactionNames) {
+            if (excludeName != null && excludeName.equals(localTransactionName))
+                continue;
+            // 本地事务名的格式是hostAndPort:tid
+            if (hostAndPort != null && localTransactionName.startsWith(hostAndPort)
+                    && localTransactionName.lastIndexOf(':') == hostAndPort.length())
+                continue;
+            names.add(localTransactionName);
+        }
+        return names;
+    }
+
     static boolean validateTransaction(String localTransactionName) {
         return map.containsKey(localTransactionName);
     }
@@ -68,7 +89,7 @@ class TransactionStatusTable {
      * @param currentTransaction 当前事务
      * @return true 有效 
      */
-    static boolean validateTransaction(String hostAndPort, long oldTid, MVCCTransaction currentTransaction) {
+    public static boolean validateTransaction(String hostAndPort, long oldTid, MVCCTransaction currentTransaction) {
         TransactionStatusCache cache = hostAndPortMap.get(hostAndPort);
         if (cache == null) {
             cache = newCache(hostAndPort);
@@ -88,17 +109,8 @@ class TransactionStatusTable {
             return true;
 
         commitTimestamp = (long) v[1];
-        String[] allLocalTransactionNames = ((String) v[0]).split(",");
-        boolean isFullSuccessful = true;
-
-        for (String localTransactionName : allLocalTransactionNames) {
-            if (!oldTransactionName.equals(localTransactionName)) {
-                if (!currentTransaction.validator.validateTransaction(localTransactionName)) {
-                    isFullSuccessful = false;
-                    break;
-                }
-            }
-        }
+        List<String> names = getRemoteTransactionNames(getAllLocalTransactionNames(v), null, oldTransactionName);
+        boolean isFullSuccessful = names.isEmpty() || currentTransaction.validator.validateTransactions(names);
 
         // TODO 如果前一个事务没有结束，如何让它结束或是等它结束。
         if (isFullSuccessful) {
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.lealone.engine.SysProperties;
+import org.lealone.storage.StorageMap;
+
+/**
+ * 组提交(group commit)
+ * <p>
+ * 提交的事务放到队列中，由这个线程把一批事务的修改通过一次store和sync持久化，
+ * 每个事务拿到一个Future，在修改持久化之后完成。
+ */
+public class TransactionSyncer extends Thread {
+
+    /**
+     * 不需要等待持久化时使用
+     */
+    static final SyncFuture COMPLETED = new SyncFuture();
+    static {
+        COMPLETED.done(null);
+    }
+
+    private static final SyncFuture CLOSE_SENTINEL = new SyncFuture();
+
+    private final BlockingQueue<SyncFuture> backlog = new LinkedBlockingQueue<>();
+    private final StorageMap.Builder mapBuilder;
+    private final long maxDelayNanos;
+    private final int maxBatchSize;
+
+    // enqueue检查isStopped和加入队列时拿读锁，close设置isStopped和放入CLOSE_SENTINEL时拿写锁，
+    // 这样CLOSE_SENTINEL之后不会再有新的事务进入队列
+    private final ReentrantReadWriteLock stopLock = new ReentrantReadWriteLock();
+    private volatile boolean isStopped = false;
+
+    TransactionSyncer(StorageMap.Builder mapBuilder) {
+        this(mapBuilder, SysProperties.TRANSACTION_GROUP_COMMIT_MAX_DELAY,
+                SysProperties.TRANSACTION_GROUP_COMMIT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * 
+     * @param maxDelay 一批事务最多等待的毫秒数
+     * @param maxBatchSize 一批最多包含的事务数
+     */
+    public TransactionSyncer(StorageMap.Builder mapBuilder, int maxDelay, int maxBatchSize) {
+        super("TransactionSyncer");
+        setDaemon(true);
+        this.mapBuilder = mapBuilder;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * 让队列中剩下的事务持久化之后再结束
+     */
+    public void close() {
+        stopLock.writeLock().lock();
+        try {
+            if (isStopped)
+                return;
+            isStopped = true;
+            backlog.add(CLOSE_SENTINEL);
+        } finally {
+            stopLock.writeLock().unlock();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            // ignore
+        }
+        // 线程被中断或者异常退出时队列中可能还有事务，不能让它们一直等下去
+        completeRemaining();
+    }
+
+    /**
+     * 
+     * @return 在修改持久化之后完成，关闭之后加入的事务直接sync，返回的Future已经完成
+     */
+    public Future<Void> enqueue() {
+        stopLock.readLock().lock();
+        try {
+            if (!isStopped) {
+                SyncFuture f = new SyncFuture();
+                backlog.add(f);
+                return f;
+            }
+        } finally {
+            stopLock.readLock().unlock();
+        }
+        mapBuilder.sync();
+        return COMPLETED;
+    }
+
+    @Override
+    public void run() {
+        final List<SyncFuture> batch = new ArrayList<>(Math.min(maxBatchSize, 1024));
+        boolean closed = false;
+        while (!closed) {
+            try {
+                SyncFuture first = backlog.take();
+                batch.add(first);
+                // 等一小段时间，让更多的事务加入这一批，关闭时就不用等了
+                if (maxDelayNanos > 0 && first != CLOSE_SENTINEL) {
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    while (batch.size() < maxBatchSize) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0)
+                            break;
+                        SyncFuture f = backlog.poll(wait, TimeUnit.NANOSECONDS);
+                        if (f == null)
+                            break;
+                        batch.add(f);
+                        if (f == CLOSE_SENTINEL)
+                            break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (batch.size() < maxBatchSize)
+                backlog.drainTo(batch, maxBatchSize - batch.size());
+
+            Throwable error = null;
+            try {
+                mapBuilder.sync();
+            } catch (Throwable e) {
+                error = e;
+            }
+            for (SyncFuture f : batch) {
+                if (f == CLOSE_SENTINEL)
+                    closed = true;
+                else
+                    f.done(error);
+            }
+            batch.clear();
+        }
+    }
+
+    private void completeRemaining() {
+        List<SyncFuture> list = new ArrayList<>();
+        backlog.drainTo(list);
+        list.remove(CLOSE_SENTINEL);
+        if (list.isEmpty())
+            return;
+        Throwable error = null;
+        try {
+            mapBuilder.sync();
+        } catch (Throwable e) {
+            error = e;
+        }
+        for (SyncFuture f : list)
+            f.done(error);
+    }
+
+    static class SyncFuture implements Future<Void> {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Throwable error;
+
+        void done(Throwable error) {
+            this.error = error;
+            latch.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            latch.await();
+            return getResult();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            if (!latch.await(timeout, unit))
+                throw new TimeoutException();
+            return getResult();
+        }
+
+        private Void getResult() throws ExecutionException {
+            if (error != null)
+                throw new ExecutionException(error);
+            return null;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 class TransactionValidator extends Thread {
 
+    private static final int MAX_BATCH_SIZE = 128;
     private static final QueuedMessage CLOSE_SENTINEL = new QueuedMessage(null, null);
     private static final BlockingQueue<QueuedMessage> backlog = new LinkedBlockingQueue<>();
 
@@ -49,9 +50,9 @@ class TransactionValidator extends Thread {
     @Override
     public void run() {
         // keeping list (batch) size small for now; that way we don't have an unbounded array (that we never resize)
-        final List<QueuedMessage> drainedMessages = new ArrayList<>(128);
+        final List<QueuedMessage> drainedMessages = new ArrayList<>(MAX_BATCH_SIZE);
         outer: while (true) {
-            if (backlog.drainTo(drainedMessages, drainedMessages.size()) == 0) {
+            if (backlog.drainTo(drainedMessages, MAX_BATCH_SIZE) == 0) {
                 try {
                     drainedMessages.add(backlog.take());
                 } catch (InterruptedException e) {
@@ -80,24 +81,17 @@ class TransactionValidator extends Thread {
     }
 
     private static void validateTransaction(QueuedMessage qm) {
-        String[] allLocalTransactionNames = qm.allLocalTransactionNames.split(",");
-        boolean isFullSuccessful = true;
-
-        for (String localTransactionName : allLocalTransactionNames) {
-            if (!localTransactionName.startsWith(qm.t.transactionEngine.hostAndPort)) {
-                if (!qm.t.validator.validateTransaction(localTransactionName)) {
-                    isFullSuccessful = false;
-                    break;
-                }
-            }
-        }
+        // 同一个节点上的本地事务一次网络往返就能验证完
+        List<String> names = TransactionStatusTable.getRemoteTransactionNames(qm.allLocalTransactionNames,
+                qm.t.transactionEngine.hostAndPort, null);
+        boolean isFullSuccessful = names.isEmpty() || qm.t.validator.validateTransactions(names);
 
         if (isFullSuccessful) {
             qm.t.transactionEngine.commitAfterValidate(qm.t.transactionId);
         }
     }
 
-    static void enqueue(MVCCTransaction t, String allLocalTransactionNames) {
+    static void enqueue(MVCCTransaction t, String[] allLocalTransactionNames) {
         try {
             backlog.put(new QueuedMessage(t, allLocalTransactionNames));
         } catch (InterruptedException e) {
@@ -107,9 +101,9 @@ class TransactionValidator extends Thread {
 
     private static class QueuedMessage {
         final MVCCTransaction t;
-        final String allLocalTransactionNames;
+        final String[] allLocalTransactionNames;
 
-        QueuedMessage(MVCCTransaction t, String allLocalTransactionNames) {
+        QueuedMessage(MVCCTransaction t, String[] allLocalTransactionNames) {
             this.t = t;
             this.allLocalTransactionNames = allLocalTransactionNames;
         }
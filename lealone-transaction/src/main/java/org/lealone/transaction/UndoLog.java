@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction;
+
+import java.util.Collection;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.lealone.storage.StorageMap;
+
+/**
+ * 每个事务独享的undo log，只有当前事务会写，其他事务只会按logId读，所以不需要全局锁。
+ * <p>
+ * 正常情况下undo log只在内存中，只有在需要崩溃恢复时(比如2pc的prepare、关闭引擎时事务还未结束、
+ * 或者存储层要把这个事务未提交的数据写到存储设备)才spill到MVCCTransactionEngine中的持久化undoLog，
+ * spill之后的写操作也会同步到持久化undoLog。
+ * <p>
+ * Key: logId, value: [ mapId, key, oldValue ].
+ */
+class UndoLog {
+
+    private final int transactionId;
+    private final ConcurrentSkipListMap<Long, Object[]> records = new ConcurrentSkipListMap<>();
+
+    /**
+     * 不为null时表示已经spill过了
+     */
+    private volatile StorageMap<Long, Object[]> persistentUndoLog;
+
+    UndoLog(int transactionId) {
+        this.transactionId = transactionId;
+    }
+
+    void add(long logId, Object[] record) {
+        records.put(logId, record);
+        StorageMap<Long, Object[]> undoLog = persistentUndoLog;
+        if (undoLog != null)
+            undoLog.put(getOperationId(logId), record);
+    }
+
+    Object[] get(long logId) {
+        return records.get(logId);
+    }
+
+    Object[] remove(long logId) {
+        Object[] old = records.remove(logId);
+        StorageMap<Long, Object[]> undoLog = persistentUndoLog;
+        if (old != null && undoLog != null)
+            undoLog.remove(getOperationId(logId));
+        return old;
+    }
+
+    /**
+     * 返回logId在[fromLogId, toLogId)之间的记录，按logId从小到大排序
+     */
+    NavigableMap<Long, Object[]> subLog(long fromLogId, long toLogId) {
+        return records.subMap(fromLogId, true, toLogId, false);
+    }
+
+    boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    int size() {
+        return records.size();
+    }
+
+    Collection<Object[]> values() {
+        return records.values();
+    }
+
+    /**
+     * 把内存中的记录写到持久化undoLog，之后的写操作也会同步过去
+     * <p>
+     * 存储层的线程会和事务自己的线程同时调用它，这里不能加锁:
+     * 事务在提交或回滚时锁住了undo log再去写map，写map又可能要等存储层写完。
+     * 所以先设置persistentUndoLog让add和remove同步过去，再逐条复制，
+     * 复制完一条后如果它已经被改过了就再复制一次，被删掉的记录不会留在持久化undoLog中。
+     */
+    void spill(StorageMap<Long, Object[]> undoLog) {
+        if (persistentUndoLog != null)
+            return;
+        persistentUndoLog = undoLog;
+        for (Long logId : records.keySet()) {
+            Long key = getOperationId(logId);
+            Object[] record;
+            do {
+                record = records.get(logId);
+                if (record == null)
+                    undoLog.remove(key);
+                else
+                    undoLog.put(key, record);
+            } while (records.get(logId) != record);
+        }
+    }
+
+    boolean isSpilled() {
+        return persistentUndoLog != null;
+    }
+
+    /**
+     * 从持久化undoLog中恢复时使用，记录已经在undoLog中了，所以不需要再写一次
+     */
+    void recover(StorageMap<Long, Object[]> undoLog, long logId, Object[] record) {
+        persistentUndoLog = undoLog;
+        records.put(logId, record);
+    }
+
+    private long getOperationId(long logId) {
+        return MVCCTransactionEngine.getOperationId(transactionId, logId);
+    }
+}